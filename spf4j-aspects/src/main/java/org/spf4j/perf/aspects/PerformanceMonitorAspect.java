@@ -33,8 +33,12 @@ package org.spf4j.perf.aspects;
 
 import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.TimeUnit;
+import org.spf4j.perf.MeasurementRecorder;
 import org.spf4j.perf.MeasurementRecorderSource;
+import org.aspectj.lang.JoinPoint;
 import org.aspectj.lang.ProceedingJoinPoint;
 import org.aspectj.lang.annotation.Around;
 import org.aspectj.lang.annotation.Aspect;
@@ -49,6 +53,9 @@ import org.spf4j.base.TimeSource;
  * Aspect that measures execution time and does performance logging
  * for all methods annotated with: PerformanceMonitor annotation.
  *
+ * The measurement recorder is resolved once per join point (cached by JoinPoint.StaticPart),
+ * so the timing path does not allocate. The arguments are materialized only when they are logged.
+ *
  * @author zoly
  */
 @Aspect
@@ -63,6 +70,20 @@ public final class PerformanceMonitorAspect {
             return (MeasurementRecorderSource) key.getField("INSTANCE").get(null);
         }
     });
+
+    private static final ConcurrentMap<JoinPoint.StaticPart, MeasurementRecorder> RECORDERS =
+            new ConcurrentHashMap<>(64);
+
+    private static MeasurementRecorder getRecorder(final JoinPoint.StaticPart staticPart,
+            final PerformanceMonitor annot) {
+        MeasurementRecorder recorder = RECORDERS.get(staticPart);
+        if (recorder == null) {
+            recorder = RECORDERS.computeIfAbsent(staticPart,
+                    (sp) -> REC_SOURCES.getUnchecked(annot.recorderSource()).getRecorder(sp.toLongString()));
+        }
+        return recorder;
+    }
+
     @Around(value = "@annotation(annot)"
             + " && execution(@org.spf4j.annotations.PerformanceMonitor * *(..))",
             argNames = "pjp,annot")
@@ -72,8 +93,7 @@ public final class PerformanceMonitorAspect {
         Object result = pjp.proceed();
         final long elapsedNanos = TimeSource.nanoTime() - start;
         final long elapsed = TimeUnit.NANOSECONDS.toMillis(elapsedNanos);
-        MeasurementRecorderSource mrs = REC_SOURCES.getUnchecked(annot.recorderSource());
-        mrs.getRecorder(pjp.toLongString()).record(elapsed);
+        getRecorder(pjp.getStaticPart(), annot).record(elapsed);
         final long warnThresholdMillis = annot.warnThresholdMillis();
         if (elapsed > warnThresholdMillis) {
             final long errorThresholdMillis = annot.errorThresholdMillis();
@@ -86,9 +106,11 @@ public final class PerformanceMonitorAspect {
             }
         } else {
             if (annot.defaultInfoLog()) {
-                LOG.info("Execution time {} ms for {}, arguments {}",
-                        elapsed, pjp.toShortString(), pjp.getArgs());
-            } else {
+                if (LOG.isInfoEnabled()) {
+                    LOG.info("Execution time {} ms for {}, arguments {}",
+                            elapsed, pjp.toShortString(), pjp.getArgs());
+                }
+            } else if (LOG.isDebugEnabled()) {
                 LOG.debug("Execution time {} ms for {}, arguments {}",
                         elapsed, pjp.toShortString(), pjp.getArgs());
             }
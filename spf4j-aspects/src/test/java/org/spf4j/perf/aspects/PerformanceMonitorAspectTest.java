@@ -33,14 +33,19 @@ package org.spf4j.perf.aspects;
 
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.stream.Collectors;
 import org.spf4j.annotations.PerformanceMonitor;
+import org.junit.Assert;
 import org.junit.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.spf4j.annotations.RecorderSourceInstance;
 import org.spf4j.jmx.JmxExport;
 import org.spf4j.jmx.Registry;
 import org.spf4j.log.Level;
+import org.spf4j.perf.MeasurementRecorder;
+import org.spf4j.perf.MeasurementRecorderSource;
 import org.spf4j.test.log.LogAssert;
 import org.spf4j.test.log.LogCollection;
 import org.spf4j.test.log.TestLogRecord;
@@ -78,6 +83,50 @@ public final class PerformanceMonitorAspectTest {
     }
   }
 
+  @Test
+  public void testRecorderResolvedOncePerJoinPoint() throws InterruptedException {
+    for (int i = 0; i < 5; i++) {
+      countedMethod(20);
+    }
+    Assert.assertEquals(1, CountingRecorderSource.REQUESTED.size());
+    Assert.assertTrue(CountingRecorderSource.REQUESTED.get(0).toString().contains("countedMethod"));
+    Assert.assertEquals(5, CountingRecorderSource.RECORDED.size());
+    for (Long elapsedMillis : CountingRecorderSource.RECORDED) {
+      Assert.assertTrue("elapsed " + elapsedMillis, elapsedMillis >= 20 && elapsedMillis < 10000);
+    }
+  }
+
+  @PerformanceMonitor(warnThresholdMillis = 10000, errorThresholdMillis = 20000,
+          recorderSource = CountingRecorderSource.class)
+  public void countedMethod(final long sleepMillis) throws InterruptedException {
+    Thread.sleep(sleepMillis);
+  }
+
+  /**
+   * recorder source that keeps track of the requested recorders and of the recorded measurements.
+   */
+  public static final class CountingRecorderSource extends RecorderSourceInstance {
+
+    public static final List<Object> REQUESTED = new CopyOnWriteArrayList<>();
+
+    public static final List<Long> RECORDED = new CopyOnWriteArrayList<>();
+
+    public static final MeasurementRecorderSource INSTANCE = (forWhat) -> {
+      REQUESTED.add(forWhat);
+      return new MeasurementRecorder() {
+        @Override
+        public void record(final long measurement) {
+          RECORDED.add(measurement);
+        }
+
+        @Override
+        public void recordAt(final long timestampMillis, final long measurement) {
+          RECORDED.add(measurement);
+        }
+      };
+    };
+  }
+
   @PerformanceMonitor(warnThresholdMillis = 1)
   @JmxExport
   public void somethingTomeasure(final int arg1, final String arg2) throws InterruptedException {
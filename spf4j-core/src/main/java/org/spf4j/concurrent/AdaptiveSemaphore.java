@@ -0,0 +1,365 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.concurrent;
+
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import javax.annotation.Nonnegative;
+import javax.annotation.ParametersAreNonnullByDefault;
+import javax.annotation.concurrent.ThreadSafe;
+import org.spf4j.base.Throwables;
+import org.spf4j.base.TimeSource;
+
+/**
+ * A process level semaphore with a limit that adapts to the observed latency and drops
+ * (see {@link ConcurrencyLimitAlgorithm}, {@link AimdLimitAlgorithm}, {@link VegasLimitAlgorithm},
+ * {@link GradientLimitAlgorithm}).
+ *
+ * The round trip times (the time a permit is held for) are reported on release
+ * ({@link #release(int, long, boolean)}), or measured by {@link #call(Callable, long)}.
+ * The samples are accumulated in striped counters (LongAdder), so the release path does not contend on a lock.
+ * When a measurement window ends (and has enough samples), the releasing thread that closes the window computes
+ * the new limit. Permits acquired before a limit decrease are not revoked, the permits in use can
+ * exceed the limit until they are released.
+ *
+ * The minimum round trip time (the no load latency estimate) is the minimum over the last minRttWindows
+ * measurement windows (spf4j.adaptiveSemaphore.minRttWindows, default 100), so that the estimate recovers
+ * after the resource latency increases permanently (ex: a resource migration) or after a outlier fast sample.
+ *
+ * @author Zoltan Farkas
+ */
+@ParametersAreNonnullByDefault
+@ThreadSafe
+public final class AdaptiveSemaphore implements Semaphore {
+
+  private static final long DEFAULT_WINDOW_NANOS
+          = TimeUnit.MILLISECONDS.toNanos(Long.getLong("spf4j.adaptiveSemaphore.windowMillis", 100));
+
+  private static final int DEFAULT_MIN_WINDOW_SAMPLES
+          = Integer.getInteger("spf4j.adaptiveSemaphore.minWindowSamples", 10);
+
+  private static final int DEFAULT_MIN_RTT_WINDOWS
+          = Integer.getInteger("spf4j.adaptiveSemaphore.minRttWindows", 100);
+
+  private final ConcurrencyLimitAlgorithm algorithm;
+
+  private final int minLimit;
+
+  private final int maxLimit;
+
+  private final long windowNanos;
+
+  private final int minWindowSamples;
+
+  private final Permits permits;
+
+  private final LongAdder rttSum;
+
+  private final LongAdder rttCount;
+
+  private final LongAdder dropCount;
+
+  /** the min round trip time of the current window. */
+  private final AtomicLong windowMinRttNanos;
+
+  /** the min round trip times of the last windows, guarded by sync. */
+  private final long[] minRttHistory;
+
+  private int minRttHistoryIdx;
+
+  private volatile long minRttNanos;
+
+  private final AtomicInteger maxInFlight;
+
+  private final AtomicLong windowEndNanos;
+
+  private final Object sync;
+
+  private volatile int limit;
+
+  private double limitEstimate;
+
+  public AdaptiveSemaphore(final ConcurrencyLimitAlgorithm algorithm, final int initialLimit, final int maxLimit) {
+    this(algorithm, initialLimit, 1, maxLimit, DEFAULT_WINDOW_NANOS, DEFAULT_MIN_WINDOW_SAMPLES);
+  }
+
+  /**
+   * @param algorithm the limit algorithm.
+   * @param initialLimit the initial limit.
+   * @param minLimit the lowest limit.
+   * @param maxLimit the highest limit.
+   * @param windowNanos the measurement window length.
+   * @param minWindowSamples the minimum number of samples in a window for the limit to be updated.
+   */
+  public AdaptiveSemaphore(final ConcurrencyLimitAlgorithm algorithm, final int initialLimit,
+          final int minLimit, final int maxLimit, final long windowNanos, final int minWindowSamples) {
+    this(algorithm, initialLimit, minLimit, maxLimit, windowNanos, minWindowSamples, DEFAULT_MIN_RTT_WINDOWS);
+  }
+
+  /**
+   * @param algorithm the limit algorithm.
+   * @param initialLimit the initial limit.
+   * @param minLimit the lowest limit.
+   * @param maxLimit the highest limit.
+   * @param windowNanos the measurement window length.
+   * @param minWindowSamples the minimum number of samples in a window for the limit to be updated.
+   * @param minRttWindows the number of windows the minimum round trip time is computed over.
+   */
+  public AdaptiveSemaphore(final ConcurrencyLimitAlgorithm algorithm, final int initialLimit,
+          final int minLimit, final int maxLimit, final long windowNanos, final int minWindowSamples,
+          final int minRttWindows) {
+    if (minLimit < 1 || maxLimit < minLimit || initialLimit < minLimit || initialLimit > maxLimit) {
+      throw new IllegalArgumentException("Invalid limits, initial = " + initialLimit + ", min = " + minLimit
+              + ", max = " + maxLimit);
+    }
+    if (windowNanos <= 0 || minWindowSamples < 1 || minRttWindows < 1) {
+      throw new IllegalArgumentException("Invalid window " + windowNanos + " ns, min samples = " + minWindowSamples
+              + ", min rtt windows = " + minRttWindows);
+    }
+    this.algorithm = algorithm;
+    this.minLimit = minLimit;
+    this.maxLimit = maxLimit;
+    this.windowNanos = windowNanos;
+    this.minWindowSamples = minWindowSamples;
+    this.permits = new Permits(initialLimit);
+    this.rttSum = new LongAdder();
+    this.rttCount = new LongAdder();
+    this.dropCount = new LongAdder();
+    this.windowMinRttNanos = new AtomicLong(Long.MAX_VALUE);
+    this.minRttHistory = new long[minRttWindows];
+    Arrays.fill(minRttHistory, Long.MAX_VALUE);
+    this.minRttHistoryIdx = 0;
+    this.minRttNanos = Long.MAX_VALUE;
+    this.maxInFlight = new AtomicInteger();
+    this.windowEndNanos = new AtomicLong(TimeSource.nanoTime() + windowNanos);
+    this.sync = new Object();
+    this.limit = initialLimit;
+    this.limitEstimate = initialLimit;
+  }
+
+  @Override
+  public boolean tryAcquire(final int nrPermits, final long deadlineNanos) throws InterruptedException {
+    long nanosToDeadline = deadlineNanos - TimeSource.nanoTime();
+    boolean acquired;
+    if (nanosToDeadline <= 0) {
+      acquired = permits.tryAcquire(nrPermits);
+    } else {
+      acquired = permits.tryAcquire(nrPermits, nanosToDeadline, TimeUnit.NANOSECONDS);
+    }
+    if (acquired) {
+      int inFlight = limit - permits.availablePermits();
+      int max = maxInFlight.get();
+      while (inFlight > max && !maxInFlight.compareAndSet(max, inFlight)) {
+        max = maxInFlight.get();
+      }
+    }
+    return acquired;
+  }
+
+  /**
+   * Release permits without a latency sample. (operation was not executed, or its outcome is not relevant)
+   * @param nrPermits the number of permits to release.
+   */
+  @Override
+  public void release(final int nrPermits) {
+    permits.release(nrPermits);
+  }
+
+  /**
+   * Release permits, and record a sample.
+   * @param nrPermits the number of permits to release.
+   * @param rttNanos the time the permits were held for.
+   * @param dropped true if the operation the permits were acquired for was dropped.
+   * (timed out, was rejected by the resource, ...)
+   */
+  public void release(final int nrPermits, @Nonnegative final long rttNanos, final boolean dropped) {
+    permits.release(nrPermits);
+    if (dropped) {
+      dropCount.increment();
+    } else {
+      rttSum.add(rttNanos);
+      rttCount.increment();
+      long min = windowMinRttNanos.get();
+      while (rttNanos < min && !windowMinRttNanos.compareAndSet(min, rttNanos)) {
+        min = windowMinRttNanos.get();
+      }
+    }
+    long windowEnd = windowEndNanos.get();
+    long now = TimeSource.nanoTime();
+    if (now - windowEnd >= 0 && (rttCount.sum() >= minWindowSamples || dropCount.sum() > 0)
+            && windowEndNanos.compareAndSet(windowEnd, now + windowNanos)) {
+      updateLimit();
+    }
+  }
+
+  private void updateLimit() {
+    synchronized (sync) {
+      // samples recorded concurrently with the reset can be lost, which is acceptable for an estimate.
+      long count = rttCount.sumThenReset();
+      long sum = rttSum.sumThenReset();
+      boolean dropped = dropCount.sumThenReset() > 0;
+      int inFlight = maxInFlight.getAndSet(limit - permits.availablePermits());
+      long avgRtt = count == 0 ? 0 : sum / count;
+      long minRtt = updateMinRtt(windowMinRttNanos.getAndSet(Long.MAX_VALUE));
+      double newEstimate = algorithm.update(limitEstimate, avgRtt, minRtt == Long.MAX_VALUE ? avgRtt : minRtt,
+              inFlight, dropped);
+      limitEstimate = Math.max(minLimit, Math.min(maxLimit, newEstimate));
+      int newLimit = (int) Math.round(limitEstimate);
+      int delta = newLimit - limit;
+      if (delta > 0) {
+        permits.release(delta);
+      } else if (delta < 0) {
+        permits.reducePermits(-delta);
+      }
+      limit = newLimit;
+    }
+  }
+
+  /**
+   * Add the window min round trip time to the history, and compute the min over the history.
+   */
+  private long updateMinRtt(final long windowMinRtt) {
+    minRttHistory[minRttHistoryIdx] = windowMinRtt;
+    minRttHistoryIdx = (minRttHistoryIdx + 1) % minRttHistory.length;
+    long min = Long.MAX_VALUE;
+    for (long rtt : minRttHistory) {
+      if (rtt < min) {
+        min = rtt;
+      }
+    }
+    minRttNanos = min;
+    return min;
+  }
+
+  /**
+   * Execute a callable with a permit, acquired until the deadline. The execution time is recorded as a sample,
+   * timeouts, rejections and retryable exceptions (see {@link Throwables#isRetryable(Throwable)}) are recorded
+   * as drops, other exceptions are not recorded.
+   * @param what the callable to execute.
+   * @param deadlineNanos the deadline to acquire a permit until.
+   * @return the callable result.
+   * @throws TimeoutException if a permit cannot be acquired until the deadline.
+   * @throws Exception the callable exception.
+   */
+  public <T> T call(final Callable<? extends T> what, final long deadlineNanos) throws Exception {
+    if (!tryAcquire(1, deadlineNanos)) {
+      throw new TimeoutException("Cannot acquire permit from " + this + " until "
+              + (deadlineNanos - TimeSource.nanoTime()) + " ns");
+    }
+    return callAcquired(what);
+  }
+
+  /**
+   * Execute a callable with a permit already acquired, the permit is released.
+   * @param what the callable to execute.
+   * @return the callable result.
+   * @throws Exception the callable exception.
+   */
+  public <T> T callAcquired(final Callable<? extends T> what) throws Exception {
+    long startNanos = TimeSource.nanoTime();
+    T result;
+    try {
+      result = what.call();
+    } catch (Exception ex) {
+      if (isDrop(ex)) {
+        release(1, TimeSource.nanoTime() - startNanos, true);
+      } else {
+        release(1);
+      }
+      throw ex;
+    } catch (Throwable t) {
+      release(1);
+      throw t;
+    }
+    release(1, TimeSource.nanoTime() - startNanos, false);
+    return result;
+  }
+
+  private static boolean isDrop(final Exception ex) {
+    return ex instanceof TimeoutException || ex instanceof RejectedExecutionException || Throwables.isRetryable(ex);
+  }
+
+  /**
+   * @return the current limit.
+   */
+  public int getLimit() {
+    return limit;
+  }
+
+  /**
+   * @return the number of permits currently available.
+   * (can be negative after a limit decrease, until the permits in use are released)
+   */
+  public int getAvailablePermits() {
+    return permits.availablePermits();
+  }
+
+  /**
+   * @return the minimum round trip time observed in the last minRttWindows windows,
+   * Long.MAX_VALUE if there is no sample.
+   */
+  public long getMinRttNanos() {
+    return minRttNanos;
+  }
+
+  @Override
+  public String toString() {
+    return "AdaptiveSemaphore{" + "algorithm=" + algorithm + ", limit=" + limit + ", minLimit=" + minLimit
+            + ", maxLimit=" + maxLimit + ", available=" + permits.availablePermits() + ", windowNanos=" + windowNanos
+            + ", minRttNanos=" + minRttNanos + '}';
+  }
+
+  /**
+   * JDK semaphore that exposes the permit reduction.
+   */
+  private static final class Permits extends java.util.concurrent.Semaphore {
+
+    private static final long serialVersionUID = 1L;
+
+    Permits(final int permits) {
+      super(permits, false);
+    }
+
+    @Override
+    protected void reducePermits(final int reduction) {
+      super.reducePermits(reduction);
+    }
+
+  }
+
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.concurrent;
+
+/**
+ * Additive increase, multiplicative decrease. The limit is increased by 1 for every window without drops
+ * where the limit was utilized, and is multiplied with the backoff ratio for every window with drops
+ * or with a average latency above the latency threshold.
+ *
+ * @author Zoltan Farkas
+ */
+public final class AimdLimitAlgorithm implements ConcurrencyLimitAlgorithm {
+
+  private final double backoffRatio;
+
+  private final long rttThresholdNanos;
+
+  public AimdLimitAlgorithm() {
+    this(0.9, Long.MAX_VALUE);
+  }
+
+  /**
+   * @param backoffRatio the ratio the limit is multiplied with on drops, (0, 1).
+   * @param rttThresholdNanos the average latency above which a window is considered as with drops.
+   */
+  public AimdLimitAlgorithm(final double backoffRatio, final long rttThresholdNanos) {
+    if (backoffRatio <= 0 || backoffRatio >= 1) {
+      throw new IllegalArgumentException("Invalid backoff ratio " + backoffRatio);
+    }
+    this.backoffRatio = backoffRatio;
+    this.rttThresholdNanos = rttThresholdNanos;
+  }
+
+  @Override
+  public double update(final double limit, final long rttNanos, final long minRttNanos,
+          final int maxInFlight, final boolean dropped) {
+    if (dropped || rttNanos > rttThresholdNanos) {
+      return limit * backoffRatio;
+    }
+    if (maxInFlight * 2 >= limit) {
+      return limit + 1;
+    }
+    return limit;
+  }
+
+  @Override
+  public String toString() {
+    return "AimdLimitAlgorithm{" + "backoffRatio=" + backoffRatio + ", rttThresholdNanos=" + rttThresholdNanos + '}';
+  }
+
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.concurrent;
+
+import javax.annotation.Nonnegative;
+
+/**
+ * A concurrency limit algorithm, computes a new concurrency limit based on the latency and drop (overload) signals
+ * observed in the last measurement window.
+ *
+ * The algorithm is invoked by one thread at a time (see {@link AdaptiveSemaphore}), as such implementations
+ * can keep state without synchronization.
+ *
+ * @author Zoltan Farkas
+ */
+public interface ConcurrencyLimitAlgorithm {
+
+  /**
+   * compute the new limit.
+   * @param limit the current limit.
+   * @param rttNanos the average round trip time observed in the last window.
+   * @param minRttNanos the minimum round trip time observed (the no load latency estimate).
+   * @param maxInFlight the maximum number of permits in use observed in the last window.
+   * @param dropped true if requests have been dropped (timed out, rejected) in the last window.
+   * @return the new limit, will be rounded and bounded by the semaphore.
+   */
+  double update(double limit, @Nonnegative long rttNanos, @Nonnegative long minRttNanos,
+          @Nonnegative int maxInFlight, boolean dropped);
+
+}
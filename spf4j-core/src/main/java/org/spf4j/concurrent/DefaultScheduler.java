@@ -60,6 +60,16 @@ public final class DefaultScheduler {
   public static final ListeningScheduledExecutorService LISTENABLE_INSTANCE
           = MoreExecutors.listeningDecorator(INSTANCE);
 
+  /**
+   * Hashed wheel timer for high volume, short lived timeouts (retries, hedges, deadlines),
+   * where the ScheduledThreadPoolExecutor heap and lock would be a bottleneck.
+   * Tasks are executed in the timer thread, and they should only hand off work to an executor.
+   */
+  private static final HashedWheelTimer TIMER
+          = new HashedWheelTimer("DefaultTimer",
+                  Long.getLong("spf4j.executors.defaultTimer.tickMicros", 1000), TimeUnit.MICROSECONDS,
+                  Integer.getInteger("spf4j.executors.defaultTimer.wheelSize", 512));
+
   static {
     org.spf4j.base.Runtime.queueHookAtEnd(new AbstractRunnable(true) {
 
@@ -71,6 +81,7 @@ public final class DefaultScheduler {
         if (remaining.size() > 0) {
           org.spf4j.base.Runtime.error("Remaining tasks: " + remaining);
         }
+        TIMER.close();
       }
     });
   }
@@ -83,6 +94,13 @@ public final class DefaultScheduler {
     return LISTENABLE_INSTANCE;
   }
 
+  /**
+   * @return the shared hashed wheel timer, for high volume, short lived timeouts (retries, hedges, deadlines).
+   */
+  public static HashedWheelTimer timer() {
+    return TIMER;
+  }
+
   private DefaultScheduler() {
   }
 
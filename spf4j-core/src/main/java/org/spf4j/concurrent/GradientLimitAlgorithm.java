@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.concurrent;
+
+/**
+ * Gradient limit algorithm. The limit is adjusted with the gradient between a long term (exponential moving average)
+ * latency and the last window latency: limit = limit * gradient + sqrt(limit), where
+ * gradient = max(0.5, min(1, tolerance * longRtt / rtt)). The new limit is smoothed with the previous limit.
+ *
+ * Unlike Vegas, this algorithm does not depend on the minimum latency, which is hard to measure
+ * under permanent load.
+ *
+ * @author Zoltan Farkas
+ */
+public final class GradientLimitAlgorithm implements ConcurrencyLimitAlgorithm {
+
+  private final double tolerance;
+
+  private final double smoothing;
+
+  private final double longRttDecay;
+
+  private double longRttNanos;
+
+  public GradientLimitAlgorithm() {
+    this(1.5, 0.2, 100);
+  }
+
+  /**
+   * @param tolerance the latency increase (relative to the long term latency) tolerated before decreasing the limit.
+   * @param smoothing the weight of the new limit, (0, 1].
+   * @param longRttWindows the number of windows the long term latency average is computed over.
+   */
+  public GradientLimitAlgorithm(final double tolerance, final double smoothing, final int longRttWindows) {
+    if (tolerance < 1) {
+      throw new IllegalArgumentException("Invalid tolerance " + tolerance);
+    }
+    if (smoothing <= 0 || smoothing > 1) {
+      throw new IllegalArgumentException("Invalid smoothing " + smoothing);
+    }
+    if (longRttWindows < 1) {
+      throw new IllegalArgumentException("Invalid number of long rtt windows " + longRttWindows);
+    }
+    this.tolerance = tolerance;
+    this.smoothing = smoothing;
+    this.longRttDecay = 2d / (longRttWindows + 1);
+    this.longRttNanos = 0;
+  }
+
+  @Override
+  public double update(final double limit, final long rttNanos, final long minRttNanos,
+          final int maxInFlight, final boolean dropped) {
+    if (rttNanos <= 0) {
+      return limit;
+    }
+    if (longRttNanos <= 0) {
+      longRttNanos = rttNanos;
+    } else {
+      longRttNanos = longRttNanos * (1 - longRttDecay) + rttNanos * longRttDecay;
+      if (longRttNanos > rttNanos * 2) {
+        // latency dropped dramatically (load went away), speed up the long term average recovery.
+        longRttNanos = longRttNanos * 0.95;
+      }
+    }
+    if (!dropped && maxInFlight * 2 < limit) {
+      // limit is not utilized, the latency measurements are not relevant for the limit.
+      return limit;
+    }
+    double gradient = dropped ? 0.5 : Math.max(0.5, Math.min(1, tolerance * longRttNanos / rttNanos));
+    double newLimit = limit * gradient + Math.sqrt(limit);
+    return limit * (1 - smoothing) + newLimit * smoothing;
+  }
+
+  @Override
+  public String toString() {
+    return "GradientLimitAlgorithm{" + "tolerance=" + tolerance + ", smoothing=" + smoothing
+            + ", longRttDecay=" + longRttDecay + ", longRttNanos=" + longRttNanos + '}';
+  }
+
+}
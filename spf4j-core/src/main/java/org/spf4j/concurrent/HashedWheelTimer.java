@@ -0,0 +1,560 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.concurrent;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Predicate;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.spf4j.base.TimeSource;
+
+/**
+ * A hierarchical hashed wheel timer. (see Varghese and Lauck, Hashed and Hierarchical Timing Wheels)
+ *
+ * Scheduling and cancellation are O(1) and lock free: new and canceled timeouts are pushed
+ * into Treiber stacks (multiple producers) that are drained by the timer thread (single consumer), which is
+ * the only thread that touches the wheels. Every wheel level has wheelSize buckets, a level L bucket covers
+ * wheelSize^L ticks; timeouts that are further than a level span are placed in a higher level, and are cascaded
+ * to the lower levels as time advances.
+ *
+ * The timeouts are executed with tick granularity (a timeout will not execute before its deadline,
+ * and will execute in at most a tick after its deadline, when the timer thread is not delayed), in the timer thread.
+ * Timer tasks must be short, long running tasks should be handed off to an executor.
+ *
+ * The timer thread is started at the first schedule.
+ *
+ * @author Zoltan Farkas
+ */
+@ThreadSafe
+public final class HashedWheelTimer implements Closeable {
+
+  private static final Logger LOG = LoggerFactory.getLogger(HashedWheelTimer.class);
+
+  private static final int ST_INIT = 0;
+  private static final int ST_STARTED = 1;
+  private static final int ST_CLOSED = 2;
+
+  private static final long MAX_IDLE_PARK_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+  /**
+   * A scheduled timer task.
+   */
+  public interface Timeout {
+
+    /**
+     * Cancel this timeout.
+     * @return true if cancelled, false if this timeout has already been executed or cancelled.
+     */
+    boolean cancel();
+
+    boolean isCancelled();
+
+    boolean isExpired();
+  }
+
+  private final String name;
+
+  private final long tickNanos;
+
+  private final int wheelBits;
+
+  private final int mask;
+
+  private final int nrLevels;
+
+  private final long startNanos;
+
+  private final AtomicInteger state;
+
+  private final Object sync = new Object();
+
+  private final AtomicReference<Entry> pending;
+
+  private final AtomicReference<Entry> cancelled;
+
+  private final Queue<Predicate<Runnable>> expireRequests;
+
+  private volatile Thread worker;
+
+  private volatile boolean idle;
+
+  /** the wheels, only accessed by the timer thread. */
+  private final Bucket[][] wheels;
+
+  /** the last processed tick, only accessed by the timer thread. */
+  private long currentTick;
+
+  /** the number of timeouts in the wheels, only accessed by the timer thread. */
+  private int size;
+
+  /**
+   * @param name the timer name, used for the timer thread name.
+   * @param tick the tick duration.
+   * @param unit the tick duration unit.
+   * @param wheelSize the number of buckets of a wheel level, must be a power of 2.
+   */
+  public HashedWheelTimer(final String name, final long tick, final TimeUnit unit, final int wheelSize) {
+    this.tickNanos = unit.toNanos(tick);
+    if (tickNanos <= 0) {
+      throw new IllegalArgumentException("Invalid tick " + tick + ' ' + unit);
+    }
+    if (wheelSize < 2 || Integer.bitCount(wheelSize) != 1) {
+      throw new IllegalArgumentException("Wheel size must be a power of 2 and > 1: " + wheelSize);
+    }
+    this.name = name;
+    this.wheelBits = Integer.numberOfTrailingZeros(wheelSize);
+    this.mask = wheelSize - 1;
+    this.nrLevels = (Long.SIZE - 1 + wheelBits - 1) / wheelBits;
+    this.wheels = new Bucket[nrLevels][];
+    this.startNanos = TimeSource.nanoTime();
+    this.state = new AtomicInteger(ST_INIT);
+    this.pending = new AtomicReference<>();
+    this.cancelled = new AtomicReference<>();
+    this.expireRequests = new ConcurrentLinkedQueue<>();
+    this.currentTick = 0;
+    this.size = 0;
+  }
+
+  /**
+   * Schedule a task to execute after a delay.
+   * @param task the task to execute, will be executed in the timer thread.
+   * @param delay the delay.
+   * @param unit the delay unit.
+   * @return the timeout, that can be used to cancel the task execution.
+   * @throws RejectedExecutionException if this timer is closed.
+   */
+  public Timeout schedule(final Runnable task, final long delay, final TimeUnit unit) {
+    if (state.get() != ST_STARTED) {
+      start();
+    }
+    long delayNanos = Math.min(Math.max(0, unit.toNanos(delay)), Long.MAX_VALUE / 2);
+    long deadlineTick = (TimeSource.nanoTime() - startNanos + delayNanos + tickNanos - 1) / tickNanos;
+    Entry entry = new Entry(this, task, deadlineTick);
+    Entry head;
+    do {
+      head = pending.get();
+      entry.nextPending = head;
+    } while (!pending.compareAndSet(head, entry));
+    if (state.get() == ST_CLOSED) {
+      entry.cancel();
+      throw new RejectedExecutionException("Timer " + name + " is closed");
+    }
+    if (idle) {
+      LockSupport.unpark(worker);
+    }
+    return entry;
+  }
+
+  /**
+   * Execute now, in the timer thread, the timeouts whose task matches the predicate, instead of at their deadline.
+   * This allows a component to release its timeouts when closed, without keeping track of them when scheduled.
+   * The timeouts scheduled before this call will be matched against the predicate.
+   * @param predicate matches the tasks to execute.
+   */
+  public void expireIf(final Predicate<Runnable> predicate) {
+    if (state.get() != ST_STARTED) {
+      // nothing was scheduled, or the timer is closed and all timeouts are cancelled.
+      return;
+    }
+    expireRequests.add(predicate);
+    LockSupport.unpark(worker);
+  }
+
+  private void start() {
+    int st = state.get();
+    if (st == ST_CLOSED) {
+      throw new RejectedExecutionException("Timer " + name + " is closed");
+    }
+    if (st == ST_INIT) {
+      synchronized (sync) {
+        if (state.get() == ST_INIT) {
+          Thread th = new CustomThreadFactory(name, true).newThread(this::run);
+          worker = th;
+          th.start();
+          state.set(ST_STARTED);
+        }
+      }
+    }
+  }
+
+  /**
+   * Stop the timer, timeouts that have not been executed will be cancelled.
+   */
+  @Override
+  public void close() {
+    Thread th;
+    synchronized (sync) {
+      if (state.getAndSet(ST_CLOSED) == ST_CLOSED) {
+        return;
+      }
+      th = worker;
+    }
+    if (th != null) {
+      LockSupport.unpark(th);
+      if (th != Thread.currentThread()) {
+        try {
+          th.join();
+        } catch (InterruptedException ex) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    }
+  }
+
+  public long getTickNanos() {
+    return tickNanos;
+  }
+
+  public int getWheelSize() {
+    return mask + 1;
+  }
+
+  private void run() {
+    try {
+      while (state.get() != ST_CLOSED) {
+        long nowTick = (TimeSource.nanoTime() - startNanos) / tickNanos;
+        transferPending();
+        processCancelled();
+        processExpireRequests();
+        if (size == 0) {
+          currentTick = Math.max(currentTick, nowTick);
+        } else {
+          while (currentTick < nowTick) {
+            tick(currentTick + 1);
+          }
+        }
+        if (size == 0) {
+          idle = true;
+          if (pending.get() == null && expireRequests.isEmpty() && state.get() != ST_CLOSED) {
+            LockSupport.parkNanos(this, MAX_IDLE_PARK_NANOS);
+          }
+          idle = false;
+        } else {
+          long waitNanos = startNanos + (currentTick + 1) * tickNanos - TimeSource.nanoTime();
+          if (waitNanos > 0) {
+            LockSupport.parkNanos(this, waitNanos);
+          }
+        }
+      }
+    } finally {
+      cancelAll();
+    }
+  }
+
+  private void transferPending() {
+    Entry entry = pending.getAndSet(null);
+    while (entry != null) {
+      Entry next = entry.nextPending;
+      entry.nextPending = null;
+      add(entry);
+      entry = next;
+    }
+  }
+
+  private void processCancelled() {
+    Entry entry = cancelled.getAndSet(null);
+    while (entry != null) {
+      Entry next = entry.nextCancelled;
+      entry.nextCancelled = null;
+      Bucket bucket = entry.bucket;
+      if (bucket != null) {
+        bucket.remove(entry);
+        size--;
+      }
+      entry = next;
+    }
+  }
+
+  private void processExpireRequests() {
+    Predicate<Runnable> request = expireRequests.poll();
+    if (request == null) {
+      return;
+    }
+    List<Predicate<Runnable>> predicates = new ArrayList<>(2);
+    do {
+      predicates.add(request);
+    } while ((request = expireRequests.poll()) != null);
+    // timeouts scheduled before the requests might still be in the pending stack.
+    transferPending();
+    for (Bucket[] wheel : wheels) {
+      if (wheel != null) {
+        for (Bucket bucket : wheel) {
+          Entry entry = bucket.head;
+          while (entry != null) {
+            Entry next = entry.next;
+            if (matches(predicates, entry.task)) {
+              bucket.remove(entry);
+              size--;
+              expire(entry);
+            }
+            entry = next;
+          }
+        }
+      }
+    }
+  }
+
+  private static boolean matches(final List<Predicate<Runnable>> predicates, final Runnable task) {
+    for (Predicate<Runnable> predicate : predicates) {
+      if (predicate.test(task)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private void add(final Entry entry) {
+    if (entry.state != Entry.ST_PENDING) {
+      return;
+    }
+    long deadlineTick = entry.deadlineTick;
+    long delta = deadlineTick - currentTick;
+    if (delta <= 0) {
+      expire(entry);
+      return;
+    }
+    int level = (Long.SIZE - 1 - Long.numberOfLeadingZeros(delta)) / wheelBits;
+    Bucket[] wheel = wheels[level];
+    if (wheel == null) {
+      wheel = new Bucket[mask + 1];
+      for (int i = 0; i < wheel.length; i++) {
+        wheel[i] = new Bucket();
+      }
+      wheels[level] = wheel;
+    }
+    wheel[(int) ((deadlineTick >>> (level * wheelBits)) & mask)].add(entry);
+    size++;
+  }
+
+  /**
+   * Process a tick: cascade the higher level buckets that start at this tick (highest level first),
+   * and execute the timeouts of the level 0 bucket.
+   */
+  private void tick(final long tick) {
+    currentTick = tick;
+    int level = 1;
+    while (level < nrLevels && (tick & ((1L << (level * wheelBits)) - 1)) == 0) {
+      level++;
+    }
+    for (int l = level - 1; l >= 1; l--) {
+      Bucket[] wheel = wheels[l];
+      if (wheel != null) {
+        Entry entry = wheel[(int) ((tick >>> (l * wheelBits)) & mask)].clear();
+        while (entry != null) {
+          Entry next = entry.next;
+          entry.next = null;
+          size--;
+          add(entry);
+          entry = next;
+        }
+      }
+    }
+    Bucket[] wheel = wheels[0];
+    if (wheel != null) {
+      Entry entry = wheel[(int) (tick & mask)].clear();
+      while (entry != null) {
+        Entry next = entry.next;
+        entry.next = null;
+        size--;
+        expire(entry);
+        entry = next;
+      }
+    }
+  }
+
+  private void expire(final Entry entry) {
+    if (Entry.STATE.compareAndSet(entry, Entry.ST_PENDING, Entry.ST_EXPIRED)) {
+      try {
+        entry.task.run();
+      } catch (RuntimeException ex) {
+        LOG.error("Timer task {} failed", entry.task, ex);
+      }
+    }
+  }
+
+  private void cancelAll() {
+    for (Bucket[] wheel : wheels) {
+      if (wheel != null) {
+        for (Bucket bucket : wheel) {
+          Entry entry = bucket.clear();
+          while (entry != null) {
+            Entry next = entry.next;
+            entry.next = null;
+            Entry.STATE.compareAndSet(entry, Entry.ST_PENDING, Entry.ST_CANCELLED);
+            entry = next;
+          }
+        }
+      }
+    }
+    size = 0;
+    Entry entry = pending.getAndSet(null);
+    while (entry != null) {
+      Entry.STATE.compareAndSet(entry, Entry.ST_PENDING, Entry.ST_CANCELLED);
+      entry = entry.nextPending;
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "HashedWheelTimer{" + "name=" + name + ", tickNanos=" + tickNanos + ", wheelSize=" + (mask + 1)
+            + ", state=" + state + '}';
+  }
+
+  /**
+   * A doubly linked list of timeouts.
+   */
+  private static final class Bucket {
+
+    @Nullable
+    private Entry head;
+
+    void add(final Entry entry) {
+      entry.bucket = this;
+      entry.prev = null;
+      entry.next = head;
+      if (head != null) {
+        head.prev = entry;
+      }
+      head = entry;
+    }
+
+    void remove(final Entry entry) {
+      Entry prev = entry.prev;
+      Entry next = entry.next;
+      if (prev == null) {
+        head = next;
+      } else {
+        prev.next = next;
+      }
+      if (next != null) {
+        next.prev = prev;
+      }
+      entry.prev = null;
+      entry.next = null;
+      entry.bucket = null;
+    }
+
+    /**
+     * Remove all timeouts from this bucket.
+     * @return the first timeout, the rest are linked with next.
+     */
+    @Nullable
+    Entry clear() {
+      Entry result = head;
+      head = null;
+      for (Entry entry = result; entry != null; entry = entry.next) {
+        entry.prev = null;
+        entry.bucket = null;
+      }
+      return result;
+    }
+  }
+
+  private static final class Entry implements Timeout {
+
+    private static final int ST_PENDING = 0;
+    private static final int ST_CANCELLED = 1;
+    private static final int ST_EXPIRED = 2;
+
+    private static final AtomicIntegerFieldUpdater<Entry> STATE
+            = AtomicIntegerFieldUpdater.newUpdater(Entry.class, "state");
+
+    private final HashedWheelTimer timer;
+
+    private final Runnable task;
+
+    private final long deadlineTick;
+
+    private volatile int state;
+
+    /** link in the pending stack. */
+    private Entry nextPending;
+
+    /** link in the cancelled stack. */
+    private Entry nextCancelled;
+
+    /** the fields below are only accessed by the timer thread. */
+    private Bucket bucket;
+
+    private Entry prev;
+
+    private Entry next;
+
+    Entry(final HashedWheelTimer timer, final Runnable task, final long deadlineTick) {
+      this.timer = timer;
+      this.task = task;
+      this.deadlineTick = deadlineTick;
+      this.state = ST_PENDING;
+    }
+
+    @Override
+    public boolean cancel() {
+      if (!STATE.compareAndSet(this, ST_PENDING, ST_CANCELLED)) {
+        return false;
+      }
+      Entry head;
+      do {
+        head = timer.cancelled.get();
+        nextCancelled = head;
+      } while (!timer.cancelled.compareAndSet(head, this));
+      return true;
+    }
+
+    @Override
+    public boolean isCancelled() {
+      return state == ST_CANCELLED;
+    }
+
+    @Override
+    public boolean isExpired() {
+      return state == ST_EXPIRED;
+    }
+
+    @Override
+    public String toString() {
+      return "Timeout{" + "task=" + task + ", deadlineTick=" + deadlineTick + ", state=" + state + '}';
+    }
+  }
+
+}
@@ -72,6 +72,7 @@ import org.spf4j.stackmonitor.StackTrace;
  *
  * The JDK Fork Join pool's performance is superior to this implementation, however unlike this implementation,
  * with the fork join pool you will not be able to cancel+interrupt running tasks.
+ * For a implementation without a pool wide lock, see LifoThreadPoolExecutorWSP.
  *
  * @author zoly
  */
@@ -0,0 +1,770 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.concurrent;
+
+import com.google.common.collect.Iterators;
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.spf4j.base.TimeSource;
+import org.spf4j.base.Timing;
+import org.spf4j.base.UncheckedExecutionException;
+import static org.spf4j.concurrent.RejectedExecutionHandler.REJECT_EXCEPTION_EXEC_HANDLER;
+import org.spf4j.jmx.JmxExport;
+import org.spf4j.jmx.Registry;
+import org.spf4j.stackmonitor.StackTrace;
+
+/**
+ * LIFO scheduled, work stealing java thread pool. This pool has the same behavior as the LifoThreadPoolExecutorSQP
+ * (prefers to hand off a task to the most recently idle thread, or to spawn a new thread, instead of queueing),
+ * but there is no pool wide lock on the task submission and execution path:
+ *
+ * <ul>
+ * <li>idle threads park themselves in a lock free LIFO stack (a Treiber stack), a submitter hands off
+ * the task directly to the most recently parked thread.</li>
+ * <li>queued tasks are held in a set of striped deques. Every worker has a home deque, where the tasks it submits are
+ * pushed and popped LIFO. Tasks submitted by non pool threads are appended to a deque selected by the submitting
+ * thread id. A worker with an empty home deque steals tasks from the other deques.</li>
+ * <li>the thread count and queue size limits are enforced with atomic counters.</li>
+ * </ul>
+ *
+ * Unlike the JDK's fork join pool, running tasks can be canceled+interrupted, and the pool supports a queue size limit,
+ * a rejection handler, and resizing at runtime. The state lock is used only to wait for the pool termination.
+ *
+ * The number of deques is the number of available processors rounded up to a power of 2, and can be overwritten with
+ * spf4j.lifoTp.nrQueueStripes.
+ *
+ * @author Zoltan Farkas
+ */
+@ParametersAreNonnullByDefault
+@SuppressFBWarnings("MDM_THREAD_PRIORITIES")
+public final class LifoThreadPoolExecutorWSP extends AbstractExecutorService implements MutableLifoThreadPool {
+
+  private static final Logger LOG = LoggerFactory.getLogger(LifoThreadPoolExecutorWSP.class);
+
+  /**
+   * see LifoThreadPoolExecutorSQP.CORE_MINWAIT_NANOS.
+   */
+  private static final long CORE_MINWAIT_NANOS = Long.getLong("spf4j.lifoTp.coreMaxWaitNanos", 1000000000);
+
+  private static final int NR_QUEUE_STRIPES = Integer.getInteger("spf4j.lifoTp.nrQueueStripes",
+          org.spf4j.base.Runtime.NR_PROCESSORS);
+
+  /**
+   * Handed off to a parked worker to wake it up without a task.
+   */
+  private static final Runnable WAKEUP = () -> { };
+
+  private final ConcurrentLinkedDeque<Runnable>[] stripes;
+
+  private final int stripeMask;
+
+  private final ConcurrentStack<IdleSlot> idleWorkers;
+
+  private final Set<Worker> allThreads;
+
+  private final AtomicInteger threadCount;
+
+  private final AtomicInteger nrQueued;
+
+  private final AtomicInteger threadCreationCount;
+
+  private final ReentrantLock stateLock;
+
+  private final Condition terminated;
+
+  private final String poolName;
+
+  private final RejectedExecutionHandler rejectionHandler;
+
+  private volatile boolean shutdown;
+
+  private volatile int maxIdleTimeMillis;
+
+  private volatile int coreThreadCount;
+
+  private volatile int maxThreadCount;
+
+  private volatile int queueSizeLimit;
+
+  private volatile boolean daemonThreads;
+
+  private volatile int threadPriority;
+
+  public LifoThreadPoolExecutorWSP(final int maxNrThreads, final String name) {
+    this(name, 0, maxNrThreads, 5000, 0);
+  }
+
+  public LifoThreadPoolExecutorWSP(final String poolName, final int coreSize,
+          final int maxSize, final int maxIdleTimeMillis,
+          final int queueSizeLimit) {
+    this(poolName, coreSize, maxSize, maxIdleTimeMillis,
+            queueSizeLimit, false, REJECT_EXCEPTION_EXEC_HANDLER, Thread.NORM_PRIORITY);
+  }
+
+  public LifoThreadPoolExecutorWSP(final String poolName, final int coreSize,
+          final int maxSize, final int maxIdleTimeMillis,
+          final int queueSizeLimit, final boolean daemonThreads,
+          final RejectedExecutionHandler rejectionHandler,
+          final int threadPriority) {
+    if (coreSize > maxSize) {
+      throw new IllegalArgumentException("Core size must be smaller than max size " + coreSize
+              + " < " + maxSize);
+    }
+    if (coreSize < 0 || maxSize < 0 || maxIdleTimeMillis < 0 || queueSizeLimit < 0) {
+      throw new IllegalArgumentException("All numberic TP configs must be positive values: "
+              + coreSize + ", " + maxSize + ", " + maxIdleTimeMillis
+              + ", " + queueSizeLimit);
+    }
+    int nrStripes = Integer.highestOneBit(Math.max(1, NR_QUEUE_STRIPES));
+    if (nrStripes < NR_QUEUE_STRIPES) {
+      nrStripes <<= 1;
+    }
+    this.stripes = new ConcurrentLinkedDeque[nrStripes];
+    for (int i = 0; i < nrStripes; i++) {
+      stripes[i] = new ConcurrentLinkedDeque<>();
+    }
+    this.stripeMask = nrStripes - 1;
+    this.idleWorkers = new ConcurrentStack<>();
+    this.allThreads = ConcurrentHashMap.newKeySet(Math.min(maxSize, 2048));
+    this.threadCount = new AtomicInteger();
+    this.nrQueued = new AtomicInteger();
+    this.threadCreationCount = new AtomicInteger();
+    this.stateLock = new ReentrantLock();
+    this.terminated = stateLock.newCondition();
+    this.poolName = poolName;
+    this.rejectionHandler = rejectionHandler;
+    this.shutdown = false;
+    this.maxIdleTimeMillis = maxIdleTimeMillis;
+    this.coreThreadCount = coreSize;
+    this.maxThreadCount = maxSize;
+    this.queueSizeLimit = queueSizeLimit;
+    this.daemonThreads = daemonThreads;
+    this.threadPriority = threadPriority;
+    for (int i = 0; i < coreSize; i++) {
+      threadCount.incrementAndGet();
+      startWorker(null);
+    }
+  }
+
+  @Override
+  public void exportJmx() {
+    Registry.export(LifoThreadPoolExecutorWSP.class.getName(), poolName, this);
+  }
+
+  @Override
+  public void unregisterJmx() {
+    Registry.unregister(LifoThreadPoolExecutorWSP.class.getName(), poolName);
+  }
+
+  @Override
+  public void execute(final Runnable command) {
+    if (shutdown) {
+      rejectionHandler.rejectedExecution(command, this);
+      return;
+    }
+    if (handOff(command)) {
+      return;
+    }
+    // was not able to submit to an existing available thread, will attempt to create a new thread.
+    if (tryIncrementThreadCount()) {
+      startWorker(command);
+      return;
+    }
+    // was not able to submit to an existing available thread, reached the maxThread limit.
+    // will attempt to queue the task, and reject if unable to
+    if (!enqueue(command)) {
+      rejectionHandler.rejectedExecution(command, this);
+      return;
+    }
+    if (shutdown && remove(command)) {
+      // shutdown raced with the queueing, the workers might be already gone.
+      rejectionHandler.rejectedExecution(command, this);
+      return;
+    }
+    // a worker might have parked itself after not finding the task we just queued.
+    if (!handOff(WAKEUP) && threadCount.get() == 0 && tryIncrementThreadCount()) {
+      // the last worker retired after we queued the task, (see Worker.awaitTask) start a new one.
+      startWorker(null);
+    }
+  }
+
+  /**
+   * hand off a runnable to the most recently parked worker.
+   * @return true if a parked worker took the runnable.
+   */
+  private boolean handOff(final Runnable runnable) {
+    IdleSlot slot;
+    while ((slot = idleWorkers.pop()) != null) {
+      if (slot.give(runnable)) {
+        return true;
+      }
+      // the slot was withdrawn by its worker, discard it.
+    }
+    return false;
+  }
+
+  private boolean tryIncrementThreadCount() {
+    int tc;
+    do {
+      tc = threadCount.get();
+      if (tc >= maxThreadCount) {
+        return false;
+      }
+    } while (!threadCount.compareAndSet(tc, tc + 1));
+    return true;
+  }
+
+  /**
+   * Decrement the thread count if there are more threads than core threads.
+   */
+  private boolean tryDecrementThreadCount() {
+    int tc;
+    do {
+      tc = threadCount.get();
+      if (tc <= coreThreadCount) {
+        return false;
+      }
+    } while (!threadCount.compareAndSet(tc, tc - 1));
+    return true;
+  }
+
+  private void startWorker(@Nullable final Runnable runFirst) {
+    Worker worker = new Worker(poolName + '-' + threadCreationCount.getAndIncrement(), runFirst);
+    worker.setDaemon(daemonThreads);
+    worker.setPriority(threadPriority);
+    allThreads.add(worker);
+    try {
+      worker.start();
+    } catch (RuntimeException | Error ex) {
+      allThreads.remove(worker);
+      threadTerminated();
+      throw ex;
+    }
+    LOG.debug("Started thread {}", worker.getName());
+  }
+
+  private void threadTerminated() {
+    if (threadCount.decrementAndGet() == 0 && shutdown) {
+      signalTerminated();
+    }
+  }
+
+  private void signalTerminated() {
+    stateLock.lock();
+    try {
+      terminated.signalAll();
+    } finally {
+      stateLock.unlock();
+    }
+  }
+
+  private boolean enqueue(final Runnable command) {
+    int qs;
+    do {
+      qs = nrQueued.get();
+      if (qs >= queueSizeLimit) {
+        return false;
+      }
+    } while (!nrQueued.compareAndSet(qs, qs + 1));
+    Thread thread = Thread.currentThread();
+    if (thread instanceof Worker && ((Worker) thread).getPool() == this) {
+      stripes[((Worker) thread).homeStripe].addFirst(command);
+    } else {
+      stripes[(int) thread.getId() & stripeMask].addLast(command);
+    }
+    return true;
+  }
+
+  private boolean remove(final Runnable command) {
+    for (ConcurrentLinkedDeque<Runnable> stripe : stripes) {
+      if (stripe.removeFirstOccurrence(command)) {
+        nrQueued.decrementAndGet();
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Poll a task, first from the home stripe, and if that is empty steal from the other stripes.
+   */
+  @Nullable
+  private Runnable poll(final int homeStripe) {
+    Runnable result = stripes[homeStripe].pollFirst();
+    if (result == null) {
+      for (int i = 1; i <= stripeMask; i++) {
+        result = stripes[(homeStripe + i) & stripeMask].pollLast();
+        if (result != null) {
+          break;
+        }
+      }
+      if (result == null) {
+        return null;
+      }
+    }
+    nrQueued.decrementAndGet();
+    return result;
+  }
+
+  @Override
+  public void shutdown() {
+    if (!shutdown) {
+      shutdown = true; // set the shutdown flag, to reject new submissions.
+      // wake up all parked threads, so they can start going down.
+      while (handOff(WAKEUP)) {
+        // continue
+      }
+      if (threadCount.get() == 0) {
+        signalTerminated();
+      }
+    }
+  }
+
+  @Override
+  public List<Runnable> shutdownNow() {
+    shutdown();
+    List<Runnable> result = new ArrayList<>(nrQueued.get());
+    for (ConcurrentLinkedDeque<Runnable> stripe : stripes) {
+      Runnable r;
+      while ((r = stripe.pollFirst()) != null) {
+        nrQueued.decrementAndGet();
+        result.add(r);
+      }
+    }
+    for (Worker worker : allThreads) {
+      worker.interrupt(); // interrupt all running threads.
+    }
+    return result;
+  }
+
+  @Override
+  public boolean awaitTermination(final long time, final TimeUnit unit) throws InterruptedException {
+    if (!shutdown) {
+      throw new IllegalStateException("Threadpool is not is shutdown mode " + this);
+    }
+    long timeoutNs = unit.toNanos(time);
+    stateLock.lock();
+    try {
+      while (threadCount.get() > 0) {
+        if (timeoutNs > 0) {
+          timeoutNs = terminated.awaitNanos(timeoutNs);
+        } else {
+          return false;
+        }
+      }
+      return true;
+    } finally {
+      stateLock.unlock();
+    }
+  }
+
+  @Override
+  @JmxExport
+  public boolean isShutdown() {
+    return shutdown;
+  }
+
+  @Override
+  @JmxExport
+  public boolean isTerminated() {
+    return shutdown && threadCount.get() == 0;
+  }
+
+  @JmxExport
+  @Override
+  public boolean isDaemonThreads() {
+    return daemonThreads;
+  }
+
+  @JmxExport
+  @Override
+  public int getThreadCount() {
+    return threadCount.get();
+  }
+
+  @JmxExport
+  @Override
+  public int getMaxThreadCount() {
+    return maxThreadCount;
+  }
+
+  @JmxExport
+  @Override
+  public int getCoreThreadCount() {
+    return coreThreadCount;
+  }
+
+  @JmxExport
+  @Override
+  public int getNrQueuedTasks() {
+    return nrQueued.get();
+  }
+
+  @JmxExport
+  @Override
+  public int getQueueSizeLimit() {
+    return queueSizeLimit;
+  }
+
+  @JmxExport
+  @Override
+  public int getMaxIdleTimeMillis() {
+    return maxIdleTimeMillis;
+  }
+
+  @JmxExport
+  @Override
+  public String getPoolName() {
+    return poolName;
+  }
+
+  @JmxExport
+  @Override
+  public int getThreadPriority() {
+    return threadPriority;
+  }
+
+  /**
+   * @return the lock used to wait for termination, this lock is not used for task submission and execution.
+   */
+  @Override
+  public ReentrantLock getStateLock() {
+    return stateLock;
+  }
+
+  /**
+   * @return a view of all queued tasks.
+   */
+  @Override
+  public Queue<Runnable> getTaskQueue() {
+    return new StripedQueueView();
+  }
+
+  @Override
+  @JmxExport
+  public void setDaemonThreads(final boolean daemonThreads) {
+    this.daemonThreads = daemonThreads;
+  }
+
+  @Override
+  @JmxExport
+  public void setMaxIdleTimeMillis(final int maxIdleTimeMillis) {
+    this.maxIdleTimeMillis = maxIdleTimeMillis;
+  }
+
+  @Override
+  @JmxExport
+  public void setCoreThreadCount(final int coreThreadCount) {
+    this.coreThreadCount = coreThreadCount;
+  }
+
+  @Override
+  @JmxExport
+  public void setMaxThreadCount(final int maxThreadCount) {
+    this.maxThreadCount = maxThreadCount;
+  }
+
+  @Override
+  @JmxExport
+  public void setQueueSizeLimit(final int queueSizeLimit) {
+    this.queueSizeLimit = queueSizeLimit;
+  }
+
+  @Override
+  @JmxExport
+  public void setThreadPriority(final int threadPriority) {
+    this.threadPriority = threadPriority;
+  }
+
+  @Override
+  public String toString() {
+    return "LifoThreadPoolExecutorWSP{" + "poolName=" + poolName + ", threadCount=" + threadCount
+            + ", nrQueued=" + nrQueued + ", maxIdleTimeMillis=" + maxIdleTimeMillis + ", coreThreadCount="
+            + coreThreadCount + ", maxThreadCount=" + maxThreadCount + ", queueSizeLimit=" + queueSizeLimit
+            + ", nrStripes=" + stripes.length + ", shutdown=" + shutdown + '}';
+  }
+
+  /**
+   * The hand off slot of a parked worker, a slot is used for one idle period of a worker.
+   */
+  private static final class IdleSlot extends AtomicReference<Runnable> {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Marks a slot that is waiting for a runnable.
+     */
+    private static final Runnable WAITING = () -> { };
+
+    private final transient Thread worker;
+
+    IdleSlot(final Thread worker) {
+      super(WAITING);
+      this.worker = worker;
+    }
+
+    boolean give(final Runnable runnable) {
+      if (compareAndSet(WAITING, runnable)) {
+        LockSupport.unpark(worker);
+        return true;
+      }
+      return false;
+    }
+
+    /**
+     * @return true if the slot was withdrawn, false if a runnable was handed off to it.
+     */
+    boolean withdraw() {
+      return compareAndSet(WAITING, null);
+    }
+
+    @Nullable
+    Runnable getHandedOff() {
+      Runnable r = get();
+      return r == WAITING ? null : r;
+    }
+
+  }
+
+  private final class StripedQueueView extends AbstractQueue<Runnable> {
+
+    @Override
+    public Iterator<Runnable> iterator() {
+      return Iterators.concat(Arrays.stream(stripes).map(ConcurrentLinkedDeque::iterator).iterator());
+    }
+
+    @Override
+    public int size() {
+      return nrQueued.get();
+    }
+
+    @Override
+    public boolean offer(final Runnable e) {
+      return enqueue(e);
+    }
+
+    @Override
+    @Nullable
+    public Runnable poll() {
+      return LifoThreadPoolExecutorWSP.this.poll(0);
+    }
+
+    @Override
+    @Nullable
+    public Runnable peek() {
+      for (ConcurrentLinkedDeque<Runnable> stripe : stripes) {
+        Runnable r = stripe.peekFirst();
+        if (r != null) {
+          return r;
+        }
+      }
+      return null;
+    }
+
+  }
+
+  private final class Worker extends Thread {
+
+    private final int homeStripe;
+
+    private long lastRunNanos;
+
+    @Nullable
+    private Runnable toRun;
+
+    /**
+     * true while this thread is accounted for in the pool thread count.
+     */
+    private boolean counted;
+
+    Worker(final String name, @Nullable final Runnable runFirst) {
+      super(name);
+      this.homeStripe = (int) getId() & stripeMask;
+      this.lastRunNanos = TimeSource.nanoTime();
+      this.toRun = runFirst;
+      this.counted = true;
+    }
+
+    LifoThreadPoolExecutorWSP getPool() {
+      return LifoThreadPoolExecutorWSP.this;
+    }
+
+    @Override
+    public void run() {
+      try {
+        Runnable r = toRun;
+        if (r != null) {
+          toRun = null;
+          execute(r);
+        }
+        while (true) {
+          r = poll(homeStripe);
+          if (r != null) {
+            execute(r);
+          } else if (shutdown) {
+            break;
+          } else if (!awaitTask()) {
+            break;
+          }
+        }
+      } catch (Throwable t) {
+        LOG.error("Unexpected exception", t);
+        throw t;
+      } finally {
+        allThreads.remove(this);
+        if (counted) {
+          threadTerminated();
+        }
+        LOG.debug("Terminating thread {}", getName());
+      }
+    }
+
+    /**
+     * Park this worker until a task is handed off to it, or until it is woken up.
+     * @return false if this thread needs to terminate.
+     */
+    private boolean awaitTask() {
+      IdleSlot slot = new IdleSlot(this);
+      idleWorkers.push(slot);
+      // re-check the queues after publishing this thread as idle, to not miss a task queued in the meantime.
+      Runnable r = poll(homeStripe);
+      if (r != null) {
+        if (slot.withdraw()) {
+          execute(r);
+          return true;
+        }
+        execute(r);
+        execute(slot.get());
+        return true;
+      }
+      long deadlineNanos = lastRunNanos + TimeUnit.MILLISECONDS.toNanos(maxIdleTimeMillis);
+      while (true) {
+        r = slot.getHandedOff();
+        if (r != null) {
+          execute(r);
+          return true;
+        }
+        if (shutdown) {
+          if (slot.withdraw()) {
+            return true; // will drain the queues, and terminate.
+          }
+          continue;
+        }
+        long currTime = TimeSource.nanoTime();
+        long timeoutNanos = deadlineNanos - currTime;
+        if (timeoutNanos <= 0) { // Thread was idle more than it should
+          if (threadCount.get() > coreThreadCount) { // can we terminate.
+            if (slot.withdraw()) {
+              if (tryDecrementThreadCount()) {
+                // a task might have been queued after the queues were checked, and before the thread count
+                // decrement, the submitter will not see the decrement, as such this thread needs to stay.
+                if (nrQueued.get() > 0 && tryIncrementThreadCount()) {
+                  return true;
+                }
+                counted = false;
+                if (shutdown && threadCount.get() == 0) {
+                  signalTerminated();
+                }
+                return false;
+              }
+              return true; // another thread terminated, this is a core thread for now.
+            }
+            continue;
+          }
+          // this is a core thread for now.
+          timeoutNanos = CORE_MINWAIT_NANOS;
+          deadlineNanos = currTime + timeoutNanos;
+        }
+        LockSupport.parkNanos(this, timeoutNanos);
+        // clear a interrupt that did not hit a running task.
+        Thread.interrupted();
+      }
+    }
+
+    private void execute(final Runnable runnable) {
+      if (runnable == WAKEUP) {
+        return;
+      }
+      try {
+        runnable.run();
+      }  catch (Throwable e) {
+        // Will run the thread uncaught handlers
+        // but will continue the thread running unless a uncaught handler throws an exception
+        final Thread.UncaughtExceptionHandler uexh = this.getUncaughtExceptionHandler();
+        try {
+          uexh.uncaughtException(this, e);
+        } catch (RuntimeException ex) {
+          ex.addSuppressed(e);
+          throw new UncheckedExecutionException("Uncaught exception handler blew up: " + uexh, ex);
+        }
+      } finally {
+        lastRunNanos = TimeSource.nanoTime();
+        // the interrupt of a canceled task should not leak into the next task.
+        Thread.interrupted();
+      }
+    }
+
+    @Override
+    public String toString() {
+      StackTraceElement[] stackTrace;
+      try {
+        stackTrace = this.getStackTrace();
+      } catch (RuntimeException ex) {
+        stackTrace = StackTrace.EMPTY_STACK_TRACE;
+      }
+      return "Worker{name = " + getName() + ", lastRunNanos="
+              + Timing.getCurrentTiming().fromNanoTimeToInstant(lastRunNanos)
+              + ", stack =" + Arrays.toString(stackTrace) + '}';
+    }
+
+  }
+
+}
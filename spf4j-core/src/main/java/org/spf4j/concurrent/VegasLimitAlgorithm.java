@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.concurrent;
+
+/**
+ * TCP Vegas like limit algorithm. The queue size is estimated as limit * (1 - minRtt / rtt), when the estimated
+ * queue is below alpha * log10(limit) the limit is increased, when the queue is above beta * log10(limit) the limit
+ * is decreased. Drops decrease the limit multiplicatively.
+ *
+ * @author Zoltan Farkas
+ */
+public final class VegasLimitAlgorithm implements ConcurrencyLimitAlgorithm {
+
+  private final double alpha;
+
+  private final double beta;
+
+  private final double backoffRatio;
+
+  public VegasLimitAlgorithm() {
+    this(3, 6, 0.9);
+  }
+
+  /**
+   * @param alpha the queue size (multiplied with log10(limit)) below which the limit is increased.
+   * @param beta the queue size (multiplied with log10(limit)) above which the limit is decreased.
+   * @param backoffRatio the ratio the limit is multiplied with on drops, (0, 1).
+   */
+  public VegasLimitAlgorithm(final double alpha, final double beta, final double backoffRatio) {
+    if (alpha < 0 || beta < alpha) {
+      throw new IllegalArgumentException("Invalid alpha = " + alpha + ", beta = " + beta);
+    }
+    if (backoffRatio <= 0 || backoffRatio >= 1) {
+      throw new IllegalArgumentException("Invalid backoff ratio " + backoffRatio);
+    }
+    this.alpha = alpha;
+    this.beta = beta;
+    this.backoffRatio = backoffRatio;
+  }
+
+  @Override
+  public double update(final double limit, final long rttNanos, final long minRttNanos,
+          final int maxInFlight, final boolean dropped) {
+    if (dropped) {
+      return limit * backoffRatio;
+    }
+    if (rttNanos <= 0) {
+      return limit;
+    }
+    double queueSize = limit * (1 - (double) minRttNanos / rttNanos);
+    double step = Math.max(1, Math.log10(limit));
+    if (queueSize < alpha * step) {
+      // increase only when the limit is utilized.
+      return maxInFlight * 2 >= limit ? limit + step : limit;
+    } else if (queueSize > beta * step) {
+      return limit - step;
+    } else {
+      return limit;
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "VegasLimitAlgorithm{" + "alpha=" + alpha + ", beta=" + beta + ", backoffRatio=" + backoffRatio + '}';
+  }
+
+}
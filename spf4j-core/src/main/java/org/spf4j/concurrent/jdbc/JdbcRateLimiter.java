@@ -0,0 +1,493 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.concurrent.jdbc;
+
+import com.google.common.annotations.Beta;
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLIntegrityConstraintViolationException;
+import java.sql.SQLTimeoutException;
+import java.time.Duration;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import javax.annotation.concurrent.GuardedBy;
+import javax.sql.DataSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.spf4j.base.TimeSource;
+import org.spf4j.concurrent.Atomics;
+import org.spf4j.concurrent.DefaultScheduler;
+import org.spf4j.concurrent.LockRuntimeException;
+import org.spf4j.concurrent.PermitSupplier;
+import org.spf4j.jdbc.JdbcTemplate;
+import org.spf4j.jmx.JmxExport;
+import org.spf4j.jmx.Registry;
+
+/**
+ * A cluster wide token bucket rate limiter, with the bucket stored in a database table.
+ *
+ * The bucket is a row in the semaphore table (see {@link SemaphoreTablesDesc}, the semaphore and rate limiter names
+ * share the same name space): the available permits column holds the tokens in the bucket, the total permits
+ * column holds the bucket size (max burst), and the last updated at column holds the DB time (millis)
+ * the bucket was refilled at. The refill is computed when tokens are leased, so no process needs to be
+ * responsible for refilling the bucket.
+ *
+ * Every process leases batches of tokens from the bucket into a local bucket, permits are acquired from the local
+ * bucket with a CAS (same as {@link org.spf4j.failsafe.RateLimiter}), without a DB round trip.
+ * The local bucket is re-leased in the background every lease interval, the batch size is adapted to the
+ * local demand (consumed + denied permits): a process leases enough tokens for 2 lease intervals
+ * at its average demand, and returns the tokens above 2 batches to the shared bucket.
+ * When the local bucket is empty, and the acquisition has time to wait, the tokens are leased synchronously.
+ *
+ * Unlike the JdbcSemaphore, there is no need for heartbeats, tokens leased by a dead process are simply consumed.
+ * All processes must use the same rate configuration. The enforced rate is the shared bucket rate,
+ * but the burst can be larger by the tokens buffered locally by every process.
+ *
+ * @author Zoltan Farkas
+ */
+@SuppressFBWarnings(value = {"SQL_INJECTION_JDBC", "SQL_PREPARED_STATEMENT_GENERATED_FROM_NONCONSTANT_STRING"},
+        justification = "Sql injection is not really possible since the parameterized values are"
+                + "  validated to be java ids")
+@Beta
+public final class JdbcRateLimiter implements AutoCloseable, PermitSupplier {
+
+  private static final Logger LOG = LoggerFactory.getLogger(JdbcRateLimiter.class);
+
+  private static final int MAX_LEASE_TRIES = Integer.getInteger("spf4j.jdbc.rateLimiter.maxLeaseTries", 5);
+
+  private static final long DEFAULT_LEASE_INTERVAL_MILLIS
+          = Long.getLong("spf4j.jdbc.rateLimiter.leaseIntervalMillis", 100);
+
+  /**
+   * the weight of the last lease interval demand in the demand estimate.
+   */
+  private static final double DEMAND_DECAY = 0.3;
+
+  private final JdbcTemplate jdbc;
+
+  private final String name;
+
+  private final long permitsPerInterval;
+
+  private final long intervalMillis;
+
+  private final long maxBurst;
+
+  private final int jdbcTimeoutSeconds;
+
+  private final long leaseIntervalNanos;
+
+  private final String bucketSql;
+
+  private final String leaseSql;
+
+  private final String returnSql;
+
+  private final String insertBucketSql;
+
+  private final AtomicLong permits;
+
+  private final LongAdder denied;
+
+  private final Object sync;
+
+  @GuardedBy("sync")
+  private double demandEstimate;
+
+  @GuardedBy("sync")
+  private long permitsAfterLease;
+
+  private volatile long batchSize;
+
+  private final ScheduledFuture<?> leaser;
+
+  private volatile boolean isClosed;
+
+  public JdbcRateLimiter(final DataSource dataSource, final String name,
+          final long permitsPerInterval, final Duration interval, final long maxBurst)
+          throws SQLException, InterruptedException {
+    this(dataSource, SemaphoreTablesDesc.DEFAULT, name, permitsPerInterval, interval, maxBurst,
+            Integer.getInteger("spf4j.jdbc.rateLimiter.jdbcTimeoutSeconds", 10),
+            DEFAULT_LEASE_INTERVAL_MILLIS, TimeUnit.MILLISECONDS, DefaultScheduler.INSTANCE);
+  }
+
+  /**
+   * create a JDBC rate limiter, create one instance / process.
+   *
+   * @param dataSource the data source to use for sync.
+   * @param semTableDesc the semaphore table description.
+   * @param name the rate limiter name.
+   * @param permitsPerInterval the number of permits the bucket is refilled with every interval.
+   * @param interval the refill interval.
+   * @param maxBurst the bucket size, if the bucket already exists, the existing bucket size is kept.
+   * @param jdbcTimeoutSeconds the timeout for the database operations.
+   * @param leaseInterval the interval the local bucket is re-leased at.
+   * @param tu the lease interval time unit.
+   * @param scheduler the scheduler to run the background leases on.
+   */
+  @SuppressFBWarnings("STT_TOSTRING_STORED_IN_FIELD")
+  public JdbcRateLimiter(final DataSource dataSource, final SemaphoreTablesDesc semTableDesc, final String name,
+          final long permitsPerInterval, final Duration interval, final long maxBurst,
+          final int jdbcTimeoutSeconds, final long leaseInterval, final TimeUnit tu,
+          final ScheduledExecutorService scheduler) throws SQLException, InterruptedException {
+    if (permitsPerInterval < 1) {
+      throw new IllegalArgumentException("Invalid permits per interval " + permitsPerInterval);
+    }
+    this.intervalMillis = interval.toMillis();
+    if (intervalMillis < 1) {
+      throw new IllegalArgumentException("Invalid interval " + interval + ", must be at least 1 ms");
+    }
+    if (maxBurst < permitsPerInterval) {
+      throw new IllegalArgumentException("Invalid max burst " + maxBurst + ", must be at least "
+              + permitsPerInterval);
+    }
+    this.jdbc = new JdbcTemplate(dataSource);
+    this.name = name;
+    this.permitsPerInterval = permitsPerInterval;
+    this.maxBurst = maxBurst;
+    this.jdbcTimeoutSeconds = jdbcTimeoutSeconds;
+    this.leaseIntervalNanos = tu.toNanos(leaseInterval);
+    this.permits = new AtomicLong();
+    this.denied = new LongAdder();
+    this.sync = new Object();
+    this.demandEstimate = 0;
+    this.permitsAfterLease = 0;
+    this.batchSize = 1;
+    this.isClosed = false;
+    String semaphoreTableName = semTableDesc.getSemaphoreTableName();
+    String availablePermitsColumn = semTableDesc.getAvailablePermitsColumn();
+    String totalPermitsColumn = semTableDesc.getTotalPermitsColumn();
+    String lastModifiedByColumn = semTableDesc.getLastModifiedByColumn();
+    String lastModifiedAtColumn = semTableDesc.getLastModifiedAtColumn();
+    String semaphoreNameColumn = semTableDesc.getSemNameColumn();
+    String currentTimeMillisFunc = semTableDesc.getHeartBeatTableDesc().getDbType().getCurrTSSqlFn();
+
+    this.bucketSql = "SELECT " + availablePermitsColumn + ',' + totalPermitsColumn + ',' + lastModifiedAtColumn
+            + ',' + currentTimeMillisFunc + " FROM " + semaphoreTableName
+            + " WHERE " + semaphoreNameColumn + " = ?";
+
+    this.leaseSql = "UPDATE " + semaphoreTableName + " SET "
+            + availablePermitsColumn + " = ?, " + lastModifiedAtColumn + " = ?, "
+            + lastModifiedByColumn + " = ? WHERE "
+            + semaphoreNameColumn + " = ? AND " + availablePermitsColumn + " = ? AND "
+            + lastModifiedAtColumn + " = ?";
+
+    this.returnSql = "UPDATE " + semaphoreTableName + " SET "
+            + availablePermitsColumn + " = CASE WHEN "
+            + availablePermitsColumn + " + ? > " + totalPermitsColumn
+            + " THEN " + totalPermitsColumn + " ELSE " + availablePermitsColumn + " + ? END, "
+            + lastModifiedByColumn + " = ? WHERE " + semaphoreNameColumn + " = ?";
+
+    this.insertBucketSql = "insert into " + semaphoreTableName
+            + " (" + semaphoreNameColumn + ',' + availablePermitsColumn + ',' + totalPermitsColumn
+            + ',' + lastModifiedByColumn + ',' + lastModifiedAtColumn + ") VALUES (?, ?, ?, ?, "
+            + currentTimeMillisFunc + ')';
+    try {
+      createBucketIfNotPresent();
+    } catch (SQLIntegrityConstraintViolationException ex) {
+      try {
+        // RACE condition while creating the row, will retry to validate if everything is OK.
+        createBucketIfNotPresent();
+      } catch (SQLException ex1) {
+        ex1.addSuppressed(ex);
+        throw ex1;
+      }
+    }
+    this.leaser = scheduler.scheduleWithFixedDelay(this::leaseInBackground,
+            leaseIntervalNanos, leaseIntervalNanos, TimeUnit.NANOSECONDS);
+  }
+
+  private void createBucketIfNotPresent() throws SQLException, InterruptedException {
+    jdbc.transactOnConnection((final Connection conn, final long deadlineNanos) -> {
+      try (PreparedStatement stmt = conn.prepareStatement(bucketSql)) {
+        stmt.setNString(1, name);
+        stmt.setQueryTimeout(JdbcTemplate.getTimeoutToDeadlineSeconds(deadlineNanos));
+        try (ResultSet rs = stmt.executeQuery()) {
+          if (!rs.next()) {
+            try (PreparedStatement insert = conn.prepareStatement(insertBucketSql)) {
+              insert.setNString(1, name);
+              insert.setLong(2, maxBurst);
+              insert.setLong(3, maxBurst);
+              insert.setNString(4, org.spf4j.base.Runtime.PROCESS_ID);
+              insert.setQueryTimeout(JdbcTemplate.getTimeoutToDeadlineSeconds(deadlineNanos));
+              insert.executeUpdate();
+            }
+          } else if (rs.next()) {
+            throw new IllegalStateException("Cannot have mutiple rate limiters with the same name " + name);
+          }
+        }
+      }
+      return null;
+    }, jdbcTimeoutSeconds, TimeUnit.SECONDS);
+  }
+
+  public void registerJmx() {
+    Registry.export(JdbcRateLimiter.class.getName(), name, this);
+  }
+
+  public void unregisterJmx() {
+    Registry.unregister(JdbcRateLimiter.class.getName(), name);
+  }
+
+  /**
+   * Try to acquire permits from the local bucket.
+   * @param nrPermits the number of permits to acquire.
+   * @return true if permits acquired, false otherwise.
+   */
+  public boolean tryAcquire(final int nrPermits) {
+    return tryAcquireLong(nrPermits);
+  }
+
+  @Override
+  @SuppressFBWarnings("MDM_THREAD_YIELD")
+  public boolean tryAcquire(final int nrPermits, final long deadlineNanos) throws InterruptedException {
+    if (nrPermits < 1) {
+      throw new IllegalArgumentException("You should try to acquire something! not " + nrPermits);
+    }
+    if (tryAcquire(nrPermits)) {
+      return true;
+    }
+    denied.add(nrPermits);
+    long nanosPerPermit = Math.max(1, TimeUnit.MILLISECONDS.toNanos(intervalMillis) / permitsPerInterval);
+    while (true) {
+      if (isClosed) {
+        throw new IllegalStateException("RateLimiter is closed " + this);
+      }
+      long nanosToDeadline = deadlineNanos - TimeSource.nanoTime();
+      if (nanosToDeadline <= 0) {
+        return false;
+      }
+      synchronized (sync) {
+        if (tryAcquire(nrPermits)) {
+          return true;
+        }
+        try {
+          lease(Math.max(nrPermits - permits.get(), batchSize),
+                  Math.min(deadlineNanos, TimeSource.nanoTime() + TimeUnit.SECONDS.toNanos(jdbcTimeoutSeconds)));
+        } catch (SQLTimeoutException ex) {
+          return false;
+        } catch (SQLException ex) {
+          throw new LockRuntimeException(ex);
+        }
+        if (tryAcquire(nrPermits)) {
+          return true;
+        }
+      }
+      long waitNanos = Math.min(Math.min(nanosPerPermit * nrPermits, leaseIntervalNanos),
+              deadlineNanos - TimeSource.nanoTime());
+      if (waitNanos > 0) {
+        TimeUnit.NANOSECONDS.sleep(waitNanos);
+      }
+    }
+  }
+
+  /**
+   * Adapt the batch size to the demand, and lease / return tokens accordingly.
+   */
+  private void leaseInBackground() {
+    synchronized (sync) {
+      long local = permits.get();
+      long demand = Math.max(0, permitsAfterLease - local) + denied.sumThenReset();
+      demandEstimate = demandEstimate * (1 - DEMAND_DECAY) + demand * DEMAND_DECAY;
+      long batch = Math.max(1, Math.min(maxBurst, (long) Math.ceil(demandEstimate * 2)));
+      batchSize = batch;
+      try {
+        if (local < batch) {
+          lease(batch - local, TimeSource.nanoTime() + TimeUnit.SECONDS.toNanos(jdbcTimeoutSeconds));
+        } else if (local > 2 * batch) {
+          returnPermits(local - batch);
+        }
+      } catch (SQLException | RuntimeException ex) {
+        LOG.warn("Failed to lease permits for {}", this, ex);
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+      }
+      permitsAfterLease = permits.get();
+    }
+  }
+
+  /**
+   * lease permits from the shared bucket into the local bucket.
+   * @return the number of permits leased.
+   */
+  private long lease(final long wishPermits, final long deadlineNanos) throws SQLException, InterruptedException {
+    long leased = jdbc.transactOnConnection((final Connection conn, final long deadline) -> {
+      for (int i = 0; i < MAX_LEASE_TRIES; i++) {
+        long available;
+        long total;
+        long lastRefillMillis;
+        long nowMillis;
+        try (PreparedStatement stmt = conn.prepareStatement(bucketSql)) {
+          stmt.setNString(1, name);
+          stmt.setQueryTimeout(Math.min(JdbcTemplate.getTimeoutToDeadlineSeconds(deadline), jdbcTimeoutSeconds));
+          try (ResultSet rs = stmt.executeQuery()) {
+            if (!rs.next()) {
+              throw new IllegalStateException("Rate limiter " + name + " does not exist");
+            }
+            available = rs.getLong(1);
+            total = rs.getLong(2);
+            lastRefillMillis = rs.getLong(3);
+            nowMillis = rs.getLong(4);
+          }
+        }
+        long newAvailable;
+        long newRefillMillis;
+        long elapsedMillis = nowMillis - lastRefillMillis;
+        if (elapsedMillis <= 0) {
+          newAvailable = available;
+          newRefillMillis = lastRefillMillis;
+        } else if (elapsedMillis >= (total - available) * intervalMillis / permitsPerInterval + 1) {
+          newAvailable = total;
+          newRefillMillis = nowMillis;
+        } else {
+          long refill = elapsedMillis * permitsPerInterval / intervalMillis;
+          newAvailable = available + refill;
+          // keep the remainder of the elapsed time that did not produce a whole permit.
+          newRefillMillis = lastRefillMillis + refill * intervalMillis / permitsPerInterval;
+        }
+        long granted = Math.min(wishPermits, Math.max(0, newAvailable));
+        try (PreparedStatement stmt = conn.prepareStatement(leaseSql)) {
+          stmt.setQueryTimeout(Math.min(JdbcTemplate.getTimeoutToDeadlineSeconds(deadline), jdbcTimeoutSeconds));
+          stmt.setLong(1, newAvailable - granted);
+          stmt.setLong(2, newRefillMillis);
+          stmt.setNString(3, org.spf4j.base.Runtime.PROCESS_ID);
+          stmt.setNString(4, name);
+          stmt.setLong(5, available);
+          stmt.setLong(6, lastRefillMillis);
+          if (stmt.executeUpdate() == 1) {
+            return granted;
+          }
+        }
+        // somebody else updated the bucket in the meantime, retry.
+      }
+      return 0L;
+    }, deadlineNanos);
+    if (leased > 0) {
+      Atomics.accumulate(permits, leased, Long::sum, Atomics.MAX_BACKOFF_NANOS);
+    }
+    return leased;
+  }
+
+  /**
+   * return permits from the local bucket to the shared bucket.
+   */
+  private void returnPermits(final long nrPermits) throws SQLException, InterruptedException {
+    if (nrPermits <= 0 || !tryAcquireLong(nrPermits)) {
+      return;
+    }
+    try {
+      jdbc.transactOnConnection((final Connection conn, final long deadlineNanos) -> {
+        try (PreparedStatement stmt = conn.prepareStatement(returnSql)) {
+          stmt.setQueryTimeout(Math.min(JdbcTemplate.getTimeoutToDeadlineSeconds(deadlineNanos),
+                  jdbcTimeoutSeconds));
+          stmt.setLong(1, nrPermits);
+          stmt.setLong(2, nrPermits);
+          stmt.setNString(3, org.spf4j.base.Runtime.PROCESS_ID);
+          stmt.setNString(4, name);
+          stmt.executeUpdate();
+        }
+        return null;
+      }, jdbcTimeoutSeconds, TimeUnit.SECONDS);
+    } catch (SQLException | InterruptedException | RuntimeException ex) {
+      // could not return them, keep them.
+      Atomics.accumulate(permits, nrPermits, Long::sum, Atomics.MAX_BACKOFF_NANOS);
+      throw ex;
+    }
+  }
+
+  private boolean tryAcquireLong(final long nrPermits) {
+    return Atomics.maybeAccumulate(permits, nrPermits, (long prev, long x) -> {
+      long dif = prev - x;
+      return (dif < 0) ? prev : dif;
+    }, Atomics.MAX_BACKOFF_NANOS);
+  }
+
+  /**
+   * @return the number of permits available in the local bucket.
+   */
+  @JmxExport
+  public long getLocalPermits() {
+    return permits.get();
+  }
+
+  /**
+   * @return the current target number of permits to hold in the local bucket.
+   */
+  @JmxExport
+  public long getBatchSize() {
+    return batchSize;
+  }
+
+  @JmxExport
+  public long getPermitsPerInterval() {
+    return permitsPerInterval;
+  }
+
+  @JmxExport
+  public long getIntervalMillis() {
+    return intervalMillis;
+  }
+
+  /**
+   * Stop leasing, and return the unused local permits to the shared bucket.
+   */
+  @Override
+  public void close() {
+    synchronized (sync) {
+      if (!isClosed) {
+        isClosed = true;
+        leaser.cancel(false);
+        try {
+          returnPermits(permits.get());
+        } catch (SQLException | RuntimeException ex) {
+          LOG.warn("Failed to return local permits for {}", this, ex);
+        } catch (InterruptedException ex) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "JdbcRateLimiter{" + "jdbc=" + jdbc + ", name=" + name + ", permitsPerInterval=" + permitsPerInterval
+            + ", intervalMillis=" + intervalMillis + ", maxBurst=" + maxBurst + ", localPermits=" + permits.get()
+            + ", batchSize=" + batchSize + '}';
+  }
+
+}
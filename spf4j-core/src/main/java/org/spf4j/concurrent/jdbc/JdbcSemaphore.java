@@ -51,6 +51,7 @@ import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import javax.annotation.CheckReturnValue;
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import javax.sql.DataSource;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -78,6 +79,9 @@ import org.spf4j.jmx.Registry;
  *
  * All table names and columns are customizable to adapt this implementation to different naming conventions.
  *
+ * With batch operations enabled (spf4j.jdbc.semaphore.batchOperations=true), the acquire and release database
+ * operations of all the semaphores in a process that use the same data source are group committed,
+ * see JdbcSemaphoreBatcher.
  *
  * @author zoly
  */
@@ -93,6 +97,8 @@ public final class JdbcSemaphore implements AutoCloseable, Semaphore {
 
   private static final Logger LOG = LoggerFactory.getLogger(JdbcSemaphore.class);
 
+  private static final boolean BATCH_OPERATIONS = Boolean.getBoolean("spf4j.jdbc.semaphore.batchOperations");
+
   private static final ConcurrentMap<String, Object> SYNC_OBJS = new ConcurrentHashMap<>();
 
   private final JdbcTemplate jdbc;
@@ -135,6 +141,9 @@ public final class JdbcSemaphore implements AutoCloseable, Semaphore {
 
   private final JdbcHeartBeat heartBeat;
 
+  @Nullable
+  private final JdbcSemaphoreBatcher batcher;
+
   private volatile boolean isHealthy;
 
   private boolean isClosed;
@@ -180,10 +189,33 @@ public final class JdbcSemaphore implements AutoCloseable, Semaphore {
   }
 
 
-  @SuppressFBWarnings({"CBX_CUSTOM_BUILT_XML", "STT_TOSTRING_STORED_IN_FIELD"}) // no sql builder (yet)
   public JdbcSemaphore(final DataSource dataSource, final SemaphoreTablesDesc semTableDesc,
           final String semaphoreName, final int nrPermits, final int jdbcTimeoutSeconds,
           final boolean strictReservations, final int acquirePollMillis) throws InterruptedException, SQLException {
+    this(dataSource, semTableDesc, semaphoreName, nrPermits, jdbcTimeoutSeconds, strictReservations,
+            acquirePollMillis, BATCH_OPERATIONS);
+  }
+
+  /**
+   * create a JDBC Semaphore. create one instance / process.
+   *
+   * @param dataSource  the data source to use for sync.
+   * @param semTableDesc  the semaphore tables description.
+   * @param semaphoreName  the semaphore name.
+   * @param nrPermits  number of initial permits.
+   * @param jdbcTimeoutSeconds  the timeout for the database operations.
+   * @param strictReservations  if true, if semaphore already exists and the total permits is different that param
+   * nrPermits an IllegalArgumentException will be thrown.
+   * @param acquirePollMillis  the maximum interval to poll for available permits at.
+   * @param batchOperations  if true, the acquire and release operations of all the semaphores of this process that
+   * use the same data source are executed in batches. (see JdbcSemaphoreBatcher, the batched operations use the
+   * batcher timeout instead of jdbcTimeoutSeconds)
+   */
+  @SuppressFBWarnings({"CBX_CUSTOM_BUILT_XML", "STT_TOSTRING_STORED_IN_FIELD"}) // no sql builder (yet)
+  public JdbcSemaphore(final DataSource dataSource, final SemaphoreTablesDesc semTableDesc,
+          final String semaphoreName, final int nrPermits, final int jdbcTimeoutSeconds,
+          final boolean strictReservations, final int acquirePollMillis, final boolean batchOperations)
+          throws InterruptedException, SQLException {
     if (nrPermits < 0) {
       throw new IllegalArgumentException("Permits must be positive and not " + nrPermits);
     }
@@ -208,6 +240,8 @@ public final class JdbcSemaphore implements AutoCloseable, Semaphore {
     };
     this.heartBeat = JdbcHeartBeat.getHeartBeatAndSubscribe(dataSource,
             semTableDesc.getHeartBeatTableDesc(), failureHook);
+    this.batcher = batchOperations
+            ? JdbcSemaphoreBatcher.getBatcher(dataSource, heartBeat) : null;
     final String semaphoreTableName = semTableDesc.getSemaphoreTableName();
     String availablePermitsColumn = semTableDesc.getAvailablePermitsColumn();
     String lastModifiedByColumn = semTableDesc.getLastModifiedByColumn();
@@ -402,46 +436,19 @@ public final class JdbcSemaphore implements AutoCloseable, Semaphore {
         checkClosed();
         validate();
         try {
-          acquired = jdbc.transactOnConnection(new HandlerNano<Connection, Boolean, SQLException>() {
-            @Override
-            public Boolean handle(final Connection conn, final long deadlineNanos) throws SQLException {
-              try (PreparedStatement stmt = conn.prepareStatement(acquireSql)) {
-                stmt.setQueryTimeout(Math.min(JdbcTemplate.getTimeoutToDeadlineSeconds(deadlineNanos),
-                        jdbcTimeoutSeconds));
-                stmt.setInt(1, nrPermits);
-                stmt.setNString(2, org.spf4j.base.Runtime.PROCESS_ID);
-                stmt.setNString(3, semName);
-                stmt.setInt(4, nrPermits);
-                int rowsUpdated = stmt.executeUpdate();
-                Boolean acquired;
-                if (rowsUpdated == 1) {
-                  try (PreparedStatement ostmt = conn.prepareStatement(acquireByOwnerSql)) {
-                    ostmt.setInt(1, nrPermits);
-                    ostmt.setNString(2, org.spf4j.base.Runtime.PROCESS_ID);
-                    ostmt.setNString(3, semName);
-                    ostmt.setQueryTimeout(Math.min(JdbcTemplate.getTimeoutToDeadlineSeconds(deadlineNanos),
-                            jdbcTimeoutSeconds));
-                    int nrUpdated = ostmt.executeUpdate();
-                    if (nrUpdated != 1) {
-                      throw new IllegalStateException("Updated " + nrUpdated + " is incorrect for " + ostmt);
-                    }
-                  }
-                  acquired = Boolean.TRUE;
-                } else {
-                  if (rowsUpdated > 1) {
-                    throw new IllegalStateException("Too many rows updated! when trying to acquire " + nrPermits);
-                  }
-                  acquired = Boolean.FALSE;
-                }
-                long currNanoTime = TimeSource.nanoTime();
-                if (deadlineNanos - currNanoTime > heartBeat.getBeatDurationNanos()) {
-                  // do a heartbeat if have time, and if it makes sense.
-                  beat.setValue(heartBeat.tryBeat(conn, currNanoTime, deadlineNanos));
-                }
-                return acquired;
+          if (batcher != null) {
+            acquired = batcher.acquire(this, nrPermits, deadlineNanos);
+          } else {
+            acquired = jdbc.transactOnConnection((final Connection conn, final long deadline) -> {
+              boolean result = acquire(conn, deadline, nrPermits);
+              long currNanoTime = TimeSource.nanoTime();
+              if (deadline - currNanoTime > heartBeat.getBeatDurationNanos()) {
+                // do a heartbeat if have time, and if it makes sense.
+                beat.setValue(heartBeat.tryBeat(conn, currNanoTime, deadline));
               }
-            }
-          }, deadlineNanos);
+              return result;
+            }, deadlineNanos);
+          }
         } catch (SQLTimeoutException ex) {
           return false;
         } catch (SQLException ex) {
@@ -505,25 +512,14 @@ public final class JdbcSemaphore implements AutoCloseable, Semaphore {
     synchronized (syncObj) {
       try {
         checkClosed();
-        jdbc.transactOnConnectionNonInterrupt(new HandlerNano<Connection, Void, SQLException>() {
-          @Override
-          public Void handle(final Connection conn, final long deadlineNanos) throws SQLException {
-            releaseReservations(conn, deadlineNanos, nrReservations);
-            try (PreparedStatement ostmt = conn.prepareStatement(releaseByOwnerSql)) {
-              ostmt.setInt(1, nrReservations);
-              ostmt.setNString(2, org.spf4j.base.Runtime.PROCESS_ID);
-              ostmt.setNString(3, semName);
-              ostmt.setInt(4, nrReservations);
-              ostmt.setQueryTimeout(Math.min(JdbcTemplate.getTimeoutToDeadlineSeconds(deadlineNanos),
-                      jdbcTimeoutSeconds));
-              int nrUpdated = ostmt.executeUpdate();
-              if (nrUpdated != 1) {
-                throw new IllegalStateException("Trying to release more than you own! " + ostmt);
-              }
-            }
+        if (batcher != null) {
+          batcher.releaseNonInterrupt(this, nrReservations);
+        } else {
+          jdbc.transactOnConnectionNonInterrupt((final Connection conn, final long deadlineNanos) -> {
+            release(conn, deadlineNanos, nrReservations);
             return null;
-          }
-        }, jdbcTimeoutSeconds, TimeUnit.SECONDS);
+          }, jdbcTimeoutSeconds, TimeUnit.SECONDS);
+        }
       } catch (SQLException ex) {
         throw new LockRuntimeException(ex);
       }
@@ -535,6 +531,95 @@ public final class JdbcSemaphore implements AutoCloseable, Semaphore {
     }
   }
 
+  /**
+   * Acquire permits as part of the provided transaction.
+   * @return true if the permits were acquired, false if not enough permits are available.
+   */
+  boolean acquire(final Connection conn, final long deadlineNanos, final int nrPermits) throws SQLException {
+    try (PreparedStatement stmt = conn.prepareStatement(acquireSql)) {
+      stmt.setQueryTimeout(Math.min(JdbcTemplate.getTimeoutToDeadlineSeconds(deadlineNanos),
+              jdbcTimeoutSeconds));
+      setAcquireParameters(stmt, nrPermits);
+      int rowsUpdated = stmt.executeUpdate();
+      if (rowsUpdated == 1) {
+        try (PreparedStatement ostmt = conn.prepareStatement(acquireByOwnerSql)) {
+          setAcquireByOwnerParameters(ostmt, nrPermits);
+          ostmt.setQueryTimeout(Math.min(JdbcTemplate.getTimeoutToDeadlineSeconds(deadlineNanos),
+                  jdbcTimeoutSeconds));
+          int nrUpdated = ostmt.executeUpdate();
+          if (nrUpdated != 1) {
+            throw new IllegalStateException("Updated " + nrUpdated + " is incorrect for " + ostmt);
+          }
+        }
+        return true;
+      } else {
+        if (rowsUpdated > 1) {
+          throw new IllegalStateException("Too many rows updated! when trying to acquire " + nrPermits);
+        }
+        return false;
+      }
+    }
+  }
+
+  /**
+   * Release permits as part of the provided transaction.
+   */
+  void release(final Connection conn, final long deadlineNanos, final int nrReservations) throws SQLException {
+    releaseReservations(conn, deadlineNanos, nrReservations);
+    try (PreparedStatement ostmt = conn.prepareStatement(releaseByOwnerSql)) {
+      setReleaseByOwnerParameters(ostmt, nrReservations);
+      ostmt.setQueryTimeout(Math.min(JdbcTemplate.getTimeoutToDeadlineSeconds(deadlineNanos),
+              jdbcTimeoutSeconds));
+      int nrUpdated = ostmt.executeUpdate();
+      if (nrUpdated != 1) {
+        throw new IllegalStateException("Trying to release more than you own! " + ostmt);
+      }
+    }
+  }
+
+  void setAcquireParameters(final PreparedStatement stmt, final int nrPermits) throws SQLException {
+    stmt.setInt(1, nrPermits);
+    stmt.setNString(2, org.spf4j.base.Runtime.PROCESS_ID);
+    stmt.setNString(3, semName);
+    stmt.setInt(4, nrPermits);
+  }
+
+  void setAcquireByOwnerParameters(final PreparedStatement stmt, final int nrPermits) throws SQLException {
+    stmt.setInt(1, nrPermits);
+    stmt.setNString(2, org.spf4j.base.Runtime.PROCESS_ID);
+    stmt.setNString(3, semName);
+  }
+
+  void setReleaseParameters(final PreparedStatement stmt, final int nrReservations) throws SQLException {
+    stmt.setInt(1, nrReservations);
+    stmt.setInt(2, nrReservations);
+    stmt.setNString(3, org.spf4j.base.Runtime.PROCESS_ID);
+    stmt.setNString(4, semName);
+  }
+
+  void setReleaseByOwnerParameters(final PreparedStatement stmt, final int nrReservations) throws SQLException {
+    stmt.setInt(1, nrReservations);
+    stmt.setNString(2, org.spf4j.base.Runtime.PROCESS_ID);
+    stmt.setNString(3, semName);
+    stmt.setInt(4, nrReservations);
+  }
+
+  String getAcquireSql() {
+    return acquireSql;
+  }
+
+  String getAcquireByOwnerSql() {
+    return acquireByOwnerSql;
+  }
+
+  String getReleaseSql() {
+    return releaseSql;
+  }
+
+  String getReleaseByOwnerSql() {
+    return releaseByOwnerSql;
+  }
+
   public void releaseAll() {
     synchronized (syncObj) {
       checkClosed();
@@ -547,10 +632,7 @@ public final class JdbcSemaphore implements AutoCloseable, Semaphore {
     try (PreparedStatement stmt = conn.prepareStatement(releaseSql)) {
       stmt.setQueryTimeout(Math.min(JdbcTemplate.getTimeoutToDeadlineSeconds(deadlineNanos),
               jdbcTimeoutSeconds));
-      stmt.setInt(1, nrReservations);
-      stmt.setInt(2, nrReservations);
-      stmt.setNString(3, org.spf4j.base.Runtime.PROCESS_ID);
-      stmt.setNString(4, semName);
+      setReleaseParameters(stmt, nrReservations);
       stmt.executeUpdate(); // Since a release might or might not update a row.
     }
   }
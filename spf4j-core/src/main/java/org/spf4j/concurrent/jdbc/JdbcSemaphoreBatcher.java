@@ -0,0 +1,535 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.concurrent.jdbc;
+
+import com.google.common.util.concurrent.Uninterruptibles;
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLDataException;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.SQLIntegrityConstraintViolationException;
+import java.sql.SQLNonTransientConnectionException;
+import java.sql.SQLRecoverableException;
+import java.sql.SQLTimeoutException;
+import java.sql.SQLTransientException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+import javax.annotation.concurrent.ThreadSafe;
+import javax.sql.DataSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.spf4j.base.MutableHolder;
+import org.spf4j.base.TimeSource;
+import org.spf4j.concurrent.DefaultExecutor;
+import org.spf4j.jdbc.JdbcTemplate;
+import org.spf4j.perf.MeasurementRecorder;
+import org.spf4j.perf.impl.RecorderFactory;
+
+/**
+ * Group commit of the JdbcSemaphore acquire and release operations, of all semaphores of a process that use the same
+ * data source.
+ *
+ * Operations are queued, and a single flusher executes all the queued operations in one transaction,
+ * with one JDBC batch per statement type (acquire, acquire by owner, release, release by owner).
+ * While a batch is executed, new operations accumulate for the next batch, as such the number of database
+ * round trips does not grow with the number of semaphores, and under contention the batches get larger.
+ * Every batch transaction does a heartbeat (if needed), instead of every acquisition.
+ *
+ * If a batch fails because of a data error (a constraint violation, an invalid value, the driver does not report
+ * update counts), the transaction is rolled back, and the operations of the batch are executed individually,
+ * so that the failure is reported only to the operation that caused it. Any other failure (a timeout, a transient
+ * error, a lost connection) fails all the operations of the batch, since retrying them one by one would only
+ * multiply the time spent against a database that is not responding.
+ *
+ * The database operations timeout is spf4j.jdbc.semaphore.batchJdbcTimeoutSeconds (default 10), the same for all
+ * the semaphores that use the batcher. A requester whose operation is in flight waits for its outcome at most
+ * twice this timeout.
+ *
+ * The batch size, batch latency and operation latency (queued + batch) are recorded with spf4j perf recorders.
+ *
+ * @author Zoltan Farkas
+ */
+@SuppressFBWarnings(value = {"SQL_PREPARED_STATEMENT_GENERATED_FROM_NONCONSTANT_STRING"},
+        justification = "the statements are generated by the JdbcSemaphore from validated object names")
+@ThreadSafe
+final class JdbcSemaphoreBatcher {
+
+  private static final Logger LOG = LoggerFactory.getLogger(JdbcSemaphoreBatcher.class);
+
+  private static final Map<DataSource, JdbcSemaphoreBatcher> BATCHERS = new IdentityHashMap<>();
+
+  private static final int MAX_BATCH_SIZE = Integer.getInteger("spf4j.jdbc.semaphore.maxBatchSize", 256);
+
+  private static final int JDBC_TIMEOUT_SECONDS
+          = Integer.getInteger("spf4j.jdbc.semaphore.batchJdbcTimeoutSeconds", 10);
+
+  private static final int METRICS_SAMPLE_TIME_MILLIS
+          = Integer.getInteger("spf4j.jdbc.semaphore.batchMetricsSampleTimeMillis", 60000);
+
+  private static final MeasurementRecorder BATCH_SIZE = RecorderFactory.createScalableMinMaxAvgRecorder(
+          "jdbc_semaphore_batch_size", "count", METRICS_SAMPLE_TIME_MILLIS);
+
+  private static final MeasurementRecorder BATCH_LATENCY = RecorderFactory.createScalableLogLinearRecorder(
+          "jdbc_semaphore_batch_latency", "micros", METRICS_SAMPLE_TIME_MILLIS, 60_000_000L, 2);
+
+  private static final MeasurementRecorder OPERATION_LATENCY = RecorderFactory.createScalableLogLinearRecorder(
+          "jdbc_semaphore_operation_latency", "micros", METRICS_SAMPLE_TIME_MILLIS, 60_000_000L, 2);
+
+  private final JdbcTemplate jdbc;
+
+  private final JdbcHeartBeat heartBeat;
+
+  private final int jdbcTimeoutSeconds;
+
+  /** the max time to wait for the outcome of an operation that is being executed. */
+  private final long maxInFlightWaitNanos;
+
+  private final ConcurrentLinkedQueue<Operation> queue;
+
+  private final AtomicBoolean flushing;
+
+  private JdbcSemaphoreBatcher(final DataSource dataSource, final JdbcHeartBeat heartBeat,
+          final int jdbcTimeoutSeconds) {
+    this.jdbc = new JdbcTemplate(dataSource);
+    this.heartBeat = heartBeat;
+    this.jdbcTimeoutSeconds = jdbcTimeoutSeconds;
+    this.maxInFlightWaitNanos = TimeUnit.SECONDS.toNanos(jdbcTimeoutSeconds) * 2;
+    this.queue = new ConcurrentLinkedQueue<>();
+    this.flushing = new AtomicBoolean(false);
+  }
+
+  /**
+   * Get the batcher of a data source, the batcher lives as long as the data source heartbeat.
+   */
+  static JdbcSemaphoreBatcher getBatcher(final DataSource dataSource, final JdbcHeartBeat heartBeat) {
+    synchronized (BATCHERS) {
+      JdbcSemaphoreBatcher batcher = BATCHERS.get(dataSource);
+      if (batcher == null || batcher.heartBeat != heartBeat) {
+        batcher = new JdbcSemaphoreBatcher(dataSource, heartBeat, JDBC_TIMEOUT_SECONDS);
+        BATCHERS.put(dataSource, batcher);
+        final JdbcSemaphoreBatcher fbatcher = batcher;
+        heartBeat.addLyfecycleHook(new JdbcHeartBeat.LifecycleHook() {
+          @Override
+          public void onError(final Error error) {
+            // nothing to do, the batcher is removed on close.
+          }
+
+          @Override
+          public void onClose() {
+            synchronized (BATCHERS) {
+              BATCHERS.remove(dataSource, fbatcher);
+            }
+          }
+        });
+      }
+      return batcher;
+    }
+  }
+
+  /**
+   * Try to acquire permits.
+   * @return true if acquired, false if not enough permits were available, or the deadline passed before the
+   * operation was executed, or the operation did not complete within the max in flight wait time
+   * (permits acquired by the operation afterwards are released).
+   */
+  boolean acquire(final JdbcSemaphore semaphore, final int nrPermits, final long deadlineNanos)
+          throws SQLException, InterruptedException {
+    Operation op = submit(semaphore, nrPermits, true);
+    try {
+      return op.result.get(deadlineNanos - TimeSource.nanoTime(), TimeUnit.NANOSECONDS);
+    } catch (TimeoutException ex) {
+      if (op.claim()) {
+        return false;
+      }
+      // the operation is being executed, it will complete within the jdbc timeout.
+      try {
+        return op.result.get(maxInFlightWaitNanos, TimeUnit.NANOSECONDS);
+      } catch (TimeoutException ex2) {
+        abandon(op);
+        return false;
+      } catch (InterruptedException ex2) {
+        abandon(op);
+        throw ex2;
+      } catch (ExecutionException ex2) {
+        throw unwrap(ex2);
+      }
+    } catch (InterruptedException ex) {
+      if (!op.claim()) {
+        // the operation is being executed, release what it acquires.
+        abandon(op);
+      }
+      throw ex;
+    } catch (ExecutionException ex) {
+      throw unwrap(ex);
+    }
+  }
+
+  /**
+   * Release the permits an acquire operation will acquire, since its requester is no longer waiting for it.
+   */
+  private void abandon(final Operation op) {
+    op.result.thenAccept((acquired) -> {
+      if (acquired) {
+        submit(op.semaphore, op.nrPermits, false).result.whenComplete((released, ex) -> {
+          if (ex != null) {
+            LOG.warn("Failed to release abandoned permits of {}", op, ex);
+          }
+        });
+      }
+    });
+  }
+
+  /**
+   * Release permits, the calling thread interrupted status is preserved.
+   * @throws SQLTimeoutException if the release did not complete within the max in flight wait time,
+   * the release will be still executed.
+   */
+  void releaseNonInterrupt(final JdbcSemaphore semaphore, final int nrPermits) throws SQLException {
+    Operation op = submit(semaphore, nrPermits, false);
+    try {
+      Uninterruptibles.getUninterruptibly(op.result, maxInFlightWaitNanos, TimeUnit.NANOSECONDS);
+    } catch (ExecutionException ex) {
+      throw unwrap(ex);
+    } catch (TimeoutException ex) {
+      throw new SQLTimeoutException("Release not completed within " + maxInFlightWaitNanos + " ns: " + op, ex);
+    }
+  }
+
+  @SuppressFBWarnings("ITC_INHERITANCE_TYPE_CHECKING")
+  private static SQLException unwrap(final ExecutionException ex) {
+    Throwable cause = ex.getCause();
+    if (cause instanceof SQLException) {
+      return (SQLException) cause;
+    } else if (cause instanceof RuntimeException) {
+      throw (RuntimeException) cause;
+    } else if (cause instanceof Error) {
+      throw (Error) cause;
+    } else {
+      return new SQLException(cause);
+    }
+  }
+
+  private Operation submit(final JdbcSemaphore semaphore, final int nrPermits, final boolean isAcquire) {
+    Operation op = new Operation(semaphore, nrPermits, isAcquire);
+    queue.add(op);
+    if (flushing.compareAndSet(false, true)) {
+      DefaultExecutor.INSTANCE.execute(this::flushAll);
+    }
+    return op;
+  }
+
+  private void flushAll() {
+    do {
+      try {
+        List<Operation> batch = drain();
+        while (!batch.isEmpty()) {
+          flush(batch);
+          batch = drain();
+        }
+      } finally {
+        flushing.set(false);
+      }
+      // an operation might have been queued after the last drain, and before the flushing flag was reset.
+    } while (!queue.isEmpty() && flushing.compareAndSet(false, true));
+  }
+
+  private List<Operation> drain() {
+    List<Operation> batch = new ArrayList<>(Math.min(MAX_BATCH_SIZE, 16));
+    Operation op;
+    while (batch.size() < MAX_BATCH_SIZE && (op = queue.poll()) != null) {
+      if (op.claim()) {
+        batch.add(op);
+      }
+    }
+    return batch;
+  }
+
+  private void flush(final List<Operation> batch) {
+    long startNanos = TimeSource.nanoTime();
+    MutableHolder<Boolean> beat = MutableHolder.of(Boolean.FALSE);
+    try {
+      jdbc.transactOnConnection((final Connection conn, final long deadlineNanos) -> {
+        executeBatch(conn, deadlineNanos, batch);
+        long currNanoTime = TimeSource.nanoTime();
+        if (deadlineNanos - currNanoTime > heartBeat.getBeatDurationNanos()) {
+          // one heartbeat for all the semaphores.
+          beat.setValue(heartBeat.tryBeat(conn, currNanoTime, deadlineNanos));
+        }
+        return null;
+      }, jdbcTimeoutSeconds, TimeUnit.SECONDS);
+      if (beat.getValue()) {
+        heartBeat.updateLastRunNanos(TimeSource.nanoTime());
+      }
+      for (Operation op : batch) {
+        op.complete(op.acquired);
+      }
+    } catch (SQLException | RuntimeException ex) {
+      if (batch.size() > 1 && isDataError(ex)) {
+        LOG.debug("Batch of {} operations failed, executing them one by one", batch.size(), ex);
+        for (Operation op : batch) {
+          executeSingle(op);
+        }
+      } else {
+        for (Operation op : batch) {
+          op.fail(ex);
+        }
+      }
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      for (Operation op : batch) {
+        op.fail(ex);
+      }
+    } catch (Error err) {
+      for (Operation op : batch) {
+        op.fail(err);
+      }
+      throw err;
+    }
+    BATCH_SIZE.record(batch.size());
+    BATCH_LATENCY.record(TimeUnit.NANOSECONDS.toMicros(TimeSource.nanoTime() - startNanos));
+  }
+
+  /**
+   * @return true if the batch failure is caused by the data of an operation (and executing the operations one by one
+   * will isolate the failure), false if it is caused by a timeout, a transient or connection error.
+   */
+  @SuppressFBWarnings("ITC_INHERITANCE_TYPE_CHECKING")
+  static boolean isDataError(final Exception ex) {
+    if (ex instanceof IllegalStateException) {
+      // invalid update counts.
+      return true;
+    }
+    boolean dataError = false;
+    Throwable t = ex;
+    int depth = 0;
+    while (t != null && depth++ < 16) {
+      if (t instanceof SQLTimeoutException || t instanceof SQLTransientException
+              || t instanceof SQLRecoverableException || t instanceof SQLNonTransientConnectionException) {
+        return false;
+      }
+      if (t instanceof SQLException) {
+        SQLException sqlEx = (SQLException) t;
+        String sqlState = sqlEx.getSQLState();
+        if (sqlState != null && sqlState.startsWith("08")) {
+          // SQL standard connection exception class.
+          return false;
+        }
+        if (sqlEx instanceof SQLIntegrityConstraintViolationException || sqlEx instanceof SQLDataException
+                || sqlEx instanceof SQLFeatureNotSupportedException
+                || (sqlState != null && (sqlState.startsWith("22") || sqlState.startsWith("23")))) {
+          // SQL standard data exception and integrity constraint violation classes.
+          dataError = true;
+        }
+        SQLException next = sqlEx.getNextException();
+        t = next != null && next != t ? next : t.getCause();
+      } else {
+        t = t.getCause();
+      }
+    }
+    return dataError;
+  }
+
+  private void executeSingle(final Operation op) {
+    try {
+      boolean result = jdbc.transactOnConnection((final Connection conn, final long deadlineNanos) -> {
+        if (op.isAcquire) {
+          return op.semaphore.acquire(conn, deadlineNanos, op.nrPermits);
+        } else {
+          op.semaphore.release(conn, deadlineNanos, op.nrPermits);
+          return Boolean.TRUE;
+        }
+      }, jdbcTimeoutSeconds, TimeUnit.SECONDS);
+      op.complete(result);
+    } catch (SQLException | RuntimeException ex) {
+      op.fail(ex);
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      op.fail(ex);
+    }
+  }
+
+  private void executeBatch(final Connection conn, final long deadlineNanos, final List<Operation> batch)
+          throws SQLException {
+    List<Operation> acquires = new ArrayList<>(batch.size());
+    List<Operation> releases = new ArrayList<>(batch.size());
+    for (Operation op : batch) {
+      op.acquired = false;
+      if (op.isAcquire) {
+        acquires.add(op);
+      } else {
+        releases.add(op);
+      }
+    }
+    List<Operation> acquired = new ArrayList<>(acquires.size());
+    for (Map.Entry<String, List<Operation>> entry : groupBy(acquires, (op) -> op.semaphore.getAcquireSql())) {
+      List<Operation> ops = entry.getValue();
+      int[] counts = executeBatch(conn, deadlineNanos, entry.getKey(), ops,
+              (stmt, op) -> op.semaphore.setAcquireParameters(stmt, op.nrPermits));
+      for (int i = 0; i < counts.length; i++) {
+        int count = counts[i];
+        Operation op = ops.get(i);
+        if (count == 1) {
+          op.acquired = true;
+          acquired.add(op);
+        } else if (count != 0) {
+          throw new IllegalStateException("Invalid update count " + count + " when acquiring " + op);
+        }
+      }
+    }
+    for (Map.Entry<String, List<Operation>> entry
+            : groupBy(acquired, (op) -> op.semaphore.getAcquireByOwnerSql())) {
+      checkUpdateCounts(executeBatch(conn, deadlineNanos, entry.getKey(), entry.getValue(),
+              (stmt, op) -> op.semaphore.setAcquireByOwnerParameters(stmt, op.nrPermits)), entry.getValue());
+    }
+    for (Map.Entry<String, List<Operation>> entry : groupBy(releases, (op) -> op.semaphore.getReleaseSql())) {
+      // a release might or might not update a row.
+      executeBatch(conn, deadlineNanos, entry.getKey(), entry.getValue(),
+              (stmt, op) -> op.semaphore.setReleaseParameters(stmt, op.nrPermits));
+    }
+    for (Map.Entry<String, List<Operation>> entry
+            : groupBy(releases, (op) -> op.semaphore.getReleaseByOwnerSql())) {
+      checkUpdateCounts(executeBatch(conn, deadlineNanos, entry.getKey(), entry.getValue(),
+              (stmt, op) -> op.semaphore.setReleaseByOwnerParameters(stmt, op.nrPermits)), entry.getValue());
+    }
+  }
+
+  private static void checkUpdateCounts(final int[] counts, final List<Operation> ops) {
+    for (int i = 0; i < counts.length; i++) {
+      if (counts[i] != 1) {
+        throw new IllegalStateException("Invalid update count " + counts[i] + " for " + ops.get(i));
+      }
+    }
+  }
+
+  private static Iterable<Map.Entry<String, List<Operation>>> groupBy(final List<Operation> ops,
+          final Function<Operation, String> sqlFunc) {
+    Map<String, List<Operation>> result = new LinkedHashMap<>(4);
+    for (Operation op : ops) {
+      result.computeIfAbsent(sqlFunc.apply(op), (sql) -> new ArrayList<>(ops.size())).add(op);
+    }
+    return result.entrySet();
+  }
+
+  private int[] executeBatch(final Connection conn, final long deadlineNanos, final String sql,
+          final List<Operation> ops, final ParameterSetter setter) throws SQLException {
+    try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+      stmt.setQueryTimeout(Math.min(JdbcTemplate.getTimeoutToDeadlineSeconds(deadlineNanos),
+              jdbcTimeoutSeconds));
+      for (Operation op : ops) {
+        setter.setParameters(stmt, op);
+        stmt.addBatch();
+      }
+      int[] counts = stmt.executeBatch();
+      if (counts.length != ops.size()) {
+        throw new IllegalStateException("Invalid number of update counts " + counts.length + " for " + ops);
+      }
+      return counts;
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "JdbcSemaphoreBatcher{" + "jdbc=" + jdbc + ", jdbcTimeoutSeconds=" + jdbcTimeoutSeconds
+            + ", queued=" + queue.size() + '}';
+  }
+
+  @FunctionalInterface
+  private interface ParameterSetter {
+
+    void setParameters(PreparedStatement stmt, Operation op) throws SQLException;
+  }
+
+  private static final class Operation {
+
+    private final JdbcSemaphore semaphore;
+
+    private final int nrPermits;
+
+    private final boolean isAcquire;
+
+    private final long submitNanos;
+
+    private final CompletableFuture<Boolean> result;
+
+    /**
+     * claimed by the flusher for execution, or by the requester for cancellation.
+     */
+    private final AtomicBoolean claimed;
+
+    /**
+     * the outcome of the acquire within the current batch transaction, only accessed by the flusher.
+     */
+    private boolean acquired;
+
+    Operation(final JdbcSemaphore semaphore, final int nrPermits, final boolean isAcquire) {
+      this.semaphore = semaphore;
+      this.nrPermits = nrPermits;
+      this.isAcquire = isAcquire;
+      this.submitNanos = TimeSource.nanoTime();
+      this.result = new CompletableFuture<>();
+      this.claimed = new AtomicBoolean(false);
+      this.acquired = false;
+    }
+
+    boolean claim() {
+      return claimed.compareAndSet(false, true);
+    }
+
+    void complete(final boolean value) {
+      OPERATION_LATENCY.record(TimeUnit.NANOSECONDS.toMicros(TimeSource.nanoTime() - submitNanos));
+      result.complete(value);
+    }
+
+    void fail(final Throwable ex) {
+      result.completeExceptionally(ex);
+    }
+
+    @Override
+    public String toString() {
+      return "Operation{" + "semaphore=" + semaphore + ", nrPermits=" + nrPermits + ", isAcquire=" + isAcquire + '}';
+    }
+
+  }
+
+}
@@ -38,10 +38,15 @@ import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
 import org.spf4j.base.Callables;
 import org.spf4j.base.UncheckedExecutionException;
+import org.spf4j.concurrent.AdaptiveSemaphore;
 import org.spf4j.concurrent.PermitSupplier;
 import org.spf4j.concurrent.Semaphore;
 
 /**
+ * Executor that limits the concurrent executions to the permits available in a semaphore,
+ * executions that cannot acquire a permit are handled by the reject handler.
+ * When the semaphore is a {@link AdaptiveSemaphore}, the execution latencies and drops are reported to it,
+ * so that the concurrency limit adapts to the load.
  * @author Zoltan Farkas
  */
 @Beta
@@ -86,6 +91,10 @@ public final class LimitingExecutor<T, C extends Callable<? extends T>> implemen
 
   public <T> T execute(final C callable) throws Exception {
     if (semaphore.tryAcquire(0, TimeUnit.NANOSECONDS)) {
+      if (semaphore instanceof AdaptiveSemaphore) {
+        // the execution time and outcome are fed back to the adaptive limit.
+        return (T) ((AdaptiveSemaphore) semaphore).callAcquired(callable);
+      }
       try {
         return (T) callable.call();
       } finally {
@@ -40,10 +40,12 @@ import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.function.Supplier;
 import javax.annotation.CheckReturnValue;
+import javax.annotation.Nullable;
 import javax.annotation.ParametersAreNonnullByDefault;
 import org.slf4j.Logger;
 import org.slf4j.helpers.NOPLogger;
 import org.spf4j.base.Throwables;
+import org.spf4j.concurrent.AdaptiveSemaphore;
 import org.spf4j.failsafe.concurrent.DefaultFailSafeExecutor;
 import org.spf4j.failsafe.concurrent.FailSafeExecutor;
 
@@ -83,10 +85,14 @@ public class RetryPolicy<T, C extends Callable<? extends T>> implements SyncRetr
 
   private final int maxExceptionChain;
 
+  @Nullable
+  private final AdaptiveSemaphore concurrencyLimiter;
+
   RetryPolicy(final TimedSupplier<RetryPredicate<T, C>> retryPredicate,
-          final int maxExceptionChain) {
+          final int maxExceptionChain, @Nullable final AdaptiveSemaphore concurrencyLimiter) {
     this.retryPredSupplier = retryPredicate;
     this.maxExceptionChain = maxExceptionChain;
+    this.concurrencyLimiter = concurrencyLimiter;
   }
 
   public static <T, C extends Callable<? extends T>> RetryPolicy<T, C> noRetryPolicy() {
@@ -103,7 +109,7 @@ public class RetryPolicy<T, C extends Callable<? extends T>> implements SyncRetr
           final W pwhat, final Class<EX> exceptionClass, final long startNanos, final long deadlineNanos)
           throws InterruptedException, TimeoutException, EX {
     return (R) SyncRetryExecutor.call(pwhat, getRetryPredicate(startNanos, deadlineNanos),
-            exceptionClass, maxExceptionChain);
+            exceptionClass, maxExceptionChain, concurrencyLimiter, deadlineNanos);
   }
 
   public final AsyncRetryExecutor<T, C> async(final FailSafeExecutor exec) {
@@ -129,7 +135,7 @@ public class RetryPolicy<T, C extends Callable<? extends T>> implements SyncRetr
   @Override
   public String toString() {
     return "RetryPolicy{" + "retryPredicate=" + retryPredSupplier
-            + ", maxExceptionChain=" + maxExceptionChain + '}';
+            + ", maxExceptionChain=" + maxExceptionChain + ", concurrencyLimiter=" + concurrencyLimiter + '}';
   }
 
   public static final class Builder<T, C extends Callable<? extends T>> {
@@ -164,6 +170,9 @@ public class RetryPolicy<T, C extends Callable<? extends T>> implements SyncRetr
 
     private Logger log;
 
+    @Nullable
+    private AdaptiveSemaphore concurrencyLimiter;
+
     private Builder() {
       this.nrInitialImmediateRetries = DEFAULT_INITIAL_NODELAY_RETRIES;
       this.startDelayNanos = DEFAULT_INITIAL_DELAY_NANOS;
@@ -172,6 +181,7 @@ public class RetryPolicy<T, C extends Callable<? extends T>> implements SyncRetr
       this.resultPredicates = new ArrayList<>(2);
       this.exceptionPredicates = new ArrayList<>(2);
       this.log = null;
+      this.concurrencyLimiter = null;
     }
 
     private Builder(final Builder from) {
@@ -182,6 +192,7 @@ public class RetryPolicy<T, C extends Callable<? extends T>> implements SyncRetr
       this.resultPredicates = new ArrayList(from.resultPredicates);
       this.exceptionPredicates = new ArrayList<>(from.exceptionPredicates);
       this.log = from.log;
+      this.concurrencyLimiter = from.concurrencyLimiter;
     }
 
     public Builder<T, C> withRetryLogger(final Logger plog) {
@@ -371,6 +382,19 @@ public class RetryPolicy<T, C extends Callable<? extends T>> implements SyncRetr
       return this;
     }
 
+    /**
+     * Execute every attempt of the synchronous calls with a permit from the provided limiter.
+     * The attempt latencies and drops are reported to the limiter, as such retries will be throttled
+     * when the limiter detects overload (retry storm protection).
+     * The asynchronous executions can be limited with a {@link LimitingExecutor}.
+     * @param limiter the concurrency limiter.
+     * @return this builder.
+     */
+    public Builder<T, C> withConcurrencyLimiter(final AdaptiveSemaphore limiter) {
+      concurrencyLimiter = limiter;
+      return this;
+    }
+
     @CheckReturnValue
     public Builder<T, C> copy() {
       return new Builder<>(this);
@@ -384,7 +408,7 @@ public class RetryPolicy<T, C extends Callable<? extends T>> implements SyncRetr
               = (s, e) -> new DefaultRetryPredicate(log, s, e, () -> new TypeBasedRetryDelaySupplier<>(
               (x) -> new JitteredDelaySupplier(new FibonacciRetryDelaySupplier(nrInitialImmediateRetries,
                       startDelayNanos, maxDelayNanos), jitterFactor)), rps, eps);
-      return new RetryPolicy<>(retryPredicate, maxExceptionChain);
+      return new RetryPolicy<>(retryPredicate, maxExceptionChain, concurrencyLimiter);
     }
 
     @CheckReturnValue
@@ -36,11 +36,13 @@ import java.util.concurrent.Callable;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import javax.annotation.CheckReturnValue;
+import javax.annotation.Nullable;
 import org.spf4j.base.Either;
 import org.spf4j.base.ExecutionContexts;
 import org.spf4j.base.Throwables;
 import org.spf4j.base.TimeSource;
 import org.spf4j.base.UncheckedExecutionException;
+import org.spf4j.concurrent.AdaptiveSemaphore;
 
 /**
  * @author Zoltan Farkas
@@ -110,18 +112,43 @@ public interface SyncRetryExecutor<T, C extends Callable<? extends T>> {
    * @throws java.lang.InterruptedException - thrown if retry interrupted.
    * @throws EX - the exception thrown by callable.
    */
-  @SuppressFBWarnings({ "MDM_THREAD_YIELD", "ITC_INHERITANCE_TYPE_CHECKING" })
   static <T, E extends Exception, C extends Callable<? extends T>> T call(
           final C pwhat,
           final RetryPredicate<T, C> retryPredicate,
           final Class<E> exceptionClass,
           final int maxExceptionChain)
           throws InterruptedException, TimeoutException, E {
+    return call(pwhat, retryPredicate, exceptionClass, maxExceptionChain, null, 0L);
+  }
+
+  /**
+   * Execution with retry logic, where every attempt is executed with a permit from a concurrency limiter.
+   * A attempt that cannot acquire a permit until the deadline fails with a TimeoutException.
+   *
+   * @param pwhat - the callable to retry.
+   * @param retryPredicate - the retry predicate.
+   * @param exceptionClass - the exception class thrown by the callable.
+   * @param maxExceptionChain - the maximum number of attempt exceptions to chain.
+   * @param limiter - the concurrency limiter, null for no limit.
+   * @param deadlineNanos - the deadline to acquire permits until.
+   * @return the result of the retried callable if successful.
+   * @throws java.lang.InterruptedException - thrown if retry interrupted.
+   * @throws EX - the exception thrown by callable.
+   */
+  @SuppressFBWarnings({ "MDM_THREAD_YIELD", "ITC_INHERITANCE_TYPE_CHECKING" })
+  static <T, E extends Exception, C extends Callable<? extends T>> T call(
+          final C pwhat,
+          final RetryPredicate<T, C> retryPredicate,
+          final Class<E> exceptionClass,
+          final int maxExceptionChain,
+          @Nullable final AdaptiveSemaphore limiter,
+          final long deadlineNanos)
+          throws InterruptedException, TimeoutException, E {
     C what = pwhat;
     T result;
     Throwable lastEx; // last exception
     try {
-      result = what.call();
+      result = limiter == null ? what.call() : limiter.call(what, deadlineNanos);
       lastEx = null;
     } catch (InterruptedException ex1) {
       throw ex1;
@@ -151,7 +178,7 @@ public interface SyncRetryExecutor<T, C extends Callable<? extends T>> {
       }
       what = decision.getNewCallable();
       try {
-        result = what.call();
+        result = limiter == null ? what.call() : limiter.call(what, deadlineNanos);
         lastEx = null;
       } catch (InterruptedException ex1) {
         if (lastExChain != null) {
@@ -35,26 +35,34 @@ import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
-import java.util.concurrent.CancellationException;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.DelayQueue;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.function.Supplier;
+import javax.annotation.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.spf4j.base.AbstractRunnable;
 import org.spf4j.failsafe.RetryPredicate;
-import org.spf4j.base.UncheckedExecutionException;
-import org.spf4j.concurrent.DefaultExecutor;
+import org.spf4j.concurrent.CustomThreadFactory;
+import org.spf4j.concurrent.DefaultScheduler;
+import org.spf4j.concurrent.HashedWheelTimer;
 import org.spf4j.concurrent.InterruptibleCompletableFuture;
 
 /**
  * Executor that will call Callables with retry. This executor cannot be used inside a Completion service.
  *
+ * Delayed executions (retries and hedges) are scheduled with the timer (shared by default), and are submitted to
+ * the execution service from the timer thread, as such the execution service must not block on submission.
+ * For a execution service that can block on submission (bounded queue with a blocking rejection policy), use
+ * {@link #FailSafeExecutorImpl(ExecutorService, HashedWheelTimer, boolean)}, delayed executions will be handed over
+ * to the execution service by a dispatcher thread (started on demand) so that the timer thread is never blocked.
+ * Zero delay retries are submitted to the execution service directly, when the previous execution finishes.
  *
  * @author zoly
  */
@@ -62,110 +70,101 @@ public final class FailSafeExecutorImpl implements FailSafeExecutor {
 
   private static final Logger LOG = LoggerFactory.getLogger(FailSafeExecutorImpl.class);
 
-  private static final Future<?> SHUTDOWN = new Future() {
-    @Override
-    public boolean cancel(final boolean mayInterruptIfRunning) {
-      throw new UnsupportedOperationException();
-    }
-
-    @Override
-    public boolean isCancelled() {
-      throw new UnsupportedOperationException();
-    }
+  private final ExecutorService executionService;
+  private final HashedWheelTimer timer;
+  @Nullable
+  private final ThreadPoolExecutor dispatcher;
+  private final RetryScheduler scheduler;
+  private volatile boolean closed;
 
-    @Override
-    public boolean isDone() {
-      throw new UnsupportedOperationException();
-    }
+  public FailSafeExecutorImpl(final ExecutorService exec) {
+    this(exec, DefaultScheduler.timer());
+  }
 
-    @Override
-    public Object get()  {
-      throw new UnsupportedOperationException();
-    }
+  /**
+   * @param exec the executor the tasks are executed with, must not block on submission.
+   * @param timer the timer that schedules the delayed executions (retries and hedges).
+   */
+  public FailSafeExecutorImpl(final ExecutorService exec, final HashedWheelTimer timer) {
+    this(exec, timer, false);
+  }
 
-    @Override
-    public Object get(final long timeout, final TimeUnit unit) {
-      throw new UnsupportedOperationException();
+  /**
+   * @param exec the executor the tasks are executed with.
+   * @param timer the timer that schedules the delayed executions (retries and hedges).
+   * @param blockingSubmit true if exec can block on submission, delayed executions are then submitted
+   * by a dispatcher thread, instead of the timer thread.
+   */
+  public FailSafeExecutorImpl(final ExecutorService exec, final HashedWheelTimer timer,
+          final boolean blockingSubmit) {
+    this.executionService = exec;
+    this.timer = timer;
+    if (blockingSubmit) {
+      this.dispatcher = new ThreadPoolExecutor(1, 1, 10, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+              new CustomThreadFactory("spf4j-failsafe-dispatcher", true));
+      this.dispatcher.allowCoreThreadTimeOut(true);
+    } else {
+      this.dispatcher = null;
     }
-  };
+    this.scheduler = new RetryScheduler() {
+      @Override
+      public HashedWheelTimer.Timeout schedule(final RetryFutureTask<?> task, final long delayNanos) {
+        return FailSafeExecutorImpl.this.schedule(task, delayNanos);
+      }
 
-  private final ExecutorService executionService;
-  private final DelayQueue<DelayedTask<RetryFutureTask<?>>> executionEvents = new DelayQueue<>();
-  private volatile Future<?> retryManagerFuture;
-  private final Object sync = new Object();
-
-  private void startRetryManager() {
-    Future<?> rm = retryManagerFuture;
-    if (rm == null) {
-      synchronized (sync) {
-        rm = retryManagerFuture;
-        if (rm == null) {
-          rm = DefaultExecutor.INSTANCE.submit(new RetryManager());
-          this.retryManagerFuture = rm;
-          LOG.debug("Retry manager started {}", rm);
-        }
+      @Override
+      @Nullable
+      public HashedWheelTimer.Timeout execute(final RetryFutureTask<?> task) {
+        submitScheduled(task);
+        return null;
       }
-    }
+    };
+    this.closed = false;
   }
 
-  private void shutdownRetryManager() {
-    synchronized (sync) {
-      Future<?> rmf = this.retryManagerFuture;
-      if (rmf != null && rmf != SHUTDOWN) {
-        rmf.cancel(true);
-        retryManagerFuture = SHUTDOWN;
-      }
+  /**
+   * Schedule a delayed execution, the RejectedExecutionException thrown by a closed timer is handled by the task.
+   */
+  private HashedWheelTimer.Timeout schedule(final RetryFutureTask<?> task, final long delayNanos) {
+    HashedWheelTimer.Timeout timeout = timer.schedule(new ScheduledExecution(task), delayNanos, TimeUnit.NANOSECONDS);
+    if (closed) {
+      // closed while scheduling, the close sweep might have missed this timeout.
+      timeout.cancel();
+      task.cancel(false);
     }
+    return timeout;
   }
 
-  private class RetryManager extends AbstractRunnable {
-
-    RetryManager() {
-      super("RetryManager");
+  private void submitScheduled(final RetryFutureTask<?> task) {
+    if (closed) {
+      LOG.debug("Executor closed, cancelling scheduled execution of {}", task);
+      task.cancel(false);
+      return;
     }
-
-    @Override
-    public void doRun() {
-      while (retryManagerFuture != SHUTDOWN) {
-        try {
-          DelayedTask<RetryFutureTask<?>>  event = executionEvents.poll(1, TimeUnit.MINUTES);
-          if (event != null) {
-            RetryFutureTask<?> runnable = event.getRunnable();
-            executionService.execute(runnable);
-          }
-        } catch (InterruptedException ex) {
-          LOG.debug("Interrupted Retry manager, shuting down, events scheduled: {}", executionEvents, ex);
-          break;
-        }
-      }
+    try {
+      executionService.execute(task);
+    } catch (RejectedExecutionException ex) {
+      LOG.debug("Execution rejected {}", task, ex);
+      task.executionRejected(ex);
     }
-
-  }
-
-  public FailSafeExecutorImpl(final ExecutorService exec) {
-    executionService = exec;
   }
 
+  /**
+   * Close this executor, the scheduled retries and hedges that did not start executing will be cancelled.
+   * Their timeouts are expired right away by the timer, (no tracking of the scheduled executions is needed)
+   * and the timer is not closed, since it can be shared.
+   */
   @Override
-  public void close() throws InterruptedException {
-    synchronized (sync) {
-      Future<?> rmf = this.retryManagerFuture;
-      if (rmf != null && rmf != SHUTDOWN) {
-        this.retryManagerFuture = SHUTDOWN;
-        rmf.cancel(true);
-        try {
-          rmf.get();
-        } catch (ExecutionException ex) {
-          throw new UncheckedExecutionException(ex);
-        } catch (CancellationException ex) {
-          // ignore, since we are the source
-        }
-      }
+  public void close() {
+    closed = true;
+    timer.expireIf((task) -> task instanceof ScheduledExecution && ((ScheduledExecution) task).isOwnedBy(this));
+    if (dispatcher != null) {
+      dispatcher.shutdown();
     }
   }
 
   public void initiateClose() {
-    shutdownRetryManager();
+    close();
   }
 
 
@@ -173,8 +172,7 @@ public final class FailSafeExecutorImpl implements FailSafeExecutor {
   public <A> Future<A> submit(final Callable<? extends A> task,
           final RetryPredicate<A, ? extends Callable<? extends A>> predicate) {
     RetryFutureTask<A> result =
-            new RetryFutureTask(task, (RetryPredicate<A, Callable<? extends A>>) predicate, executionEvents,
-              this::startRetryManager);
+            new RetryFutureTask(task, (RetryPredicate<A, Callable<? extends A>>) predicate, scheduler);
 
     executionService.execute(result);
     return (Future<A>) result;
@@ -197,8 +195,7 @@ public final class FailSafeExecutorImpl implements FailSafeExecutor {
               }
               return result.complete(r);
             }, (Callable<A>) task,
-                    (RetryPredicate<A, Callable<? extends A>>) predicate, executionEvents,
-              this::startRetryManager);
+                    (RetryPredicate<A, Callable<? extends A>>) predicate, scheduler);
     result.setToCancel(rft);
     executionService.execute(rft);
     return result;
@@ -216,21 +213,17 @@ public final class FailSafeExecutorImpl implements FailSafeExecutor {
     ArrayBlockingQueue<Future<A>> queue = new ArrayBlockingQueue<>(1);
     FirstFuture<A> result = new FirstFuture<A>(futures, queue);
     ConsumableRetryFutureTask<A> future =  new ConsumableRetryFutureTask(result, task,
-            (RetryPredicate<A, Callable<? extends A>>) predicate, executionEvents, this::startRetryManager);
-    startRetryManager();
+            (RetryPredicate<A, Callable<? extends A>>) predicate, scheduler);
     futures[0] = future;
     Runnable[] submits = new Runnable[nrFut];
     submits[0] = () -> executionService.execute(future);
     for (int i = 1; i < nrFut; i++) {
       ConsumableRetryFutureTask<A> f = new ConsumableRetryFutureTask(
-                result, task, (RetryPredicate) predicate, executionEvents,
-                this::startRetryManager);
+                result, task, (RetryPredicate) predicate, scheduler);
       futures[i] = f;
       if (hedgeDelay > 0) {
-        DelayedTask<RetryFutureTask<?>>  delayedExecution = new DelayedTask<RetryFutureTask<?>>(
-                f, unit.toNanos(hedgeDelay));
-        f.setExec(delayedExecution);
-        submits[i] = () -> executionEvents.add(delayedExecution);
+        long hedgeDelayNanos = unit.toNanos(hedgeDelay);
+        submits[i] = () -> f.schedule(hedgeDelayNanos);
       } else {
         submits[i] = () -> executionService.execute(f);
       }
@@ -283,21 +276,17 @@ public final class FailSafeExecutorImpl implements FailSafeExecutor {
     };
     result.setToCancel(resultX);
     ConsumableRetryFutureTask<A> future =  new ConsumableRetryFutureTask(resultX, task,
-            (RetryPredicate<A, Callable<? extends A>>) predicate, executionEvents, this::startRetryManager);
-    startRetryManager();
+            (RetryPredicate<A, Callable<? extends A>>) predicate, scheduler);
     futures[0] = future;
     Runnable[] submits = new Runnable[nrFut];
     submits[0] = () -> executionService.execute(future);
     for (int i = 1; i < nrFut; i++) {
       ConsumableRetryFutureTask<A> f = new ConsumableRetryFutureTask(
-                resultX, task, (RetryPredicate) predicate, executionEvents,
-                this::startRetryManager);
+                resultX, task, (RetryPredicate) predicate, scheduler);
       futures[i] = f;
       if (hedgeDelay > 0) {
-        DelayedTask<RetryFutureTask<?>>  delayedExecution = new DelayedTask<RetryFutureTask<?>>(
-                f, unit.toNanos(hedgeDelay));
-        f.setExec(delayedExecution);
-        submits[i] = () -> executionEvents.add(delayedExecution);
+        long hedgeDelayNanos = unit.toNanos(hedgeDelay);
+        submits[i] = () -> f.schedule(hedgeDelayNanos);
       } else {
         submits[i] = () -> executionService.execute(f);
       }
@@ -313,16 +302,51 @@ public final class FailSafeExecutorImpl implements FailSafeExecutor {
   @Override
   public <A> void execute(final Callable<? extends A> task,
           final RetryPredicate<A, ? extends Callable<? extends A>> predicate) {
-    RetryFutureTask<A> result = new RetryFutureTask(task, predicate, executionEvents, this::startRetryManager);
+    RetryFutureTask<A> result = new RetryFutureTask(task, predicate, scheduler);
     executionService.execute(result);
   }
 
 
   @Override
   public String toString() {
-    return "RetryExecutor{" + "executionService=" + executionService + ", executionEvents=" + executionEvents
-            + ", retryManagerFuture=" + retryManagerFuture
-            + ", sync=" + sync + '}';
+    return "RetryExecutor{" + "executionService=" + executionService + ", timer=" + timer
+            + ", closed=" + closed + '}';
+  }
+
+  /**
+   * A delayed execution, runs in the timer thread.
+   */
+  private final class ScheduledExecution implements Runnable {
+
+    private final RetryFutureTask<?> task;
+
+    ScheduledExecution(final RetryFutureTask<?> task) {
+      this.task = task;
+    }
+
+    boolean isOwnedBy(final FailSafeExecutorImpl executor) {
+      return FailSafeExecutorImpl.this == executor;
+    }
+
+    @Override
+    public void run() {
+      if (dispatcher == null || closed) {
+        submitScheduled(task);
+      } else {
+        try {
+          dispatcher.execute(() -> submitScheduled(task));
+        } catch (RejectedExecutionException ex) {
+          LOG.debug("Executor closed, cancelling scheduled execution of {}", task, ex);
+          task.cancel(false);
+        }
+      }
+    }
+
+    @Override
+    public String toString() {
+      return "ScheduledExecution{" + "task=" + task + '}';
+    }
+
   }
 
   @SuppressFBWarnings("NOS_NON_OWNED_SYNCHRONIZATION") // Actually I own it...
@@ -420,9 +444,8 @@ public final class FailSafeExecutorImpl implements FailSafeExecutor {
 
     ConsumableRetryFutureTask(final ConditionalConsumer<Future<T>> consumer, final Callable<T> callable,
             final RetryPredicate<T, Callable<? extends T>> retryPredicate,
-            final DelayQueue<DelayedTask<RetryFutureTask<?>>> delayedTasks,
-            final Runnable onRetry) {
-      super(callable, retryPredicate, delayedTasks, onRetry);
+            final RetryScheduler scheduler) {
+      super(callable, retryPredicate, scheduler);
       this.consumer = consumer;
     }
 
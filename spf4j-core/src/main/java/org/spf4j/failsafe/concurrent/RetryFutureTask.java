@@ -34,10 +34,11 @@ package org.spf4j.failsafe.concurrent;
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 import java.util.concurrent.Callable;
 import java.util.concurrent.CancellationException;
-import java.util.concurrent.DelayQueue;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
 import org.spf4j.base.Either;
 import org.spf4j.base.Throwables;
+import org.spf4j.concurrent.HashedWheelTimer;
 import org.spf4j.failsafe.RetryDecision;
 import org.spf4j.failsafe.RetryPredicate;
 
@@ -50,34 +51,62 @@ class RetryFutureTask<T> extends FutureTask<T> {
 
   private final RetryPredicate<T, Callable<? extends T>> retryPredicate;
 
-  private final DelayQueue<DelayedTask<RetryFutureTask<?>>> delayedTasks;
+  private final RetryScheduler scheduler;
 
   private Either<Throwable, T> previousResult;
 
-  private final Runnable onRetry;
+  private volatile HashedWheelTimer.Timeout exec;
 
-  private volatile DelayedTask<RetryFutureTask<?>> exec;
+  /** a zero delay retry is pending, to be submitted once the current execution finishes. */
+  private boolean retryNow;
 
 
   RetryFutureTask(final Callable<T> callable, final RetryPredicate<T, Callable<? extends T>> retryPredicate,
-          final DelayQueue<DelayedTask<RetryFutureTask<?>>> delayedTasks, final Runnable onRetry) {
+          final RetryScheduler scheduler) {
     super(callable);
-    this.onRetry = onRetry;
     this.retryPredicate = retryPredicate;
-    this.delayedTasks = delayedTasks;
+    this.scheduler = scheduler;
     this.previousResult = null;
   }
 
-  public final void setExec(final DelayedTask<RetryFutureTask<?>> exec) {
-    this.exec = exec;
+  /**
+   * Schedule a delayed execution of this task (hedge).
+   * The timeout is assigned while holding this task's monitor, so a execution that completes and reschedules
+   * this task (retry) before the assignment will not have its newer timeout overwritten by this one.
+   * @param delayNanos the delay.
+   */
+  final synchronized void schedule(final long delayNanos) {
+    this.exec = scheduler.schedule(this, delayNanos);
   }
 
 
+  /**
+   * Run this task, a zero delay retry is submitted for execution when this execution is finished,
+   * submitting it earlier could make it a no-op, since this task would still be running.
+   */
+  @Override
+  public final void run() {
+    super.run();
+    synchronized (this) {
+      if (retryNow) {
+        retryNow = false;
+        if (isDone()) {
+          return;
+        }
+        try {
+          this.exec = scheduler.execute(this);
+        } catch (RejectedExecutionException ex) {
+          rejected(ex);
+        }
+      }
+    }
+  }
+
   @Override
   public final boolean cancel(final boolean mayInterruptIfRunning) {
-    DelayedTask<RetryFutureTask<?>> e = exec;
+    HashedWheelTimer.Timeout e = exec;
     if (e != null) {
-      delayedTasks.remove(e);
+      e.cancel();
     }
     return super.cancel(mayInterruptIfRunning);
   }
@@ -100,6 +129,50 @@ class RetryFutureTask<T> extends FutureTask<T> {
   }
 
 
+  /**
+   * Schedule the retry of this task. When the retry cannot be scheduled (the timer is closed), this task is completed
+   * with the last failure (or with the rejection if the last execution returned a value).
+   * Zero delay retries are executed without the timer, after the current execution finishes.
+   * @param delayNanos the retry delay.
+   * @return true if the retry is scheduled, false if this task is completed.
+   */
+  private boolean scheduleRetry(final long delayNanos) {
+    if (delayNanos <= 0) {
+      this.exec = null;
+      this.retryNow = true;
+      return true;
+    }
+    try {
+      this.exec = scheduler.schedule(this, delayNanos);
+      return true;
+    } catch (RejectedExecutionException ex) {
+      rejected(ex);
+      return false;
+    }
+  }
+
+  /**
+   * The delayed execution of this task was rejected by the execution service,
+   * complete this task with the last failure (or with the rejection if the last execution returned a value).
+   */
+  final synchronized void executionRejected(final RejectedExecutionException ex) {
+    if (!isDone()) {
+      rejected(ex);
+    }
+  }
+
+  private void rejected(final RejectedExecutionException ex) {
+    this.exec = null;
+    Throwable failure;
+    if (previousResult != null && previousResult.isLeft()) {
+      failure = previousResult.getLeft();
+      Throwables.suppressLimited(failure, ex);
+    } else {
+      failure = ex;
+    }
+    super.setException(failure);
+  }
+
   @Override
   protected synchronized boolean setException(final Throwable t) {
     if (this.isCancelled()) {
@@ -109,7 +182,6 @@ class RetryFutureTask<T> extends FutureTask<T> {
     final RetryDecision.Type decisionType = decision.getDecisionType();
     switch (decisionType) {
       case Retry:
-        onRetry.run();
         final long delayNanos = decision.getDelayNanos();
         this.setCallable((Callable<T>) decision.getNewCallable());
         Throwable at = t;
@@ -117,10 +189,7 @@ class RetryFutureTask<T> extends FutureTask<T> {
           Throwables.suppressLimited(at, previousResult.getLeft());
         }
         previousResult = Either.left(at);
-        DelayedTask<RetryFutureTask<?>> delayedTask = new DelayedTask<>(this, delayNanos);
-        this.exec = delayedTask;
-        delayedTasks.add(delayedTask);
-        return false;
+        return !scheduleRetry(delayNanos);
       case Abort:
         this.exec = null;
         Either<Throwable, T> newRes = decision.getResult();
@@ -153,14 +222,10 @@ class RetryFutureTask<T> extends FutureTask<T> {
     final RetryDecision.Type decisionType = decision.getDecisionType();
     switch (decisionType) {
       case Retry:
-        onRetry.run();
         final long delayNanos = decision.getDelayNanos();
         this.setCallable((Callable<T>) decision.getNewCallable());
-        DelayedTask<RetryFutureTask<?>> delayedTask = new DelayedTask<>(this, delayNanos);
-        this.exec = delayedTask;
-        delayedTasks.add(delayedTask);
         this.previousResult = Either.right(v);
-        return false;
+        return !scheduleRetry(delayNanos);
       case Abort:
         this.exec = null;
         Either<Throwable, T> newRes = decision.getResult();
@@ -0,0 +1,63 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.failsafe.concurrent;
+
+import javax.annotation.Nullable;
+import org.spf4j.concurrent.HashedWheelTimer;
+
+/**
+ * Schedules the delayed executions (retries and hedges) of retry tasks.
+ *
+ * @author Zoltan Farkas
+ */
+@FunctionalInterface
+interface RetryScheduler {
+
+  /**
+   * Schedule the execution of a task.
+   * @param task the task to execute.
+   * @param delayNanos the delay.
+   * @return the timeout that can be used to cancel the scheduled execution.
+   */
+  HashedWheelTimer.Timeout schedule(RetryFutureTask<?> task, long delayNanos);
+
+  /**
+   * Execute a task without delay (zero delay retries).
+   * @param task the task to execute.
+   * @return the timeout that can be used to cancel the execution, null if the execution cannot be cancelled.
+   */
+  @Nullable
+  default HashedWheelTimer.Timeout execute(final RetryFutureTask<?> task) {
+    return schedule(task, 0);
+  }
+
+}
@@ -34,6 +34,7 @@ package org.spf4j.perf;
 import java.io.Closeable;
 import java.io.IOException;
 import javax.annotation.Nullable;
+import org.spf4j.base.Throwables;
 
 /**
  * A measurement store.
@@ -64,6 +65,35 @@ public interface MeasurementStore extends Closeable {
   void saveMeasurements(long tableId, long timeStampMillis, long... measurements)
           throws IOException;
 
+  /**
+   * Save a batch of measurements, the default implementation saves them one by one.
+   * Stores that can write a batch cheaper than its rows individually (one lock, one network round trip...)
+   * should override this.
+   *
+   * @param tableIds - the table IDs to store measurements for.
+   * @param timeStampsMillis - the timestamps of the measurements (milliseconds since Jan 1 1970 UTC)
+   * @param measurements - the measurements to persist.
+   * @param length - the number of rows in the batch, the arrays can be larger.
+   * @throws IOException - IO issues, a batch that failed might have been partially written.
+   */
+  default void saveMeasurements(final long[] tableIds, final long[] timeStampsMillis, final long[][] measurements,
+          final int length) throws IOException {
+    IOException ex = null;
+    for (int i = 0; i < length; i++) {
+      try {
+        saveMeasurements(tableIds[i], timeStampsMillis[i], measurements[i]);
+      } catch (IOException e) {
+        if (ex != null) {
+          Throwables.suppressLimited(e, ex);
+        }
+        ex = e;
+      }
+    }
+    if (ex != null) {
+      throw ex;
+    }
+  }
+
   /**
    * flush all data that might be buffered by this store.
    *
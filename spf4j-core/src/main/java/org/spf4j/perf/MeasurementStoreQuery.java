@@ -90,6 +90,20 @@ public interface MeasurementStoreQuery {
             observations, measurement);
   }
 
+  /**
+   * Aggregated observations, implementations can scan and aggregate the data in parallel.
+   *
+   * Unlike {@link #getAggregatedObservations(Schema, Instant, Instant, int, TimeUnit)}, where a aggregation bucket
+   * starts with the first observation after the previous bucket, implementations that aggregate in parallel align
+   * the buckets to the aggregation interval (epoch based), so the result is not necessarily the same.
+   * The default implementation is {@link #getAggregatedObservations(Schema, Instant, Instant, int, TimeUnit)}.
+   */
+  default AvroCloseableIterable<Observation> getParallelAggregatedObservations(final Schema measurement,
+          @Nullable final Instant from, @Nullable final Instant to, final int aggFreq, final TimeUnit tu)
+          throws IOException {
+    return getAggregatedObservations(measurement, from, to, aggFreq, tu);
+  }
+
   /**
    * Query measurement data.
    * @param measurement
@@ -0,0 +1,257 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.perf.impl;
+
+import com.google.common.annotations.VisibleForTesting;
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+import org.spf4j.perf.MeasurementAccumulator;
+import org.spf4j.perf.MeasurementRecorder;
+
+/**
+ * Accumulator cells (LongAdder style), a measurement is recorded into the cell selected by the
+ * recording thread id. Unlike thread local accumulators, there is no per thread state that needs to be tracked,
+ * folded and reclaimed when threads die, the memory footprint depends only on the number of cells.
+ *
+ * Like LongAdder, there is a single cell initially, the number of cells is doubled (up to maxCells) when all
+ * cells are contended. When the cell selected by the thread id is contended (another thread records into it),
+ * the next cells are probed, and the measurement is recorded into the first uncontended cell.
+ * A thread blocks only when all cells are busy and the max number of cells has been reached.
+ *
+ * The cell lock is the only lock acquired when recording, the measurements are buffered in the cell,
+ * and are recorded into the cell accumulator in bulk, holding the accumulator monitor once per buffer.
+ *
+ * @author Zoltan Farkas
+ */
+@ThreadSafe
+final class AccumulatorCells implements MeasurementRecorder {
+
+  /** default max nr of cells, 2 x the nr of processors rounded up to a power of 2. */
+  static final int DEFAULT_NR_CELLS = Integer.getInteger("spf4j.perf.recorderCells",
+          Integer.highestOneBit(Math.max(1, org.spf4j.base.Runtime.NR_PROCESSORS * 2 - 1)) << 1);
+
+  private static final int CELL_BUFFER_SIZE = 32;
+
+  private final MeasurementAccumulator template;
+
+  private final int maxCells;
+
+  private volatile Cell[] cells;
+
+  AccumulatorCells(final MeasurementAccumulator template, final int maxCells) {
+    if (maxCells <= 0 || Integer.bitCount(maxCells) != 1) {
+      throw new IllegalArgumentException("Number of cells must be a power of 2, not " + maxCells);
+    }
+    this.template = template;
+    this.maxCells = maxCells;
+    this.cells = new Cell[] {new Cell(template.createClone())};
+  }
+
+  @Override
+  public void record(final long measurement) {
+    Cell cell = lockCell();
+    try {
+      cell.record(measurement);
+    } finally {
+      cell.lock.unlock();
+    }
+  }
+
+  @Override
+  public void recordAt(final long timestampMillis, final long measurement) {
+    Cell cell = lockCell();
+    try {
+      cell.recordAt(timestampMillis, measurement);
+    } finally {
+      cell.lock.unlock();
+    }
+  }
+
+  /**
+   * Lock a cell to record into, starting with the cell selected by the current thread id, and probing the next
+   * cells when contended. If all cells are contended, the number of cells is doubled, if the max number of cells
+   * has been reached, waits for the cell selected by the thread id.
+   * @return the locked cell.
+   */
+  private Cell lockCell() {
+    int h = cellIdx(Thread.currentThread().getId());
+    while (true) {
+      Cell[] cs = cells;
+      int mask = cs.length - 1;
+      int home = h & mask;
+      for (int i = 0; i < cs.length; i++) {
+        Cell cell = cs[(home + i) & mask];
+        if (cell.lock.tryLock()) {
+          return cell;
+        }
+      }
+      if (cs.length >= maxCells) {
+        Cell cell = cs[home];
+        cell.lock.lock();
+        return cell;
+      }
+      grow(cs);
+    }
+  }
+
+  private synchronized void grow(final Cell[] current) {
+    if (cells == current) {
+      Cell[] newCells = Arrays.copyOf(current, current.length << 1);
+      for (int i = current.length; i < newCells.length; i++) {
+        newCells[i] = new Cell(template.createClone());
+      }
+      cells = newCells;
+    }
+  }
+
+  private static int cellIdx(final long threadId) {
+    long h = threadId * 0x9E3779B97F4A7C15L;
+    return (int) (h ^ (h >>> 32));
+  }
+
+  /**
+   * @return the current number of cells.
+   */
+  int getNrCells() {
+    return cells.length;
+  }
+
+  @VisibleForTesting
+  ReentrantLock getCellLock(final int idx) {
+    return cells[idx].lock;
+  }
+
+  /**
+   * @return the aggregate of all cells.
+   */
+  MeasurementAccumulator get() {
+    MeasurementAccumulator result = null;
+    for (Cell cell : cells) {
+      MeasurementAccumulator measurements;
+      cell.lock.lock();
+      try {
+        cell.flush();
+        measurements = cell.accumulator.createClone();
+      } finally {
+        cell.lock.unlock();
+      }
+      if (result == null) {
+        result = measurements;
+      } else {
+        result = result.aggregate(measurements);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * @return the aggregate of all cells prior to reset, or null if there are no measurements.
+   */
+  @Nullable
+  MeasurementAccumulator reset() {
+    MeasurementAccumulator result = null;
+    for (Cell cell : cells) {
+      MeasurementAccumulator measurements;
+      cell.lock.lock();
+      try {
+        cell.flush();
+        measurements = cell.accumulator.reset();
+      } finally {
+        cell.lock.unlock();
+      }
+      if (measurements != null) {
+        if (result == null) {
+          result = measurements;
+        } else {
+          result = result.aggregate(measurements);
+        }
+      }
+    }
+    return result;
+  }
+
+  @Override
+  public String toString() {
+    return "AccumulatorCells{" + "cells=" + cells.length + ", maxCells=" + maxCells + ", template=" + template + '}';
+  }
+
+  /**
+   * A accumulator cell, the buffer is guarded by the cell lock.
+   */
+  private static final class Cell {
+
+    private final ReentrantLock lock;
+
+    private final MeasurementAccumulator accumulator;
+
+    private final long[] buffer;
+
+    private int size;
+
+    Cell(final MeasurementAccumulator accumulator) {
+      this.lock = new ReentrantLock();
+      this.accumulator = accumulator;
+      this.buffer = new long[CELL_BUFFER_SIZE];
+      this.size = 0;
+    }
+
+    void record(final long measurement) {
+      buffer[size++] = measurement;
+      if (size >= buffer.length) {
+        flush();
+      }
+    }
+
+    void recordAt(final long timestampMillis, final long measurement) {
+      flush();
+      accumulator.recordAt(timestampMillis, measurement);
+    }
+
+    @SuppressFBWarnings("NOS_NON_OWNED_SYNCHRONIZATION")
+    void flush() {
+      if (size > 0) {
+        // accumulators synchronize on themselves, the nested record invocations re-enter the held monitor.
+        synchronized (accumulator) {
+          for (int i = 0; i < size; i++) {
+            accumulator.record(buffer[i]);
+          }
+        }
+        size = 0;
+      }
+    }
+
+  }
+
+}
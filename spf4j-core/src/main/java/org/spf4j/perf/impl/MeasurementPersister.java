@@ -0,0 +1,346 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.perf.impl;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import gnu.trove.map.TObjectLongMap;
+import gnu.trove.map.hash.TObjectLongHashMap;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.function.Supplier;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.CompositeDataSupport;
+import javax.management.openmbean.CompositeType;
+import javax.management.openmbean.OpenDataException;
+import javax.management.openmbean.OpenType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.spf4j.base.AbstractRunnable;
+import org.spf4j.concurrent.DefaultScheduler;
+import org.spf4j.io.Csv;
+import org.spf4j.jmx.DynamicMBeanBuilder;
+import org.spf4j.jmx.GenericExportedValue;
+import org.spf4j.jmx.Registry;
+import org.spf4j.perf.MeasurementAccumulator;
+import org.spf4j.perf.MeasurementStore;
+import org.spf4j.perf.MeasurementsInfo;
+
+/**
+ * The scheduled persistence, shutdown hook and JMX export logic shared by the scalable and striped
+ * recorders (sources). A persister is started at the end of the recorder construction, and it saves the
+ * measurements accumulated since the previous run every sampleTimeMillis, and once more on close.
+ *
+ * @author Zoltan Farkas
+ */
+abstract class MeasurementPersister extends AbstractRunnable {
+
+  private static final Logger LOG = LoggerFactory.getLogger(MeasurementPersister.class);
+
+  private static final String JMX_DOMAIN = "org.spf4j.perf.recorders";
+
+  private final MeasurementsInfo info;
+
+  private final int sampleTimeMillis;
+
+  private volatile long lastRun = 0;
+
+  @GuardedBy("this")
+  @Nullable
+  private ScheduledFuture<?> samplingFuture;
+
+  @GuardedBy("this")
+  @Nullable
+  private Runnable shutdownHook;
+
+  MeasurementPersister(final MeasurementsInfo info, final int sampleTimeMillis) {
+    super(true);
+    if (sampleTimeMillis < 1000) {
+      throw new IllegalArgumentException("sample time needs to be at least 1000 and not " + sampleTimeMillis);
+    }
+    this.info = info;
+    this.sampleTimeMillis = sampleTimeMillis;
+  }
+
+  /**
+   * Save the measurements accumulated since the previous invocation.
+   * @param timeMillis the measurements timestamp.
+   */
+  abstract void save(long timeMillis) throws IOException;
+
+  final int getSampleTimeMillis() {
+    return sampleTimeMillis;
+  }
+
+  /**
+   * Start the periodic persistence, to be invoked once, after the recorder is fully constructed.
+   * @param closeOnShutdown close (and persist the last measurements) at shutdown.
+   */
+  final synchronized void start(final boolean closeOnShutdown) {
+    samplingFuture = DefaultScheduler.scheduleAllignedAtFixedRateMillis(this, sampleTimeMillis);
+    if (closeOnShutdown) {
+      shutdownHook = closeOnShutdown();
+    }
+  }
+
+  /**
+   * Queue a shutdown hook that closes this persister.
+   * @return the queued hook.
+   */
+  final Runnable closeOnShutdown() {
+    final AbstractRunnable runnable = new AbstractRunnable(true) {
+
+      @Override
+      public void doRun() {
+        close();
+      }
+    };
+    org.spf4j.base.Runtime.queueHook(0, runnable);
+    return runnable;
+  }
+
+  @Override
+  public final void doRun() throws IOException {
+    persist(true);
+  }
+
+  final void persist(final boolean warn) throws IOException {
+    long currentTime = System.currentTimeMillis();
+    if (currentTime > lastRun) {
+      lastRun = currentTime;
+      save(currentTime);
+    } else if (warn) {
+      LOG.warn("Last measurement recording for {} was at {} current run is {}, something is wrong",
+              info, lastRun, currentTime);
+    }
+  }
+
+  /**
+   * Stop the periodic persistence, persist the last measurements and unregister the recorder mbean.
+   */
+  @SuppressFBWarnings("EXS_EXCEPTION_SOFTENING_NO_CHECKED")
+  final synchronized void close() {
+    if (samplingFuture != null && !samplingFuture.isCancelled()) {
+      if (shutdownHook != null) {
+        org.spf4j.base.Runtime.removeQueuedShutdownHook(shutdownHook);
+      }
+      samplingFuture.cancel(false);
+      try {
+        persist(false);
+      } catch (IOException ex) {
+        throw new UncheckedIOException(ex);
+      }
+      Registry.unregister(JMX_DOMAIN, info.getMeasuredEntity().toString());
+    }
+  }
+
+  /**
+   * Register the JMX exports of a recorder (source), with a "measurements" composite attribute.
+   */
+  @SuppressWarnings("unchecked")
+  static void registerJmx(final Object recorder, final MeasurementsInfo info,
+          final Supplier<CompositeData> measurements, final CompositeType measurementsType) {
+    new DynamicMBeanBuilder().withJmxExportObject(recorder)
+            .withAttribute(new GenericExportedValue<>("measurements", info.getDescription(),
+                    measurements, null, measurementsType))
+            .register(JMX_DOMAIN, info.getMeasuredEntity().toString());
+  }
+
+  /**
+   * @return the measurements of a recorder as csv: measurement names, units and values rows.
+   */
+  static String toCsv(final MeasurementsInfo info, @Nullable final long[] values) {
+    StringWriter sw = new StringWriter(128);
+    try {
+      Csv.writeCsvRow(sw, (Object[]) info.getMeasurementNames());
+      Csv.writeCsvRow(sw, (Object[]) info.getMeasurementUnits());
+      if (values != null) {
+        Csv.writeCsvRow(sw, values);
+      }
+    } catch (IOException ex) {
+      throw new UncheckedIOException(ex);
+    }
+    return sw.toString();
+  }
+
+  /**
+   * @return the measurements of a recorder source as csv: a row per measured entity.
+   */
+  static String toCsv(final MeasurementsInfo info, final Map<Object, MeasurementAccumulator> entitiesMeasurements) {
+    StringWriter sw = new StringWriter(128);
+    try {
+      Csv.writeCsvRow2(sw, "Measured", (Object[]) info.getMeasurementNames());
+      Csv.writeCsvRow2(sw, "string", (Object[]) info.getMeasurementUnits());
+      for (Map.Entry<Object, MeasurementAccumulator> entry : entitiesMeasurements.entrySet()) {
+        Csv.writeCsvElement(entry.getKey().toString(), sw);
+        sw.write(',');
+        final long[] measurements = entry.getValue().get();
+        if (measurements != null) {
+          Csv.writeCsvRow(sw, measurements);
+        }
+      }
+    } catch (IOException ex) {
+      throw new UncheckedIOException(ex);
+    }
+    return sw.toString();
+  }
+
+  /**
+   * @return the measurements of a recorder source as composite data, with an item per measured entity.
+   */
+  static CompositeDataSupport toCompositeData(final MeasurementsInfo info,
+          final Map<Object, MeasurementAccumulator> entitiesMeasurements) {
+    int nrStuff = entitiesMeasurements.size();
+    String[] names = new String[nrStuff];
+    String[] descriptions = new String[nrStuff];
+    OpenType<?>[] types = new OpenType[nrStuff];
+    Object[] values = new Object[nrStuff];
+    int i = 0;
+    for (Map.Entry<Object, MeasurementAccumulator> entry : entitiesMeasurements.entrySet()) {
+      MeasurementAccumulator acc = entry.getValue();
+      MeasurementsInfo eInfo = acc.getInfo();
+      String cattrName = eInfo.getMeasuredEntity().toString();
+      names[i] = cattrName;
+      String cattrDesc = eInfo.getDescription();
+      if (cattrDesc.isEmpty()) {
+        cattrDesc = cattrName;
+      }
+      descriptions[i] = cattrDesc;
+      types[i] = eInfo.toCompositeType();
+      values[i] = acc.getCompositeData();
+      i++;
+    }
+    try {
+      String name = info.getMeasuredEntity().toString();
+      String description = info.getDescription();
+      if (description.isEmpty()) {
+        description = name;
+      }
+      CompositeType setType = new CompositeType(name, description, names, descriptions, types);
+      return new CompositeDataSupport(setType, names, values);
+    } catch (OpenDataException ex) {
+      throw new IllegalArgumentException("Not composite data compatible " + info, ex);
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "MeasurementPersister{" + "info=" + info + ", sampleTimeMillis=" + sampleTimeMillis
+            + ", lastRun=" + lastRun + '}';
+  }
+
+  /**
+   * Persister of a recorder, the measurements are saved into a single table.
+   */
+  static final class Single extends MeasurementPersister {
+
+    private final MeasurementStore measurementStore;
+
+    private final long tableId;
+
+    private final Supplier<long[]> measurements;
+
+    /**
+     * @param measurements supplies the measurements accumulated since the previous call, null if none.
+     */
+    Single(final MeasurementsInfo info, final int sampleTimeMillis, final MeasurementStore measurementStore,
+            final Supplier<long[]> measurements) {
+      super(info, sampleTimeMillis);
+      this.measurementStore = measurementStore;
+      try {
+        this.tableId = measurementStore.alocateMeasurements(info, sampleTimeMillis);
+      } catch (IOException ex) {
+        throw new UncheckedIOException(ex);
+      }
+      this.measurements = measurements;
+    }
+
+    @Override
+    void save(final long timeMillis) throws IOException {
+      final long[] data = measurements.get();
+      if (data != null) {
+        measurementStore.saveMeasurements(tableId, timeMillis, data);
+      }
+    }
+
+  }
+
+  /**
+   * Persister of a recorder source, the measurements of every measured entity are saved into their own table,
+   * tables are allocated when an entity is first persisted.
+   */
+  static final class Entities extends MeasurementPersister {
+
+    private final MeasurementStore database;
+
+    private final Supplier<Map<Object, MeasurementAccumulator>> measurements;
+
+    @GuardedBy("tableIds")
+    private final TObjectLongMap<MeasurementsInfo> tableIds;
+
+    /**
+     * @param measurements supplies the entities measurements accumulated since the previous call.
+     */
+    Entities(final MeasurementsInfo info, final int sampleTimeMillis, final MeasurementStore database,
+            final Supplier<Map<Object, MeasurementAccumulator>> measurements) {
+      super(info, sampleTimeMillis);
+      this.database = database;
+      this.measurements = measurements;
+      this.tableIds = new TObjectLongHashMap<>();
+    }
+
+    @Override
+    void save(final long timeMillis) throws IOException {
+      for (MeasurementAccumulator m : measurements.get().values()) {
+        final MeasurementsInfo minfo = m.getInfo();
+        long tableId;
+        synchronized (tableIds) {
+          tableId = tableIds.get(minfo);
+          if (tableId == 0) {
+            tableId = database.alocateMeasurements(minfo, getSampleTimeMillis());
+            tableIds.put(minfo, tableId);
+          }
+        }
+        final long[] data = m.getThenReset();
+        if (data != null) {
+          database.saveMeasurements(tableId, timeMillis, data);
+        }
+      }
+    }
+
+  }
+
+}
@@ -34,7 +34,9 @@ package org.spf4j.perf.impl;
 import org.spf4j.perf.impl.acc.DirectStoreMultiAccumulator;
 import org.spf4j.perf.impl.acc.DirectStoreAccumulator;
 import org.spf4j.perf.impl.acc.QuantizedAccumulator;
+import org.spf4j.perf.impl.acc.StripedQuantizedAccumulator;
 import org.spf4j.perf.impl.acc.AddAndCountAccumulator;
+import org.spf4j.perf.impl.acc.LogLinearHistogramAccumulator;
 import org.spf4j.perf.impl.acc.MinMaxAvgAccumulator;
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 import org.spf4j.perf.impl.ms.StoreType;
@@ -51,17 +53,21 @@ import javax.annotation.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.spf4j.base.CharSequences;
+import org.spf4j.concurrent.DefaultExecutor;
 import org.spf4j.io.Csv;
 import org.spf4j.io.csv.CsvParseException;
 import org.spf4j.perf.CloseableMeasurementRecorder;
 import org.spf4j.perf.CloseableMeasurementRecorderSource;
 import org.spf4j.perf.MeasurementRecorder;
 import org.spf4j.perf.MeasurementRecorderSource;
+import org.spf4j.perf.MeasurementAccumulator;
 import org.spf4j.perf.MeasurementStore;
 import org.spf4j.perf.MultiMeasurementRecorder;
+import org.spf4j.perf.impl.ms.AsyncMeasurementStore;
 import org.spf4j.perf.impl.ms.Flusher;
 import org.spf4j.perf.impl.ms.MultiStore;
 import org.spf4j.perf.impl.ms.tsdb.AvroMeasurementStore;
+import org.spf4j.jmx.Registry;
 import org.spf4j.recyclable.ObjectCreationException;
 import org.spf4j.tsdb2.avro.Aggregation;
 import org.spf4j.tsdb2.avro.MeasurementType;
@@ -74,6 +80,18 @@ public final class RecorderFactory {
 
   private static final Logger LOG = LoggerFactory.getLogger(RecorderFactory.class);
 
+  /**
+   * the thread local accumulators of the scalable quantized recorders are lock free when this is true.
+   * (see StripedQuantizedAccumulator)
+   */
+  private static final boolean LOCK_FREE_QUANTIZED = Boolean.getBoolean("spf4j.perf.lockFreeQuantizedAccumulators");
+
+  /**
+   * the scalable recorders record into a bounded number of accumulator cells instead of thread local accumulators
+   * when this is true. (see StripedMeasurementRecorder)
+   */
+  private static final boolean STRIPED_RECORDERS = Boolean.getBoolean("spf4j.perf.stripedRecorders");
+
   public static final MeasurementStore MEASUREMENT_STORE;
 
   static {
@@ -84,6 +102,10 @@ public final class RecorderFactory {
       LOG.error("Cannot initialize measurement store, installing NOP store", ex);
       mStore = new NopMeasurementStore();
     }
+    if (!(mStore instanceof NopMeasurementStore) && Boolean.getBoolean("spf4j.perf.ms.async")) {
+      mStore = new AsyncMeasurementStore(mStore);
+      Registry.exportIfNeeded(AsyncMeasurementStore.class.getName(), mStore.toString(), mStore);
+    }
     if (!(mStore instanceof NopMeasurementStore) && Boolean.getBoolean("spf4j.perf.ms.periodicFlush")) {
       Flusher.flushEvery(Integer.getInteger("spf4j.perf.ms.flushIntervalMillis", 60000), mStore);
     }
@@ -93,6 +115,49 @@ public final class RecorderFactory {
   private RecorderFactory() {
   }
 
+  private static MeasurementAccumulator quantizedAccumulator(final Object measuredEntity,
+          final String description, final String unitOfMeasurement, final int factor, final int lowerMagnitude,
+          final int higherMagnitude, final int quantasPerMagnitude) {
+    if (LOCK_FREE_QUANTIZED) {
+      // the scalable recorders use an accumulator clone per thread, a single stripe is enough.
+      return new StripedQuantizedAccumulator(measuredEntity, description, unitOfMeasurement,
+              factor, lowerMagnitude, higherMagnitude, quantasPerMagnitude, 1);
+    } else {
+      return new QuantizedAccumulator(measuredEntity, description, unitOfMeasurement,
+              factor, lowerMagnitude, higherMagnitude, quantasPerMagnitude);
+    }
+  }
+
+  private static CloseableMeasurementRecorder scalableRecorder(final MeasurementAccumulator accumulator,
+          final int sampleTimeMillis, final boolean closeOnShutdown) {
+    if (STRIPED_RECORDERS) {
+      StripedMeasurementRecorder mr = new StripedMeasurementRecorder(accumulator, sampleTimeMillis,
+              MEASUREMENT_STORE, closeOnShutdown);
+      mr.registerJmx();
+      return mr;
+    } else {
+      ScalableMeasurementRecorder mr = new ScalableMeasurementRecorder(accumulator, sampleTimeMillis,
+              MEASUREMENT_STORE, closeOnShutdown);
+      mr.registerJmx();
+      return mr;
+    }
+  }
+
+  private static CloseableMeasurementRecorderSource scalableRecorderSource(final MeasurementAccumulator accumulator,
+          final int sampleTimeMillis, final boolean closeOnShutdown) {
+    if (STRIPED_RECORDERS) {
+      StripedMeasurementRecorderSource mrs = new StripedMeasurementRecorderSource(accumulator, sampleTimeMillis,
+              MEASUREMENT_STORE, closeOnShutdown);
+      mrs.registerJmx();
+      return mrs;
+    } else {
+      ScalableMeasurementRecorderSource mrs = new ScalableMeasurementRecorderSource(accumulator, sampleTimeMillis,
+              MEASUREMENT_STORE, closeOnShutdown);
+      mrs.registerJmx();
+      return mrs;
+    }
+  }
+
   public static MeasurementStore getMeasurementStore() {
     return MEASUREMENT_STORE;
   }
@@ -100,6 +165,7 @@ public final class RecorderFactory {
   /**
    * Configuration is a coma separated list of stores:
    * TSDB@/path/to/file.tsdb,TSDB_TXT@/path/to/file.tsdbtxt,GRAPHITE_UDP@1.1.1.1:8080,GRAPHITE_TCP@1.1.1.1:8080
+   * multiple stores are written to in parallel when spf4j.perf.ms.parallelFanOut=true.
    *
    * @param configuration
    * @return a measurement store.
@@ -132,7 +198,11 @@ public final class RecorderFactory {
         mstores[i] = StoreType.fromString(config);
         i++;
       }
-      return new MultiStore(mstores);
+      if (Boolean.getBoolean("spf4j.perf.ms.parallelFanOut")) {
+        return new MultiStore(DefaultExecutor.INSTANCE, mstores);
+      } else {
+        return new MultiStore(mstores);
+      }
     }
   }
 
@@ -168,97 +238,97 @@ public final class RecorderFactory {
           final Object forWhat, final String unitOfMeasurement, final int sampleTimeMillis,
           final int factor, final int lowerMagnitude,
           final int higherMagnitude, final int quantasPerMagnitude) {
-    ScalableMeasurementRecorder mr = new ScalableMeasurementRecorder(new QuantizedAccumulator(forWhat, "",
+    return scalableRecorder(quantizedAccumulator(forWhat, "",
             unitOfMeasurement, factor, lowerMagnitude, higherMagnitude,
-            quantasPerMagnitude), sampleTimeMillis, MEASUREMENT_STORE, true);
-    mr.registerJmx();
-    return mr;
+            quantasPerMagnitude), sampleTimeMillis, true);
   }
 
   public static CloseableMeasurementRecorder createScalableQuantizedRecorder2(
           final Object forWhat, final String unitOfMeasurement,  final int sampleTimeMillis,
           final int factor, final int lowerMagnitude, final int higherMagnitude,
           final int quantasPerMagnitude) {
-    ScalableMeasurementRecorder mr = new ScalableMeasurementRecorder(new QuantizedAccumulator(forWhat, "",
+    return scalableRecorder(quantizedAccumulator(forWhat, "",
             unitOfMeasurement, factor, lowerMagnitude, higherMagnitude,
-            quantasPerMagnitude), sampleTimeMillis, MEASUREMENT_STORE, false);
-    mr.registerJmx();
-    return mr;
+            quantasPerMagnitude), sampleTimeMillis, false);
   }
 
   public static MeasurementRecorder createScalableCountingRecorder(
           final Object forWhat, final String unitOfMeasurement, final int sampleTimeMillis) {
-    ScalableMeasurementRecorder mr = new ScalableMeasurementRecorder(new AddAndCountAccumulator(forWhat, "",
-            unitOfMeasurement), sampleTimeMillis, MEASUREMENT_STORE, true);
-    mr.registerJmx();
-    return mr;
+    return scalableRecorder(new AddAndCountAccumulator(forWhat, "",
+            unitOfMeasurement), sampleTimeMillis, true);
   }
 
   public static MeasurementRecorder createScalableMinMaxAvgRecorder(
           final Object forWhat, final String unitOfMeasurement, final int sampleTimeMillis) {
-    ScalableMeasurementRecorder mr = new ScalableMeasurementRecorder(new MinMaxAvgAccumulator(forWhat, "",
-            unitOfMeasurement), sampleTimeMillis, MEASUREMENT_STORE, true);
-    mr.registerJmx();
-    return mr;
+    return scalableRecorder(new MinMaxAvgAccumulator(forWhat, "",
+            unitOfMeasurement), sampleTimeMillis, true);
   }
 
   public static CloseableMeasurementRecorder createScalableMinMaxAvgRecorder2(
           final Object forWhat, final String unitOfMeasurement, final int sampleTimeMillis) {
-    ScalableMeasurementRecorder mr = new ScalableMeasurementRecorder(new MinMaxAvgAccumulator(forWhat, "",
-            unitOfMeasurement), sampleTimeMillis, MEASUREMENT_STORE, false);
-    mr.registerJmx();
-    return mr;
+    return scalableRecorder(new MinMaxAvgAccumulator(forWhat, "",
+            unitOfMeasurement), sampleTimeMillis, false);
+  }
+
+  /**
+   * Create a scalable recorder that accumulates the measurements in a log-linear histogram, and exports
+   * count, total, min, max, p50, p90, p99 and p999 for every sampling interval.
+   *
+   * example : createScalableLogLinearRecorder("response time", "ms", 60000, 3600000, 2)
+   *
+   * @param forWhat an object identifying what is being measured, ex: "response time"
+   * @param unitOfMeasurement the unit of measurement of the measurements, ex "milliseconds"
+   * @param sampleTimeMillis the sampling (accumulating interval) ex: 60000 for minute level detail.
+   * @param highestTrackableValue the highest value tracked with bounded relative error. ex: 3600000
+   * @param significantDigits the precision of the percentiles, ex: 2 for a relative error of at most 1%.
+   * @return a measurement recorder.
+   */
+  public static MeasurementRecorder createScalableLogLinearRecorder(
+          final Object forWhat, final String unitOfMeasurement, final int sampleTimeMillis,
+          final long highestTrackableValue, final int significantDigits) {
+    return scalableRecorder(new LogLinearHistogramAccumulator(forWhat, "",
+            unitOfMeasurement, highestTrackableValue, significantDigits), sampleTimeMillis, true);
+  }
+
+  public static MeasurementRecorderSource createScalableLogLinearRecorderSource(
+          final Object forWhat, final String unitOfMeasurement, final int sampleTimeMillis,
+          final long highestTrackableValue, final int significantDigits) {
+    return scalableRecorderSource(new LogLinearHistogramAccumulator(forWhat, "",
+            unitOfMeasurement, highestTrackableValue, significantDigits), sampleTimeMillis, true);
   }
 
   public static MeasurementRecorderSource createScalableQuantizedRecorderSource(
           final Object forWhat, final String unitOfMeasurement, final int sampleTimeMillis,
           final int factor, final int lowerMagnitude,
           final int higherMagnitude, final int quantasPerMagnitude) {
-    ScalableMeasurementRecorderSource mrs = new ScalableMeasurementRecorderSource(
-            new QuantizedAccumulator(forWhat, "",
-                    unitOfMeasurement, factor, lowerMagnitude, higherMagnitude, quantasPerMagnitude),
-            sampleTimeMillis, MEASUREMENT_STORE, true);
-    mrs.registerJmx();
-    return mrs;
+    return scalableRecorderSource(quantizedAccumulator(forWhat, "",
+            unitOfMeasurement, factor, lowerMagnitude, higherMagnitude, quantasPerMagnitude), sampleTimeMillis, true);
   }
 
   public static CloseableMeasurementRecorderSource createScalableQuantizedRecorderSource2(final Object forWhat,
           final String unitOfMeasurement,  final int sampleTimeMillis,
           final int factor, final int lowerMagnitude, final int higherMagnitude,
           final int quantasPerMagnitude) {
-    ScalableMeasurementRecorderSource mrs = new ScalableMeasurementRecorderSource(
-            new QuantizedAccumulator(forWhat, "",
-                    unitOfMeasurement, factor, lowerMagnitude, higherMagnitude, quantasPerMagnitude),
-            sampleTimeMillis, MEASUREMENT_STORE, false);
-    mrs.registerJmx();
-    return mrs;
+    return scalableRecorderSource(quantizedAccumulator(forWhat, "",
+            unitOfMeasurement, factor, lowerMagnitude, higherMagnitude, quantasPerMagnitude), sampleTimeMillis, false);
   }
 
   public static MeasurementRecorderSource createScalableCountingRecorderSource(
           final Object forWhat, final String unitOfMeasurement, final int sampleTimeMillis) {
-    ScalableMeasurementRecorderSource mrs = new ScalableMeasurementRecorderSource(
-            new AddAndCountAccumulator(forWhat, "",
-                    unitOfMeasurement), sampleTimeMillis, MEASUREMENT_STORE, true);
-    mrs.registerJmx();
-    return mrs;
+    return scalableRecorderSource(new AddAndCountAccumulator(forWhat, "",
+            unitOfMeasurement), sampleTimeMillis, true);
   }
 
   public static CloseableMeasurementRecorderSource createScalableCountingRecorderSource2(
           final Object forWhat, final String unitOfMeasurement, final int sampleTimeMillis) {
-    ScalableMeasurementRecorderSource mrs = new ScalableMeasurementRecorderSource(
-            new AddAndCountAccumulator(forWhat, "",
-                    unitOfMeasurement), sampleTimeMillis, MEASUREMENT_STORE, false);
-    mrs.registerJmx();
-    return mrs;
+    return scalableRecorderSource(new AddAndCountAccumulator(forWhat, "",
+            unitOfMeasurement), sampleTimeMillis, false);
   }
 
   public static MeasurementRecorderSource createScalableMinMaxAvgRecorderSource(
           final Object forWhat, final String unitOfMeasurement, final int sampleTimeMillis) {
-    ScalableMeasurementRecorderSource mrs = new ScalableMeasurementRecorderSource(
-            new MinMaxAvgAccumulator(forWhat, "",
-                    unitOfMeasurement), sampleTimeMillis, MEASUREMENT_STORE, true);
-    mrs.registerJmx();
-    return mrs;
+    return scalableRecorderSource(new MinMaxAvgAccumulator(forWhat, "",
+            unitOfMeasurement), sampleTimeMillis, true);
   }
 
   public static MultiMeasurementRecorder createDirectRecorder(final Object measuredEntity, final String description,
@@ -33,26 +33,14 @@ package org.spf4j.perf.impl;
 
 import org.spf4j.perf.impl.acc.AbstractMeasurementAccumulator;
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
-import org.spf4j.base.AbstractRunnable;
-import org.spf4j.concurrent.DefaultScheduler;
 import org.spf4j.perf.MeasurementAccumulator;
 import org.spf4j.perf.MeasurementsInfo;
 import org.spf4j.perf.MeasurementStore;
-import java.io.IOException;
-import java.io.StringWriter;
-import java.io.UncheckedIOException;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
-import java.util.concurrent.ScheduledFuture;
 import javax.annotation.concurrent.ThreadSafe;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-import org.spf4j.io.Csv;
-import org.spf4j.jmx.GenericExportedValue;
 import org.spf4j.jmx.JmxExport;
-import org.spf4j.jmx.DynamicMBeanBuilder;
-import org.spf4j.jmx.Registry;
 import org.spf4j.perf.CloseableMeasurementRecorder;
 import org.spf4j.perf.JmxSupport;
 
@@ -66,20 +54,13 @@ import org.spf4j.perf.JmxSupport;
 public final class ScalableMeasurementRecorder extends AbstractMeasurementAccumulator
   implements CloseableMeasurementRecorder, JmxSupport {
 
-  private static final Logger LOG = LoggerFactory.getLogger(ScalableMeasurementRecorder.class);
-
   private final Map<Thread, MeasurementAccumulator> threadLocalRecorders;
   private final ThreadLocal<MeasurementAccumulator> threadLocalRecorder;
-  private final ScheduledFuture<?> samplingFuture;
   private final MeasurementAccumulator processorTemplate;
-  private final Persister persister;
-  private final Runnable shutdownHook;
+  private final MeasurementPersister persister;
 
   ScalableMeasurementRecorder(final MeasurementAccumulator processor, final int sampleTimeMillis,
           final MeasurementStore measurementStore, final boolean closeOnShutdown) {
-    if (sampleTimeMillis < 1000) {
-      throw new IllegalArgumentException("sample time needs to be at least 1000 and not " + sampleTimeMillis);
-    }
     threadLocalRecorders = new HashMap<>();
     processorTemplate = processor;
     threadLocalRecorder = new ThreadLocal<MeasurementAccumulator>() {
@@ -93,31 +74,13 @@ public final class ScalableMeasurementRecorder extends AbstractMeasurementAccumu
         return result;
       }
     };
-    final long tableId;
-    try {
-      tableId = measurementStore.alocateMeasurements(processor.getInfo(), sampleTimeMillis);
-    } catch (IOException ex) {
-      throw new UncheckedIOException(ex);
-    }
-    persister = new Persister(measurementStore, tableId, processor);
-    samplingFuture = DefaultScheduler.scheduleAllignedAtFixedRateMillis(persister, sampleTimeMillis);
-    if (closeOnShutdown) {
-      shutdownHook = closeOnShutdown();
-    } else {
-      shutdownHook = null;
-    }
+    persister = new MeasurementPersister.Single(processor.getInfo(), sampleTimeMillis, measurementStore,
+            this::getThenReset);
+    persister.start(closeOnShutdown);
   }
 
   public Runnable closeOnShutdown() {
-    final AbstractRunnable runnable = new AbstractRunnable(true) {
-
-      @Override
-      public void doRun() {
-        close();
-      }
-    };
-    org.spf4j.base.Runtime.queueHook(0, runnable);
-    return runnable;
+    return persister.closeOnShutdown();
   }
 
   @Override
@@ -143,19 +106,7 @@ public final class ScalableMeasurementRecorder extends AbstractMeasurementAccumu
 
   @JmxExport(description = "measurements as csv")
   public String getMeasurementsAsString() {
-    StringWriter sw = new StringWriter(128);
-    MeasurementsInfo info = getInfo();
-    try {
-      Csv.writeCsvRow(sw, (Object[]) info.getMeasurementNames());
-      Csv.writeCsvRow(sw, (Object[]) info.getMeasurementUnits());
-      final long[] values = get();
-      if (values != null) {
-        Csv.writeCsvRow(sw, values);
-      }
-    } catch (IOException ex) {
-      throw new UncheckedIOException(ex);
-    }
-    return sw.toString();
+    return MeasurementPersister.toCsv(getInfo(), get());
   }
 
   @JmxExport
@@ -173,32 +124,13 @@ public final class ScalableMeasurementRecorder extends AbstractMeasurementAccumu
     throw new UnsupportedOperationException();
   }
 
-  @SuppressWarnings("unchecked")
   public void registerJmx() {
-    MeasurementsInfo info = processorTemplate.getInfo();
-    new DynamicMBeanBuilder().withJmxExportObject(this)
-            .withAttribute(new GenericExportedValue<>("measurements", info.getDescription(),
-                    this::getCompositeData, null, getInfo().toCompositeType()))
-            .register("org.spf4j.perf.recorders", info.getMeasuredEntity().toString());
+    MeasurementsInfo info = getInfo();
+    MeasurementPersister.registerJmx(this, info, this::getCompositeData, info.toCompositeType());
   }
 
-  @SuppressFBWarnings("EXS_EXCEPTION_SOFTENING_NO_CHECKED")
   public void close() {
-    synchronized (persister) {
-      if (!samplingFuture.isCancelled()) {
-        if (shutdownHook != null) {
-          org.spf4j.base.Runtime.removeQueuedShutdownHook(shutdownHook);
-        }
-        samplingFuture.cancel(false);
-        try {
-          persister.persist(false);
-        } catch (IOException ex) {
-          throw new UncheckedIOException(ex);
-        }
-        Registry.unregister("org.spf4j.perf.recorders",
-                processorTemplate.getInfo().getMeasuredEntity().toString());
-      }
-    }
+    persister.close();
   }
 
   @Override
@@ -246,39 +178,4 @@ public final class ScalableMeasurementRecorder extends AbstractMeasurementAccumu
     return (result == null) ? null : result.get();
   }
 
-  private class Persister extends AbstractRunnable {
-
-    private final MeasurementStore measurementStore;
-    private final long tableId;
-    private final MeasurementAccumulator processor;
-    private volatile long lastRun = 0;
-
-    Persister(final MeasurementStore measurementStore,
-            final long tableId, final MeasurementAccumulator processor) {
-      super(true);
-      this.measurementStore = measurementStore;
-      this.tableId = tableId;
-      this.processor = processor;
-    }
-
-    @Override
-    public void doRun() throws IOException {
-      persist(true);
-    }
-
-    public void persist(final boolean warn) throws IOException {
-      long currentTime = System.currentTimeMillis();
-      if (currentTime > lastRun) {
-        lastRun = currentTime;
-        final long[] measurements = ScalableMeasurementRecorder.this.getThenReset();
-        if (measurements != null) {
-          measurementStore.saveMeasurements(tableId, currentTime, measurements);
-        }
-      } else if (warn) {
-        LOG.warn("Last measurement recording for {} was at {} current run is {}, something is wrong",
-                processor.getInfo(), lastRun, currentTime);
-      }
-    }
-  }
-
 }
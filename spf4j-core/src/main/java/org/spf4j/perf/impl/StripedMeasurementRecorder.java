@@ -0,0 +1,144 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.perf.impl;
+
+import javax.annotation.concurrent.ThreadSafe;
+import org.spf4j.jmx.JmxExport;
+import org.spf4j.perf.CloseableMeasurementRecorder;
+import org.spf4j.perf.JmxSupport;
+import org.spf4j.perf.MeasurementAccumulator;
+import org.spf4j.perf.MeasurementStore;
+import org.spf4j.perf.MeasurementsInfo;
+import org.spf4j.perf.impl.acc.AbstractMeasurementAccumulator;
+
+/**
+ * A scalable measurement recorder, that records into a bounded number of accumulator cells
+ * instead of thread local accumulators. (see {@link AccumulatorCells})
+ * Unlike {@link ScalableMeasurementRecorder}, the memory footprint and the flush cost do not depend on the number
+ * of threads that ever recorded, which makes it appropriate for thread pools that churn threads,
+ * and for a large number of short lived threads.
+ *
+ * @author Zoltan Farkas
+ */
+@ThreadSafe
+public final class StripedMeasurementRecorder extends AbstractMeasurementAccumulator
+  implements CloseableMeasurementRecorder, JmxSupport {
+
+  private final AccumulatorCells cells;
+  private final MeasurementAccumulator processorTemplate;
+  private final MeasurementPersister persister;
+
+  StripedMeasurementRecorder(final MeasurementAccumulator processor, final int sampleTimeMillis,
+          final MeasurementStore measurementStore, final boolean closeOnShutdown) {
+    this(processor, AccumulatorCells.DEFAULT_NR_CELLS, sampleTimeMillis, measurementStore, closeOnShutdown);
+  }
+
+  StripedMeasurementRecorder(final MeasurementAccumulator processor, final int maxCells, final int sampleTimeMillis,
+          final MeasurementStore measurementStore, final boolean closeOnShutdown) {
+    processorTemplate = processor;
+    cells = new AccumulatorCells(processor, maxCells);
+    persister = new MeasurementPersister.Single(processor.getInfo(), sampleTimeMillis, measurementStore,
+            this::getThenReset);
+    persister.start(closeOnShutdown);
+  }
+
+  @Override
+  public void record(final long measurement) {
+    cells.record(measurement);
+  }
+
+  @Override
+  public long[] get() {
+    return cells.get().get();
+  }
+
+  @Override
+  public long[] getThenReset() {
+    MeasurementAccumulator result = cells.reset();
+    return (result == null) ? null : result.get();
+  }
+
+  @JmxExport(description = "the current number of accumulator cells")
+  public int getNrCells() {
+    return cells.getNrCells();
+  }
+
+  @JmxExport(description = "measurements as csv")
+  public String getMeasurementsAsString() {
+    return MeasurementPersister.toCsv(getInfo(), get());
+  }
+
+  @JmxExport
+  public void clear() {
+    getThenReset();
+  }
+
+  @Override
+  public MeasurementAccumulator aggregate(final MeasurementAccumulator mSource) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public MeasurementAccumulator createClone() {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public MeasurementAccumulator createLike(final Object entity) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public MeasurementAccumulator reset() {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public MeasurementsInfo getInfo() {
+    return processorTemplate.getInfo();
+  }
+
+  public void registerJmx() {
+    MeasurementsInfo info = getInfo();
+    MeasurementPersister.registerJmx(this, info, this::getCompositeData, info.toCompositeType());
+  }
+
+  public void close() {
+    persister.close();
+  }
+
+  @Override
+  public String toString() {
+    return "StripedMeasurementRecorder{" + "cells=" + cells + ", processorTemplate=" + processorTemplate + '}';
+  }
+
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.perf.impl;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+import javax.management.openmbean.CompositeDataSupport;
+import org.spf4j.base.Pair;
+import org.spf4j.jmx.JmxExport;
+import org.spf4j.perf.CloseableMeasurementRecorderSource;
+import org.spf4j.perf.JmxSupport;
+import org.spf4j.perf.MeasurementAccumulator;
+import org.spf4j.perf.MeasurementRecorder;
+import org.spf4j.perf.MeasurementStore;
+import org.spf4j.perf.MeasurementsInfo;
+import org.spf4j.perf.MeasurementsSource;
+
+/**
+ * A scalable measurement recorder source, every measured entity records into accumulator cells
+ * instead of thread local accumulators, cells are added on contention, up to maxCells per entity.
+ * (see {@link AccumulatorCells}, {@link StripedMeasurementRecorder})
+ *
+ * @author Zoltan Farkas
+ */
+@ThreadSafe
+public final class StripedMeasurementRecorderSource implements
+        MeasurementsSource, CloseableMeasurementRecorderSource, JmxSupport {
+
+  private final ConcurrentMap<Object, AccumulatorCells> recorders;
+
+  private final MeasurementAccumulator processorTemplate;
+
+  private final int maxCells;
+
+  private final MeasurementPersister persister;
+
+  StripedMeasurementRecorderSource(final MeasurementAccumulator processor,
+          final int sampleTimeMillis, final MeasurementStore database, final boolean closeOnShutdown) {
+    this(processor, AccumulatorCells.DEFAULT_NR_CELLS, sampleTimeMillis, database, closeOnShutdown);
+  }
+
+  StripedMeasurementRecorderSource(final MeasurementAccumulator processor, final int maxCells,
+          final int sampleTimeMillis, final MeasurementStore database, final boolean closeOnShutdown) {
+    this.processorTemplate = processor;
+    this.maxCells = maxCells;
+    this.recorders = new ConcurrentHashMap<>();
+    persister = new MeasurementPersister.Entities(processor.getInfo(), sampleTimeMillis, database,
+            this::getEntitiesMeasurementsAndReset);
+    persister.start(closeOnShutdown);
+  }
+
+  @Override
+  public MeasurementRecorder getRecorder(final Object forWhat) {
+    AccumulatorCells result = recorders.get(forWhat);
+    if (result == null) {
+      result = recorders.computeIfAbsent(forWhat, (what) -> new AccumulatorCells(
+              processorTemplate.createLike(Pair.of(processorTemplate.getInfo().getMeasuredEntity(), what)),
+              maxCells));
+    }
+    return result;
+  }
+
+  @Override
+  public Map<Object, MeasurementAccumulator> getEntitiesMeasurements() {
+    Map<Object, MeasurementAccumulator> result = new HashMap<>(recorders.size() + recorders.size() / 3 + 1);
+    for (Map.Entry<Object, AccumulatorCells> entry : recorders.entrySet()) {
+      result.put(entry.getKey(), entry.getValue().get());
+    }
+    return result;
+  }
+
+  @Override
+  @Nonnull
+  public Map<Object, MeasurementAccumulator> getEntitiesMeasurementsAndReset() {
+    Map<Object, MeasurementAccumulator> result = new HashMap<>(recorders.size() + recorders.size() / 3 + 1);
+    for (Map.Entry<Object, AccumulatorCells> entry : recorders.entrySet()) {
+      MeasurementAccumulator measurements = entry.getValue().reset();
+      if (measurements != null) {
+        result.put(entry.getKey(), measurements);
+      }
+    }
+    return result;
+  }
+
+  public void registerJmx() {
+    MeasurementsInfo info = this.processorTemplate.getInfo();
+    MeasurementPersister.registerJmx(this, info, this::getMeasurements, info.toCompositeType());
+  }
+
+  @Override
+  public void close() {
+    persister.close();
+  }
+
+  @JmxExport(description = "measurements as csv")
+  public String getMeasurementsAsString() {
+    return MeasurementPersister.toCsv(this.processorTemplate.getInfo(), getEntitiesMeasurements());
+  }
+
+  public CompositeDataSupport getMeasurements() {
+    return MeasurementPersister.toCompositeData(this.processorTemplate.getInfo(), getEntitiesMeasurements());
+  }
+
+  @JmxExport
+  public void clear() {
+    getEntitiesMeasurementsAndReset();
+  }
+
+  @Override
+  public String toString() {
+    return "StripedMeasurementRecorderSource{" + "processorTemplate=" + processorTemplate
+            + ", maxCells=" + maxCells + ", recorders=" + recorders.size() + '}';
+  }
+
+}
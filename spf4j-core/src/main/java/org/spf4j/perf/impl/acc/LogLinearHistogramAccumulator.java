@@ -0,0 +1,325 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.perf.impl.acc;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import java.util.Arrays;
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import javax.annotation.concurrent.ThreadSafe;
+import org.spf4j.perf.MeasurementAccumulator;
+import org.spf4j.perf.MeasurementsInfo;
+import org.spf4j.perf.impl.MeasurementsInfoImpl;
+import org.spf4j.tsdb2.avro.Aggregation;
+import org.spf4j.tsdb2.avro.MeasurementType;
+
+/**
+ * Log-linear histogram accumulator (inspired by HdrHistogram) with a bounded relative error.
+ *
+ * Values smaller than the sub bucket count are counted exactly, above that every power of 2 range is divided in
+ * half the sub bucket count equal buckets, as such the bucket width is at most value / 10 ^ significantDigits.
+ * Values greater than the highest trackable value are counted in the last bucket, negative values in the first bucket.
+ * min and max are always exact, and the percentiles are clamped to [min, max].
+ *
+ * The exported measurements are count, total, min, max, p50, p90, p99, p999. The percentiles are computed from the
+ * histogram over the accumulation interval, when stored measurements are aggregated over multiple intervals,
+ * the percentiles are aggregated with MAX (an upper bound of the percentile in the aggregated interval).
+ *
+ * @author Zoltan Farkas
+ */
+@ThreadSafe
+@ParametersAreNonnullByDefault
+public final class LogLinearHistogramAccumulator extends AbstractMeasurementAccumulator {
+
+  private static final String[] MEASUREMENTS = {"count", "total", "min", "max", "p50", "p90", "p99", "p999"};
+
+  private static final Aggregation[] AGGS = {Aggregation.SUM, Aggregation.SUM, Aggregation.MIN, Aggregation.MAX,
+    Aggregation.MAX, Aggregation.MAX, Aggregation.MAX, Aggregation.MAX};
+
+  private static final double[] PERCENTILES = {0.5, 0.9, 0.99, 0.999};
+
+  private final MeasurementsInfo info;
+  private final long highestTrackableValue;
+  private final int significantDigits;
+  /** log2(sub bucket count). */
+  private final int subBucketBits;
+  private long minMeasurement;
+  private long maxMeasurement;
+  private long measurementCount;
+  private long measurementTotal;
+  private final long[] counts;
+
+  /**
+   * Create a log linear histogram accumulator.
+   *
+   * @param measuredEntity - and object representing the thing we accumulate measurements for.
+   * @param description - description of the thing we accumulate measurements for.
+   * @param unitOfMeasurement - unit of measurement.
+   * @param highestTrackableValue the highest value that is tracked with bounded relative error. ex: 3600000
+   * @param significantDigits the number of significant decimal digits, the relative error is at most
+   * 10 ^ -significantDigits. (1 to 4)
+   */
+  public LogLinearHistogramAccumulator(final Object measuredEntity, final String description,
+          final String unitOfMeasurement, final long highestTrackableValue, final int significantDigits) {
+    this(new MeasurementsInfoImpl(measuredEntity, description, MEASUREMENTS,
+            new String[] {"count", unitOfMeasurement, unitOfMeasurement, unitOfMeasurement,
+              unitOfMeasurement, unitOfMeasurement, unitOfMeasurement, unitOfMeasurement},
+            AGGS, MeasurementType.SUMMARY), highestTrackableValue, significantDigits,
+            Long.MAX_VALUE, Long.MIN_VALUE, 0, 0,
+            new long[nrBuckets(highestTrackableValue, subBucketBits(significantDigits))]);
+  }
+
+  //CHECKSTYLE:OFF
+  private LogLinearHistogramAccumulator(final MeasurementsInfo info, final long highestTrackableValue,
+          final int significantDigits, final long minMeasurement, final long maxMeasurement,
+          final long measurementCount, final long measurementTotal, final long[] counts) {
+    //CHECKSTYLE:ON
+    this.info = info;
+    this.highestTrackableValue = highestTrackableValue;
+    this.significantDigits = significantDigits;
+    this.subBucketBits = subBucketBits(significantDigits);
+    this.minMeasurement = minMeasurement;
+    this.maxMeasurement = maxMeasurement;
+    this.measurementCount = measurementCount;
+    this.measurementTotal = measurementTotal;
+    this.counts = counts;
+  }
+
+  /**
+   * the sub bucket count is the smallest power of 2 >= 2 * 10 ^ significantDigits.
+   */
+  static int subBucketBits(final int significantDigits) {
+    if (significantDigits < 1 || significantDigits > 4) {
+      throw new IllegalArgumentException("Significant digits must be between 1 and 4, not " + significantDigits);
+    }
+    long singleUnitResolution = 2;
+    for (int i = 0; i < significantDigits; i++) {
+      singleUnitResolution *= 10;
+    }
+    return 64 - Long.numberOfLeadingZeros(singleUnitResolution - 1);
+  }
+
+  static int nrBuckets(final long highestTrackableValue, final int subBucketBits) {
+    if (highestTrackableValue < 1) {
+      throw new IllegalArgumentException("Highest trackable value must be positive, not " + highestTrackableValue);
+    }
+    return bucketIdx(highestTrackableValue, subBucketBits) + 1;
+  }
+
+  /**
+   * @param value a non negative value.
+   * @return the bucket index of the value.
+   */
+  static int bucketIdx(final long value, final int subBucketBits) {
+    int msb = 63 - Long.numberOfLeadingZeros(value);
+    if (msb < subBucketBits) {
+      return (int) value;
+    }
+    int shift = msb - subBucketBits + 1;
+    int halfBits = subBucketBits - 1;
+    return (1 << subBucketBits) + ((shift - 1) << halfBits) + (int) ((value >>> shift) - (1L << halfBits));
+  }
+
+  /**
+   * @return the highest value that is counted in the bucket.
+   */
+  static long bucketHighestValue(final int bucketIdx, final int subBucketBits) {
+    int subBucketCount = 1 << subBucketBits;
+    if (bucketIdx < subBucketCount) {
+      return bucketIdx;
+    }
+    int halfBits = subBucketBits - 1;
+    int j = bucketIdx - subBucketCount;
+    int shift = (j >>> halfBits) + 1;
+    long top = (1L << halfBits) + (j & ((1 << halfBits) - 1));
+    return ((top + 1) << shift) - 1;
+  }
+
+  private int bucketIdx(final long measurement) {
+    if (measurement <= 0) {
+      return 0;
+    } else if (measurement >= highestTrackableValue) {
+      return counts.length - 1;
+    } else {
+      return bucketIdx(measurement, subBucketBits);
+    }
+  }
+
+  public String getUnitOfMeasurement() {
+    return info.getMeasurementUnit(1);
+  }
+
+  public long getHighestTrackableValue() {
+    return highestTrackableValue;
+  }
+
+  public int getSignificantDigits() {
+    return significantDigits;
+  }
+
+  @Override
+  public synchronized void record(final long measurement) {
+    measurementCount++;
+    measurementTotal += measurement;
+    if (measurement < minMeasurement) {
+      minMeasurement = measurement;
+    }
+    if (measurement > maxMeasurement) {
+      maxMeasurement = measurement;
+    }
+    counts[bucketIdx(measurement)]++;
+  }
+
+  /**
+   * @param percentile the percentile as a fraction. ex: 0.999 for p99.9
+   * @return the value under which (inclusive) percentile of the measurements are, with the relative error
+   * of this histogram. Long.MIN_VALUE if there are no measurements.
+   */
+  public synchronized long getPercentile(final double percentile) {
+    if (measurementCount == 0) {
+      return Long.MIN_VALUE;
+    }
+    return percentile(percentile);
+  }
+
+  private long percentile(final double percentile) {
+    long rank = Math.max(1, (long) Math.ceil(percentile * measurementCount));
+    long cumulated = 0;
+    for (int i = 0; i < counts.length; i++) {
+      cumulated += counts[i];
+      if (cumulated >= rank) {
+        if (i == counts.length - 1) {
+          // the last bucket contains all values >= highestTrackableValue
+          return maxMeasurement;
+        }
+        return Math.max(minMeasurement, Math.min(maxMeasurement, bucketHighestValue(i, subBucketBits)));
+      }
+    }
+    return maxMeasurement;
+  }
+
+  @Override
+  @SuppressFBWarnings("PZLA_PREFER_ZERO_LENGTH_ARRAYS")
+  @Nullable
+  public synchronized long[] get() {
+    if (measurementCount == 0) {
+      return null;
+    } else {
+      long[] result = new long[MEASUREMENTS.length];
+      result[0] = measurementCount;
+      result[1] = measurementTotal;
+      result[2] = minMeasurement;
+      result[3] = maxMeasurement;
+      for (int i = 0; i < PERCENTILES.length; i++) {
+        result[i + 4] = percentile(PERCENTILES[i]);
+      }
+      return result;
+    }
+  }
+
+  @Override
+  public MeasurementsInfo getInfo() {
+    return info;
+  }
+
+  @Override
+  @SuppressFBWarnings("NOS_NON_OWNED_SYNCHRONIZATION")
+  public MeasurementAccumulator aggregate(final MeasurementAccumulator mSource) {
+    if (mSource instanceof LogLinearHistogramAccumulator) {
+      LogLinearHistogramAccumulator other = ((LogLinearHistogramAccumulator) mSource).createClone();
+      if (other.significantDigits != significantDigits || other.highestTrackableValue != highestTrackableValue) {
+        throw new IllegalArgumentException("Cannot aggregate " + this + " with different layout " + other);
+      }
+      LogLinearHistogramAccumulator result = createClone();
+      long[] rCounts = result.counts;
+      for (int i = 0; i < rCounts.length; i++) {
+        rCounts[i] += other.counts[i];
+      }
+      result.minMeasurement = Math.min(result.minMeasurement, other.minMeasurement);
+      result.maxMeasurement = Math.max(result.maxMeasurement, other.maxMeasurement);
+      result.measurementCount += other.measurementCount;
+      result.measurementTotal += other.measurementTotal;
+      return result;
+    } else {
+      throw new IllegalArgumentException("Cannot aggregate " + this + " with " + mSource);
+    }
+  }
+
+  @Override
+  public synchronized LogLinearHistogramAccumulator createClone() {
+    return new LogLinearHistogramAccumulator(info, highestTrackableValue, significantDigits,
+            minMeasurement, maxMeasurement, measurementCount, measurementTotal, counts.clone());
+  }
+
+  @Override
+  public MeasurementAccumulator createLike(final Object entity) {
+    return new LogLinearHistogramAccumulator(entity, info.getDescription(), getUnitOfMeasurement(),
+            highestTrackableValue, significantDigits);
+  }
+
+  @Override
+  @Nullable
+  public synchronized LogLinearHistogramAccumulator reset() {
+    if (measurementCount == 0) {
+      return null;
+    } else {
+      LogLinearHistogramAccumulator result = createClone();
+      this.minMeasurement = Long.MAX_VALUE;
+      this.maxMeasurement = Long.MIN_VALUE;
+      this.measurementCount = 0;
+      this.measurementTotal = 0;
+      Arrays.fill(this.counts, 0L);
+      return result;
+    }
+  }
+
+  @Override
+  @SuppressFBWarnings("PZLA_PREFER_ZERO_LENGTH_ARRAYS")
+  @Nullable
+  public long[] getThenReset() {
+    final LogLinearHistogramAccumulator vals = reset();
+    if (vals == null) {
+      return null;
+    } else {
+      return vals.get();
+    }
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "LogLinearHistogramAccumulator{" + "info=" + info + ", highestTrackableValue=" + highestTrackableValue
+            + ", significantDigits=" + significantDigits + ", minMeasurement=" + minMeasurement
+            + ", maxMeasurement=" + maxMeasurement + ", measurementCount=" + measurementCount
+            + ", measurementTotal=" + measurementTotal + ", nrBuckets=" + counts.length + '}';
+  }
+
+}
@@ -267,6 +267,24 @@ public final class QuantizedAccumulator extends AbstractMeasurementAccumulator {
     return info.getMeasurementUnit(0);
   }
 
+  /**
+   * @return the bucket limits, immutable, do not modify.
+   */
+  long[] getBucketLimits() {
+    return bucketLimits;
+  }
+
+  /**
+   * Create an accumulator with the same buckets as this one, and the provided data.
+   * @param quatizedMeasurements the bucket counts, will be owned by the returned accumulator.
+   */
+  QuantizedAccumulator withData(final long minMeasurement, final long maxMeasurement,
+          final long measurementCount, final long measurementTotal, final long[] quatizedMeasurements) {
+    return new QuantizedAccumulator(info, factor, lowerMagnitude, higherMagnitude,
+            minMeasurement, maxMeasurement, measurementCount, measurementTotal,
+            quantasPerMagnitude, bucketLimits, quatizedMeasurements);
+  }
+
 /**
  * bucketLimits:  -10, -5, 0, 5, 10
  * buckets: [< -10], [-10 <= x < -5], [-5 <= x < 0], [0 <= x < 5], [5 <= x < 10], [x >= 10]
@@ -0,0 +1,344 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.perf.impl.acc;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import javax.annotation.concurrent.ThreadSafe;
+import org.spf4j.perf.MeasurementAccumulator;
+import org.spf4j.perf.MeasurementsInfo;
+
+/**
+ * Lock free and allocation free (on record) quantized accumulator.
+ * It produces the same measurements as a {@link QuantizedAccumulator} with the same configuration.
+ *
+ * Measurements are recorded with atomic operations into primitive bucket arrays of a stripe, the stripe is selected
+ * by the recording thread id. Every stripe has 2 buffers, one active that is recorded into, and one inactive.
+ * A snapshot (reset) swaps the active buffer of every stripe, waits for the in-flight writers of the previously
+ * active buffer to finish, and then drains the buffer. Recording never blocks, and never waits for a snapshot.
+ *
+ * @author Zoltan Farkas
+ */
+@ThreadSafe
+@ParametersAreNonnullByDefault
+public final class StripedQuantizedAccumulator extends AbstractMeasurementAccumulator {
+
+  /** 64 bytes padding between the stripe buffers to avoid false sharing. */
+  private static final int PAD = 8;
+
+  private static final int TOTAL = PAD;
+
+  private static final int COUNT = PAD + 1;
+
+  private static final int MIN = PAD + 2;
+
+  private static final int MAX = PAD + 3;
+
+  private static final int BUCKETS = PAD + 4;
+
+  private final QuantizedAccumulator template;
+
+  private final long[] bucketLimits;
+
+  private final int nrBuckets;
+
+  private final Stripe[] stripes;
+
+  private final int mask;
+
+  /**
+   * @param measuredEntity - and object representing the thing we accumulate measurements for.
+   * @param description - description of the thing we accumulate measurements for.
+   * @param unitOfMeasurement - unit of measurement.
+   * @param factor see {@link QuantizedAccumulator}
+   * @param lowerMagnitude see {@link QuantizedAccumulator}
+   * @param higherMagnitude see {@link QuantizedAccumulator}
+   * @param quantasPerMagnitude see {@link QuantizedAccumulator}
+   * @param nrStripes number of stripes, will be rounded up to a power of 2.
+   * 1 is appropriate when this accumulator is a thread local accumulator,
+   * and a value close to the nr of cores is appropriate when recording into this accumulator from many threads.
+   */
+  public StripedQuantizedAccumulator(final Object measuredEntity,
+          final String description,
+          final String unitOfMeasurement,
+          final int factor, final int lowerMagnitude,
+          final int higherMagnitude, final int quantasPerMagnitude, final int nrStripes) {
+    this(new QuantizedAccumulator(measuredEntity, description, unitOfMeasurement,
+            factor, lowerMagnitude, higherMagnitude, quantasPerMagnitude), nrStripes);
+  }
+
+  private StripedQuantizedAccumulator(final QuantizedAccumulator template, final int nrStripes) {
+    if (nrStripes <= 0) {
+      throw new IllegalArgumentException("Invalid number of stripes " + nrStripes);
+    }
+    this.template = template;
+    this.bucketLimits = template.getBucketLimits();
+    this.nrBuckets = bucketLimits.length + 1;
+    int nrs = Integer.highestOneBit(nrStripes);
+    if (nrs < nrStripes) {
+      nrs <<= 1;
+    }
+    this.stripes = new Stripe[nrs];
+    for (int i = 0; i < nrs; i++) {
+      stripes[i] = new Stripe(BUCKETS + nrBuckets + PAD);
+    }
+    this.mask = nrs - 1;
+  }
+
+  public int getNrStripes() {
+    return stripes.length;
+  }
+
+  @Override
+  public void record(final long measurement) {
+    Stripe stripe = stripes[stripeIdx(Thread.currentThread().getId()) & mask];
+    int bIdx = stripe.enter();
+    try {
+      AtomicLongArray buffer = stripe.buffers[bIdx];
+      buffer.getAndIncrement(COUNT);
+      buffer.getAndAdd(TOTAL, measurement);
+      long current;
+      while (measurement < (current = buffer.get(MIN)) && !buffer.compareAndSet(MIN, current, measurement)) {
+        // retry
+      }
+      while (measurement > (current = buffer.get(MAX)) && !buffer.compareAndSet(MAX, current, measurement)) {
+        // retry
+      }
+      buffer.getAndIncrement(BUCKETS + QuantizedAccumulator.findBucket(bucketLimits, measurement));
+    } finally {
+      stripe.exit(bIdx);
+    }
+  }
+
+  private static int stripeIdx(final long threadId) {
+    long h = threadId * 0x9E3779B97F4A7C15L;
+    return (int) (h ^ (h >>> 32));
+  }
+
+  /**
+   * @return the measurements, without resetting. Measurements recorded concurrently might be partially visible.
+   */
+  @Override
+  @SuppressFBWarnings("PZLA_PREFER_ZERO_LENGTH_ARRAYS")
+  @Nullable
+  public long[] get() {
+    QuantizedAccumulator snapshot = snapshot(false);
+    return snapshot == null ? null : snapshot.get();
+  }
+
+  @Override
+  @SuppressFBWarnings("PZLA_PREFER_ZERO_LENGTH_ARRAYS")
+  @Nullable
+  public long[] getThenReset() {
+    QuantizedAccumulator snapshot = snapshot(true);
+    return snapshot == null ? null : snapshot.get();
+  }
+
+  /**
+   * @return a snapshot of the data prior to reset, or null if there were no measurements.
+   */
+  @Override
+  @Nullable
+  public QuantizedAccumulator reset() {
+    return snapshot(true);
+  }
+
+  @Nullable
+  private synchronized QuantizedAccumulator snapshot(final boolean reset) {
+    long total = 0;
+    long count = 0;
+    long min = Long.MAX_VALUE;
+    long max = Long.MIN_VALUE;
+    long[] buckets = new long[nrBuckets];
+    for (Stripe stripe : stripes) {
+      int from;
+      int to;
+      if (reset) {
+        from = stripe.swap();
+        to = from + 1;
+      } else {
+        from = 0;
+        to = 2;
+      }
+      for (int b = from; b < to; b++) {
+        AtomicLongArray buffer = stripe.buffers[b];
+        long bCount = buffer.get(COUNT);
+        if (bCount == 0) {
+          continue;
+        }
+        count += bCount;
+        total += buffer.get(TOTAL);
+        min = Math.min(min, buffer.get(MIN));
+        max = Math.max(max, buffer.get(MAX));
+        for (int i = 0; i < nrBuckets; i++) {
+          buckets[i] += buffer.get(BUCKETS + i);
+        }
+        if (reset) {
+          clear(buffer);
+        }
+      }
+    }
+    if (count == 0) {
+      return null;
+    }
+    return template.withData(min, max, count, total, buckets);
+  }
+
+  private void clear(final AtomicLongArray buffer) {
+    buffer.set(TOTAL, 0L);
+    buffer.set(COUNT, 0L);
+    buffer.set(MIN, Long.MAX_VALUE);
+    buffer.set(MAX, Long.MIN_VALUE);
+    for (int i = 0; i < nrBuckets; i++) {
+      buffer.set(BUCKETS + i, 0L);
+    }
+  }
+
+  @Override
+  public MeasurementsInfo getInfo() {
+    return template.getInfo();
+  }
+
+  @Override
+  public MeasurementAccumulator aggregate(final MeasurementAccumulator mSource) {
+    MeasurementAccumulator other;
+    if (mSource instanceof StripedQuantizedAccumulator) {
+      other = ((StripedQuantizedAccumulator) mSource).snapshot(false);
+      if (other == null) {
+        return createClone();
+      }
+    } else {
+      other = mSource;
+    }
+    QuantizedAccumulator snapshot = snapshot(false);
+    if (snapshot == null) {
+      return other.createClone();
+    }
+    return snapshot.aggregate(other);
+  }
+
+  /**
+   * @return a new striped accumulator with a copy of the measurements of this accumulator.
+   */
+  @Override
+  public synchronized StripedQuantizedAccumulator createClone() {
+    StripedQuantizedAccumulator result = new StripedQuantizedAccumulator(template, stripes.length);
+    QuantizedAccumulator snapshot = snapshot(false);
+    if (snapshot != null) {
+      AtomicLongArray buffer = result.stripes[0].buffers[0];
+      buffer.set(TOTAL, snapshot.getMeasurementTotal());
+      buffer.set(COUNT, snapshot.getMeasurementCount());
+      buffer.set(MIN, snapshot.getMinMeasurement());
+      buffer.set(MAX, snapshot.getMaxMeasurement());
+      long[] buckets = snapshot.getQuatizedMeasurements();
+      for (int i = 0; i < nrBuckets; i++) {
+        buffer.set(BUCKETS + i, buckets[i]);
+      }
+    }
+    return result;
+  }
+
+  @Override
+  public MeasurementAccumulator createLike(final Object entity) {
+    return new StripedQuantizedAccumulator((QuantizedAccumulator) template.createLike(entity), stripes.length);
+  }
+
+  @Override
+  public String toString() {
+    return "StripedQuantizedAccumulator{" + "info=" + template.getInfo() + ", stripes=" + stripes.length
+            + ", bucketLimits=" + Arrays.toString(bucketLimits) + '}';
+  }
+
+  private static final class Stripe {
+
+    private final AtomicLongArray[] buffers;
+
+    /** the number of in-flight writers for each buffer. */
+    private final AtomicIntegerArray writers;
+
+    private volatile int active;
+
+    Stripe(final int bufferSize) {
+      buffers = new AtomicLongArray[2];
+      for (int i = 0; i < 2; i++) {
+        AtomicLongArray buffer = new AtomicLongArray(bufferSize);
+        buffer.set(MIN, Long.MAX_VALUE);
+        buffer.set(MAX, Long.MIN_VALUE);
+        buffers[i] = buffer;
+      }
+      // writer counters on separate cache lines.
+      writers = new AtomicIntegerArray(3 * PAD * 2);
+      active = 0;
+    }
+
+    private static int writerIdx(final int bIdx) {
+      return PAD * 2 * (bIdx + 1);
+    }
+
+    int enter() {
+      while (true) {
+        int bIdx = active;
+        int wIdx = writerIdx(bIdx);
+        writers.getAndIncrement(wIdx);
+        if (bIdx == active) {
+          return bIdx;
+        }
+        // buffer swapped in between, retry with the new active buffer.
+        writers.getAndDecrement(wIdx);
+      }
+    }
+
+    void exit(final int bIdx) {
+      writers.getAndDecrement(writerIdx(bIdx));
+    }
+
+    /**
+     * Swap the active buffer, and wait for the writers of the previously active buffer to finish.
+     * @return the index of the previously active buffer.
+     */
+    int swap() {
+      int old = active;
+      active = old ^ 1;
+      int wIdx = writerIdx(old);
+      while (writers.get(wIdx) != 0) {
+        Thread.yield();
+      }
+      return old;
+    }
+
+  }
+
+}
@@ -0,0 +1,335 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.perf.impl.ms;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.concurrent.ThreadSafe;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.spf4j.base.TimeSource;
+import org.spf4j.concurrent.CustomThreadFactory;
+import org.spf4j.jmx.JmxExport;
+import org.spf4j.perf.MeasurementStore;
+import org.spf4j.perf.MeasurementStoreQuery;
+import org.spf4j.perf.MeasurementsInfo;
+
+/**
+ * A measurement store decorator that decouples the measurement producers (recorder persisters) from the wrapped store.
+ * Measurements are placed in a bounded queue, and are written in batches to the wrapped store by a dedicated writer
+ * thread, as such a slow store (ex: GRAPHITE_TCP, busy disk) will not delay the flush of other recorders.
+ *
+ * When the queue is full, the measurements are either dropped or the producer is blocked (see {@link OverflowPolicy}).
+ * Table allocations are done synchronously, flush will wait for all the measurements queued before the flush call
+ * to be written. The writer drains up to maxBatchSize measurements at a time from the queue, and writes them with
+ * {@link MeasurementStore#saveMeasurements(long[], long[], long[][], int)}.
+ * Close waits at most spf4j.perf.ms.async.closeTimeoutMillis (default 60000) for the queued measurements to be
+ * written, after that the writer is interrupted and the remaining measurements are dropped.
+ *
+ * can be configured with: WRAPPER@org.spf4j.perf.impl.ms.AsyncMeasurementStore(GRAPHITE_TCP@...)
+ *
+ * @author Zoltan Farkas
+ */
+@ThreadSafe
+public final class AsyncMeasurementStore implements MeasurementStore {
+
+  private static final Logger LOG = LoggerFactory.getLogger(AsyncMeasurementStore.class);
+
+  private static final int DEFAULT_QUEUE_SIZE = Integer.getInteger("spf4j.perf.ms.async.queueSize", 4096);
+
+  private static final int DEFAULT_MAX_BATCH_SIZE = Integer.getInteger("spf4j.perf.ms.async.maxBatchSize", 256);
+
+  private static final OverflowPolicy DEFAULT_OVERFLOW_POLICY = OverflowPolicy.valueOf(
+          System.getProperty("spf4j.perf.ms.async.overflowPolicy", "DROP"));
+
+  private static final long CLOSE_TIMEOUT_MILLIS = Long.getLong("spf4j.perf.ms.async.closeTimeoutMillis", 60000);
+
+  private static final Observation END = new Observation(0, 0, new long[0]);
+
+  /**
+   * What to do when the queue is full.
+   */
+  public enum OverflowPolicy {
+    /** drop the measurements. */
+    DROP,
+    /** block the producer until there is space in the queue. */
+    BLOCK
+  }
+
+  private final MeasurementStore store;
+
+  private final BlockingQueue<Observation> queue;
+
+  private final int maxBatchSize;
+
+  private final OverflowPolicy overflowPolicy;
+
+  private final Thread writer;
+
+  private final AtomicLong queuedCount;
+
+  private final AtomicLong droppedCount;
+
+  private final AtomicLong failedCount;
+
+  private final Object sync;
+
+  /** guarded by sync, nr of queued measurements that have been processed by the writer. */
+  private long processedCount;
+
+  private volatile boolean closed;
+
+  public AsyncMeasurementStore(final MeasurementStore store) {
+    this(store, DEFAULT_QUEUE_SIZE, DEFAULT_MAX_BATCH_SIZE, DEFAULT_OVERFLOW_POLICY);
+  }
+
+  public AsyncMeasurementStore(final MeasurementStore store, final int queueSize, final int maxBatchSize,
+          final OverflowPolicy overflowPolicy) {
+    if (queueSize < 1 || maxBatchSize < 1) {
+      throw new IllegalArgumentException("Invalid queueSize = " + queueSize + " or maxBatchSize = " + maxBatchSize);
+    }
+    this.store = store;
+    this.queue = new ArrayBlockingQueue<>(queueSize);
+    this.maxBatchSize = maxBatchSize;
+    this.overflowPolicy = overflowPolicy;
+    this.queuedCount = new AtomicLong();
+    this.droppedCount = new AtomicLong();
+    this.failedCount = new AtomicLong();
+    this.sync = new Object();
+    this.processedCount = 0;
+    this.closed = false;
+    this.writer = new CustomThreadFactory("spf4j-async-ms-", true).newThread(this::writeLoop);
+    this.writer.start();
+  }
+
+  @Override
+  public long alocateMeasurements(final MeasurementsInfo measurementInfo, final int sampleTimeMillis)
+          throws IOException {
+    return store.alocateMeasurements(measurementInfo, sampleTimeMillis);
+  }
+
+  @Override
+  public void saveMeasurements(final long tableId, final long timeStampMillis, final long... measurements)
+          throws IOException {
+    if (closed) {
+      throw new IOException("Store is closed " + this);
+    }
+    Observation observation = new Observation(tableId, timeStampMillis, measurements.clone());
+    switch (overflowPolicy) {
+      case DROP:
+        // increment before offer, so that a concurrent flush will not miss this observation (see BLOCK).
+        queuedCount.incrementAndGet();
+        if (!queue.offer(observation)) {
+          queuedCount.decrementAndGet();
+          droppedCount.incrementAndGet();
+        }
+        break;
+      case BLOCK:
+        try {
+          // increment before put, so that a concurrent flush will not miss this observation.
+          queuedCount.incrementAndGet();
+          queue.put(observation);
+        } catch (InterruptedException ex) {
+          queuedCount.decrementAndGet();
+          Thread.currentThread().interrupt();
+          InterruptedIOException iex = new InterruptedIOException("Interrupted while queueing to " + this);
+          iex.initCause(ex);
+          throw iex;
+        }
+        break;
+      default:
+        throw new IllegalStateException("Unsupported overflow policy " + overflowPolicy);
+    }
+  }
+
+  private void writeLoop() {
+    List<Observation> batch = new ArrayList<>(maxBatchSize);
+    long[] tableIds = new long[maxBatchSize];
+    long[] timeStamps = new long[maxBatchSize];
+    long[][] measurements = new long[maxBatchSize][];
+    boolean end = false;
+    while (!end) {
+      try {
+        batch.add(queue.take());
+      } catch (InterruptedException ex) {
+        LOG.debug("Interrupted, writer is exiting for {}", this, ex);
+        break;
+      }
+      queue.drainTo(batch, maxBatchSize - 1);
+      int nrProcessed = 0;
+      for (Observation observation : batch) {
+        if (observation == END) {
+          end = true;
+          continue;
+        }
+        tableIds[nrProcessed] = observation.tableId;
+        timeStamps[nrProcessed] = observation.timeStampMillis;
+        measurements[nrProcessed] = observation.measurements;
+        nrProcessed++;
+      }
+      batch.clear();
+      if (nrProcessed > 0) {
+        try {
+          store.saveMeasurements(tableIds, timeStamps, measurements, nrProcessed);
+        } catch (IOException | RuntimeException ex) {
+          failedCount.addAndGet(nrProcessed);
+          LOG.warn("Failed to write a batch of {} measurements to {}", nrProcessed, store, ex);
+        }
+        Arrays.fill(measurements, 0, nrProcessed, null);
+      }
+      synchronized (sync) {
+        processedCount += nrProcessed;
+        sync.notifyAll();
+      }
+    }
+  }
+
+  /**
+   * Wait for all measurements queued prior to this call to be written, and flush the wrapped store.
+   */
+  @Override
+  public void flush() throws IOException {
+    awaitWritten(queuedCount.get());
+    store.flush();
+  }
+
+  private void awaitWritten(final long count) throws InterruptedIOException {
+    synchronized (sync) {
+      while (processedCount < count && writer.isAlive()) {
+        try {
+          sync.wait(1000);
+        } catch (InterruptedException ex) {
+          Thread.currentThread().interrupt();
+          InterruptedIOException iex = new InterruptedIOException("Interrupted while flushing " + this);
+          iex.initCause(ex);
+          throw iex;
+        }
+      }
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    synchronized (sync) {
+      if (closed) {
+        return;
+      }
+      closed = true;
+    }
+    try {
+      long deadlineNanos = TimeSource.nanoTime() + TimeUnit.MILLISECONDS.toNanos(CLOSE_TIMEOUT_MILLIS);
+      boolean endQueued = false;
+      long remainingNanos;
+      while (writer.isAlive() && (remainingNanos = deadlineNanos - TimeSource.nanoTime()) > 0) {
+        if (queue.offer(END, Math.min(remainingNanos, TimeUnit.SECONDS.toNanos(1)), TimeUnit.NANOSECONDS)) {
+          endQueued = true;
+          break;
+        }
+      }
+      if (endQueued) {
+        remainingNanos = deadlineNanos - TimeSource.nanoTime();
+        if (remainingNanos > 0) {
+          TimeUnit.NANOSECONDS.timedJoin(writer, remainingNanos);
+        }
+      }
+      if (writer.isAlive()) {
+        writer.interrupt();
+        LOG.warn("Measurements not written within {} ms, dropping {} measurements of {}", CLOSE_TIMEOUT_MILLIS,
+                queue.size(), this);
+        writer.join(1000);
+      }
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      InterruptedIOException iex = new InterruptedIOException("Interrupted while closing " + this);
+      iex.initCause(ex);
+      throw iex;
+    } finally {
+      store.close();
+    }
+  }
+
+  @Override
+  public MeasurementStoreQuery query() {
+    return store.query();
+  }
+
+  public MeasurementStore getStore() {
+    return store;
+  }
+
+  @JmxExport(description = "the number of measurements waiting to be written")
+  public int getQueueDepth() {
+    return queue.size();
+  }
+
+  @JmxExport(description = "the number of measurements dropped because the queue was full")
+  public long getDroppedCount() {
+    return droppedCount.get();
+  }
+
+  @JmxExport(description = "the number of measurements that failed to be written to the wrapped store")
+  public long getFailedCount() {
+    return failedCount.get();
+  }
+
+  @JmxExport(description = "the number of measurements queued")
+  public long getQueuedCount() {
+    return queuedCount.get();
+  }
+
+  @Override
+  public String toString() {
+    return "AsyncMeasurementStore{" + "store=" + store + ", overflowPolicy=" + overflowPolicy + '}';
+  }
+
+  private static final class Observation {
+
+    private final long tableId;
+    private final long timeStampMillis;
+    private final long[] measurements;
+
+    Observation(final long tableId, final long timeStampMillis, final long[] measurements) {
+      this.tableId = tableId;
+      this.timeStampMillis = timeStampMillis;
+      this.measurements = measurements;
+    }
+
+  }
+
+}
@@ -38,12 +38,19 @@ import gnu.trove.map.hash.TObjectLongHashMap;
 import java.io.IOException;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import javax.annotation.Nullable;
 import org.spf4j.base.Throwables;
 import org.spf4j.perf.MeasurementsInfo;
 import org.spf4j.perf.MeasurementStore;
 import org.spf4j.perf.MeasurementStoreQuery;
 
 /**
+ * A store that writes to multiple stores. Measurements are written to the stores sequentially in the caller thread,
+ * or in parallel when an executor is provided (the latency of a save/flush will be the one of the slowest store,
+ * instead of the sum of all).
  *
  * @author zoly
  */
@@ -52,13 +59,24 @@ public final class MultiStore implements MeasurementStore {
   private final MeasurementStore[] stores;
   private final TLongObjectMap<long[]> idToIds;
   private final TObjectLongMap<MeasurementsInfo> infoToId;
+  @Nullable
+  private final ExecutorService executor;
   private long idSeq;
 
   public MultiStore(final MeasurementStore... stores) {
+    this(null, stores);
+  }
+
+  /**
+   * @param executor the executor to fan out writes and flushes in parallel, null for sequential writes.
+   * @param stores the stores to write to.
+   */
+  public MultiStore(@Nullable final ExecutorService executor, final MeasurementStore... stores) {
     if (stores.length <= 1) {
       throw new IllegalArgumentException("You need to supply more than 1 store, not " + Arrays.toString(stores));
     }
     this.stores = stores;
+    this.executor = executor;
     this.idToIds = new TLongObjectHashMap<>();
     this.infoToId = new TObjectLongHashMap<>();
     this.idSeq = 1L;
@@ -105,6 +123,10 @@ public final class MultiStore implements MeasurementStore {
     if (ids == null) {
       throw new IOException("Table id is invalid " + tableId);
     }
+    if (executor != null) {
+      forEachStoreParallel((i) -> stores[i].saveMeasurements(ids[i], timeStampMillis, measurements));
+      return;
+    }
     int i = 0;
     for (MeasurementStore store : stores) {
       try {
@@ -121,8 +143,49 @@ public final class MultiStore implements MeasurementStore {
     }
   }
 
+  @Override
+  public void saveMeasurements(final long[] tableIds, final long[] timeStampsMillis, final long[][] measurements,
+          final int length) throws IOException {
+    long[][] storeIds = new long[stores.length][length];
+    synchronized (idToIds) {
+      for (int j = 0; j < length; j++) {
+        long[] ids = idToIds.get(tableIds[j]);
+        if (ids == null) {
+          throw new IOException("Table id is invalid " + tableIds[j]);
+        }
+        for (int i = 0; i < ids.length; i++) {
+          storeIds[i][j] = ids[i];
+        }
+      }
+    }
+    if (executor != null) {
+      forEachStoreParallel((i) -> stores[i].saveMeasurements(storeIds[i], timeStampsMillis, measurements, length));
+      return;
+    }
+    IOException ex = null;
+    int i = 0;
+    for (MeasurementStore store : stores) {
+      try {
+        store.saveMeasurements(storeIds[i], timeStampsMillis, measurements, length);
+      } catch (IOException e) {
+        if (ex != null) {
+          Throwables.suppressLimited(e, ex);
+        }
+        ex = e;
+      }
+      i++;
+    }
+    if (ex != null) {
+      throw ex;
+    }
+  }
+
   @Override
   public void flush() throws IOException {
+    if (executor != null) {
+      forEachStoreParallel((i) -> stores[i].flush());
+      return;
+    }
     IOException ex = null;
     for (MeasurementStore store : stores) {
       try {
@@ -157,6 +220,64 @@ public final class MultiStore implements MeasurementStore {
     }
   }
 
+  /**
+   * Execute the operation for all stores, store 0 in the current thread, the rest with the executor.
+   */
+  private void forEachStoreParallel(final StoreOperation operation) throws IOException {
+    Future<?>[] futures = new Future[stores.length - 1];
+    for (int i = 1; i < stores.length; i++) {
+      final int storeIdx = i;
+      futures[i - 1] = executor.submit(() -> {
+        operation.execute(storeIdx);
+        return null;
+      });
+    }
+    IOException ex = null;
+    try {
+      operation.execute(0);
+    } catch (IOException e) {
+      ex = e;
+    }
+    boolean interrupted = false;
+    for (Future<?> future : futures) {
+      IOException e = null;
+      while (true) {
+        try {
+          future.get();
+          break;
+        } catch (InterruptedException ie) {
+          // we need to wait for all the writes, not to have concurrent writes to the same table.
+          interrupted = true;
+        } catch (ExecutionException ee) {
+          Throwable cause = ee.getCause();
+          if (cause instanceof IOException) {
+            e = (IOException) cause;
+          } else {
+            e = new IOException(cause);
+          }
+          break;
+        }
+      }
+      if (e != null) {
+        if (ex != null) {
+          Throwables.suppressLimited(e, ex);
+        }
+        ex = e;
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+    if (ex != null) {
+      throw ex;
+    }
+  }
+
+  @FunctionalInterface
+  private interface StoreOperation {
+    void execute(int storeIdx) throws IOException;
+  }
+
   public List<MeasurementStore> getStores() {
     return Arrays.asList(stores);
   }
@@ -0,0 +1,711 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.perf.impl.ms;
+
+import com.google.common.collect.Iterables;
+import gnu.trove.map.TLongObjectMap;
+import gnu.trove.map.hash.TLongObjectHashMap;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+import javax.annotation.Nullable;
+import org.apache.avro.Schema;
+import org.spf4j.base.Throwables;
+import org.spf4j.base.avro.AvroCloseableIterable;
+import org.spf4j.perf.MeasurementStore;
+import org.spf4j.perf.MeasurementStoreQuery;
+import org.spf4j.perf.MeasurementsInfo;
+import org.spf4j.perf.TimeSeriesRecord;
+import org.spf4j.perf.impl.ms.tsdb.AvroMeasurementStore;
+import org.spf4j.perf.impl.ms.tsdb.TSDBMeasurementStore;
+import org.spf4j.tsdb2.avro.Aggregation;
+import org.spf4j.tsdb2.avro.Observation;
+
+/**
+ * A measurement store that maintains pre-aggregated (rollup) tiers of the measurements written to a raw store.
+ *
+ * Every tier is a measurement store that contains the measurements aggregated over a fixed interval
+ * (by default 1 minute, 10 minutes and 1 hour), aligned to the epoch. Measurements are accumulated in memory
+ * into the current interval of every tier, and written to the tier store, stamped with the interval start,
+ * when the interval is complete. The columns are aggregated with the semantics of
+ * {@link TimeSeriesRecord#accumulateObservations}.
+ * Measurements are expected in time order (at interval granularity), a measurement that belongs to a interval
+ * that precedes the current interval of a tier is not rolled up (it is only in the raw store),
+ * see {@link #getNrLateMeasurements()}.
+ *
+ * Aggregated queries ({@link MeasurementStoreQuery#getAggregatedObservations}) are answered
+ * from the coarsest tier whose interval divides the requested aggregation interval. Every measurement has a watermark
+ * per tier (all its rolled up data before the watermark is in the tier), which advances only after the tier
+ * is written and flushed. Data after the watermark is aggregated from the raw store.
+ * The watermarks are persisted in a properties file next to the tier stores, so that the tiers are used after
+ * the store is re-opened.
+ *
+ * Can be configured with: WRAPPER@org.spf4j.perf.impl.ms.RollupMeasurementStore(TSDB_AVRO@/path/to/file)
+ *
+ * @author Zoltan Farkas
+ */
+public final class RollupMeasurementStore implements MeasurementStore {
+
+  private static final long[] DEFAULT_TIERS = {TimeUnit.MINUTES.toMillis(1), TimeUnit.MINUTES.toMillis(10),
+    TimeUnit.HOURS.toMillis(1)};
+
+  /** intervals completed more than this value in the past are considered final and are written to the tiers. */
+  private static final long LATENESS_MILLIS = Long.getLong("spf4j.perf.ms.rollup.latenessMillis", 5000L);
+
+  private final MeasurementStore raw;
+
+  private final long[] intervals;
+
+  private final MeasurementStore[] tiers;
+
+  /** measurement name -> watermarks[i], all the measurement data before this timestamp is in tier i. */
+  private final Map<String, long[]> watermarks;
+
+  @Nullable
+  private final Path watermarksFile;
+
+  /** guarded by watermarks. */
+  private boolean watermarksChanged;
+
+  private final TLongObjectMap<RollupTable> tables;
+
+  private final LongAdder nrLateMeasurements;
+
+  /**
+   * Create a rollup store with 1m/10m/1h tiers. The tier stores are created next to the raw store.
+   * (see {@link #createTierStore(MeasurementStore, long)})
+   * @param raw the raw measurement store.
+   * @throws IOException
+   */
+  public RollupMeasurementStore(final MeasurementStore raw) throws IOException {
+    this(raw, DEFAULT_TIERS, createTierStores(raw, DEFAULT_TIERS), getWatermarksFile(raw));
+  }
+
+  /**
+   * Create a rollup store that does not persist the tier watermarks. The tiers will be used only for the data
+   * rolled up after the store is created.
+   * @param raw the raw measurement store.
+   * @param intervals the tier aggregation intervals in milliseconds, increasing.
+   * @param tiers the tier stores.
+   * @throws IOException
+   */
+  public RollupMeasurementStore(final MeasurementStore raw, final long[] intervals,
+          final MeasurementStore[] tiers) throws IOException {
+    this(raw, intervals, tiers, null);
+  }
+
+  /**
+   * @param raw the raw measurement store.
+   * @param intervals the tier aggregation intervals in milliseconds, increasing.
+   * @param tiers the tier stores.
+   * @param watermarksFile the file the tier watermarks are persisted to, null to not persist them.
+   * @throws IOException if the persisted watermarks cannot be read.
+   */
+  public RollupMeasurementStore(final MeasurementStore raw, final long[] intervals,
+          final MeasurementStore[] tiers, @Nullable final Path watermarksFile) throws IOException {
+    if (intervals.length != tiers.length || intervals.length == 0) {
+      throw new IllegalArgumentException("Invalid tiers " + Arrays.toString(intervals) + ", "
+              + Arrays.toString(tiers));
+    }
+    for (int i = 0; i < intervals.length; i++) {
+      if (intervals[i] <= 0 || (i > 0 && intervals[i] <= intervals[i - 1])) {
+        throw new IllegalArgumentException("Tier intervals must be positive and increasing "
+                + Arrays.toString(intervals));
+      }
+    }
+    this.raw = raw;
+    this.intervals = intervals.clone();
+    this.tiers = tiers.clone();
+    this.watermarks = new HashMap<>();
+    this.watermarksFile = watermarksFile;
+    this.watermarksChanged = false;
+    this.tables = new TLongObjectHashMap<>();
+    this.nrLateMeasurements = new LongAdder();
+    loadWatermarks();
+  }
+
+  /**
+   * @param raw the raw store, a TSDBMeasurementStore or AvroMeasurementStore.
+   * @return the file the tier watermarks are persisted to, next to the raw store.
+   */
+  public static Path getWatermarksFile(final MeasurementStore raw) {
+    String prefix = "rollup_watermarks_";
+    if (raw instanceof TSDBMeasurementStore) {
+      File file = ((TSDBMeasurementStore) raw).getDBWriter().getFile();
+      return new File(file.getParentFile(), prefix + file.getName() + ".properties").toPath();
+    } else if (raw instanceof AvroMeasurementStore) {
+      Path infoFile = ((AvroMeasurementStore) raw).getInfoFile();
+      String fileName = String.valueOf(infoFile.getFileName());
+      return infoFile.resolveSibling(prefix + fileName.substring(0, fileName.length() - ".tabledef.avro".length())
+              + ".properties");
+    } else {
+      throw new IllegalArgumentException("Rollups not supported for " + raw);
+    }
+  }
+
+  private static String watermarkKey(final long interval, final String measurementName) {
+    return interval + ":" + measurementName;
+  }
+
+  /**
+   * Load the persisted watermarks, only for the measurements that exist in the tier stores.
+   * (a tier store might have been overwritten)
+   */
+  private void loadWatermarks() throws IOException {
+    if (watermarksFile == null || !Files.exists(watermarksFile)) {
+      return;
+    }
+    Properties props = new Properties();
+    try (Reader reader = Files.newBufferedReader(watermarksFile, StandardCharsets.UTF_8)) {
+      props.load(reader);
+    }
+    synchronized (watermarks) {
+      for (int i = 0; i < tiers.length; i++) {
+        MeasurementStoreQuery query = tiers[i].query();
+        if (query == null) {
+          continue;
+        }
+        for (Schema measurement : query.getMeasurements((x) -> true)) {
+          String name = getMeasurementName(measurement);
+          String value = props.getProperty(watermarkKey(intervals[i], name));
+          if (value != null) {
+            watermarksOf(name)[i] = Long.parseLong(value);
+          }
+        }
+      }
+    }
+  }
+
+  private void saveWatermarks() throws IOException {
+    if (watermarksFile == null) {
+      return;
+    }
+    Properties props = new Properties();
+    synchronized (watermarks) {
+      if (!watermarksChanged) {
+        return;
+      }
+      for (Map.Entry<String, long[]> entry : watermarks.entrySet()) {
+        long[] wms = entry.getValue();
+        for (int i = 0; i < wms.length; i++) {
+          if (wms[i] != Long.MIN_VALUE) {
+            props.setProperty(watermarkKey(intervals[i], entry.getKey()), Long.toString(wms[i]));
+          }
+        }
+      }
+      watermarksChanged = false;
+    }
+    Path tmpFile = watermarksFile.resolveSibling(watermarksFile.getFileName() + ".tmp");
+    try (BufferedWriter writer = Files.newBufferedWriter(tmpFile, StandardCharsets.UTF_8)) {
+      props.store(writer, "rollup tier watermarks");
+    }
+    Files.move(tmpFile, watermarksFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * @return the watermarks of a measurement, must be called while holding the watermarks monitor.
+   */
+  private long[] watermarksOf(final String measurementName) {
+    return watermarks.computeIfAbsent(measurementName, (n) -> {
+      long[] result = new long[intervals.length];
+      Arrays.fill(result, Long.MIN_VALUE);
+      return result;
+    });
+  }
+
+  private static String getMeasurementName(final Schema measurement) {
+    String rawName = measurement.getProp(TimeSeriesRecord.RAW_NAME);
+    return rawName == null ? measurement.getName() : rawName;
+  }
+
+  /**
+   * @param measurementName the measurement name.
+   * @return the tier watermarks of the measurement.
+   */
+  long[] getWatermarks(final String measurementName) {
+    synchronized (watermarks) {
+      return watermarksOf(measurementName).clone();
+    }
+  }
+
+  /**
+   * @return the number of measurements that were not rolled up, because their interval was already written to a tier.
+   */
+  public long getNrLateMeasurements() {
+    return nrLateMeasurements.sum();
+  }
+
+  private static MeasurementStore[] createTierStores(final MeasurementStore raw, final long[] intervals)
+          throws IOException {
+    MeasurementStore[] result = new MeasurementStore[intervals.length];
+    for (int i = 0; i < intervals.length; i++) {
+      result[i] = createTierStore(raw, intervals[i]);
+    }
+    return result;
+  }
+
+  /**
+   * Create a tier store of the same type and in the same location as the raw store.
+   * The tier store file names are prefixed with rollup_[interval seconds]s_ so that they are not matched
+   * by the raw store file lookups.
+   * @param raw the raw store, a TSDBMeasurementStore or AvroMeasurementStore.
+   * @param intervalMillis the tier interval.
+   * @return the tier store.
+   * @throws IOException
+   */
+  public static MeasurementStore createTierStore(final MeasurementStore raw, final long intervalMillis)
+          throws IOException {
+    String prefix = "rollup_" + TimeUnit.MILLISECONDS.toSeconds(intervalMillis) + "s_";
+    if (raw instanceof TSDBMeasurementStore) {
+      File file = ((TSDBMeasurementStore) raw).getDBWriter().getFile();
+      return new TSDBMeasurementStore(new File(file.getParentFile(), prefix + file.getName()));
+    } else if (raw instanceof AvroMeasurementStore) {
+      Path infoFile = ((AvroMeasurementStore) raw).getInfoFile();
+      String fileName = String.valueOf(infoFile.getFileName());
+      return new AvroMeasurementStore(infoFile.getParent(),
+              prefix + fileName.substring(0, fileName.length() - ".tabledef.avro".length()));
+    } else {
+      throw new IllegalArgumentException("Rollups not supported for " + raw);
+    }
+  }
+
+  @Override
+  public long alocateMeasurements(final MeasurementsInfo measurement, final int sampleTimeMillis)
+          throws IOException {
+    long id = raw.alocateMeasurements(measurement, sampleTimeMillis);
+    synchronized (tables) {
+      if (!tables.containsKey(id)) {
+        long[] tierIds = new long[tiers.length];
+        for (int i = 0; i < tiers.length; i++) {
+          tierIds[i] = tiers[i].alocateMeasurements(measurement, (int) intervals[i]);
+        }
+        String name = measurement.getMeasuredEntity().toString();
+        long[] written;
+        synchronized (watermarks) {
+          written = watermarksOf(name).clone();
+        }
+        tables.put(id, new RollupTable(name, tierIds, measurement.getAggregations(), written));
+      }
+    }
+    return id;
+  }
+
+  @Override
+  public void saveMeasurements(final long tableId, final long timeStampMillis, final long... measurements)
+          throws IOException {
+    raw.saveMeasurements(tableId, timeStampMillis, measurements);
+    RollupTable table;
+    synchronized (tables) {
+      table = tables.get(tableId);
+    }
+    if (table == null) {
+      throw new IOException("Table id is invalid " + tableId);
+    }
+    boolean late = false;
+    synchronized (table) {
+      for (int i = 0; i < tiers.length; i++) {
+        long bucketStart = Math.floorDiv(timeStampMillis, intervals[i]) * intervals[i];
+        Bucket bucket = table.open[i];
+        if (bucket == null) {
+          if (bucketStart < table.written[i]) {
+            late = true; // the interval was already written to the tier.
+          } else {
+            table.open[i] = new Bucket(bucketStart, timeStampMillis, measurements.clone());
+          }
+        } else if (bucket.start == bucketStart) {
+          bucket.accumulate(table.aggregations, timeStampMillis, measurements);
+        } else if (bucket.start < bucketStart) {
+          writeBucket(table, i, bucket, true);
+          table.open[i] = new Bucket(bucketStart, timeStampMillis, measurements.clone());
+        } else {
+          late = true; // a newer interval is open.
+        }
+      }
+    }
+    if (late) {
+      nrLateMeasurements.increment();
+    }
+  }
+
+  /**
+   * Write a bucket to a tier, stamped with the interval start.
+   * @param complete if false, the bucket is a partial aggregate of the interval (written on close),
+   * the rest of the interval can be written after the store is re-opened as a row with the same timestamp.
+   */
+  private void writeBucket(final RollupTable table, final int tier, final Bucket bucket, final boolean complete)
+          throws IOException {
+    tiers[tier].saveMeasurements(table.tierIds[tier], bucket.start, bucket.values);
+    table.open[tier] = null;
+    table.written[tier] = complete ? bucket.start + intervals[tier] : bucket.start;
+  }
+
+  /**
+   * Writes all complete intervals to the tiers, flushes all stores, and if successful, advances and persists
+   * the watermarks.
+   */
+  @Override
+  public void flush() throws IOException {
+    IOException ex = writeBuckets(false);
+    ex = flush(ex);
+    if (ex != null) {
+      throw ex;
+    }
+    publishWatermarks();
+    saveWatermarks();
+  }
+
+  private List<RollupTable> getTables() {
+    synchronized (tables) {
+      return new ArrayList<>(tables.valueCollection());
+    }
+  }
+
+  /**
+   * @param all if true, the incomplete intervals are written as well.
+   */
+  @Nullable
+  private IOException writeBuckets(final boolean all) {
+    long now = System.currentTimeMillis() - LATENESS_MILLIS;
+    IOException ex = null;
+    for (RollupTable table : getTables()) {
+      synchronized (table) {
+        for (int i = 0; i < tiers.length; i++) {
+          Bucket bucket = table.open[i];
+          if (bucket != null) {
+            boolean complete = bucket.start + intervals[i] <= now;
+            if (complete || all) {
+              try {
+                writeBucket(table, i, bucket, complete);
+              } catch (IOException e) {
+                ex = chain(e, ex);
+              }
+            }
+          }
+        }
+      }
+    }
+    return ex;
+  }
+
+  /**
+   * advance the watermarks to the written intervals, must be invoked only after the tiers have been flushed.
+   */
+  private void publishWatermarks() {
+    for (RollupTable table : getTables()) {
+      long[] written;
+      synchronized (table) {
+        written = table.written.clone();
+      }
+      synchronized (watermarks) {
+        long[] wms = watermarksOf(table.name);
+        for (int i = 0; i < wms.length; i++) {
+          if (written[i] > wms[i]) {
+            wms[i] = written[i];
+            watermarksChanged = true;
+          }
+        }
+      }
+    }
+  }
+
+  private static IOException chain(final IOException e, @Nullable final IOException prev) {
+    if (prev != null) {
+      Throwables.suppressLimited(e, prev);
+    }
+    return e;
+  }
+
+  @Nullable
+  private IOException flush(@Nullable final IOException pex) {
+    IOException ex = pex;
+    try {
+      raw.flush();
+    } catch (IOException e) {
+      ex = chain(e, ex);
+    }
+    for (MeasurementStore tier : tiers) {
+      try {
+        tier.flush();
+      } catch (IOException e) {
+        ex = chain(e, ex);
+      }
+    }
+    return ex;
+  }
+
+  /**
+   * Writes all open intervals to the tiers, closes all stores, and if successful, persists the watermarks.
+   */
+  @Override
+  public void close() throws IOException {
+    IOException ex = writeBuckets(true);
+    try {
+      raw.close();
+    } catch (IOException e) {
+      ex = chain(e, ex);
+    }
+    for (MeasurementStore tier : tiers) {
+      try {
+        tier.close();
+      } catch (IOException e) {
+        ex = chain(e, ex);
+      }
+    }
+    if (ex != null) {
+      throw ex;
+    }
+    publishWatermarks();
+    saveWatermarks();
+  }
+
+  public MeasurementStore getRawStore() {
+    return raw;
+  }
+
+  public List<MeasurementStore> getTierStores() {
+    return Arrays.asList(tiers);
+  }
+
+  @Override
+  @Nullable
+  public MeasurementStoreQuery query() {
+    MeasurementStoreQuery rawQuery = raw.query();
+    if (rawQuery == null) {
+      return null;
+    }
+    return new RollupQuery(rawQuery);
+  }
+
+  @Override
+  public String toString() {
+    return "RollupMeasurementStore{" + "raw=" + raw + ", intervals=" + Arrays.toString(intervals) + '}';
+  }
+
+  private static final class RollupTable {
+
+    private final String name;
+    private final long[] tierIds;
+    private final Aggregation[] aggregations;
+    private final Bucket[] open;
+    /** written[i] -> all the intervals before this timestamp have been written to tier i. */
+    private final long[] written;
+
+    RollupTable(final String name, final long[] tierIds, final Aggregation[] aggregations, final long[] written) {
+      this.name = name;
+      this.tierIds = tierIds;
+      this.aggregations = aggregations;
+      this.open = new Bucket[tierIds.length];
+      this.written = written;
+    }
+
+  }
+
+  private static final class Bucket {
+
+    private final long start;
+    private final long[] values;
+    private long firstTs;
+    private long lastTs;
+
+    Bucket(final long start, final long ts, final long[] values) {
+      this.start = start;
+      this.values = values;
+      this.firstTs = ts;
+      this.lastTs = ts;
+    }
+
+    void accumulate(final Aggregation[] aggs, final long ts, final long[] measurements) {
+      int l = Math.min(values.length, measurements.length);
+      for (int i = 0; i < l; i++) {
+        switch (aggs[i]) {
+          case SUM:
+            values[i] += measurements[i];
+            break;
+          case MIN:
+            values[i] = Math.min(values[i], measurements[i]);
+            break;
+          case MAX:
+            values[i] = Math.max(values[i], measurements[i]);
+            break;
+          case FIRST:
+            if (ts < firstTs) {
+              values[i] = measurements[i];
+            }
+            break;
+          case LAST:
+          case UNKNOWN:
+            if (ts >= lastTs) {
+              values[i] = measurements[i];
+            }
+            break;
+          default:
+            throw new UnsupportedOperationException("Unsupported aggregation: " + aggs[i]);
+        }
+      }
+      firstTs = Math.min(firstTs, ts);
+      lastTs = Math.max(lastTs, ts);
+    }
+
+  }
+
+  private final class RollupQuery implements MeasurementStoreQuery {
+
+    private final MeasurementStoreQuery rawQuery;
+
+    RollupQuery(final MeasurementStoreQuery rawQuery) {
+      this.rawQuery = rawQuery;
+    }
+
+    @Override
+    public Collection<Schema> getMeasurements(final Predicate<String> filter) throws IOException {
+      return rawQuery.getMeasurements(filter);
+    }
+
+    @Override
+    public AvroCloseableIterable<Observation> getObservations() throws IOException {
+      return rawQuery.getObservations();
+    }
+
+    @Override
+    public AvroCloseableIterable<Observation> getObservations(final Schema measurement,
+            @Nullable final Instant from, @Nullable final Instant to) throws IOException {
+      return rawQuery.getObservations(measurement, from, to);
+    }
+
+    @Override
+    public AvroCloseableIterable<Observation> getAggregatedObservations(final Schema measurement,
+            @Nullable final Instant from, @Nullable final Instant to, final int aggFreq, final TimeUnit tu)
+            throws IOException {
+      return getAggregatedObservations(measurement, from, to, aggFreq, tu, false);
+    }
+
+    @Override
+    public AvroCloseableIterable<Observation> getParallelAggregatedObservations(final Schema measurement,
+            @Nullable final Instant from, @Nullable final Instant to, final int aggFreq, final TimeUnit tu)
+            throws IOException {
+      return getAggregatedObservations(measurement, from, to, aggFreq, tu, true);
+    }
+
+    private AvroCloseableIterable<Observation> getAggregatedObservations(final Schema measurement,
+            @Nullable final Instant from, @Nullable final Instant to, final int aggFreq, final TimeUnit tu,
+            final boolean parallel) throws IOException {
+      long aggMillis = tu.toMillis(aggFreq);
+      int tier = -1;
+      for (int i = intervals.length - 1; i >= 0; i--) {
+        if (aggMillis >= intervals[i] && aggMillis % intervals[i] == 0) {
+          tier = i;
+          break;
+        }
+      }
+      long watermark;
+      if (tier < 0) {
+        watermark = Long.MIN_VALUE;
+      } else {
+        synchronized (watermarks) {
+          long[] wms = watermarks.get(getMeasurementName(measurement));
+          watermark = wms == null ? Long.MIN_VALUE : wms[tier];
+        }
+      }
+      long fromMillis = from == null ? Long.MIN_VALUE : from.toEpochMilli();
+      if (watermark <= fromMillis) {
+        return aggregate(rawQuery, measurement, from, to, aggFreq, tu, parallel);
+      }
+      MeasurementStoreQuery tierQuery = tiers[tier].query();
+      Schema tierMeasurement = tierQuery == null ? null : getTierMeasurement(tierQuery, measurement);
+      if (tierMeasurement == null) {
+        return aggregate(rawQuery, measurement, from, to, aggFreq, tu, parallel);
+      }
+      // aggMillis is a multiple of the tier interval, so the split point is aligned with the tier.
+      long split = Math.floorDiv(watermark, aggMillis) * aggMillis;
+      if (to != null && to.toEpochMilli() < split) {
+        return aggregate(tierQuery, tierMeasurement, from, to, aggFreq, tu, parallel);
+      }
+      AvroCloseableIterable<Observation> rolledUp = aggregate(tierQuery, tierMeasurement,
+              from, Instant.ofEpochMilli(split - 1), aggFreq, tu, parallel);
+      AvroCloseableIterable<Observation> recent;
+      try {
+        recent = aggregate(rawQuery, measurement, Instant.ofEpochMilli(split), to, aggFreq, tu, parallel);
+      } catch (IOException | RuntimeException ex) {
+        rolledUp.close();
+        throw ex;
+      }
+      return AvroCloseableIterable.from(Iterables.concat(rolledUp, recent), () -> {
+        try (AvroCloseableIterable<Observation> r = rolledUp) {
+          recent.close();
+        }
+      }, measurement);
+    }
+
+    private AvroCloseableIterable<Observation> aggregate(final MeasurementStoreQuery query,
+            final Schema measurement, @Nullable final Instant from, @Nullable final Instant to, final int aggFreq,
+            final TimeUnit tu, final boolean parallel) throws IOException {
+      return parallel ? query.getParallelAggregatedObservations(measurement, from, to, aggFreq, tu)
+              : query.getAggregatedObservations(measurement, from, to, aggFreq, tu);
+    }
+
+    @Nullable
+    private Schema getTierMeasurement(final MeasurementStoreQuery tierQuery, final Schema measurement)
+            throws IOException {
+      String rawName = measurement.getProp(TimeSeriesRecord.RAW_NAME);
+      String name = measurement.getName();
+      for (Schema schema : tierQuery.getMeasurements((x) -> x.equals(name) || x.equals(rawName))) {
+        if (name.equals(schema.getName())) {
+          return schema;
+        }
+      }
+      return null;
+    }
+
+    @Override
+    public String toString() {
+      return "RollupQuery{" + "rawQuery=" + rawQuery + ", intervals=" + Arrays.toString(intervals) + '}';
+    }
+
+  }
+
+}
@@ -168,6 +168,32 @@ public final class GraphiteTcpStore implements MeasurementStore {
     }
   }
 
+  /**
+   * Writes the batch with one socket writer flush.
+   */
+  @Override
+  @SuppressFBWarnings("BED_BOGUS_EXCEPTION_DECLARATION")
+  public void saveMeasurements(final long[] tableIds, final long[] timeStampsMillis, final long[][] measurements,
+          final int length) throws IOException {
+    try {
+      Template.doOnSupplied(new BatchHandler(tableIds, timeStampsMillis, measurements, length),
+              1, TimeUnit.MINUTES, socketWriterSupplier, RetryPolicy.defaultPolicy(), IOException.class);
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interupted while saving a batch of " + length + " measurements", ex);
+    } catch (TimeoutException ex) {
+      throw new UncheckedTimeoutException(ex);
+    }
+  }
+
+  private static void writeMetrics(final MeasurementsInfo measurementInfo, final long timeStampMillis,
+          final long[] measurements, final Writer socketWriter) throws IOException {
+    for (int i = 0; i < measurements.length; i++) {
+      writeMetric(measurementInfo, measurementInfo.getMeasurementName(i),
+              measurements[i], timeStampMillis, socketWriter);
+    }
+  }
+
   @Override
   public String toString() {
     return "GraphiteTcpStore{address=" + address + '}';
@@ -201,13 +227,41 @@ public final class GraphiteTcpStore implements MeasurementStore {
     @Override
     @Nullable
     public Void handle(final Writer socketWriter, final long deadline) throws IOException {
-      for (int i = 0; i < measurements.length; i++) {
-        writeMetric(measurementInfo, measurementInfo.getMeasurementName(i),
-                measurements[i], timeStampMillis, socketWriter);
+      writeMetrics(measurementInfo, timeStampMillis, measurements, socketWriter);
+      socketWriter.flush();
+      return null;
+    }
+  }
+
+  private static class BatchHandler implements HandlerNano<Writer, Void, IOException> {
+
+    private final long[] tableIds;
+    private final long[] timeStampsMillis;
+    private final long[][] measurements;
+    private final int length;
+
+    BatchHandler(final long[] tableIds, final long[] timeStampsMillis, final long[][] measurements,
+            final int length) {
+      this.tableIds = tableIds;
+      this.timeStampsMillis = timeStampsMillis;
+      this.measurements = measurements;
+      this.length = length;
+    }
+
+    @Override
+    @Nullable
+    public Void handle(final Writer socketWriter, final long deadline) throws IOException {
+      for (int i = 0; i < length; i++) {
+        writeMetrics(Id2Info.getInfo(tableIds[i]), timeStampsMillis[i], measurements[i], socketWriter);
       }
       socketWriter.flush();
       return null;
     }
+
+    @Override
+    public String toString() {
+      return "BatchHandler{" + "length=" + length + '}';
+    }
   }
 
   @Override
@@ -181,6 +181,17 @@ public final class AvroMeasurementStore
     }
   }
 
+  @Override
+  public void saveMeasurements(final long[] tableIds, final long[] timeStampsMillis, final long[][] measurements,
+          final int length) throws IOException {
+    synchronized (dataWriter) {
+      for (int i = 0; i < length; i++) {
+        dataWriter.append(new Observation(timeStampsMillis[i] - timeRef, tableIds[i],
+                Longs.asList(measurements[i])));
+      }
+    }
+  }
+
   @Override
   public void close() throws IOException {
     synchronized (infoWriter) {
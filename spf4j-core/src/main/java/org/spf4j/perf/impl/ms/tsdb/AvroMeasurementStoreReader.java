@@ -41,6 +41,7 @@ import java.io.UncheckedIOException;
 import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -49,9 +50,11 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Predicate;
 import java.util.stream.Collectors;
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import javax.annotation.ParametersAreNonnullByDefault;
 import org.apache.avro.Schema;
 import org.apache.avro.file.DataFileStream;
@@ -182,6 +185,22 @@ public final class AvroMeasurementStoreReader implements MeasurementStoreQuery {
     }, oSchema);
   }
 
+  /**
+   * Aggregated observations, the observation files are split and aggregated in parallel.
+   * (see {@link ParallelQueryEngine})
+   *
+   * Unlike {@link #getAggregatedObservations(Schema, Instant, Instant, int, TimeUnit)}, where a aggregation bucket
+   * starts with the first observation after the previous bucket, the buckets are aligned to the aggregation interval
+   * (epoch based), so the result is not the same.
+   */
+  @Override
+  public AvroCloseableIterable<Observation> getParallelAggregatedObservations(final Schema measurement,
+          @Nullable final Instant from, @Nullable final Instant to, final int aggFreq, final TimeUnit tu)
+          throws IOException {
+    ParallelQueryEngine engine = ParallelQueryEngine.DEFAULT;
+    return engine.aggregate(measurement, engine.avroSplits(dataFiles), from, to, tu.toMillis(aggFreq));
+  }
+
   @Override
   public String toString() {
     return "AvroMeasurementStoreReader{" + "infoFile=" + infoFile + ", dataFiles=" + Arrays.toString(dataFiles) + '}';
@@ -0,0 +1,566 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.perf.impl.ms.tsdb;
+
+import com.google.common.primitives.Longs;
+import gnu.trove.map.hash.TLongObjectHashMap;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveTask;
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import org.apache.avro.Schema;
+import org.apache.avro.file.DataFileReader;
+import org.apache.avro.file.SeekableFileInput;
+import org.apache.avro.specific.SpecificDatumReader;
+import org.spf4j.base.avro.AvroCloseableIterable;
+import org.spf4j.perf.TimeSeriesRecord;
+import org.spf4j.tsdb2.BlockIndex;
+import org.spf4j.tsdb2.DataRowConsumer;
+import org.spf4j.tsdb2.MappedTSDBReader;
+import org.spf4j.tsdb2.TSDBQuery;
+import org.spf4j.tsdb2.avro.Aggregation;
+import org.spf4j.tsdb2.avro.Observation;
+
+/**
+ * Parallel measurement query engine.
+ *
+ * The data to query is split into independent partitions ({@link Split}): block ranges of tsdb2 files
+ * (using the {@link BlockIndex}) and sync delimited byte ranges of avro observation files.
+ * The partitions are scanned in parallel on a fork join pool, every partition is filtered and aggregated into
+ * time buckets, and the partial buckets are merged as the fork join tasks complete.
+ *
+ * Unlike {@link org.spf4j.perf.TimeSeriesAggregatingIterator}, where a bucket starts at the first observation
+ * following the previous bucket, buckets are aligned to the aggregation interval (epoch based),
+ * so that the result does not depend on how the data is partitioned.
+ * The aggregated observation timestamp is the timestamp of the last observation in the bucket, and the
+ * observation columns are aggregated like {@link TimeSeriesRecord#accumulateObservations}.
+ *
+ * @author Zoltan Farkas
+ */
+@ParametersAreNonnullByDefault
+public final class ParallelQueryEngine {
+
+  /**
+   * The default engine, the partitions are scanned (blocking file IO) on a dedicated pool of
+   * spf4j.perf.ms.query.parallelism (default nr of processors) daemon threads, not on the common pool.
+   */
+  public static final ParallelQueryEngine DEFAULT = new ParallelQueryEngine(newQueryPool(
+          Integer.getInteger("spf4j.perf.ms.query.parallelism", Runtime.getRuntime().availableProcessors())),
+          Integer.getInteger("spf4j.perf.ms.query.blocksPerSplit", 64),
+          Integer.getInteger("spf4j.perf.ms.query.avroSplitBytes", 32 * 1024 * 1024));
+
+  private final ForkJoinPool pool;
+
+  private final int blocksPerSplit;
+
+  private final long avroSplitBytes;
+
+  /**
+   * @param pool the fork join pool to run the partition scans on.
+   * @param blocksPerSplit the max number of indexed tsdb2 blocks per partition.
+   * @param avroSplitBytes the byte size of an avro file partition.
+   */
+  public ParallelQueryEngine(final ForkJoinPool pool, final int blocksPerSplit, final long avroSplitBytes) {
+    if (blocksPerSplit <= 0 || avroSplitBytes <= 0) {
+      throw new IllegalArgumentException("Invalid split sizes " + blocksPerSplit + ", " + avroSplitBytes);
+    }
+    this.pool = pool;
+    this.blocksPerSplit = blocksPerSplit;
+    this.avroSplitBytes = avroSplitBytes;
+  }
+
+  private static ForkJoinPool newQueryPool(final int parallelism) {
+    return new ForkJoinPool(parallelism, (pool) -> {
+      ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+      thread.setName("spf4j-query-" + thread.getPoolIndex());
+      thread.setDaemon(true);
+      return thread;
+    }, null, false);
+  }
+
+  /**
+   * An independently scannable data partition.
+   */
+  public interface Split {
+
+    /**
+     * Scan the partition.
+     * @param startTimeMillis start time (inclusive).
+     * @param endTimeMillis end time (inclusive).
+     * @param tableIds the table ids to return.
+     * @param consumer the row consumer, the row data array can be reused across invocations.
+     * @throws IOException
+     */
+    void scan(long startTimeMillis, long endTimeMillis, long[] tableIds, DataRowConsumer consumer)
+            throws IOException;
+  }
+
+  /**
+   * Split a tsdb2 file into partitions of up to blocksPerSplit indexed blocks.
+   * Files without a block index, or regions that are not indexed are not split.
+   * Files that cannot be memory mapped (see {@link MappedTSDBReader#supports(File)}) are not split either,
+   * and are read with schema resolution.
+   * @param tsdbFile the tsdb2 file.
+   * @param startTimeMillis the query start time, used to skip non overlapping blocks.
+   * @param endTimeMillis the query end time, used to skip non overlapping blocks.
+   * @param tableIds the queried tables, used to skip blocks without data for these tables.
+   * @return the file partitions.
+   * @throws IOException
+   */
+  public List<Split> tsdbSplits(final File tsdbFile, final long startTimeMillis, final long endTimeMillis,
+          final long[] tableIds) throws IOException {
+    if (!MappedTSDBReader.supports(tsdbFile)) {
+      return Collections.singletonList(new ResolvingTSDBSplit(tsdbFile));
+    }
+    long dataStart;
+    long size;
+    try (MappedTSDBReader reader = new MappedTSDBReader(tsdbFile)) {
+      dataStart = reader.getDataStartPosition();
+      size = reader.getSize();
+    }
+    BlockIndex index = BlockIndex.load(tsdbFile);
+    if (index == null) {
+      return Collections.singletonList(new TSDBSplit(tsdbFile,
+              Collections.singletonList(new BlockIndex.Region(dataStart, size, false))));
+    }
+    List<Split> result = new ArrayList<>();
+    List<BlockIndex.Region> current = new ArrayList<>();
+    for (BlockIndex.Region region : index.plan(dataStart, size, startTimeMillis, endTimeMillis, tableIds)) {
+      if (!region.isIndexedBlock()) {
+        result.add(new TSDBSplit(tsdbFile, Collections.singletonList(region)));
+        continue;
+      }
+      current.add(region);
+      if (current.size() >= blocksPerSplit) {
+        result.add(new TSDBSplit(tsdbFile, current));
+        current = new ArrayList<>();
+      }
+    }
+    if (!current.isEmpty()) {
+      result.add(new TSDBSplit(tsdbFile, current));
+    }
+    return result;
+  }
+
+  /**
+   * Split an avro observation file (as written by {@link AvroMeasurementStore}) into avroSplitBytes partitions.
+   * A partition contains all the avro blocks that start within its byte range.
+   * @param observationFile the avro observation file.
+   * @return the file partitions.
+   */
+  public List<Split> avroSplits(final Path observationFile) {
+    File file = observationFile.toFile();
+    long length = file.length();
+    List<Split> result = new ArrayList<>((int) (length / avroSplitBytes) + 1);
+    long start = 0;
+    do {
+      long end = length - start > avroSplitBytes ? start + avroSplitBytes : length;
+      result.add(new AvroSplit(file, start, end));
+      start = end;
+    } while (start < length);
+    return result;
+  }
+
+  public List<Split> avroSplits(final Path... observationFiles) {
+    List<Split> result = new ArrayList<>(observationFiles.length);
+    for (Path file : observationFiles) {
+      result.addAll(avroSplits(file));
+    }
+    return result;
+  }
+
+  /**
+   * Query the aggregated observations of a measurement.
+   * @param measurement the measurement schema. (as returned by MeasurementStoreQuery.getMeasurements)
+   * @param splits the data partitions to query.
+   * @param startTimeMillis start time (inclusive).
+   * @param endTimeMillis end time (inclusive).
+   * @param aggMillis aggregation interval in milliseconds.
+   * @return the aggregated observations, in time order.
+   * @throws IOException
+   */
+  public List<Observation> aggregate(final Schema measurement, final List<Split> splits,
+          final long startTimeMillis, final long endTimeMillis, final long aggMillis) throws IOException {
+    if (aggMillis <= 0) {
+      throw new IllegalArgumentException("Invalid aggregation interval " + aggMillis);
+    }
+    if (splits.isEmpty()) {
+      return Collections.emptyList();
+    }
+    Aggregation[] aggs = aggregations(measurement);
+    long[] tableIds = tableIds(measurement);
+    Buckets result;
+    try {
+      result = pool.invoke(new AggregateTask(splits, 0, splits.size(),
+              new Query(startTimeMillis, endTimeMillis, tableIds, aggMillis, aggs)));
+    } catch (UncheckedIOException ex) {
+      throw new IOException("Failed to query " + measurement.getName(), ex.getCause());
+    }
+    return result.toObservations();
+  }
+
+  /**
+   * Query the aggregated observations of a measurement.
+   * @param measurement the measurement schema. (as returned by MeasurementStoreQuery.getMeasurements)
+   * @param splits the data partitions to query.
+   * @param from start time (inclusive), null for no lower bound.
+   * @param to end time (inclusive), null for no upper bound.
+   * @param aggMillis aggregation interval in milliseconds.
+   * @return the aggregated observations, in time order.
+   * @throws IOException
+   */
+  public AvroCloseableIterable<Observation> aggregate(final Schema measurement, final List<Split> splits,
+          @Nullable final Instant from, @Nullable final Instant to, final long aggMillis) throws IOException {
+    List<Observation> result = aggregate(measurement, splits, from == null ? Long.MIN_VALUE : from.toEpochMilli(),
+            to == null ? Long.MAX_VALUE : to.toEpochMilli(), aggMillis);
+    return AvroCloseableIterable.from(result, () -> { }, measurement);
+  }
+
+  static long[] tableIds(final Schema measurement) {
+    @SuppressWarnings("unchecked")
+    Collection<Number> ids = (Collection<Number>) measurement.getObjectProp(TimeSeriesRecord.IDS_PROP);
+    if (ids == null) {
+      throw new IllegalArgumentException("No table ids for " + measurement);
+    }
+    long[] result = new long[ids.size()];
+    int i = 0;
+    for (Number id : ids) {
+      result[i++] = id.longValue();
+    }
+    return result;
+  }
+
+  static Aggregation[] aggregations(final Schema measurement) {
+    List<Schema.Field> fields = measurement.getFields();
+    Aggregation[] result = new Aggregation[fields.size() - 1];
+    Iterator<Schema.Field> it = fields.iterator();
+    it.next(); // skip timestamp
+    int i = 0;
+    while (it.hasNext()) {
+      Schema.Field nf = it.next();
+      String prop = nf.schema().getProp(TimeSeriesRecord.AGGREGATION_TYPE_PROP);
+      if (prop != null) {
+        result[i++] = Aggregation.valueOf(prop);
+      } else {
+        result[i++] = TimeSeriesRecord.inferAggregationFromName(nf, measurement);
+      }
+    }
+    return result;
+  }
+
+  private static boolean contains(final long[] ids, final long id) {
+    for (long l : ids) {
+      if (l == id) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static final class Query {
+
+    private final long startTimeMillis;
+    private final long endTimeMillis;
+    private final long[] tableIds;
+    private final long aggMillis;
+    private final Aggregation[] aggregations;
+
+    Query(final long startTimeMillis, final long endTimeMillis, final long[] tableIds,
+            final long aggMillis, final Aggregation[] aggregations) {
+      this.startTimeMillis = startTimeMillis;
+      this.endTimeMillis = endTimeMillis;
+      this.tableIds = tableIds;
+      this.aggMillis = aggMillis;
+      this.aggregations = aggregations;
+    }
+
+  }
+
+  private static final class AggregateTask extends RecursiveTask<Buckets> {
+
+    private static final long serialVersionUID = 1L;
+
+    private final transient List<Split> splits;
+    private final int from;
+    private final int to;
+    private final transient Query query;
+
+    AggregateTask(final List<Split> splits, final int from, final int to, final Query query) {
+      this.splits = splits;
+      this.from = from;
+      this.to = to;
+      this.query = query;
+    }
+
+    @Override
+    protected Buckets compute() {
+      if (to - from == 1) {
+        Buckets buckets = new Buckets(query.aggregations);
+        try {
+          splits.get(from).scan(query.startTimeMillis, query.endTimeMillis, query.tableIds,
+                  (tableId, ts, data) -> buckets.add(Math.floorDiv(ts, query.aggMillis), tableId, ts, data));
+        } catch (IOException ex) {
+          throw new UncheckedIOException("Failed to scan " + splits.get(from), ex);
+        }
+        return buckets;
+      }
+      int mid = (from + to) >>> 1;
+      AggregateTask right = new AggregateTask(splits, mid, to, query);
+      right.fork();
+      Buckets left = new AggregateTask(splits, from, mid, query).compute();
+      left.merge(right.join());
+      return left;
+    }
+
+  }
+
+  /**
+   * Partial aggregation result, time buckets indexed by timestamp / aggMillis.
+   */
+  private static final class Buckets {
+
+    private final Aggregation[] aggregations;
+
+    private final TLongObjectHashMap<Bucket> buckets;
+
+    Buckets(final Aggregation[] aggregations) {
+      this.aggregations = aggregations;
+      this.buckets = new TLongObjectHashMap<>();
+    }
+
+    void add(final long bucketId, final long tableId, final long ts, final long[] data) {
+      Bucket bucket = buckets.get(bucketId);
+      if (bucket == null) {
+        buckets.put(bucketId, new Bucket(tableId, ts, Arrays.copyOf(data, Math.min(data.length,
+                aggregations.length))));
+      } else {
+        bucket.accumulate(aggregations, 1, ts, ts, data);
+      }
+    }
+
+    /**
+     * merge the buckets of a partition that follows (in file order) the partition of this buckets.
+     */
+    void merge(final Buckets other) {
+      other.buckets.forEachEntry((bucketId, obucket) -> {
+        Bucket bucket = buckets.get(bucketId);
+        if (bucket == null) {
+          buckets.put(bucketId, obucket);
+        } else {
+          bucket.accumulate(aggregations, obucket.count, obucket.firstTs, obucket.lastTs, obucket.values);
+        }
+        return true;
+      });
+    }
+
+    List<Observation> toObservations() {
+      long[] keys = buckets.keys();
+      Arrays.sort(keys);
+      List<Observation> result = new ArrayList<>(keys.length);
+      for (long key : keys) {
+        Bucket bucket = buckets.get(key);
+        result.add(new Observation(bucket.lastTs, bucket.count > 1 ? -1L : bucket.tableId,
+                Longs.asList(bucket.values)));
+      }
+      return result;
+    }
+
+  }
+
+  private static final class Bucket {
+
+    private final long tableId;
+    private final long[] values;
+    private long firstTs;
+    private long lastTs;
+    private int count;
+
+    Bucket(final long tableId, final long ts, final long[] values) {
+      this.tableId = tableId;
+      this.values = values;
+      this.firstTs = ts;
+      this.lastTs = ts;
+      this.count = 1;
+    }
+
+    void accumulate(final Aggregation[] aggs, final int ocount, final long ofirstTs, final long olastTs,
+            final long[] ovalues) {
+      int l = Math.min(values.length, ovalues.length);
+      for (int i = 0; i < l; i++) {
+        switch (aggs[i]) {
+          case SUM:
+            values[i] += ovalues[i];
+            break;
+          case MIN:
+            values[i] = Math.min(values[i], ovalues[i]);
+            break;
+          case MAX:
+            values[i] = Math.max(values[i], ovalues[i]);
+            break;
+          case FIRST:
+            if (ofirstTs < firstTs) {
+              values[i] = ovalues[i];
+            }
+            break;
+          case LAST:
+          case UNKNOWN:
+            if (olastTs >= lastTs) {
+              values[i] = ovalues[i];
+            }
+            break;
+          default:
+            throw new UnsupportedOperationException("Unsupported aggregation: " + aggs[i]);
+        }
+      }
+      firstTs = Math.min(firstTs, ofirstTs);
+      lastTs = Math.max(lastTs, olastTs);
+      count += ocount;
+    }
+
+  }
+
+  private static final class TSDBSplit implements Split {
+
+    private final File file;
+    private final List<BlockIndex.Region> regions;
+
+    TSDBSplit(final File file, final List<BlockIndex.Region> regions) {
+      this.file = file;
+      this.regions = regions;
+    }
+
+    @Override
+    public void scan(final long startTimeMillis, final long endTimeMillis, final long[] tableIds,
+            final DataRowConsumer consumer) throws IOException {
+      try (MappedTSDBReader reader = new MappedTSDBReader(file)) {
+        reader.scan(regions, (tableId, ts, data) -> {
+          if (ts >= startTimeMillis && ts <= endTimeMillis && contains(tableIds, tableId)) {
+            consumer.accept(tableId, ts, data);
+          }
+        });
+      }
+    }
+
+    @Override
+    public String toString() {
+      return "TSDBSplit{" + "file=" + file + ", regions=" + regions + '}';
+    }
+
+  }
+
+  /**
+   * Split for tsdb2 files written with a block schema not supported by the {@link MappedTSDBReader}.
+   */
+  private static final class ResolvingTSDBSplit implements Split {
+
+    private final File file;
+
+    ResolvingTSDBSplit(final File file) {
+      this.file = file;
+    }
+
+    @Override
+    public void scan(final long startTimeMillis, final long endTimeMillis, final long[] tableIds,
+            final DataRowConsumer consumer) throws IOException {
+      TSDBQuery.getTimeSeries(file, tableIds, startTimeMillis, endTimeMillis, consumer);
+    }
+
+    @Override
+    public String toString() {
+      return "ResolvingTSDBSplit{" + "file=" + file + '}';
+    }
+
+  }
+
+  private static final class AvroSplit implements Split {
+
+    private final File file;
+    private final long start;
+    private final long end;
+
+    AvroSplit(final File file, final long start, final long end) {
+      this.file = file;
+      this.start = start;
+      this.end = end;
+    }
+
+    @Override
+    public void scan(final long startTimeMillis, final long endTimeMillis, final long[] tableIds,
+            final DataRowConsumer consumer) throws IOException {
+      try (DataFileReader<Observation> reader = new DataFileReader<>(new SeekableFileInput(file),
+              new SpecificDatumReader<>(Observation.class))) {
+        long timeRef = reader.getMetaLong("timeRef");
+        if (start > 0) {
+          // position to the first block that starts after the start position.
+          reader.sync(start);
+        }
+        Observation obs = null;
+        long[] data = new long[0];
+        while (reader.hasNext() && !reader.pastSync(end)) {
+          obs = reader.next(obs);
+          long tableId = obs.getTableDefId();
+          long ts = obs.getRelTimeStamp() + timeRef;
+          if (ts >= startTimeMillis && ts <= endTimeMillis && contains(tableIds, tableId)) {
+            List<Long> values = obs.getData();
+            int nrValues = values.size();
+            if (data.length != nrValues) {
+              data = new long[nrValues];
+            }
+            for (int i = 0; i < nrValues; i++) {
+              data[i] = values.get(i);
+            }
+            consumer.accept(tableId, ts, data);
+          }
+        }
+      }
+    }
+
+    @Override
+    public String toString() {
+      return "AvroSplit{" + "file=" + file + ", start=" + start + ", end=" + end + '}';
+    }
+
+  }
+
+}
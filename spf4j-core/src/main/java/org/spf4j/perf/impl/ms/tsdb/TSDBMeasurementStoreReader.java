@@ -41,6 +41,7 @@ import java.util.Collection;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Predicate;
 import java.util.stream.Collectors;
 import javax.annotation.Nullable;
@@ -100,6 +101,25 @@ public final class TSDBMeasurementStoreReader implements MeasurementStoreQuery {
             (Collection<Long>) measurement.getObjectProp("ids"), measurement);
   }
 
+  /**
+   * Aggregated observations, the file block ranges are scanned and aggregated in parallel.
+   * (see {@link ParallelQueryEngine})
+   *
+   * Unlike {@link #getAggregatedObservations(Schema, Instant, Instant, int, TimeUnit)}, where a aggregation bucket
+   * starts with the first observation after the previous bucket, the buckets are aligned to the aggregation interval
+   * (epoch based), so the result is not the same.
+   */
+  @Override
+  public AvroCloseableIterable<Observation> getParallelAggregatedObservations(final Schema measurement,
+          @Nullable final Instant from, @Nullable final Instant to, final int aggFreq, final TimeUnit tu)
+          throws IOException {
+    ParallelQueryEngine engine = ParallelQueryEngine.DEFAULT;
+    return engine.aggregate(measurement,
+            engine.tsdbSplits(dbFile, from == null ? Long.MIN_VALUE : from.toEpochMilli(),
+                    to == null ? Long.MAX_VALUE : to.toEpochMilli(), ParallelQueryEngine.tableIds(measurement)),
+            from, to, tu.toMillis(aggFreq));
+  }
+
   @Override
   public String toString() {
     return "TSDBMeasurementStoreReader{" + "dbFile=" + dbFile + '}';
@@ -70,6 +70,7 @@ import org.spf4j.base.avro.Converters;
 import org.spf4j.base.avro.Method;
 import org.spf4j.base.avro.StackSampleElement;
 import org.spf4j.io.MemorizingBufferedInputStream;
+import org.spf4j.stackmonitor.CompactSampleTree;
 import org.spf4j.stackmonitor.SampleNode;
 
 /**
@@ -148,6 +149,59 @@ public final class Converter {
     }
   }
 
+  /**
+   * Load a ssdump2 file into a compact, read only, sample tree.
+   * The samples are streamed into the compact tree without creating a SampleNode tree, and without
+   * a per node object allocation, allowing to open much larger profiles.
+   */
+  @Nullable
+  public static CompactSampleTree loadCompact(final File file) throws IOException {
+    try (InputStream fis = newInputStream(file)) {
+      return loadCompact(fis);
+    }
+  }
+
+  @Nullable
+  public static CompactSampleTree loadCompact(@WillNotClose final InputStream fis) throws IOException {
+    try (MemorizingBufferedInputStream bis
+            = new MemorizingBufferedInputStream(fis)) {
+      final PushbackInputStream pis = new PushbackInputStream(bis);
+      final SpecificDatumReader<StackSampleElement> reader =
+              new SpecificDatumReader<>(StackSampleElement.getClassSchema());
+      final BinaryDecoder decoder = DecoderFactory.get().directBinaryDecoder(pis, null);
+      CompactSampleTree.Builder builder = new CompactSampleTree.Builder(1024);
+      StackSampleElement asmp = new StackSampleElement();
+      int read;
+      while ((read = pis.read()) >= 0) {
+        pis.unread(read);
+        reader.read(asmp, decoder);
+        addCompact(builder, asmp);
+      }
+      return builder.getNrNodes() == 0 ? null : builder.build();
+    }
+  }
+
+  /**
+   * Build a compact sample tree from samples in the ssdump2 order (breadth first, sequential ids).
+   */
+  @Nullable
+  public static CompactSampleTree convertCompact(final Iterator<StackSampleElement> samples) throws IOException {
+    CompactSampleTree.Builder builder = new CompactSampleTree.Builder(1024);
+    while (samples.hasNext()) {
+      addCompact(builder, samples.next());
+    }
+    return builder.getNrNodes() == 0 ? null : builder.build();
+  }
+
+  private static void addCompact(final CompactSampleTree.Builder builder, final StackSampleElement asmp)
+          throws IOException {
+    try {
+      builder.add(asmp.getId(), asmp.getParentId(), asmp.getCount(), asmp.getMethod());
+    } catch (IllegalArgumentException ex) {
+      throw new IOException("Invalid sample " + asmp, ex);
+    }
+  }
+
   public static SampleNode load(@WillNotClose final InputStream fis) throws IOException {
     try (MemorizingBufferedInputStream bis
             = new MemorizingBufferedInputStream(fis)) {
@@ -259,6 +313,40 @@ public final class Converter {
     }
   }
 
+  /**
+   * Load samples from a file containing multiple labeled stack samples into compact sample trees.
+   * @param file the ssdump3 file.
+   * @return label -> samples, labels without samples are not returned.
+   * @throws IOException
+   */
+  public static Map<String, CompactSampleTree> loadLabeledDumpsCompact(final File file) throws IOException {
+    try (InputStream bis = newInputStream(file)) {
+      final SpecificDatumReader<StackSampleElement> reader = new SpecificDatumReader<>(StackSampleElement.SCHEMA$);
+      final BinaryDecoder decoder = DecoderFactory.get().directBinaryDecoder(bis, null);
+      long nrItems = decoder.readMapStart();
+      StackSampleElement asmp = new StackSampleElement();
+      Map<String, CompactSampleTree> result = new HashMap<>((int) nrItems);
+      while (nrItems > 0) {
+        for (int i = 0; i < nrItems; i++) {
+          String key = decoder.readString();
+          CompactSampleTree.Builder builder = new CompactSampleTree.Builder(1024);
+          long nrArrayItems = decoder.readArrayStart();
+          while (nrArrayItems > 0) {
+            for (int j = 0; j < nrArrayItems; j++) {
+              addCompact(builder, reader.read(asmp, decoder));
+            }
+            nrArrayItems = decoder.arrayNext();
+          }
+          if (builder.getNrNodes() > 0) {
+            result.put(key, builder.build());
+          }
+        }
+        nrItems = decoder.mapNext();
+      }
+      return result;
+    }
+  }
+
   @SuppressFBWarnings("OCP_OVERLY_CONCRETE_PARAMETER")// it's a private method, don't care about being generic
   private static TIntObjectMap<SampleNode> loadSamples(final Decoder decoder,
           final StackSampleElement pasmp,
@@ -0,0 +1,196 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.ssdump2;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import org.spf4j.base.Throwables;
+import org.spf4j.concurrent.DefaultExecutor;
+import org.spf4j.stackmonitor.CompactSampleTree;
+import org.spf4j.stackmonitor.SampleNode;
+
+/**
+ * Utilities to load and merge large numbers of stack sample dumps (ssdump2, ssdump3, ssdump4).
+ *
+ * @author Zoltan Farkas
+ */
+public final class SampleDumps {
+
+  private SampleDumps() { }
+
+  /**
+   * Load a stack sample dump file.
+   * @param file a ssdump2, ssdump3 or ssdump4 (optionally gzipped for ssdump2/3) file.
+   * @return label -> samples. The label of a ssdump2 file is the label encoded in the file name.
+   */
+  public static Map<String, SampleNode> load(final File file) throws IOException {
+    String fileName = file.getName();
+    if (isSsdump2(fileName)) {
+      SampleNode samples = Converter.load(file);
+      return samples == null ? Collections.emptyMap()
+              : Collections.singletonMap(Converter.getLabelFromSsdump2FileName(fileName), samples);
+    } else if (fileName.endsWith(".ssdump3") || fileName.endsWith(".ssdump3.gz")) {
+      return Converter.loadLabeledDumps(file);
+    } else if (fileName.endsWith(SampleWindows.FILE_EXTENSION)) {
+      return SampleWindows.load(file, Instant.ofEpochMilli(Long.MIN_VALUE), Instant.ofEpochMilli(Long.MAX_VALUE));
+    } else {
+      throw new IOException("Unsupported stack sample file " + file);
+    }
+  }
+
+  /**
+   * Merge (by label) the samples from the provided files, using the default executor.
+   * @see #merge(java.util.Collection, java.util.concurrent.ExecutorService)
+   */
+  public static Map<String, SampleNode> merge(final Collection<File> files) throws IOException {
+    return merge(files, DefaultExecutor.INSTANCE);
+  }
+
+  /**
+   * Merge (by label) the samples from the provided files. The files are split in up to
+   * nr processors partitions, and every partition is loaded and merged in parallel.
+   *
+   * @param files the files to merge.
+   * @param exec the executor to load and merge the files with.
+   * @return label -> merged samples.
+   */
+  public static Map<String, SampleNode> merge(final Collection<File> files, final ExecutorService exec)
+          throws IOException {
+    int nrParts = Math.min(files.size(), org.spf4j.base.Runtime.NR_PROCESSORS);
+    if (nrParts <= 1) {
+      return mergeSequentially(files);
+    }
+    List<List<File>> partitions = new ArrayList<>(nrParts);
+    for (int i = 0; i < nrParts; i++) {
+      partitions.add(new ArrayList<>(files.size() / nrParts + 1));
+    }
+    int i = 0;
+    for (File file : files) {
+      partitions.get(i++ % nrParts).add(file);
+    }
+    List<Future<Map<String, SampleNode>>> futures = new ArrayList<>(nrParts);
+    for (List<File> partition : partitions) {
+      futures.add(exec.submit(() -> mergeSequentially(partition)));
+    }
+    Map<String, SampleNode> result = null;
+    IOException ex = null;
+    for (Future<Map<String, SampleNode>> future : futures) {
+      try {
+        Map<String, SampleNode> partial = future.get();
+        if (result == null) {
+          result = partial;
+        } else {
+          mergeInto(result, partial);
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        IOException ioe = new IOException("Interrupted while merging " + files, e);
+        if (ex != null) {
+          Throwables.suppressLimited(ioe, ex);
+        }
+        throw ioe;
+      } catch (ExecutionException e) {
+        Throwable cause = e.getCause();
+        IOException ioe;
+        if (cause instanceof UncheckedIOException) {
+          ioe = ((UncheckedIOException) cause).getCause();
+        } else if (cause instanceof IOException) {
+          ioe = (IOException) cause;
+        } else {
+          ioe = new IOException("Failed merging " + files, cause);
+        }
+        if (ex != null) {
+          Throwables.suppressLimited(ioe, ex);
+        }
+        ex = ioe;
+      }
+    }
+    if (ex != null) {
+      throw ex;
+    }
+    return result;
+  }
+
+  private static Map<String, SampleNode> mergeSequentially(final Collection<File> files) throws IOException {
+    Map<String, SampleNode> result = new HashMap<>();
+    for (File file : files) {
+      String fileName = file.getName();
+      if (isSsdump2(fileName)) {
+        SampleNode existing = result.get(Converter.getLabelFromSsdump2FileName(fileName));
+        if (existing != null) {
+          // stream into a compact tree, and add it to the existing samples without building a SampleNode tree.
+          CompactSampleTree samples = Converter.loadCompact(file);
+          if (samples != null) {
+            samples.addTo(existing);
+          }
+          continue;
+        }
+      }
+      mergeInto(result, load(file));
+    }
+    return result;
+  }
+
+  private static boolean isSsdump2(final String fileName) {
+    return fileName.endsWith(".ssdump2") || fileName.endsWith(".ssdump2.gz");
+  }
+
+  /**
+   * merge samples into a destination, the source sample nodes are owned by the destination after this call.
+   */
+  private static void mergeInto(final Map<String, SampleNode> destination, final Map<String, SampleNode> source) {
+    for (Map.Entry<String, SampleNode> entry : source.entrySet()) {
+      SampleNode samples = entry.getValue();
+      if (samples == null) {
+        continue;
+      }
+      SampleNode existing = destination.get(entry.getKey());
+      if (existing == null) {
+        destination.put(entry.getKey(), samples);
+      } else {
+        existing.add(samples);
+      }
+    }
+  }
+
+}
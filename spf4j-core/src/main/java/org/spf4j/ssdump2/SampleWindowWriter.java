@@ -0,0 +1,168 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.ssdump2;
+
+import edu.umd.cs.findbugs.annotations.CreatesObligation;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.Flushable;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import javax.annotation.concurrent.NotThreadSafe;
+import org.apache.avro.file.CodecFactory;
+import org.apache.avro.file.DataFileWriter;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.specific.SpecificDatumWriter;
+import org.spf4j.base.Methods;
+import org.spf4j.base.avro.Converters;
+import org.spf4j.base.avro.StackSampleElement;
+import org.spf4j.io.BufferedOutputStream;
+import org.spf4j.stackmonitor.SampleNode;
+
+/**
+ * Appends sampling windows to a ssdump4 file. (see {@link SampleWindows})
+ *
+ * @author Zoltan Farkas
+ */
+@NotThreadSafe
+public final class SampleWindowWriter implements Closeable, Flushable {
+
+  private final File file;
+
+  private final DataFileWriter<GenericRecord> writer;
+
+  private final DataOutputStream indexStream;
+
+  /**
+   * when appending, the avro writer reports positions relative to the initial end of file.
+   */
+  private final long positionOffset;
+
+  @CreatesObligation
+  public SampleWindowWriter(final File file) throws IOException {
+    this.file = file;
+    DataFileWriter<GenericRecord> dfw = new DataFileWriter<>(new SpecificDatumWriter<>(SampleWindows.WINDOW_SCHEMA));
+    dfw.setCodec(CodecFactory.deflateCodec(6));
+    long fileLength = file.length();
+    if (fileLength > 0) {
+      writer = dfw.appendTo(file);
+      positionOffset = fileLength;
+    } else {
+      writer = dfw.create(SampleWindows.WINDOW_SCHEMA, file);
+      positionOffset = 0;
+    }
+    try {
+      FileChannel ch = FileChannel.open(SampleWindows.getIndexFile(file).toPath(),
+              StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+      try {
+        // drop a potentially partially written last entry.
+        long validLength = ch.size() - ch.size() % SampleWindows.INDEX_ENTRY_SIZE;
+        ch.truncate(validLength);
+        ch.position(validLength);
+      } catch (IOException | RuntimeException ex) {
+        ch.close();
+        throw ex;
+      }
+      indexStream = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(ch)));
+    } catch (IOException | RuntimeException ex) {
+      writer.close();
+      throw ex;
+    }
+  }
+
+  /**
+   * Append a sampling window.
+   * @param start the window start (inclusive).
+   * @param end the window end (exclusive).
+   * @param samples label -> samples, null samples are skipped.
+   */
+  public void write(final Instant start, final Instant end, final Map<String, SampleNode> samples)
+          throws IOException {
+    long startMillis = start.toEpochMilli();
+    long endMillis = end.toEpochMilli();
+    long position = positionOffset + writer.sync();
+    boolean written = false;
+    for (Map.Entry<String, SampleNode> entry : samples.entrySet()) {
+      SampleNode node = entry.getValue();
+      if (node == null) {
+        continue;
+      }
+      List<StackSampleElement> elements = new ArrayList<>(64);
+      Converters.convert(Methods.ROOT, node, -1, 0, elements::add);
+      GenericRecord window = new GenericData.Record(SampleWindows.WINDOW_SCHEMA);
+      window.put("start", startMillis);
+      window.put("end", endMillis);
+      window.put("label", entry.getKey());
+      window.put("samples", elements);
+      writer.append(window);
+      written = true;
+    }
+    if (written) {
+      writer.flush();
+      indexStream.writeLong(startMillis);
+      indexStream.writeLong(endMillis);
+      indexStream.writeLong(position);
+      indexStream.flush();
+    }
+  }
+
+  public File getFile() {
+    return file;
+  }
+
+  @Override
+  public void flush() throws IOException {
+    writer.flush();
+    indexStream.flush();
+  }
+
+  @Override
+  public void close() throws IOException {
+    try (DataOutputStream is = indexStream) {
+      writer.close();
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "SampleWindowWriter{" + "file=" + file + '}';
+  }
+
+}
@@ -0,0 +1,266 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.ssdump2;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.annotation.Nullable;
+import org.apache.avro.Schema;
+import org.apache.avro.SchemaBuilder;
+import org.apache.avro.file.DataFileReader;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.specific.SpecificDatumReader;
+import org.spf4j.base.avro.StackSampleElement;
+import org.spf4j.io.BufferedInputStream;
+import org.spf4j.stackmonitor.CompactSampleTree;
+import org.spf4j.stackmonitor.SampleNode;
+
+/**
+ * Continuous profiling format (ssdump4): an append only avro container file (deflate compressed) with one record
+ * per sampling window and label (StackSampleWindow: start, end, label, samples), every window being written in its
+ * own avro block.
+ *
+ * A sidecar index file (ssdump4 file name + ".widx") contains for every window: start millis, end millis
+ * and the file position of the avro block, so that a time range can be loaded without reading the whole file.
+ * The index is written after the window is committed, windows missing from the index are found by scanning.
+ *
+ * @author Zoltan Farkas
+ */
+public final class SampleWindows {
+
+  public static final String FILE_EXTENSION = ".ssdump4";
+
+  static final String INDEX_FILE_EXTENSION = ".widx";
+
+  static final int INDEX_ENTRY_SIZE = 3 * Long.BYTES;
+
+  static final Schema WINDOW_SCHEMA = SchemaBuilder.record("StackSampleWindow").namespace("org.spf4j.ssdump2.avro")
+          .fields()
+          .name("start").doc("window start, millis since epoch, inclusive").type().longType().noDefault()
+          .name("end").doc("window end, millis since epoch, exclusive").type().longType().noDefault()
+          .name("label").doc("the sample collection label").type().stringType().noDefault()
+          .name("samples").type().array().items(StackSampleElement.getClassSchema()).noDefault()
+          .endRecord();
+
+  private SampleWindows() { }
+
+  public static File getIndexFile(final File file) {
+    return new File(file.getPath() + INDEX_FILE_EXTENSION);
+  }
+
+  /**
+   * Read the window index.
+   * @param file the ssdump4 file.
+   * @return the indexed windows, in the order written.
+   */
+  public static List<IndexEntry> readIndex(final File file) throws IOException {
+    List<IndexEntry> result = new ArrayList<>();
+    try (DataInputStream dis = new DataInputStream(new BufferedInputStream(
+            Files.newInputStream(getIndexFile(file).toPath()), 8192))) {
+      while (true) {
+        try {
+          result.add(new IndexEntry(dis.readLong(), dis.readLong(), dis.readLong()));
+        } catch (EOFException ex) {
+          // end of index, or a partially written entry.
+          break;
+        }
+      }
+    } catch (NoSuchFileException ex) {
+      return Collections.emptyList();
+    }
+    return result;
+  }
+
+  /**
+   * Load and merge all windows that overlap with the provided time range.
+   *
+   * @param file the ssdump4 file.
+   * @param from the range start (inclusive).
+   * @param to the range end (exclusive).
+   * @return label -> merged samples.
+   */
+  public static Map<String, SampleNode> load(final File file, final Instant from, final Instant to)
+          throws IOException {
+    Map<String, SampleNode> result = new HashMap<>();
+    readWindows(file, from, to, (label, samples) -> {
+      SampleNode node = Converter.convert(samples.iterator());
+      if (node != null) {
+        SampleNode existing = result.get(label);
+        if (existing == null) {
+          result.put(label, node);
+        } else {
+          existing.add(node);
+        }
+      }
+    });
+    return result;
+  }
+
+  /**
+   * Load and merge all windows that overlap with the provided time range into compact sample trees,
+   * without creating SampleNode trees.
+   *
+   * @param file the ssdump4 file.
+   * @param from the range start (inclusive).
+   * @param to the range end (exclusive).
+   * @return label -> merged samples.
+   */
+  public static Map<String, CompactSampleTree> loadCompact(final File file, final Instant from, final Instant to)
+          throws IOException {
+    Map<String, List<CompactSampleTree>> windows = new HashMap<>();
+    readWindows(file, from, to, (label, samples) -> {
+      CompactSampleTree tree = Converter.convertCompact(samples.iterator());
+      if (tree != null) {
+        windows.computeIfAbsent(label, (l) -> new ArrayList<>(4)).add(tree);
+      }
+    });
+    Map<String, CompactSampleTree> result = new HashMap<>(windows.size() + windows.size() / 3 + 1);
+    for (Map.Entry<String, List<CompactSampleTree>> entry : windows.entrySet()) {
+      result.put(entry.getKey(), CompactSampleTree.merge(entry.getValue()));
+    }
+    return result;
+  }
+
+  private static void readWindows(final File file, final Instant from, final Instant to,
+          final WindowHandler handler) throws IOException {
+    long fromMillis = from.toEpochMilli();
+    long toMillis = to.toEpochMilli();
+    long seekPos = -1;
+    for (IndexEntry entry : readIndex(file)) {
+      seekPos = entry.getPosition();
+      if (entry.getEndMillis() > fromMillis) {
+        break;
+      }
+    }
+    try (DataFileReader<GenericRecord> reader = new DataFileReader<>(file,
+            new SpecificDatumReader<>(WINDOW_SCHEMA))) {
+      if (seekPos > 0) {
+        reader.seek(seekPos);
+      }
+      while (reader.hasNext()) {
+        // no record reuse, the avro methods end up as keys in the sample nodes.
+        GenericRecord window = reader.next();
+        long start = (Long) window.get("start");
+        if (start >= toMillis) {
+          break;
+        }
+        long end = (Long) window.get("end");
+        if (end > fromMillis) {
+          handler.handle(window.get("label").toString(), (List<StackSampleElement>) window.get("samples"));
+        }
+      }
+    }
+  }
+
+  /**
+   * @param file the ssdump4 file.
+   * @return [first window start, last window end] or null if there are no windows in the file.
+   */
+  @Nullable
+  public static Instant[] getTimeRange(final File file) throws IOException {
+    long start = Long.MAX_VALUE;
+    long end = Long.MIN_VALUE;
+    try (DataFileReader<GenericRecord> reader = new DataFileReader<>(file,
+            new SpecificDatumReader<>(WINDOW_SCHEMA))) {
+      List<IndexEntry> index = readIndex(file);
+      if (!index.isEmpty()) {
+        start = index.get(0).getStartMillis();
+        reader.seek(index.get(index.size() - 1).getPosition());
+      }
+      GenericRecord window = null;
+      while (reader.hasNext()) {
+        window = reader.next(window);
+        start = Math.min(start, (Long) window.get("start"));
+        end = Math.max(end, (Long) window.get("end"));
+      }
+    }
+    if (start > end) {
+      return null;
+    }
+    return new Instant[] {Instant.ofEpochMilli(start), Instant.ofEpochMilli(end)};
+  }
+
+  private interface WindowHandler {
+
+    void handle(String label, List<StackSampleElement> samples) throws IOException;
+
+  }
+
+  /**
+   * A window index entry.
+   */
+  public static final class IndexEntry {
+
+    private final long startMillis;
+    private final long endMillis;
+    private final long position;
+
+    public IndexEntry(final long startMillis, final long endMillis, final long position) {
+      this.startMillis = startMillis;
+      this.endMillis = endMillis;
+      this.position = position;
+    }
+
+    public long getStartMillis() {
+      return startMillis;
+    }
+
+    public long getEndMillis() {
+      return endMillis;
+    }
+
+    /**
+     * @return the position of the avro block containing the window.
+     */
+    public long getPosition() {
+      return position;
+    }
+
+    @Override
+    public String toString() {
+      return "IndexEntry{" + "startMillis=" + startMillis + ", endMillis=" + endMillis
+              + ", position=" + position + '}';
+    }
+
+  }
+
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.stackmonitor;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Controls the sampling interval and the number of threads sampled, to keep the sampling overhead
+ * (the time spent sampling / the time between samples) under a CPU budget.
+ *
+ * The sampling cost per thread is measured (exponential moving average) and the controller will:
+ * <ol>
+ * <li>sample all threads (up to the collector limit) increasing the sampling interval up to max interval.</li>
+ * <li>if at max interval the overhead is still over budget, reduce the number of sampled threads.</li>
+ * </ol>
+ * Every sample is weighted with interval / base interval (see {@link #getSampleWeight()}) and the threads subset
+ * is weighted by the collector, so that the aggregated sample trees stay unbiased.
+ *
+ * @author Zoltan Farkas
+ */
+@ThreadSafe
+final class AdaptiveSamplingController {
+
+  private static final double EWMA_ALPHA = 0.1;
+
+  private final long baseIntervalNanos;
+
+  private final long maxIntervalNanos;
+
+  private volatile double cpuBudget;
+
+  private volatile double costPerThreadNanos;
+
+  private volatile long intervalNanos;
+
+  private volatile int maxNrThreads;
+
+  private volatile int lastNrThreads;
+
+  /**
+   * @param baseIntervalNanos the configured sampling interval, the minimum interval.
+   * @param maxIntervalNanos the max sampling interval.
+   * @param cpuBudget the CPU budget, (0, 1], ex: 0.01 for 1%.
+   */
+  AdaptiveSamplingController(final long baseIntervalNanos, final long maxIntervalNanos, final double cpuBudget) {
+    if (baseIntervalNanos <= 0 || maxIntervalNanos < baseIntervalNanos) {
+      throw new IllegalArgumentException("Invalid sampling intervals " + baseIntervalNanos
+              + ", " + maxIntervalNanos);
+    }
+    this.baseIntervalNanos = baseIntervalNanos;
+    this.maxIntervalNanos = maxIntervalNanos;
+    setCpuBudget(cpuBudget);
+    this.intervalNanos = baseIntervalNanos;
+    this.maxNrThreads = Integer.MAX_VALUE;
+    this.costPerThreadNanos = 0;
+    this.lastNrThreads = 0;
+  }
+
+  void setCpuBudget(final double cpuBudget) {
+    if (cpuBudget <= 0 || cpuBudget > 1) {
+      throw new IllegalArgumentException("Invalid CPU budget " + cpuBudget);
+    }
+    this.cpuBudget = cpuBudget;
+  }
+
+  /**
+   * Update the controller with the cost of a sample.
+   * @param costNanos the time spent to take the sample.
+   * @param nrThreads the number of threads sampled, -1 if not known.
+   */
+  synchronized void update(final long costNanos, final int nrThreads) {
+    int nrT = nrThreads <= 0 ? 1 : nrThreads;
+    double tCost = (double) costNanos / nrT;
+    double prevCost = costPerThreadNanos;
+    double cost = prevCost == 0 ? tCost : prevCost + EWMA_ALPHA * (tCost - prevCost);
+    costPerThreadNanos = cost;
+    lastNrThreads = nrT;
+    double budget = cpuBudget;
+    // the max number of threads we can afford at max interval.
+    double affordableThreads = budget * maxIntervalNanos / cost;
+    int maxThreads;
+    if (affordableThreads >= Integer.MAX_VALUE) {
+      maxThreads = Integer.MAX_VALUE;
+    } else {
+      maxThreads = Math.max(1, (int) affordableThreads);
+    }
+    if (nrThreads > 0) {
+      this.maxNrThreads = maxThreads;
+    }
+    double expectedThreads = Math.min(nrT, maxThreads);
+    double interval = expectedThreads * cost / budget;
+    if (interval <= baseIntervalNanos) {
+      intervalNanos = baseIntervalNanos;
+    } else if (interval >= maxIntervalNanos) {
+      intervalNanos = maxIntervalNanos;
+    } else {
+      intervalNanos = (long) interval;
+    }
+  }
+
+  long getIntervalNanos() {
+    return intervalNanos;
+  }
+
+  int getMaxNrThreads() {
+    return maxNrThreads;
+  }
+
+  /**
+   * @return the number of base interval samples a sample represents.
+   */
+  double getSampleWeight() {
+    return (double) intervalNanos / baseIntervalNanos;
+  }
+
+  double getCpuBudget() {
+    return cpuBudget;
+  }
+
+  double getCostPerThreadNanos() {
+    return costPerThreadNanos;
+  }
+
+  int getLastNrThreads() {
+    return lastNrThreads;
+  }
+
+  /**
+   * @return the estimated sampling overhead.
+   */
+  double getEstimatedOverhead() {
+    return costPerThreadNanos * lastNrThreads / intervalNanos;
+  }
+
+  @Override
+  public String toString() {
+    return "AdaptiveSamplingController{" + "baseIntervalNanos=" + baseIntervalNanos + ", maxIntervalNanos="
+            + maxIntervalNanos + ", cpuBudget=" + cpuBudget + ", costPerThreadNanos=" + costPerThreadNanos
+            + ", intervalNanos=" + intervalNanos + ", maxNrThreads=" + maxNrThreads + '}';
+  }
+
+}
@@ -0,0 +1,668 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.stackmonitor;
+
+import gnu.trove.map.TMap;
+import gnu.trove.map.hash.THashMap;
+import gnu.trove.map.hash.TObjectIntHashMap;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import javax.annotation.concurrent.Immutable;
+import javax.annotation.concurrent.NotThreadSafe;
+import org.spf4j.base.Methods;
+import org.spf4j.base.StackSamples;
+import org.spf4j.base.avro.Method;
+
+/**
+ * A read only, array backed, sample tree. Designed to hold large profiles with a much smaller memory footprint
+ * than a SampleNode tree, where every node is a hash map.
+ *
+ * The nodes are stored in breadth first order (the order used by the ssdump formats) in parallel int arrays
+ * (method index, sample count, first child index, number of children), as such the children of a node are
+ * contiguous. The methods are deduplicated into a method table.
+ *
+ * Nodes are accessible as StackSamples via lightweight views ({@link #getRoot()}), and the tree supports the same
+ * traversal and filtering functionality as SampleNode.
+ *
+ * @author Zoltan Farkas
+ */
+@Immutable
+@ParametersAreNonnullByDefault
+public final class CompactSampleTree {
+
+  private final Method[] methods;
+
+  private final int[] methodIdxs;
+
+  private final int[] counts;
+
+  private final int[] firstChild;
+
+  private final int[] nrChildren;
+
+  private final int nrNodes;
+
+  private CompactSampleTree(final Method[] methods, final int[] methodIdxs, final int[] counts,
+          final int[] firstChild, final int[] nrChildren, final int nrNodes) {
+    this.methods = methods;
+    this.methodIdxs = methodIdxs;
+    this.counts = counts;
+    this.firstChild = firstChild;
+    this.nrChildren = nrChildren;
+    this.nrNodes = nrNodes;
+  }
+
+  /**
+   * Create a compact tree from a sample node tree.
+   * @param root the root sample node.
+   * @return the compact tree.
+   */
+  public static CompactSampleTree from(final SampleNode root) {
+    return from(Methods.ROOT, root);
+  }
+
+  public static CompactSampleTree from(final Method rootMethod, final StackSamples root) {
+    Builder builder = new Builder(64);
+    List<StackSamples> level = new ArrayList<>();
+    List<StackSamples> nextLevel = new ArrayList<>();
+    builder.add(0, -1, root.getSampleCount(), rootMethod);
+    level.add(root);
+    int id = 0;
+    int childId = 1;
+    while (!level.isEmpty()) {
+      for (StackSamples node : level) {
+        TMap<Method, ? extends StackSamples> subNodes = node.getSubNodes();
+        final int pid = id;
+        for (Map.Entry<Method, ? extends StackSamples> entry : subNodes.entrySet()) {
+          StackSamples child = entry.getValue();
+          builder.add(childId++, pid, child.getSampleCount(), entry.getKey());
+          nextLevel.add(child);
+        }
+        id++;
+      }
+      List<StackSamples> tmp = level;
+      level = nextLevel;
+      nextLevel = tmp;
+      nextLevel.clear();
+    }
+    return builder.build();
+  }
+
+  public int getNrNodes() {
+    return nrNodes;
+  }
+
+  /**
+   * @return the number of distinct methods in this tree.
+   */
+  public int getNrMethods() {
+    return methods.length;
+  }
+
+  public int getSampleCount() {
+    return counts[0];
+  }
+
+  public Method getRootMethod() {
+    return methods[methodIdxs[0]];
+  }
+
+  public Node getRoot() {
+    return new Node(0);
+  }
+
+  /**
+   * Breadth first traversal, the same semantics as {@link SampleNode#traverse(Method, SampleNode,
+   * SampleNode.Invocation, boolean)}: the traversal stops when the handler returns false.
+   */
+  public void traverse(final SampleNode.Invocation handler) {
+    traverse(handler, true);
+  }
+
+  public void traverse(final SampleNode.Invocation handler, final boolean breadthFirst) {
+    if (breadthFirst) {
+      // the storage order is breadth first.
+      for (int i = 0; i < nrNodes; i++) {
+        Method from = methods[methodIdxs[i]];
+        int fc = firstChild[i];
+        for (int c = fc, l = fc + nrChildren[i]; c < l; c++) {
+          if (!handler.invocation(from, methods[methodIdxs[c]], counts[c])) {
+            return;
+          }
+        }
+      }
+    } else {
+      int[] stack = new int[64];
+      int top = 0;
+      stack[top++] = 0;
+      while (top > 0) {
+        int i = stack[--top];
+        Method from = methods[methodIdxs[i]];
+        int fc = firstChild[i];
+        for (int c = fc, l = fc + nrChildren[i]; c < l; c++) {
+          if (!handler.invocation(from, methods[methodIdxs[c]], counts[c])) {
+            return;
+          }
+          if (top >= stack.length) {
+            stack = Arrays.copyOf(stack, stack.length << 1);
+          }
+          stack[top++] = c;
+        }
+      }
+    }
+  }
+
+  /**
+   * Remove the sub-trees of the methods matching the predicate, the counts of the parents are adjusted
+   * accordingly, the same semantics as {@link SampleNode#filteredBy(java.util.function.Predicate)}.
+   * @param predicate the predicate that matches the methods to remove.
+   * @return the filtered tree, or null if no samples are left.
+   */
+  @Nullable
+  public CompactSampleTree filteredBy(final Predicate<Method> predicate) {
+    int[] newCounts = new int[nrNodes];
+    boolean[] removed = new boolean[methods.length];
+    for (int m = 0; m < methods.length; m++) {
+      removed[m] = predicate.test(methods[m]);
+    }
+    // children are always after their parents, so a reverse iteration computes the children first.
+    for (int i = nrNodes - 1; i >= 0; i--) {
+      int newCount = counts[i];
+      int fc = firstChild[i];
+      for (int c = fc, l = fc + nrChildren[i]; c < l; c++) {
+        if (removed[methodIdxs[c]]) {
+          newCount -= counts[c];
+        } else {
+          newCount -= counts[c] - newCounts[c];
+        }
+      }
+      if (newCount < 0) {
+        throw new IllegalStateException("child sample counts must be <= parent sample count, at node " + i);
+      }
+      newCounts[i] = newCount;
+    }
+    if (newCounts[0] == 0) {
+      return null;
+    }
+    Builder builder = new Builder(nrNodes);
+    // old node index -> new node index, -1 if removed.
+    int[] newIdx = new int[nrNodes];
+    builder.add(0, -1, newCounts[0], methods[methodIdxs[0]]);
+    int nextId = 1;
+    for (int i = 0; i < nrNodes; i++) {
+      if (i > 0 && newIdx[i] <= 0) {
+        continue;
+      }
+      int fc = firstChild[i];
+      for (int c = fc, l = fc + nrChildren[i]; c < l; c++) {
+        if (!removed[methodIdxs[c]] && newCounts[c] > 0) {
+          newIdx[c] = nextId;
+          builder.add(nextId++, newIdx[i], newCounts[c], methods[methodIdxs[c]]);
+        }
+      }
+    }
+    return builder.build();
+  }
+
+  /**
+   * @return this tree as a SampleNode tree.
+   */
+  public SampleNode toSampleNode() {
+    SampleNode[] nodes = new SampleNode[nrNodes];
+    nodes[0] = new SampleNode(counts[0], nrChildren[0]);
+    for (int i = 0; i < nrNodes; i++) {
+      SampleNode node = nodes[i];
+      int fc = firstChild[i];
+      for (int c = fc, l = fc + nrChildren[i]; c < l; c++) {
+        SampleNode child = new SampleNode(counts[c], nrChildren[c]);
+        nodes[c] = child;
+        node.put(methods[methodIdxs[c]], child);
+      }
+    }
+    return nodes[0];
+  }
+
+  /**
+   * Add the samples of this tree to a SampleNode tree, without materializing this tree as a SampleNode tree;
+   * SampleNodes are created only for the stacks that are missing in the destination.
+   * @param destination the sample node that corresponds to the root of this tree.
+   */
+  public void addTo(final SampleNode destination) {
+    SampleNode[] nodes = new SampleNode[nrNodes];
+    destination.addToCount(counts[0]);
+    nodes[0] = destination;
+    for (int i = 0; i < nrNodes; i++) {
+      SampleNode node = nodes[i];
+      int fc = firstChild[i];
+      for (int c = fc, l = fc + nrChildren[i]; c < l; c++) {
+        Method method = methods[methodIdxs[c]];
+        SampleNode child = node.get(method);
+        if (child == null) {
+          child = new SampleNode(counts[c], nrChildren[c]);
+          node.put(method, child);
+        } else {
+          child.addToCount(counts[c]);
+        }
+        nodes[c] = child;
+      }
+    }
+  }
+
+  /**
+   * Merge 2 trees without creating a SampleNode tree; the root method of the first tree is the root method
+   * of the result.
+   * @param a the first tree.
+   * @param b the second tree.
+   * @return the merged tree.
+   */
+  public static CompactSampleTree merge(final CompactSampleTree a, final CompactSampleTree b) {
+    // method index in a -> method index in b, -1 if b does not contain the method.
+    TObjectIntHashMap<Method> bMethods = new TObjectIntHashMap<>(b.methods.length + b.methods.length / 3 + 1,
+            0.75f, -1);
+    for (int m = 0; m < b.methods.length; m++) {
+      bMethods.put(b.methods[m], m);
+    }
+    int[] aToB = new int[a.methods.length];
+    for (int m = 0; m < a.methods.length; m++) {
+      aToB[m] = bMethods.get(a.methods[m]);
+    }
+    boolean[] bMatched = new boolean[b.nrNodes];
+    Builder builder = new Builder(Math.max(a.nrNodes, b.nrNodes));
+    // merged node id -> node index in a and b, -1 if the node is missing from that tree.
+    int[] aIdx = new int[64];
+    int[] bIdx = new int[64];
+    builder.add(0, -1, a.counts[0] + b.counts[0], a.getRootMethod());
+    int nextId = 1;
+    // the merged nodes are created in breadth first order.
+    for (int id = 0; id < nextId; id++) {
+      int ai = aIdx[id];
+      int bi = bIdx[id];
+      int anrc = ai < 0 ? 0 : a.nrChildren[ai];
+      int bnrc = bi < 0 ? 0 : b.nrChildren[bi];
+      if (nextId + anrc + bnrc > aIdx.length) {
+        int newLength = Math.max(aIdx.length << 1, nextId + anrc + bnrc);
+        aIdx = Arrays.copyOf(aIdx, newLength);
+        bIdx = Arrays.copyOf(bIdx, newLength);
+      }
+      int bfc = bi < 0 ? 0 : b.firstChild[bi];
+      int bl = bfc + bnrc;
+      if (anrc > 0) {
+        int afc = a.firstChild[ai];
+        for (int ac = afc, al = afc + anrc; ac < al; ac++) {
+          int bm = aToB[a.methodIdxs[ac]];
+          int match = -1;
+          if (bm >= 0) {
+            for (int bc = bfc; bc < bl; bc++) {
+              if (b.methodIdxs[bc] == bm) {
+                match = bc;
+                bMatched[bc] = true;
+                break;
+              }
+            }
+          }
+          aIdx[nextId] = ac;
+          bIdx[nextId] = match;
+          builder.add(nextId++, id, match < 0 ? a.counts[ac] : a.counts[ac] + b.counts[match],
+                  a.methods[a.methodIdxs[ac]]);
+        }
+      }
+      for (int bc = bfc; bc < bl; bc++) {
+        if (!bMatched[bc]) {
+          aIdx[nextId] = -1;
+          bIdx[nextId] = bc;
+          builder.add(nextId++, id, b.counts[bc], b.methods[b.methodIdxs[bc]]);
+        }
+      }
+    }
+    return builder.build();
+  }
+
+  /**
+   * Merge trees, pairwise, so that every sample is copied log2(trees.size()) times.
+   * @param trees the trees to merge.
+   * @return the merged tree, null if there are no trees to merge.
+   */
+  @Nullable
+  public static CompactSampleTree merge(final List<CompactSampleTree> trees) {
+    if (trees.isEmpty()) {
+      return null;
+    }
+    List<CompactSampleTree> level = new ArrayList<>(trees);
+    int n;
+    while ((n = level.size()) > 1) {
+      int j = 0;
+      for (int i = 0; i < n; i += 2) {
+        level.set(j++, i + 1 < n ? merge(level.get(i), level.get(i + 1)) : level.get(i));
+      }
+      level.subList(j, n).clear();
+    }
+    return level.get(0);
+  }
+
+  /**
+   * @return a copy of the sub-tree of a node, this tree for the root.
+   */
+  private CompactSampleTree subTree(final int rootIdx) {
+    if (rootIdx == 0) {
+      return this;
+    }
+    Builder builder = new Builder(64);
+    // new node id -> node index in this tree, the new ids are assigned in breadth first order.
+    int[] src = new int[64];
+    src[0] = rootIdx;
+    builder.add(0, -1, counts[rootIdx], methods[methodIdxs[rootIdx]]);
+    int nextId = 1;
+    for (int id = 0; id < nextId; id++) {
+      int i = src[id];
+      int nrc = nrChildren[i];
+      if (nextId + nrc > src.length) {
+        src = Arrays.copyOf(src, Math.max(src.length << 1, nextId + nrc));
+      }
+      int fc = firstChild[i];
+      for (int c = fc, l = fc + nrc; c < l; c++) {
+        src[nextId] = c;
+        builder.add(nextId++, id, counts[c], methods[methodIdxs[c]]);
+      }
+    }
+    return builder.build();
+  }
+
+  private int height(final int rootIdx) {
+    int result = 0;
+    // pairs of: node index, depth.
+    int[] stack = new int[128];
+    int top = 0;
+    stack[top++] = rootIdx;
+    stack[top++] = 1;
+    while (top > 0) {
+      int depth = stack[--top];
+      int i = stack[--top];
+      if (depth > result) {
+        result = depth;
+      }
+      int nrc = nrChildren[i];
+      if (top + 2 * nrc > stack.length) {
+        stack = Arrays.copyOf(stack, Math.max(stack.length << 1, top + 2 * nrc));
+      }
+      int fc = firstChild[i];
+      for (int c = fc, l = fc + nrc; c < l; c++) {
+        stack[top++] = c;
+        stack[top++] = depth + 1;
+      }
+    }
+    return result;
+  }
+
+  @Override
+  public String toString() {
+    return "CompactSampleTree{" + "nrNodes=" + nrNodes + ", nrMethods=" + methods.length
+            + ", nrSamples=" + counts[0] + '}';
+  }
+
+  /**
+   * A lightweight view of a tree node.
+   */
+  @Immutable
+  public final class Node implements StackSamples {
+
+    private final int idx;
+
+    private Node(final int idx) {
+      this.idx = idx;
+    }
+
+    public Method getMethod() {
+      return methods[methodIdxs[idx]];
+    }
+
+    @Override
+    public int getSampleCount() {
+      return counts[idx];
+    }
+
+    public int getNrChildren() {
+      return nrChildren[idx];
+    }
+
+    /**
+     * @return the child node for the method, or null if there is none.
+     */
+    @Nullable
+    public Node getChild(final Method method) {
+      int fc = firstChild[idx];
+      for (int c = fc, l = fc + nrChildren[idx]; c < l; c++) {
+        if (methods[methodIdxs[c]].equals(method)) {
+          return new Node(c);
+        }
+      }
+      return null;
+    }
+
+    /**
+     * @return the height of the sub-tree of this node, same as {@link SampleNode#height()}.
+     */
+    public int height() {
+      return CompactSampleTree.this.height(idx);
+    }
+
+    /**
+     * @return a compact copy of the sub-tree of this node.
+     */
+    public CompactSampleTree subTree() {
+      return CompactSampleTree.this.subTree(idx);
+    }
+
+    /**
+     * @return the sub-tree of this node as a SampleNode tree, only this sub-tree is materialized.
+     */
+    public SampleNode toSampleNode() {
+      return subTree().toSampleNode();
+    }
+
+    /**
+     * @return the filtered sub-tree of this node, see {@link CompactSampleTree#filteredBy(Predicate)}.
+     */
+    @Nullable
+    public Node filteredBy(final Predicate<Method> predicate) {
+      CompactSampleTree filtered = subTree().filteredBy(predicate);
+      return filtered == null ? null : filtered.getRoot();
+    }
+
+    /**
+     * @return a new map with the children of this node, try to use getChild or the tree traversal, which
+     * do not create maps.
+     */
+    @Override
+    @Nonnull
+    public TMap<Method, Node> getSubNodes() {
+      int nrc = nrChildren[idx];
+      TMap<Method, Node> result = new THashMap<>(nrc + nrc / 3 + 1);
+      int fc = firstChild[idx];
+      for (int c = fc, l = fc + nrc; c < l; c++) {
+        result.put(methods[methodIdxs[c]], new Node(c));
+      }
+      return result;
+    }
+
+    @Override
+    public void writeJsonTo(final Appendable appendable) throws IOException {
+      writeNodeJsonTo(idx, appendable);
+    }
+
+    @Override
+    public String toString() {
+      StringBuilder sb = new StringBuilder(64);
+      writeJsonTo(sb);
+      return sb.toString();
+    }
+
+  }
+
+  /**
+   * write a node in the same format as SampleNode.writeTo.
+   */
+  private void writeNodeJsonTo(final int rootIdx, final Appendable appendable) throws IOException {
+    int[] stack = new int[64];
+    int top = 0;
+    // positive: node to write, negative: -1 close children, Integer.MIN_VALUE: separator.
+    stack[top++] = rootIdx;
+    while (top > 0) {
+      int i = stack[--top];
+      if (i == Integer.MIN_VALUE) {
+        appendable.append(',');
+        continue;
+      } else if (i < 0) {
+        appendable.append("]}");
+        continue;
+      }
+      appendable.append("{\"");
+      Methods.writeTo(methods[methodIdxs[i]], appendable);
+      appendable.append("\":");
+      appendable.append(Integer.toString(counts[i]));
+      int nrc = nrChildren[i];
+      if (nrc > 0) {
+        appendable.append(",\"c\":[");
+        if (top + 2 * nrc + 1 > stack.length) {
+          stack = Arrays.copyOf(stack, Math.max(stack.length << 1, top + 2 * nrc + 1));
+        }
+        stack[top++] = -1;
+        int fc = firstChild[i];
+        for (int c = fc + nrc - 1; c > fc; c--) {
+          stack[top++] = c;
+          stack[top++] = Integer.MIN_VALUE;
+        }
+        stack[top++] = fc;
+      } else {
+        appendable.append('}');
+      }
+    }
+  }
+
+  /**
+   * Builds a compact tree from nodes provided in breadth first order with sequential ids, starting with root 0.
+   * (the order the ssdump formats are written in)
+   */
+  @NotThreadSafe
+  public static final class Builder {
+
+    private final TObjectIntHashMap<Method> methodIndex;
+
+    private final List<Method> methodList;
+
+    private int[] methodIdxs;
+
+    private int[] counts;
+
+    private int[] firstChild;
+
+    private int[] nrChildren;
+
+    private int nrNodes;
+
+    public Builder(final int initialCapacity) {
+      int cap = Math.max(initialCapacity, 16);
+      methodIndex = new TObjectIntHashMap<>(cap / 4, 0.5f, -1);
+      methodList = new ArrayList<>(cap / 4);
+      methodIdxs = new int[cap];
+      counts = new int[cap];
+      firstChild = new int[cap];
+      nrChildren = new int[cap];
+      nrNodes = 0;
+    }
+
+    /**
+     * Add a node.
+     * @param id the node id, must be the number of nodes added so far.
+     * @param parentId the parent id, -1 for the root.
+     * @param count the sample count.
+     * @param method the method, the instance can be reused by the caller after this call.
+     */
+    public void add(final int id, final int parentId, final int count, final Method method) {
+      if (id != nrNodes) {
+        throw new IllegalArgumentException("Ids must be sequential, expected " + nrNodes + " not " + id);
+      }
+      if (parentId >= id || (parentId < 0 && id != 0) || (parentId >= 0 && id == 0)) {
+        throw new IllegalArgumentException("Invalid parent id " + parentId + " for " + id);
+      }
+      if (id >= counts.length) {
+        int newLength = counts.length << 1;
+        methodIdxs = Arrays.copyOf(methodIdxs, newLength);
+        counts = Arrays.copyOf(counts, newLength);
+        firstChild = Arrays.copyOf(firstChild, newLength);
+        nrChildren = Arrays.copyOf(nrChildren, newLength);
+      }
+      if (parentId >= 0) {
+        int pnrc = nrChildren[parentId];
+        if (pnrc == 0) {
+          firstChild[parentId] = id;
+        } else if (firstChild[parentId] + pnrc != id) {
+          throw new IllegalArgumentException("Nodes not in breadth first order, " + id + ", parent " + parentId);
+        }
+        nrChildren[parentId] = pnrc + 1;
+      }
+      int mIdx = methodIndex.get(method);
+      if (mIdx < 0) {
+        mIdx = methodList.size();
+        Method m = new Method(method.getDeclaringClass(), method.getName());
+        methodList.add(m);
+        methodIndex.put(m, mIdx);
+      }
+      methodIdxs[id] = mIdx;
+      counts[id] = count;
+      firstChild[id] = 0;
+      nrChildren[id] = 0;
+      nrNodes++;
+    }
+
+    public int getNrNodes() {
+      return nrNodes;
+    }
+
+    public CompactSampleTree build() {
+      if (nrNodes == 0) {
+        throw new IllegalStateException("No nodes added");
+      }
+      return new CompactSampleTree(methodList.toArray(new Method[methodList.size()]),
+              Arrays.copyOf(methodIdxs, nrNodes), Arrays.copyOf(counts, nrNodes),
+              Arrays.copyOf(firstChild, nrNodes), Arrays.copyOf(nrChildren, nrNodes), nrNodes);
+    }
+
+  }
+
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.stackmonitor;
+
+import java.util.Arrays;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.NotThreadSafe;
+
+/**
+ * A stack collector that stores the call tree (trie) in parallel primitive arrays: parent node, method id, count.
+ * Stack frames are interned to int ids via a global lock free dictionary (see {@link MethodIds}),
+ * and the children of a node are found via an open addressing hash table keyed by (parent, method id).
+ * The call tree is converted to SampleNode only when retrieved.
+ *
+ * @author Zoltan Farkas
+ */
+@NotThreadSafe
+public final class CompactStackCollector implements StackCollector {
+
+  static final int INITIAL_CAPACITY = 256;
+
+  private int[] parents;
+
+  private int[] methodIds;
+
+  private int[] counts;
+
+  /** nr of nodes, node 0 is the root. */
+  private int nrNodes;
+
+  /** (parent << 32 | methodId) -> node index, open addressing with linear probing, 0 means empty slot. */
+  private long[] childKeys;
+
+  private int[] childNodes;
+
+  public CompactStackCollector() {
+    this(INITIAL_CAPACITY);
+  }
+
+  /**
+   * @param initialCapacity the initial number of call tree nodes, rounded up to a power of 2.
+   * Use a small capacity for short lived collectors (like the per execution context ones),
+   * the collector will grow as needed.
+   */
+  public CompactStackCollector(final int initialCapacity) {
+    if (initialCapacity < 1) {
+      throw new IllegalArgumentException("Invalid initial capacity " + initialCapacity);
+    }
+    int capacity = Math.max(2, Integer.highestOneBit(initialCapacity - 1) << 1);
+    parents = new int[capacity];
+    methodIds = new int[capacity];
+    counts = new int[capacity];
+    childKeys = new long[capacity * 2];
+    childNodes = new int[capacity * 2];
+    nrNodes = 1;
+  }
+
+  @Override
+  public void collect(final StackTraceElement[] stackTrace) {
+    collect(stackTrace, 1);
+  }
+
+  @Override
+  public void collect(final StackTraceElement[] stackTrace, final int count) {
+    counts[0] += count;
+    int node = 0;
+    for (int i = stackTrace.length - 1; i >= 0; i--) {
+      node = getOrCreateChild(node, MethodIds.getId(stackTrace[i]));
+      counts[node] += count;
+    }
+  }
+
+  private int getOrCreateChild(final int parent, final int methodId) {
+    long key = ((long) parent << 32) | (methodId & 0xFFFFFFFFL);
+    int mask = childNodes.length - 1;
+    int slot = hash(key) & mask;
+    while (true) {
+      int child = childNodes[slot];
+      if (child == 0) {
+        break;
+      }
+      if (childKeys[slot] == key) {
+        return child;
+      }
+      slot = (slot + 1) & mask;
+    }
+    int child = nrNodes;
+    if (child >= parents.length) {
+      int newLength = parents.length << 1;
+      parents = Arrays.copyOf(parents, newLength);
+      methodIds = Arrays.copyOf(methodIds, newLength);
+      counts = Arrays.copyOf(counts, newLength);
+    }
+    parents[child] = parent;
+    methodIds[child] = methodId;
+    counts[child] = 0;
+    nrNodes++;
+    childKeys[slot] = key;
+    childNodes[slot] = child;
+    if (nrNodes * 2 > childNodes.length) {
+      rehash(childNodes.length << 1);
+    }
+    return child;
+  }
+
+  private static int hash(final long key) {
+    long h = key * 0x9E3779B97F4A7C15L;
+    return (int) (h ^ (h >>> 32));
+  }
+
+  private void rehash(final int newCapacity) {
+    long[] newKeys = new long[newCapacity];
+    int[] newNodes = new int[newCapacity];
+    int mask = newCapacity - 1;
+    for (int i = 1; i < nrNodes; i++) {
+      long key = ((long) parents[i] << 32) | (methodIds[i] & 0xFFFFFFFFL);
+      int slot = hash(key) & mask;
+      while (newNodes[slot] != 0) {
+        slot = (slot + 1) & mask;
+      }
+      newKeys[slot] = key;
+      newNodes[slot] = i;
+    }
+    childKeys = newKeys;
+    childNodes = newNodes;
+  }
+
+  @Override
+  @Nullable
+  public SampleNode getAndReset() {
+    SampleNode result = get();
+    if (result != null) {
+      nrNodes = 1;
+      counts[0] = 0;
+      Arrays.fill(childNodes, 0);
+    }
+    return result;
+  }
+
+  /**
+   * Convert the call tree to SampleNodes, the parent of a node is always created before the node.
+   */
+  @Override
+  @Nullable
+  public SampleNode get() {
+    if (counts[0] == 0) {
+      return null;
+    }
+    SampleNode[] nodes = new SampleNode[nrNodes];
+    nodes[0] = new SampleNode(counts[0]);
+    for (int i = 1; i < nrNodes; i++) {
+      SampleNode node = new SampleNode(counts[i]);
+      nodes[i] = node;
+      nodes[parents[i]].put(MethodIds.getMethod(methodIds[i]), node);
+    }
+    return nodes[0];
+  }
+
+  public int getNrNodes() {
+    return nrNodes;
+  }
+
+  @Override
+  public String toString() {
+    return "CompactStackCollector{" + "nrNodes=" + nrNodes + ", nrSamples=" + counts[0] + '}';
+  }
+
+}
@@ -33,14 +33,20 @@ package org.spf4j.stackmonitor;
 
 import com.google.common.collect.ImmutableMap;
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import gnu.trove.map.hash.TLongLongHashMap;
 import gnu.trove.set.hash.THashSet;
+import gnu.trove.set.hash.TLongHashSet;
 import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.function.Predicate;
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import javax.annotation.ParametersAreNonnullByDefault;
 import org.spf4j.base.Threads;
 
@@ -50,6 +56,11 @@ import org.spf4j.base.Threads;
  * generated by sampling. 2) Stack trace for the sampling Thread is not created at all, saving some time and creating
  * less garbage.
  *
+ * When state attribution is enabled (spf4j.stackCollector.stateAttribution=true), samples are classified by thread
+ * state and by the thread CPU time consumed since the thread was last sampled, and aggregated under separate labels:
+ * "ON_CPU" (runnable threads that consumed CPU), "BLOCKED" (threads blocked on a monitor) and "WAITING"
+ * (waiting/parked threads, and runnable threads that did not consume CPU, like threads blocked in native IO).
+ *
  * @author zoly
  */
 @ParametersAreNonnullByDefault
@@ -58,6 +69,17 @@ public final class FastStackCollector implements ISampler {
   private static final int DEFAULT_MAX_NR_SAMPLED_THREADS
           = Integer.getInteger("spf4j.stackCollector.maxSampledThreads", 128);
 
+  public static final String ON_CPU = "ON_CPU";
+
+  public static final String BLOCKED = "BLOCKED";
+
+  public static final String WAITING = "WAITING";
+
+  private static final boolean DEFAULT_STATE_ATTRIBUTION
+          = Boolean.getBoolean("spf4j.stackCollector.stateAttribution");
+
+  private static final ThreadMXBean TH_BEAN = ManagementFactory.getThreadMXBean();
+
   private static final String[] IGNORED_THREADS = {
     "Finalizer",
     "Signal Dispatcher",
@@ -71,8 +93,22 @@ public final class FastStackCollector implements ISampler {
 
   private final StackCollector collector;
 
+  @Nullable
+  private final StackCollector blockedCollector;
+
+  @Nullable
+  private final StackCollector waitingCollector;
+
+  /**
+   * thread id -> thread CPU time at the last sample, null when state attribution is disabled.
+   */
+  @Nullable
+  private final TLongLongHashMap lastCpuTimes;
+
   private Thread[] requestFor = new Thread[]{};
 
+  private StackCollector[] requestCollector = new StackCollector[]{};
+
   private final int maxNrSampledThreads;
 
   public FastStackCollector(final boolean collectForMain, final String... xtraIgnoredThreads) {
@@ -97,9 +133,29 @@ public final class FastStackCollector implements ISampler {
    * @param threadFilter when returns true the thread is being ignored
    */
   public FastStackCollector(final Predicate<Thread> threadFilter, final int maxNrSampledThreads) {
+    this(threadFilter, maxNrSampledThreads, DEFAULT_STATE_ATTRIBUTION);
+  }
+
+  /**
+   * @param threadFilter when returns true the thread is being ignored
+   * @param maxNrSampledThreads max number of threads to sample.
+   * @param stateAttribution if true, samples are separated into ON_CPU, BLOCKED and WAITING.
+   */
+  public FastStackCollector(final Predicate<Thread> threadFilter, final int maxNrSampledThreads,
+          final boolean stateAttribution) {
     this.threadFilter = threadFilter;
-    this.collector = new StackCollectorImpl();
+    this.collector = StackCollector.create();
     this.maxNrSampledThreads = maxNrSampledThreads;
+    if (stateAttribution) {
+      this.blockedCollector = StackCollector.create();
+      this.waitingCollector = StackCollector.create();
+      this.lastCpuTimes = TH_BEAN.isThreadCpuTimeSupported() ? new TLongLongHashMap(maxNrSampledThreads * 2)
+              : null;
+    } else {
+      this.blockedCollector = null;
+      this.waitingCollector = null;
+      this.lastCpuTimes = null;
+    }
   }
 
   public static Predicate<Thread> createNameBasedFilter(final boolean collectRunnableThreadsOnly,
@@ -147,12 +203,37 @@ public final class FastStackCollector implements ISampler {
   }
 
   @Override
-  @SuppressFBWarnings("EXS_EXCEPTION_SOFTENING_NO_CHECKED")
   public void sample() {
+    sample(1, maxNrSampledThreads, false);
+  }
+
+  /**
+   * Weighted sample (used by adaptive sampling), when only a subset of the threads are sampled, the sample counts
+   * are scaled by nr threads / nr sampled threads, to keep the aggregated sample trees unbiased.
+   * Fractional weights are rounded randomly, so that the expected count is the weight.
+   */
+  @Override
+  public int sample(final double weight, final int maxNrThreads) {
+    return sample(weight, maxNrThreads, true);
+  }
+
+  /**
+   * @param scaleBySampledThreads if true the sample weight is scaled by nr threads / nr sampled threads,
+   * otherwise every sampled thread is counted with the weight as is.
+   */
+  @SuppressFBWarnings("EXS_EXCEPTION_SOFTENING_NO_CHECKED")
+  private int sample(final double weight, final int maxNrThreads, final boolean scaleBySampledThreads) {
     Thread[] threads = Threads.getThreads();
-    final int nrThreads = Threads.randomFirst(maxNrSampledThreads, threads);
+    if (lastCpuTimes != null && lastCpuTimes.size() > 2 * threads.length) {
+      pruneCpuTimes(threads);
+    }
+    final int nrAllThreads = threads.length;
+    final int nrThreads = Threads.randomFirst(Math.min(maxNrThreads, maxNrSampledThreads), threads);
     if (requestFor.length < nrThreads) {
       requestFor = new Thread[nrThreads];
+      if (blockedCollector != null) {
+        requestCollector = new StackCollector[nrThreads];
+      }
     }
     int j = 0;
     for (int i = 0; i < nrThreads; i++) {
@@ -160,30 +241,112 @@ public final class FastStackCollector implements ISampler {
       if (threadFilter.test(th)) { // not interested in these traces
         continue;
       }
+      if (blockedCollector != null) {
+        requestCollector[j] = classify(th);
+      }
       requestFor[j++] = th;
     }
     Arrays.fill(requestFor, j, requestFor.length, null);
     StackTraceElement[][] stackDump = Threads.getStackTraces(requestFor);
+    double threadWeight = !scaleBySampledThreads || nrThreads == 0 ? weight
+            : weight * nrAllThreads / nrThreads;
+    ThreadLocalRandom rnd = threadWeight == 1 ? null : ThreadLocalRandom.current();
     for (int i = 0; i < j; i++) {
+      int count = rnd == null ? 1 : randomRound(threadWeight, rnd);
+      if (count <= 0) {
+        continue;
+      }
       StackTraceElement[] stackTrace = stackDump[i];
+      StackCollector c = blockedCollector == null ? collector : requestCollector[i];
       if (stackTrace != null && stackTrace.length > 0) {
-        collector.collect(stackTrace);
+        c.collect(stackTrace, count);
       } else {
-        collector.collect(new StackTraceElement[]{
+        c.collect(new StackTraceElement[]{
           new StackTraceElement("Thread", requestFor[i].getName(), "", 0)
-        });
+        }, count);
       }
     }
+    return j;
+  }
+
+  private static int randomRound(final double value, final ThreadLocalRandom rnd) {
+    int result = (int) value;
+    if (rnd.nextDouble() < value - result) {
+      result++;
+    }
+    return result;
+  }
+
+  /**
+   * Classify a thread by its state and CPU time consumed since the last sample.
+   * @return the collector for the thread sample.
+   */
+  private StackCollector classify(final Thread th) {
+    switch (th.getState()) {
+      case BLOCKED:
+        return blockedCollector;
+      case WAITING:
+      case TIMED_WAITING:
+        return waitingCollector;
+      case RUNNABLE:
+        if (lastCpuTimes == null) {
+          return collector;
+        }
+        long cpuTime = TH_BEAN.getThreadCpuTime(th.getId());
+        if (cpuTime < 0) { // thread terminated, or CPU time measurement disabled.
+          return collector;
+        }
+        long prevCpuTime = lastCpuTimes.put(th.getId(), cpuTime);
+        // first time we see a thread, there is no delta, we consider it on CPU.
+        return prevCpuTime == lastCpuTimes.getNoEntryValue() || cpuTime > prevCpuTime
+                ? collector : waitingCollector;
+      default:
+        return collector;
+    }
+  }
+
+  /**
+   * remove the CPU times of the threads that are not alive anymore.
+   */
+  private void pruneCpuTimes(final Thread[] threads) {
+    TLongHashSet alive = new TLongHashSet(threads.length);
+    for (Thread th : threads) {
+      if (th != null) {
+        alive.add(th.getId());
+      }
+    }
+    lastCpuTimes.retainEntries((final long id, final long time) -> alive.contains(id));
+  }
+
+  private static void addNonNull(final ImmutableMap.Builder<String, SampleNode> builder, final String label,
+          @Nullable final SampleNode node) {
+    if (node != null) {
+      builder.put(label, node);
+    }
   }
 
   @Override
   public Map<String, SampleNode> getCollectionsAndReset() {
+    if (blockedCollector != null) {
+      ImmutableMap.Builder<String, SampleNode> builder = ImmutableMap.builder();
+      addNonNull(builder, ON_CPU, collector.getAndReset());
+      addNonNull(builder, BLOCKED, blockedCollector.getAndReset());
+      addNonNull(builder, WAITING, waitingCollector.getAndReset());
+      return builder.build();
+    }
     SampleNode nodes = collector.getAndReset();
     return nodes == null ? Collections.EMPTY_MAP : ImmutableMap.of("ALL", nodes);
   }
 
   @Override
   public Map<String, SampleNode> getCollections() {
+    if (blockedCollector != null) {
+      ImmutableMap.Builder<String, SampleNode> builder = ImmutableMap.builder();
+      addNonNull(builder, ON_CPU, collector.get());
+      addNonNull(builder, BLOCKED, blockedCollector.get());
+      addNonNull(builder, WAITING, waitingCollector.get());
+      return builder.build();
+    }
     SampleNode nodes = collector.get();
     return nodes == null ? Collections.EMPTY_MAP : ImmutableMap.of("ALL", nodes);
   }
@@ -42,6 +42,26 @@ public interface ISampler {
 
   void sample();
 
+  /**
+   * Take a weighted sample, used by the adaptive sampling of the Sampler.
+   * The default implementation does not support weights and thread budgets, and takes a regular sample.
+   *
+   * @param weight the number of regular samples this sample represents.
+   * @param maxNrThreads the max number of threads to sample, every sampled thread is weighted accordingly.
+   * @return the number of threads sampled, -1 if not known.
+   */
+  default int sample(final double weight, final int maxNrThreads) {
+    sample();
+    return -1;
+  }
+
+  /**
+   * Invoked by the sampling thread when sampling stops, implementations can release the resources used for sampling.
+   * The collected samples must remain available.
+   */
+  default void stop() {
+  }
+
   @Nonnull
   Map<String, SampleNode> getCollectionsAndReset();
 
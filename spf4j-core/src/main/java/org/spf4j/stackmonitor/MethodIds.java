@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.stackmonitor;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import javax.annotation.concurrent.ThreadSafe;
+import org.spf4j.base.Methods;
+import org.spf4j.base.avro.Method;
+
+/**
+ * Global dictionary of stack frame methods to int ids.
+ * Lookups of already interned methods are lock free and do not allocate, only new methods are added under a lock.
+ *
+ * @author Zoltan Farkas
+ */
+@ThreadSafe
+final class MethodIds {
+
+  private static final ConcurrentMap<String, ConcurrentMap<String, Integer>> IDS = new ConcurrentHashMap<>(1024);
+
+  private static final Object SYNC = new Object();
+
+  /** id -> method, replaced (under SYNC) when grown. */
+  private static volatile Method[] methods = new Method[1024];
+
+  /** guarded by SYNC. */
+  private static int nrMethods = 0;
+
+  private MethodIds() { }
+
+  static int getId(final StackTraceElement elem) {
+    return getId(elem.getClassName(), elem.getMethodName());
+  }
+
+  static int getId(final String className, final String methodName) {
+    ConcurrentMap<String, Integer> classMethods = IDS.get(className);
+    if (classMethods != null) {
+      Integer id = classMethods.get(methodName);
+      if (id != null) {
+        return id;
+      }
+    }
+    return addMethod(className, methodName);
+  }
+
+  private static int addMethod(final String className, final String methodName) {
+    synchronized (SYNC) {
+      ConcurrentMap<String, Integer> classMethods = IDS.computeIfAbsent(className,
+              (k) -> new ConcurrentHashMap<>(8));
+      Integer id = classMethods.get(methodName);
+      if (id != null) {
+        return id;
+      }
+      int result = nrMethods;
+      Method[] ms = methods;
+      if (result >= ms.length) {
+        ms = Arrays.copyOf(ms, ms.length << 1);
+      }
+      ms[result] = Methods.getMethod(className, methodName);
+      // publish the method before the id.
+      methods = ms;
+      nrMethods = result + 1;
+      classMethods.put(methodName, result);
+      return result;
+    }
+  }
+
+  /**
+   * @param id an id returned by getId.
+   * @return the method with the id.
+   */
+  static Method getMethod(final int id) {
+    return methods[id];
+  }
+
+}
@@ -52,7 +52,7 @@ public final class MxStackCollector implements ISampler {
 
     public MxStackCollector(final Thread ignore) {
       this.ignore = ignore;
-      this.collector = new StackCollectorImpl();
+      this.collector = StackCollector.create();
     }
 
     @Override
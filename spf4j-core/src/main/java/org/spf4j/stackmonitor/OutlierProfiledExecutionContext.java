@@ -0,0 +1,204 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.stackmonitor;
+
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import javax.annotation.Nullable;
+import org.spf4j.base.BasicExecutionContext;
+import org.spf4j.base.ExecutionContext;
+import org.spf4j.base.StackSamples;
+import org.spf4j.base.TimeSource;
+
+/**
+ * An execution context that retains stack samples only if the context turns out to be slow.
+ *
+ * Samples are stored in a bounded buffer (reservoir sampling is used when the buffer is full,
+ * so that the retained samples are uniformly distributed over the context duration, and are weighted
+ * so that they add up to the number of samples taken).
+ * On close, the samples are pushed to the parent context if there is a not closed parent,
+ * otherwise they are handed over to the SlowContextSamples only if the context duration
+ * was over the latency threshold or over its deadline, and dropped otherwise.
+ *
+ * Requires the ProfilingTLAttacher and a TracingExecutionContexSampler to collect samples.
+ *
+ * @author Zoltan Farkas
+ */
+public final class OutlierProfiledExecutionContext extends BasicExecutionContext {
+
+  private static final StackTraceElement[][] EMPTY = new StackTraceElement[0][];
+
+  private final long thresholdNanos;
+
+  private final int maxNrSamples;
+
+  private final SlowContextSamples slowSamples;
+
+  private final Object sync;
+
+  /** the sample buffer. */
+  private StackTraceElement[][] buffer;
+
+  /** the number of samples offered to this context, the first min(nrSamples, maxNrSamples) are in the buffer. */
+  private int nrSamples;
+
+  /** the samples added from child contexts. */
+  private SampleNode sampleNode;
+
+  public OutlierProfiledExecutionContext(final String name, final CharSequence id, final ExecutionContext parent,
+          final Relation relation, final long startTimeNanos, final long deadlineNanos,
+          final long thresholdNanos, final int maxNrSamples, final SlowContextSamples slowSamples) {
+    super(name, id, parent, relation, startTimeNanos, deadlineNanos);
+    if (maxNrSamples < 1) {
+      throw new IllegalArgumentException("Invalid maxNrSamples " + maxNrSamples);
+    }
+    this.thresholdNanos = thresholdNanos;
+    this.maxNrSamples = maxNrSamples;
+    this.slowSamples = slowSamples;
+    this.sync = new Object();
+    this.buffer = EMPTY;
+    this.nrSamples = 0;
+    this.sampleNode = null;
+  }
+
+  @Override
+  public void add(final StackTraceElement[] sample) {
+    synchronized (sync) {
+      int n = nrSamples++;
+      if (n < maxNrSamples) {
+        if (n >= buffer.length) {
+          buffer = Arrays.copyOf(buffer, Math.min(maxNrSamples, Math.max(8, n * 2)));
+        }
+        buffer[n] = sample;
+      } else {
+        int idx = ThreadLocalRandom.current().nextInt(n + 1);
+        if (idx < maxNrSamples) {
+          buffer[idx] = sample;
+        }
+      }
+    }
+  }
+
+  @Override
+  public void add(final StackSamples samples) {
+    synchronized (sync) {
+      if (sampleNode == null) {
+        sampleNode = (SampleNode) samples;
+      } else {
+        sampleNode.add((SampleNode) samples);
+      }
+    }
+  }
+
+  @Nullable
+  private SampleNode toSampleNode() {
+    int nr = Math.min(nrSamples, maxNrSamples);
+    if (nr == 0) {
+      return sampleNode == null ? null : SampleNode.clone(sampleNode);
+    }
+    StackCollector collector = StackCollector.create();
+    if (nrSamples <= maxNrSamples) {
+      for (int i = 0; i < nr; i++) {
+        collector.collect(buffer[i]);
+      }
+    } else {
+      // the reservoir holds a uniform subset of the samples, scale it so that the total is nrSamples.
+      long prev = 0;
+      for (int i = 0; i < nr; i++) {
+        long next = (long) (i + 1) * nrSamples / nr;
+        collector.collect(buffer[i], (int) (next - prev));
+        prev = next;
+      }
+    }
+    return SampleNode.aggregateNullable(collector.getAndReset(), sampleNode);
+  }
+
+  private void clear() {
+    buffer = EMPTY;
+    nrSamples = 0;
+    sampleNode = null;
+  }
+
+  @Override
+  @Nullable
+  public SampleNode getAndClearStackSamples() {
+    synchronized (sync) {
+      SampleNode result = toSampleNode();
+      clear();
+      return result;
+    }
+  }
+
+  @Override
+  @Nullable
+  public StackSamples getStackSamples() {
+    synchronized (sync) {
+      return toSampleNode();
+    }
+  }
+
+  /**
+   * @return the number of samples offered to this context.
+   */
+  public int getNrSamples() {
+    synchronized (sync) {
+      return nrSamples;
+    }
+  }
+
+  @Override
+  public synchronized void close() {
+    if (!isClosed()) {
+      long nanoTime = TimeSource.nanoTime();
+      super.close();
+      synchronized (sync) {
+        ExecutionContext notClosedParent = getNotClosedParent();
+        if (notClosedParent != null) {
+          SampleNode samples = toSampleNode();
+          if (samples != null) {
+            notClosedParent.add(samples);
+          }
+        } else {
+          long durationNanos = nanoTime - getStartTimeNanos();
+          if (durationNanos >= thresholdNanos || nanoTime - getDeadlineNanos() > 0) {
+            SampleNode samples = toSampleNode();
+            if (samples != null) {
+              slowSamples.add(this, durationNanos, samples);
+            }
+          }
+        }
+        clear();
+      }
+    }
+  }
+
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.stackmonitor;
+
+import java.util.concurrent.TimeUnit;
+import org.spf4j.base.ExecutionContext;
+import org.spf4j.base.ExecutionContextFactory;
+
+/**
+ * Factory for OutlierProfiledExecutionContext, can be configured with:
+ * -Dspf4j.execContext.factoryClass=org.spf4j.stackmonitor.OutlierProfiledExecutionContextFactory
+ *
+ * @author Zoltan Farkas
+ */
+public final class OutlierProfiledExecutionContextFactory
+        implements ExecutionContextFactory<OutlierProfiledExecutionContext> {
+
+  private final long thresholdNanos;
+
+  private final int maxNrSamples;
+
+  private final SlowContextSamples slowSamples;
+
+  public OutlierProfiledExecutionContextFactory() {
+    this(TimeUnit.MILLISECONDS.toNanos(Long.getLong("spf4j.outlierProfiling.thresholdMillis", 1000)),
+            Integer.getInteger("spf4j.outlierProfiling.maxSamplesPerContext", 1000),
+            SlowContextSamples.getDefault());
+  }
+
+  /**
+   * @param thresholdNanos the latency threshold over which a context samples are retained.
+   * @param maxNrSamples the max number of samples to retain per context.
+   * @param slowSamples where the slow context samples will be added.
+   */
+  public OutlierProfiledExecutionContextFactory(final long thresholdNanos, final int maxNrSamples,
+          final SlowContextSamples slowSamples) {
+    this.thresholdNanos = thresholdNanos;
+    this.maxNrSamples = maxNrSamples;
+    this.slowSamples = slowSamples;
+  }
+
+  public SlowContextSamples getSlowSamples() {
+    return slowSamples;
+  }
+
+  @Override
+  public OutlierProfiledExecutionContext start(final String name, final CharSequence id,
+          final ExecutionContext parent, final ExecutionContext.Relation relation,
+          final long startTimeNanos, final long deadlineNanos) {
+    return new OutlierProfiledExecutionContext(name, id, parent, relation, startTimeNanos, deadlineNanos,
+            thresholdNanos, maxNrSamples, slowSamples);
+  }
+
+  @Override
+  public String toString() {
+    return "OutlierProfiledExecutionContextFactory{" + "thresholdNanos=" + thresholdNanos
+            + ", maxNrSamples=" + maxNrSamples + '}';
+  }
+
+}
@@ -42,6 +42,18 @@ import org.spf4j.base.StackSamples;
  */
 public final class ProfiledExecutionContext extends BasicExecutionContext {
 
+  /**
+   * the initial capacity of the per context stack collector, most contexts are short lived and will
+   * have a few samples, if any.
+   */
+  private static final int COLLECTOR_INITIAL_CAPACITY
+          = Integer.getInteger("spf4j.profiledExecutionContext.collectorInitialCapacity", 8);
+
+  /** the samples collected for this context, created on the first sample. */
+  @Nullable
+  private StackCollector collector;
+
+  /** the samples added from child contexts. */
   private SampleNode sampleNode;
 
   private final Object sync;
@@ -50,14 +62,20 @@ public final class ProfiledExecutionContext extends BasicExecutionContext {
           final Relation relation, final  long startTimeNanos, final long deadlineNanos) {
     super(name, id, parent, relation, startTimeNanos, deadlineNanos);
     sync = new Object();
+    collector = null;
     sampleNode = null;
   }
 
+  @Nullable
+  private SampleNode getAndResetCollected() {
+    return collector == null ? null : collector.getAndReset();
+  }
+
   @Override
   @Nullable
   public SampleNode getAndClearStackSamples() {
     synchronized (sync) {
-      SampleNode result = sampleNode;
+      SampleNode result = SampleNode.aggregateNullable(getAndResetCollected(), sampleNode);
       sampleNode = null;
       return result;
     }
@@ -67,21 +85,24 @@ public final class ProfiledExecutionContext extends BasicExecutionContext {
   @Nullable
   public StackSamples getStackSamples() {
     synchronized (sync) {
+      SampleNode collected = collector == null ? null : collector.get();
       if (sampleNode == null) {
-        return null;
+        return collected;
+      }
+      if (collected == null) {
+        return SampleNode.clone(sampleNode);
       }
-      return SampleNode.clone(sampleNode);
+      return SampleNode.aggregate(collected, sampleNode);
     }
   }
 
   @Override
   public void add(final StackTraceElement[] sample) {
     synchronized (sync) {
-      if (sampleNode == null) {
-        sampleNode = SampleNode.createSampleNode(sample);
-      } else {
-        SampleNode.addToSampleNode(sampleNode, sample);
+      if (collector == null) {
+        collector = StackCollector.create(COLLECTOR_INITIAL_CAPACITY);
       }
+      collector.collect(sample);
     }
   }
 
@@ -101,10 +122,12 @@ public final class ProfiledExecutionContext extends BasicExecutionContext {
     if (!isClosed()) {
       super.close();
       synchronized (sync) {
-        if (sampleNode != null) {
+        SampleNode samples = SampleNode.aggregateNullable(getAndResetCollected(), sampleNode);
+        sampleNode = samples;
+        if (samples != null) {
           ExecutionContext notClosedParent = getNotClosedParent();
           if (notClosedParent != null) {
-            notClosedParent.add(sampleNode);
+            notClosedParent.add(samples);
           }
         }
       }
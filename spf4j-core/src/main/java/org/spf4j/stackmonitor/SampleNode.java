@@ -104,16 +104,26 @@ public final class SampleNode extends MethodMap<SampleNode> implements Serializa
   }
 
   public static void addToSampleNode(final SampleNode node, final StackTraceElement... stackTrace) {
+    addToSampleNode(node, 1, stackTrace);
+  }
+
+  /**
+   * Add a weighted sample to a sample tree.
+   * @param node the root of the sample tree.
+   * @param count the number of samples this stack trace represents.
+   * @param stackTrace the stack trace.
+   */
+  public static void addToSampleNode(final SampleNode node, final int count, final StackTraceElement... stackTrace) {
     SampleNode prevResult = node;
-    prevResult.sampleCount++;
+    prevResult.sampleCount += count;
     for (int i = stackTrace.length - 1; i >= 0; i--) {
       StackTraceElement elem = stackTrace[i];
       final Method method = Methods.getMethod(elem);
       SampleNode nNode = prevResult.get(method);
       if (nNode != null) {
-        nNode.sampleCount++;
+        nNode.sampleCount += count;
       } else {
-        nNode = new SampleNode(1);
+        nNode = new SampleNode(count);
         prevResult.put(method, nNode);
       }
       prevResult = nNode;
@@ -0,0 +1,306 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.stackmonitor;
+
+import gnu.trove.map.hash.THashMap;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import org.spf4j.base.Methods;
+import org.spf4j.base.Pair;
+import org.spf4j.base.avro.Method;
+
+/**
+ * A differential sample tree between 2 sample trees (before and after).
+ * The sample counts are normalized with the total sample count of their tree, so that trees with different
+ * number of samples (different sampling durations/number of dumps) can be compared,
+ * the delta of a node is: after / afterTotal - before / beforeTotal.
+ *
+ * @author Zoltan Farkas
+ */
+@ParametersAreNonnullByDefault
+public final class SampleNodeDiff {
+
+  /** label of the sample tree of the positive deltas. (see {@link #toSampleNodes(int)}) */
+  public static final String REGRESSIONS = "regressions";
+
+  /** label of the sample tree of the negative deltas. (see {@link #toSampleNodes(int)}) */
+  public static final String IMPROVEMENTS = "improvements";
+
+  private final int before;
+
+  private final int after;
+
+  private final double beforeFraction;
+
+  private final double afterFraction;
+
+  private final Map<Method, SampleNodeDiff> children;
+
+  private SampleNodeDiff(@Nullable final SampleNode beforeNode, @Nullable final SampleNode afterNode,
+          final int beforeTotal, final int afterTotal) {
+    this.before = beforeNode == null ? 0 : beforeNode.getSampleCount();
+    this.after = afterNode == null ? 0 : afterNode.getSampleCount();
+    this.beforeFraction = beforeTotal == 0 ? 0 : (double) before / beforeTotal;
+    this.afterFraction = afterTotal == 0 ? 0 : (double) after / afterTotal;
+    int nrChildren = Math.max(beforeNode == null ? 0 : beforeNode.size(), afterNode == null ? 0 : afterNode.size());
+    this.children = nrChildren == 0 ? Collections.emptyMap() : new THashMap<>(nrChildren + 1);
+  }
+
+  /**
+   * Compute the differential tree between 2 sample trees.
+   * The trees are traversed with a explicit stack, (no recursion) to handle deep stacks.
+   * @param before the baseline samples.
+   * @param after the samples to compare with the baseline.
+   * @return the differential tree.
+   */
+  public static SampleNodeDiff diff(@Nullable final SampleNode before, @Nullable final SampleNode after) {
+    int beforeTotal = before == null ? 0 : before.getSampleCount();
+    int afterTotal = after == null ? 0 : after.getSampleCount();
+    SampleNodeDiff result = new SampleNodeDiff(before, after, beforeTotal, afterTotal);
+    Deque<DiffTraversal> dq = new ArrayDeque<>();
+    dq.add(new DiffTraversal(result, before, after));
+    DiffTraversal t;
+    while ((t = dq.pollLast()) != null) {
+      Map<Method, SampleNode> beforeChildren = t.before == null ? Collections.emptyMap() : t.before;
+      Map<Method, SampleNode> afterChildren = t.after == null ? Collections.emptyMap() : t.after;
+      for (Map.Entry<Method, SampleNode> entry : beforeChildren.entrySet()) {
+        Method m = entry.getKey();
+        SampleNode beforeChild = entry.getValue();
+        SampleNode afterChild = afterChildren.get(m);
+        SampleNodeDiff child = new SampleNodeDiff(beforeChild, afterChild, beforeTotal, afterTotal);
+        t.diff.children.put(m, child);
+        if (!child.children.isEmpty()) {
+          dq.addLast(new DiffTraversal(child, beforeChild, afterChild));
+        }
+      }
+      for (Map.Entry<Method, SampleNode> entry : afterChildren.entrySet()) {
+        Method m = entry.getKey();
+        if (!beforeChildren.containsKey(m)) {
+          SampleNode afterChild = entry.getValue();
+          SampleNodeDiff child = new SampleNodeDiff(null, afterChild, beforeTotal, afterTotal);
+          t.diff.children.put(m, child);
+          if (!child.children.isEmpty()) {
+            dq.addLast(new DiffTraversal(child, null, afterChild));
+          }
+        }
+      }
+    }
+    return result;
+  }
+
+  public int getBefore() {
+    return before;
+  }
+
+  public int getAfter() {
+    return after;
+  }
+
+  public double getBeforeFraction() {
+    return beforeFraction;
+  }
+
+  public double getAfterFraction() {
+    return afterFraction;
+  }
+
+  /**
+   * @return the normalized delta, positive when the code path takes a larger share of the samples after.
+   */
+  public double getDelta() {
+    return afterFraction - beforeFraction;
+  }
+
+  /**
+   * @return the normalized delta of the samples in this node, excluding the children.
+   */
+  public double getSelfDelta() {
+    double result = getDelta();
+    for (SampleNodeDiff child : children.values()) {
+      result -= child.getDelta();
+    }
+    return result;
+  }
+
+  public Map<Method, SampleNodeDiff> getChildren() {
+    return Collections.unmodifiableMap(children);
+  }
+
+  /**
+   * Convert this diff to sample trees that can be saved as ssdump3 and visualized as flame graphs:
+   * REGRESSIONS containing the positive self deltas and IMPROVEMENTS containing the negative self deltas.
+   * The count of a node is the sum of its (scaled) self delta and the counts of its children.
+   *
+   * @param scale the number of samples that corresponds to a delta of 1 (100%).
+   * @return label -> samples, a label is missing if there are no deltas of its sign.
+   */
+  public Map<String, SampleNode> toSampleNodes(final int scale) {
+    Map<String, SampleNode> result = new THashMap<>(4);
+    SampleNode regressions = toSampleNode(scale, true);
+    if (regressions != null) {
+      result.put(REGRESSIONS, regressions);
+    }
+    SampleNode improvements = toSampleNode(scale, false);
+    if (improvements != null) {
+      result.put(IMPROVEMENTS, improvements);
+    }
+    return result;
+  }
+
+  /**
+   * Post order conversion, with a explicit stack, the nodes are listed in pre-order,
+   * and converted in reverse order, so that the children are converted before their parent.
+   */
+  @Nullable
+  private SampleNode toSampleNode(final int scale, final boolean positive) {
+    List<Conversion> nodes = new ArrayList<>();
+    Deque<Conversion> dq = new ArrayDeque<>();
+    dq.add(new Conversion(null, this, -1));
+    Conversion c;
+    while ((c = dq.pollLast()) != null) {
+      int idx = nodes.size();
+      nodes.add(c);
+      for (Map.Entry<Method, SampleNodeDiff> entry : c.diff.children.entrySet()) {
+        dq.addLast(new Conversion(entry.getKey(), entry.getValue(), idx));
+      }
+    }
+    for (int i = nodes.size() - 1; i >= 0; i--) {
+      c = nodes.get(i);
+      double selfDelta = c.diff.getSelfDelta();
+      long selfCount = Math.round((positive ? selfDelta : -selfDelta) * scale);
+      if (selfCount > 0) {
+        if (c.result == null) {
+          c.result = new SampleNode(0);
+        }
+        c.result.addToCount((int) selfCount);
+      }
+      if (c.result != null && c.parent >= 0) {
+        Conversion parent = nodes.get(c.parent);
+        if (parent.result == null) {
+          parent.result = new SampleNode(0);
+        }
+        parent.result.put(c.method, c.result);
+        parent.result.addToCount(c.result.getSampleCount());
+      }
+    }
+    return nodes.get(0).result;
+  }
+
+  /**
+   * Write this diff as a D3 differential flame graph json (https://github.com/spiermar/d3-flame-graph).
+   * "value" is the max of the before and after normalized counts, and "delta" is the normalized delta.
+   *
+   * @param appendable where to write the json.
+   * @param scale the value that corresponds to 100% of the samples.
+   */
+  public void writeD3JsonTo(final Appendable appendable, final double scale) throws IOException {
+    writeD3JsonTo(Methods.ROOT, appendable, scale);
+  }
+
+  private void writeD3JsonTo(final Method m, final Appendable appendable, final double scale) throws IOException {
+    Deque<Object> dq = new ArrayDeque<>();
+    dq.add(Pair.of(m, this));
+    while (!dq.isEmpty()) {
+      Object obj = dq.removeLast();
+      if (obj instanceof CharSequence) {
+        appendable.append((CharSequence) obj);
+      } else {
+        Map.Entry<Method, SampleNodeDiff> s = (Map.Entry<Method, SampleNodeDiff>) obj;
+        SampleNodeDiff diff = s.getValue();
+        appendable.append("{\"name\":\"");
+        Methods.writeTo(s.getKey(), appendable);
+        appendable.append("\",\"value\":");
+        appendable.append(Double.toString(Math.max(diff.beforeFraction, diff.afterFraction) * scale));
+        appendable.append(",\"delta\":");
+        appendable.append(Double.toString(diff.getDelta() * scale));
+        Iterator<Map.Entry<Method, SampleNodeDiff>> iterator = diff.children.entrySet().iterator();
+        if (iterator.hasNext()) {
+          appendable.append(",\"children\":[");
+          dq.addLast("]}");
+          dq.addLast(iterator.next());
+          while (iterator.hasNext()) {
+            dq.addLast(",");
+            dq.addLast(iterator.next());
+          }
+        } else {
+          appendable.append('}');
+        }
+      }
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "SampleNodeDiff{" + "before=" + before + ", after=" + after + ", delta=" + getDelta()
+            + ", nrChildren=" + children.size() + '}';
+  }
+
+  private static final class DiffTraversal {
+    private final SampleNodeDiff diff;
+    @Nullable
+    private final SampleNode before;
+    @Nullable
+    private final SampleNode after;
+
+    DiffTraversal(final SampleNodeDiff diff, @Nullable final SampleNode before, @Nullable final SampleNode after) {
+      this.diff = diff;
+      this.before = before;
+      this.after = after;
+    }
+
+  }
+
+  private static final class Conversion {
+    @Nullable
+    private final Method method;
+    private final SampleNodeDiff diff;
+    private final int parent;
+    @Nullable
+    private SampleNode result;
+
+    Conversion(@Nullable final Method method, final SampleNodeDiff diff, final int parent) {
+      this.method = method;
+      this.diff = diff;
+      this.parent = parent;
+    }
+
+  }
+
+}
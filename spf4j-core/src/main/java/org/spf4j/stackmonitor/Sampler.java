@@ -35,6 +35,8 @@ import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 import java.io.File;
 import java.io.IOException;
 import java.io.UncheckedIOException;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
 import java.lang.management.ManagementFactory;
 import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
@@ -60,16 +62,19 @@ import org.spf4j.base.DateTimeFormats;
 import org.spf4j.base.SuppressForbiden;
 import org.spf4j.base.TimeSource;
 import org.spf4j.base.Timing;
+import org.spf4j.base.UncheckedExecutionException;
 import org.spf4j.concurrent.DefaultExecutor;
 import org.spf4j.jmx.JmxExport;
 import org.spf4j.jmx.Registry;
 import org.spf4j.ssdump2.Converter;
+import org.spf4j.ssdump2.SampleWindowWriter;
+import org.spf4j.ssdump2.SampleWindows;
 
 /**
  * Utility to sample stack traces. Stack traces can be persisted for later analysis.
  *
  * please read http://sape.inf.usi.ch/sites/default/files/publication/pldi10.pdf pure java stack sampling will probably
- * have safepoint bias.
+ * have safepoint bias. (use the JfrStackCollector from spf4j-jfr, -Dspf4j.sampler.jfr=true, to avoid it)
  *
  * @author zoly
  */
@@ -78,6 +83,13 @@ public final class Sampler {
 
   private static Sampler instance;
 
+  private static Sampler contentionInstance;
+
+  /**
+   * The JMX name the contention sampler is exported as.
+   */
+  public static final String CONTENTION_SAMPLER_JMX_NAME = "ContentionSampler";
+
   public static final String DEFAULT_SS_DUMP_FOLDER = System.getProperty("spf4j.perf.ms.defaultSsdumpFolder",
           System.getProperty("java.io.tmpdir"));
 
@@ -85,6 +97,19 @@ public final class Sampler {
           System.getProperty("spf4j.perf.ms.defaultSsdumpFilePrefix",
                   ManagementFactory.getRuntimeMXBean().getName()));
 
+  private static final boolean USE_JFR = Boolean.getBoolean("spf4j.sampler.jfr");
+
+  /**
+   * The JFR collectors are resolved by name, so that this class does not link against the JFR API,
+   * which is not available on all supported JVMs.
+   */
+  private static final String JFR_STACK_COLLECTOR = "org.spf4j.stackmonitor.jfr.JfrStackCollector";
+
+  private static final String JFR_CONTENTION_COLLECTOR = "org.spf4j.stackmonitor.jfr.JfrContentionCollector";
+
+  private static final int ADAPTIVE_MAX_INTERVAL_FACTOR
+          = Integer.getInteger("spf4j.sampler.adaptive.maxIntervalFactor", 100);
+
   @GuardedBy("sync")
   private boolean stopped;
 
@@ -93,6 +118,15 @@ public final class Sampler {
   private volatile long dumpTimeNanos;
   private final SamplerSupplier stackCollectorSupp;
   private volatile long lastDumpTimeNanos;
+  /** continuous profiling window, 0 when continuous profiling is disabled. */
+  private volatile long windowNanos;
+  private volatile long lastWindowTimeNanos;
+  /** only accessed by the sampling thread. */
+  private SampleWindowWriter windowWriter;
+  /** the sampling CPU budget, 0 when adaptive sampling is disabled. */
+  private volatile double cpuBudget;
+  @Nullable
+  private volatile AdaptiveSamplingController adaptiveController;
 
   private final Object sync = new Object();
 
@@ -106,6 +140,8 @@ public final class Sampler {
 
   private final File dumpFolder;
 
+  private volatile String jmxName = Sampler.class.getSimpleName();
+
   @Override
   public String toString() {
     return "Sampler{" + "stopped=" + stopped + ", sampleTimeNanos="
@@ -114,11 +150,11 @@ public final class Sampler {
   }
 
   public Sampler() {
-    this(10, 3600000, (t) -> new FastStackCollector(false, true, new Thread[]{t}));
+    this(10, 3600000, defaultSamplerSupplier(10));
   }
 
   public Sampler(final int sampleTimeMillis) {
-    this(sampleTimeMillis, 3600000, (t) -> new FastStackCollector(false, true, new Thread[]{t}));
+    this(sampleTimeMillis, 3600000, defaultSamplerSupplier(sampleTimeMillis));
   }
 
   public Sampler(final int sampleTimeMillis, final SamplerSupplier collector) {
@@ -131,7 +167,7 @@ public final class Sampler {
 
   @SuppressFBWarnings("PATH_TRAVERSAL_IN")
   public Sampler(final int sampleTimeMillis, final int dumpTimeMillis) {
-    this(sampleTimeMillis, dumpTimeMillis, (t) -> new FastStackCollector(false, true, new Thread[]{t}),
+    this(sampleTimeMillis, dumpTimeMillis, defaultSamplerSupplier(sampleTimeMillis),
             DEFAULT_SS_DUMP_FOLDER, DEFAULT_SS_DUMP_FILE_NAME_PREFIX);
   }
 
@@ -164,17 +200,44 @@ public final class Sampler {
       throw new IllegalArgumentException("Invalid sample time " + sampleTimeMillis);
     }
     this.dumpTimeNanos = TimeUnit.MILLISECONDS.toNanos(dumpTimeMillis);
+    this.windowNanos = TimeUnit.MILLISECONDS.toNanos(Integer.getInteger("spf4j.sampler.continuousWindowMillis", 0));
+    String budget = System.getProperty("spf4j.sampler.cpuBudget", "0");
+    try {
+      this.cpuBudget = validateCpuBudget(Double.parseDouble(budget));
+    } catch (NumberFormatException ex) {
+      throw new IllegalArgumentException("Invalid spf4j.sampler.cpuBudget = " + budget
+              + ", must be a number in [0, 1]", ex);
+    }
     this.stackCollectorSupp = collector;
     this.filePrefix = dumpFilePrefix;
     this.dumpFolder = dumpFolder;
     this.compressDumps = compressDumps;
   }
 
+  /**
+   * The default stack sampler: a JfrStackCollector when enabled with spf4j.sampler.jfr=true, and JFR and the
+   * spf4j-jfr module are available, a FastStackCollector otherwise.
+   * @param sampleTimeMillis the sampling period.
+   * @return the sampler supplier.
+   */
+  public static SamplerSupplier defaultSamplerSupplier(final int sampleTimeMillis) {
+    if (USE_JFR) {
+      Constructor<? extends ISampler> ctor = getJfrCollectorConstructor(JFR_STACK_COLLECTOR,
+              int.class, Thread[].class);
+      if (ctor != null) {
+        return (t) -> newJfrCollector(ctor, sampleTimeMillis, new Thread[] {t});
+      }
+      Logger.getLogger(Sampler.class.getName()).log(Level.WARNING,
+              "JFR stack sampling not available, using the FastStackCollector");
+    }
+    return (t) -> new FastStackCollector(false, true, new Thread[]{t});
+  }
+
   public static synchronized Sampler getSampler(final int sampleTimeMillis,
           final int dumpTimeMillis,
           final File dumpFolder, final String dumpFilePrefix) throws InterruptedException {
     return getSampler(sampleTimeMillis, dumpTimeMillis,
-            (t) -> new FastStackCollector(false, true, new Thread[]{t}), dumpFolder, dumpFilePrefix);
+            defaultSamplerSupplier(sampleTimeMillis), dumpFolder, dumpFilePrefix);
   }
 
   public static synchronized Sampler getSampler(final int sampleTimeMillis,
@@ -202,8 +265,87 @@ public final class Sampler {
     }
   }
 
+  /**
+   * Get the lock contention sampler (a Sampler with a JfrContentionCollector), which will be exported via JMX
+   * as "ContentionSampler". The sampling thread only drives the periodic drain of the JFR recording, the blocking
+   * events are recorded by the JVM.
+   * @param dumpTimeMillis the interval the contention profiles are dumped to disk at.
+   * @param dumpFolder the dump folder.
+   * @param dumpFilePrefix the dump file prefix.
+   * @return the contention sampler.
+   * @throws UnsupportedOperationException if JFR or the JfrContentionCollector is not available.
+   */
+  public static synchronized Sampler getContentionSampler(final int dumpTimeMillis,
+          final File dumpFolder, final String dumpFilePrefix) throws InterruptedException {
+    if (contentionInstance != null) {
+      contentionInstance.dispose();
+    }
+    Constructor<? extends ISampler> ctor = getJfrCollectorConstructor(JFR_CONTENTION_COLLECTOR, Thread[].class);
+    if (ctor == null) {
+      throw new UnsupportedOperationException("Contention sampling requires JFR and " + JFR_CONTENTION_COLLECTOR);
+    }
+    try {
+      contentionInstance = new Sampler(1000, dumpTimeMillis,
+              (t) -> newJfrCollector(ctor, (Object) new Thread[] {t}),
+              dumpFolder.getCanonicalFile(), dumpFilePrefix);
+    } catch (IOException ex) {
+      throw new UncheckedIOException(ex);
+    }
+    contentionInstance.registerJmx(CONTENTION_SAMPLER_JMX_NAME);
+    return contentionInstance;
+  }
+
+  /**
+   * @return the public constructor of a JFR collector, or null if the collector class is not on the classpath,
+   * or JFR is not available in this JVM.
+   */
+  @Nullable
+  @SuppressFBWarnings("EXS_EXCEPTION_SOFTENING_NO_CHECKED")
+  static Constructor<? extends ISampler> getJfrCollectorConstructor(final String className,
+          final Class<?>... parameterTypes) {
+    try {
+      Class<? extends ISampler> clasz = Class.forName(className).asSubclass(ISampler.class);
+      if (!((Boolean) clasz.getMethod("isAvailable").invoke(null))) {
+        return null;
+      }
+      return clasz.getConstructor(parameterTypes);
+    } catch (ClassNotFoundException | LinkageError ex) {
+      Logger.getLogger(Sampler.class.getName()).log(Level.FINE, "JFR collector {0} not available: {1}",
+              new Object[] {className, ex});
+      return null;
+    } catch (NoSuchMethodException | IllegalAccessException | InvocationTargetException ex) {
+      throw new IllegalStateException("Invalid JFR collector " + className, ex);
+    }
+  }
+
+  static ISampler newJfrCollector(final Constructor<? extends ISampler> ctor, final Object... args) {
+    try {
+      return ctor.newInstance(args);
+    } catch (InstantiationException | IllegalAccessException ex) {
+      throw new IllegalStateException("Cannot instantiate " + ctor, ex);
+    } catch (InvocationTargetException ex) {
+      Throwable cause = ex.getCause();
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else if (cause instanceof Error) {
+        throw (Error) cause;
+      } else {
+        throw new UncheckedExecutionException(cause);
+      }
+    }
+  }
+
   public void registerJmx() {
-    Registry.export(this);
+    registerJmx(Sampler.class.getSimpleName());
+  }
+
+  /**
+   * Export this sampler via JMX.
+   * @param mbeanName the mbean name (in the org.spf4j.stackmonitor domain).
+   */
+  public void registerJmx(final String mbeanName) {
+    jmxName = mbeanName;
+    Registry.export(Sampler.class.getPackage().getName(), mbeanName, this);
   }
 
   @JmxExport(description = "start stack sampling")
@@ -219,6 +361,7 @@ public final class Sampler {
           @Override
           public void doRun() {
             lastDumpTimeNanos = TimeSource.nanoTime();
+            lastWindowTimeNanos = lastDumpTimeNanos;
             synchronized (sync) {
               stackCollector = stackCollectorSupp.get(Thread.currentThread());
             }
@@ -231,36 +374,73 @@ public final class Sampler {
               halfStNanos = 1;
             }
             long maxSleeepNanos = stNanos + halfStNanos;
-            while (true) {
-              try {
-                synchronized (sync) {
-                  stackCollector.sample();
-                  if (stopped) {
-                    break;
+            final double budget = cpuBudget;
+            final AdaptiveSamplingController controller = budget > 0
+                    ? new AdaptiveSamplingController(stNanos, stNanos * ADAPTIVE_MAX_INTERVAL_FACTOR, budget)
+                    : null;
+            adaptiveController = controller;
+            try {
+              while (true) {
+                try {
+                  synchronized (sync) {
+                    if (controller == null) {
+                      stackCollector.sample();
+                    } else {
+                      long startNanos = TimeSource.nanoTime();
+                      int nrThreads = stackCollector.sample(controller.getSampleWeight(),
+                              controller.getMaxNrThreads());
+                      controller.update(TimeSource.nanoTime() - startNanos, nrThreads);
+                      long intervalNanos = controller.getIntervalNanos();
+                      halfStNanos = Math.max(1, intervalNanos / 2);
+                      maxSleeepNanos = intervalNanos + halfStNanos;
+                    }
+                    if (stopped) {
+                      stackCollector.stop();
+                      break;
+                    }
                   }
-                }
-                dumpCounterNanos += sleepTimeNanos;
-                if (dumpCounterNanos >= lDumpTimeNanos) {
-                  long nanosSinceLastDump = TimeSource.nanoTime() - lastDumpTimeNanos;
-                  if (nanosSinceLastDump >= lDumpTimeNanos) {
-                    dumpCounterNanos = 0;
-                    File dumpFile = dumpToFile();
-                    if (dumpFile != null) {
-                      Logger.getLogger(Sampler.class.getName())
-                              .log(Level.INFO, "Stack samples written to {0}", dumpFile);
+                  if (windowNanos > 0) {
+                    long nowNanos = TimeSource.nanoTime();
+                    if (nowNanos - lastWindowTimeNanos >= windowNanos) {
+                      writeWindow(nowNanos, nowNanos - lastDumpTimeNanos >= lDumpTimeNanos);
+                    }
+                    sleepTimeNanos = random.nextLong(halfStNanos, maxSleeepNanos);
+                    TimeUnit.NANOSECONDS.sleep(sleepTimeNanos);
+                    continue;
+                  }
+                  dumpCounterNanos += sleepTimeNanos;
+                  if (dumpCounterNanos >= lDumpTimeNanos) {
+                    long nanosSinceLastDump = TimeSource.nanoTime() - lastDumpTimeNanos;
+                    if (nanosSinceLastDump >= lDumpTimeNanos) {
+                      dumpCounterNanos = 0;
+                      File dumpFile = dumpToFile();
+                      if (dumpFile != null) {
+                        Logger.getLogger(Sampler.class.getName())
+                                .log(Level.INFO, "Stack samples written to {0}", dumpFile);
+                      }
+                      logSlowContextDump();
+                    } else {
+                      dumpCounterNanos = nanosSinceLastDump;
                     }
-                  } else {
-                    dumpCounterNanos = nanosSinceLastDump;
                   }
+                  sleepTimeNanos = random.nextLong(halfStNanos, maxSleeepNanos);
+                  TimeUnit.NANOSECONDS.sleep(sleepTimeNanos);
+                } catch (InterruptedException ex) {
+                  Thread.currentThread().interrupt();
+                  return;
+                } catch (IOException | RuntimeException ex) {
+                  Logger.getLogger(Sampler.class.getName()).log(Level.SEVERE,
+                          "Exception encountered while samplig, will continue sampling", ex);
+                }
+              }
+            } finally {
+              if (windowWriter != null || windowNanos > 0) {
+                try {
+                  writeWindow(TimeSource.nanoTime(), true);
+                } catch (IOException | RuntimeException ex) {
+                  Logger.getLogger(Sampler.class.getName()).log(Level.SEVERE,
+                        "Exception encountered while writing the last sample window", ex);
                 }
-                sleepTimeNanos = random.nextLong(halfStNanos, maxSleeepNanos);
-                TimeUnit.NANOSECONDS.sleep(sleepTimeNanos);
-              } catch (InterruptedException ex) {
-                Thread.currentThread().interrupt();
-                return;
-              } catch (IOException | RuntimeException ex) {
-                Logger.getLogger(Sampler.class.getName()).log(Level.SEVERE,
-                        "Exception encountered while samplig, will continue sampling", ex);
               }
             }
           }
@@ -271,6 +451,115 @@ public final class Sampler {
     }
   }
 
+  private void logSlowContextDump() throws IOException {
+    File slowFile = dumpSlowContextSamples();
+    if (slowFile != null) {
+      Logger.getLogger(Sampler.class.getName())
+              .log(Level.INFO, "Slow execution context samples written to {0}", slowFile);
+    }
+  }
+
+  /**
+   * Write the samples collected since the last window to the continuous profiling file
+   * ([filePrefix]_["yyyyMMdd'T'HHmmssSSSz].ssdump4), and reset the collected samples.
+   *
+   * @param nowNanos the window end.
+   * @param roll if true, the current continuous profiling file is closed, and the next window will be written to
+   * a new file.
+   */
+  private void writeWindow(final long nowNanos, final boolean roll) throws IOException {
+    Map<String, SampleNode> collections;
+    long startNanos;
+    synchronized (sync) {
+      if (stackCollector == null) {
+        return;
+      }
+      collections = stackCollector.getCollectionsAndReset();
+      startNanos = lastWindowTimeNanos;
+      lastWindowTimeNanos = nowNanos;
+    }
+    Timing timing = Timing.getCurrentTiming();
+    if (!collections.isEmpty()) {
+      Instant start = timing.fromNanoTimeToInstant(startNanos);
+      if (windowWriter == null) {
+        windowWriter = new SampleWindowWriter(new File(dumpFolder, filePrefix + '_'
+                + DateTimeFormats.COMPACT_TS_FORMAT.format(start) + SampleWindows.FILE_EXTENSION));
+      }
+      windowWriter.write(start, timing.fromNanoTimeToInstant(nowNanos), collections);
+    }
+    if (roll) {
+      logSlowContextDump();
+      lastDumpTimeNanos = nowNanos;
+      if (windowWriter != null) {
+        windowWriter.close();
+        Logger.getLogger(Sampler.class.getName())
+                .log(Level.INFO, "Stack sample windows written to {0}", windowWriter.getFile());
+        windowWriter = null;
+      }
+    }
+  }
+
+  @JmxExport(description = "continuous profiling window in milliseconds, 0 if disabled")
+  public int getContinuousWindowMillis() {
+    return (int) TimeUnit.NANOSECONDS.toMillis(windowNanos);
+  }
+
+  /**
+   * Enable continuous profiling, the samples will be written every window to a ssdump4 file,
+   * the file will be rolled every dump time. (see SampleWindows)
+   * @param windowMillis the window size in milliseconds, 0 to disable.
+   */
+  @JmxExport
+  public void setContinuousWindowMillis(final int windowMillis) {
+    this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+  }
+
+  @JmxExport(description = "sampling CPU budget for adaptive sampling (ex: 0.01 for 1%), 0 if disabled,"
+          + " changes will be effective at the next start, unless adaptive sampling is already running")
+  public double getCpuBudget() {
+    return cpuBudget;
+  }
+
+  @JmxExport
+  public void setCpuBudget(final double cpuBudget) {
+    this.cpuBudget = validateCpuBudget(cpuBudget);
+    AdaptiveSamplingController controller = adaptiveController;
+    if (controller != null && cpuBudget > 0) {
+      controller.setCpuBudget(cpuBudget);
+    }
+  }
+
+  private static double validateCpuBudget(final double cpuBudget) {
+    if (!(cpuBudget >= 0 && cpuBudget <= 1)) { // NaN fails both comparisons
+      throw new IllegalArgumentException("Invalid CPU budget " + cpuBudget + ", must be in [0, 1]");
+    }
+    return cpuBudget;
+  }
+
+  @JmxExport(description = "adaptive sampling: current sampling interval in microseconds, -1 if not active")
+  public long getAdaptiveSampleTimeMicros() {
+    AdaptiveSamplingController controller = adaptiveController;
+    return controller == null ? -1 : TimeUnit.NANOSECONDS.toMicros(controller.getIntervalNanos());
+  }
+
+  @JmxExport(description = "adaptive sampling: max number of threads sampled, -1 if not active")
+  public int getAdaptiveMaxNrThreads() {
+    AdaptiveSamplingController controller = adaptiveController;
+    return controller == null ? -1 : controller.getMaxNrThreads();
+  }
+
+  @JmxExport(description = "adaptive sampling: sampling cost per thread in nanoseconds, -1 if not active")
+  public double getAdaptiveCostPerThreadNanos() {
+    AdaptiveSamplingController controller = adaptiveController;
+    return controller == null ? -1 : controller.getCostPerThreadNanos();
+  }
+
+  @JmxExport(description = "adaptive sampling: estimated sampling overhead, -1 if not active")
+  public double getAdaptiveEstimatedOverhead() {
+    AdaptiveSamplingController controller = adaptiveController;
+    return controller == null ? -1 : controller.getEstimatedOverhead();
+  }
+
   @JmxExport
   public boolean isCompressDumps() {
     return compressDumps;
@@ -370,6 +659,32 @@ public final class Sampler {
     }
   }
 
+  /**
+   * Dumps the samples of the slow execution contexts collected by {@link SlowContextSamples#getDefault()}
+   * (see {@link OutlierProfiledExecutionContextFactory}), and resets them.
+   * The file name will be of format: [filePrefix]_slow_["yyyyMMdd'T'HHmmssSSSz].ssdump3(.gz)?
+   * with a sample group for every context name.
+   *
+   * @return the saved file, or null if there are no slow context samples.
+   * @throws IOException - io issues while persisting data.
+   */
+  @JmxExport(description = "save the slow execution context samples to file")
+  @Nullable
+  public File dumpSlowContextSamples() throws IOException {
+    Map<String, SampleNode> collections = SlowContextSamples.getDefault().getCollectionsAndReset();
+    if (collections.isEmpty()) {
+      return null;
+    }
+    String fileName = URLEncoder.encode(filePrefix + "_slow_"
+            + DateTimeFormats.COMPACT_TS_FORMAT.format(Instant.now()), StandardCharsets.UTF_8.name()) + ".ssdump3";
+    if (this.compressDumps) {
+      fileName = fileName + ".gz";
+    }
+    File file = new File(dumpFolder, fileName);
+    Converter.saveLabeledDumps(file, collections);
+    return file;
+  }
+
   @JmxExport(description = "stop stack sampling")
   public void stop() throws InterruptedException {
     Future<?> toCancel = null;
@@ -434,7 +749,7 @@ public final class Sampler {
   @PreDestroy
   public void dispose() throws InterruptedException {
     stop();
-    Registry.unregister(this);
+    Registry.unregister(Sampler.class.getPackage().getName(), jmxName);
   }
 
   @JmxExport(description = "interval in milliseconds to save stack stamples periodically")
@@ -47,7 +47,7 @@ public final class SimpleStackCollector implements ISampler {
 
   public SimpleStackCollector(final Thread ignore) {
     this.ignore = ignore;
-    this.collector = new StackCollectorImpl();
+    this.collector = StackCollector.create();
   }
 
   @Override
@@ -0,0 +1,217 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.stackmonitor;
+
+import gnu.trove.map.hash.THashMap;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import javax.annotation.concurrent.ThreadSafe;
+import org.spf4j.base.ExecutionContext;
+
+/**
+ * The stack samples of the slow execution contexts, see {@link OutlierProfiledExecutionContext}.
+ * The samples are merged by context name, and the last N slow contexts are retained with their id.
+ *
+ * @author Zoltan Farkas
+ */
+@ThreadSafe
+public final class SlowContextSamples {
+
+  private static final SlowContextSamples DEFAULT = new SlowContextSamples(
+          Integer.getInteger("spf4j.outlierProfiling.maxRecentContexts", 16),
+          Integer.getInteger("spf4j.outlierProfiling.maxContextNames", 256));
+
+  private final int maxRecent;
+
+  private final int maxNames;
+
+  /** the number of slow contexts dropped since the last reset because maxNames was reached. */
+  private long nrDropped;
+
+  private final Map<String, SampleNode> samplesByName;
+
+  private final ArrayDeque<SlowContext> recent;
+
+  public SlowContextSamples(final int maxRecent) {
+    this(maxRecent, Integer.MAX_VALUE);
+  }
+
+  /**
+   * @param maxRecent the number of most recent slow contexts to retain.
+   * @param maxNames the max number of distinct context names to retain samples for, the samples of contexts with
+   * new names are dropped once this limit is reached, until the next reset.
+   */
+  public SlowContextSamples(final int maxRecent, final int maxNames) {
+    if (maxNames < 1) {
+      throw new IllegalArgumentException("Invalid maxNames " + maxNames);
+    }
+    this.maxRecent = maxRecent;
+    this.maxNames = maxNames;
+    this.nrDropped = 0;
+    this.samplesByName = new THashMap<>();
+    this.recent = new ArrayDeque<>(maxRecent);
+  }
+
+  /**
+   * @return the instance used by the OutlierProfiledExecutionContextFactory default constructor,
+   * drained by the {@link Sampler} with every dump.
+   */
+  public static SlowContextSamples getDefault() {
+    return DEFAULT;
+  }
+
+  /**
+   * Add the samples of a slow context.
+   * @param ctx the context.
+   * @param durationNanos the context duration.
+   * @param samples the context samples, this instance is owned by this object after this call,
+   * and is returned as is by {@link #getRecent()}, a copy of it is merged into the per name samples.
+   */
+  public void add(final ExecutionContext ctx, final long durationNanos, final SampleNode samples) {
+    String name = ctx.getName();
+    synchronized (samplesByName) {
+      SampleNode existing = samplesByName.get(name);
+      if (existing == null) {
+        if (samplesByName.size() >= maxNames) {
+          nrDropped++;
+          return;
+        }
+        samplesByName.put(name, SampleNode.clone(samples));
+      } else {
+        existing.add(SampleNode.clone(samples));
+      }
+      if (maxRecent > 0) {
+        if (recent.size() >= maxRecent) {
+          recent.removeFirst();
+        }
+        recent.addLast(new SlowContext(name, ctx.getId().toString(), durationNanos, samples));
+      }
+    }
+  }
+
+  /**
+   * @return context name -> merged samples of the slow contexts.
+   */
+  public Map<String, SampleNode> getCollectionsAndReset() {
+    synchronized (samplesByName) {
+      Map<String, SampleNode> result = new THashMap<>(samplesByName);
+      samplesByName.clear();
+      recent.clear();
+      nrDropped = 0;
+      return result;
+    }
+  }
+
+  /**
+   * @return context name -> merged samples of the slow contexts.
+   */
+  public Map<String, SampleNode> getCollections() {
+    synchronized (samplesByName) {
+      Map<String, SampleNode> result = new THashMap<>(samplesByName.size() + samplesByName.size() / 3);
+      for (Map.Entry<String, SampleNode> entry : samplesByName.entrySet()) {
+        result.put(entry.getKey(), SampleNode.clone(entry.getValue()));
+      }
+      return result;
+    }
+  }
+
+  /**
+   * @return the most recent slow contexts, oldest first.
+   */
+  public List<SlowContext> getRecent() {
+    synchronized (samplesByName) {
+      return Collections.unmodifiableList(new ArrayList<>(recent));
+    }
+  }
+
+  /**
+   * @return the number of slow contexts dropped since the last reset, because the max number of names was reached.
+   */
+  public long getNrDropped() {
+    synchronized (samplesByName) {
+      return nrDropped;
+    }
+  }
+
+  @Override
+  public String toString() {
+    synchronized (samplesByName) {
+      return "SlowContextSamples{" + "maxRecent=" + maxRecent + ", maxNames=" + maxNames
+              + ", names=" + samplesByName.keySet() + ", nrDropped=" + nrDropped + ", recent=" + recent + '}';
+    }
+  }
+
+  /**
+   * A slow execution context and its stack samples.
+   */
+  public static final class SlowContext {
+
+    private final String name;
+    private final String id;
+    private final long durationNanos;
+    private final SampleNode samples;
+
+    public SlowContext(final String name, final String id, final long durationNanos, final SampleNode samples) {
+      this.name = name;
+      this.id = id;
+      this.durationNanos = durationNanos;
+      this.samples = samples;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public String getId() {
+      return id;
+    }
+
+    public long getDurationNanos() {
+      return durationNanos;
+    }
+
+    public SampleNode getSamples() {
+      return samples;
+    }
+
+    @Override
+    public String toString() {
+      return "SlowContext{" + "name=" + name + ", id=" + id + ", durationNanos=" + durationNanos
+              + ", nrSamples=" + samples.getSampleCount() + '}';
+    }
+
+  }
+
+}
@@ -39,6 +39,27 @@ import javax.annotation.Nullable;
  */
 public interface StackCollector {
 
+    /**
+     * @return a new stack collector, a StackCollectorImpl,
+     * or a CompactStackCollector when spf4j.stackCollector.compact=true.
+     */
+    static StackCollector create() {
+        return create(CompactStackCollector.INITIAL_CAPACITY);
+    }
+
+    /**
+     * @param initialCapacity the initial number of call tree nodes, used by the CompactStackCollector.
+     * @return a new stack collector, a StackCollectorImpl,
+     * or a CompactStackCollector when spf4j.stackCollector.compact=true.
+     */
+    static StackCollector create(final int initialCapacity) {
+        if (StackCollectorConfig.COMPACT) {
+            return new CompactStackCollector(initialCapacity);
+        } else {
+            return new StackCollectorImpl();
+        }
+    }
+
     @Nullable
     SampleNode getAndReset();
 
@@ -47,4 +68,15 @@ public interface StackCollector {
 
     void collect(StackTraceElement[] stackTrace);
 
+    /**
+     * Collect a weighted sample.
+     * @param stackTrace the stack trace.
+     * @param count the number of samples this stack trace represents.
+     */
+    default void collect(final StackTraceElement[] stackTrace, final int count) {
+        for (int i = 0; i < count; i++) {
+            collect(stackTrace);
+        }
+    }
+
 }
@@ -69,6 +69,14 @@ public final class StackCollectorImpl implements StackCollector {
     }
   }
 
+  @Override
+  public void collect(final StackTraceElement[] stackTrace, final int count) {
+    if (samples == null) {
+      samples = new SampleNode(0);
+    }
+    SampleNode.addToSampleNode(samples, count, stackTrace);
+  }
+
   @Override
   public String toString() {
     return "AbstractStackCollector{" + "samples=" + samples + '}';
@@ -61,7 +61,7 @@ public final class ThreadStackSampler implements ISampler {
           final Supplier<Iterable<Thread>> threadSupplier) {
     requestFor = new Thread[maxSampledThreads];
     this.threadSupplier = threadSupplier;
-    this.collector = new StackCollectorImpl();
+    this.collector = StackCollector.create();
   }
 
   @Override
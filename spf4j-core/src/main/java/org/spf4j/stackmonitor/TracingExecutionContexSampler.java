@@ -92,7 +92,7 @@ public class TracingExecutionContexSampler implements ISampler {
           ExecutionContext context = contexts[j];
           context.add(stackTrace);
           String name = ctxToCategory.apply(context);
-          StackCollector c = collections.computeIfAbsent(name, (k) -> new StackCollectorImpl());
+          StackCollector c = collections.computeIfAbsent(name, (k) -> StackCollector.create());
           c.collect(stackTrace);
         }
       }
@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.tsdb2;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Bit level input used by the columnar block decoding, reads what {@link BitOutput} writes.
+ *
+ * @author Zoltan Farkas
+ */
+final class BitInput {
+
+  private final ByteBuffer buffer;
+
+  private int current;
+
+  private int bitsLeft;
+
+  /**
+   * @param buffer the buffer to read from, bytes between position and limit will be consumed.
+   */
+  BitInput(final ByteBuffer buffer) {
+    this.buffer = buffer;
+  }
+
+  boolean readBit() {
+    if (bitsLeft == 0) {
+      current = buffer.get() & 0xFF;
+      bitsLeft = 8;
+    }
+    bitsLeft--;
+    return ((current >>> bitsLeft) & 1) != 0;
+  }
+
+  long readBits(final int nrBits) {
+    long result = 0;
+    int i = nrBits;
+    while (i > 0) {
+      if (bitsLeft == 0) {
+        current = buffer.get() & 0xFF;
+        bitsLeft = 8;
+      }
+      int n = Math.min(bitsLeft, i);
+      int bits = (current >>> (bitsLeft - n)) & ((1 << n) - 1);
+      result = (result << n) | bits;
+      bitsLeft -= n;
+      i -= n;
+    }
+    return result;
+  }
+
+  long readVarLong() {
+    long result = 0;
+    int shift = 0;
+    long b;
+    do {
+      if (shift > 63) {
+        throw new IllegalStateException("Invalid var long " + this);
+      }
+      b = readBits(8);
+      result |= (b & 0x7F) << shift;
+      shift += 7;
+    } while ((b & 0x80) != 0);
+    return result;
+  }
+
+  long readZigZagVarLong() {
+    long value = readVarLong();
+    return (value >>> 1) ^ -(value & 1);
+  }
+
+  @Override
+  public String toString() {
+    return "BitInput{" + "buffer=" + buffer + ", bitsLeft=" + bitsLeft + '}';
+  }
+
+}
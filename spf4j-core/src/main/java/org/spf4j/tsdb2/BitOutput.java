@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.tsdb2;
+
+import java.util.Arrays;
+
+/**
+ * Bit level output used by the columnar block encoding. Bits are written most significant first.
+ *
+ * @author Zoltan Farkas
+ */
+final class BitOutput {
+
+  private byte[] buffer;
+
+  private int size;
+
+  private int current;
+
+  private int nrBits;
+
+  BitOutput(final int initialSize) {
+    buffer = new byte[initialSize];
+  }
+
+  void writeBit(final boolean bit) {
+    current = (current << 1) | (bit ? 1 : 0);
+    if (++nrBits == 8) {
+      appendCurrent();
+    }
+  }
+
+  /**
+   * write the lower nrBits of value.
+   */
+  void writeBits(final long value, final int nrBits) {
+    int i = nrBits;
+    while (i > 0) {
+      int n = Math.min(8 - this.nrBits, i);
+      int bits = (int) ((value >>> (i - n)) & ((1 << n) - 1));
+      current = (current << n) | bits;
+      this.nrBits += n;
+      i -= n;
+      if (this.nrBits == 8) {
+        appendCurrent();
+      }
+    }
+  }
+
+  /**
+   * write a unsigned variable length long, 7 bits at a time.
+   */
+  void writeVarLong(final long pvalue) {
+    long value = pvalue;
+    while ((value & ~0x7FL) != 0) {
+      writeBits((value & 0x7F) | 0x80, 8);
+      value >>>= 7;
+    }
+    writeBits(value, 8);
+  }
+
+  void writeZigZagVarLong(final long value) {
+    writeVarLong((value << 1) ^ (value >> 63));
+  }
+
+  private void appendCurrent() {
+    if (size == buffer.length) {
+      buffer = Arrays.copyOf(buffer, Math.max(16, size << 1));
+    }
+    buffer[size++] = (byte) current;
+    current = 0;
+    nrBits = 0;
+  }
+
+  /**
+   * @return the written bytes, the last byte is padded with zero bits.
+   */
+  byte[] toByteArray() {
+    byte[] result = Arrays.copyOf(buffer, nrBits > 0 ? size + 1 : size);
+    if (nrBits > 0) {
+      result[size] = (byte) (current << (8 - nrBits));
+    }
+    return result;
+  }
+
+  @Override
+  public String toString() {
+    return "BitOutput{" + "size=" + size + ", nrBits=" + nrBits + '}';
+  }
+
+}
@@ -0,0 +1,389 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.tsdb2;
+
+import com.google.common.io.ByteStreams;
+import edu.umd.cs.findbugs.annotations.CreatesObligation;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import javax.annotation.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.spf4j.base.Strings;
+import org.spf4j.io.BufferedInputStream;
+import org.spf4j.io.BufferedOutputStream;
+import org.spf4j.io.CountingInputStream;
+
+/**
+ * Sparse index of the data blocks in a tsdb2 file. The index is stored in a sidecar file (tsdb2 file name + ".bidx")
+ * and contains for every data block: the file offsets where the block starts and ends, the min and max timestamp of
+ * the rows in the block and the ids of the tables that have rows in the block.
+ *
+ * The index is append only, and entries are written after the block is committed in the data file,
+ * as such the index can be missing blocks at the end (crash), or at the beginning (file written by an older writer),
+ * these regions are scanned by the query (see {@link #plan(long, long, long, long, long[])}).
+ * A corrupt index is handled the same way: the valid entries before the corruption are used, and the rest of the
+ * file is scanned; if the index header is corrupt, the index is ignored and the whole file is scanned.
+ *
+ * @author Zoltan Farkas
+ */
+public final class BlockIndex {
+
+  static final byte[] MAGIC = Strings.toUtf8("TSDB2BIDX");
+
+  static final int VERSION = 1;
+
+  private static final Logger LOG = LoggerFactory.getLogger(BlockIndex.class);
+
+  private static final String FILE_EXTENSION = ".bidx";
+
+  private final List<Entry> entries;
+
+  private BlockIndex(final List<Entry> entries) {
+    this.entries = entries;
+  }
+
+  public static File getIndexFile(final File tsdbFile) {
+    return new File(tsdbFile.getPath() + FILE_EXTENSION);
+  }
+
+  /**
+   * Load the index of a tsdb2 file.
+   * @param tsdbFile the tsdb2 file.
+   * @return the block index, or null if there is no (valid) index for this file, in which case the whole file
+   * needs to be scanned.
+   * @throws IOException
+   */
+  @Nullable
+  public static BlockIndex load(final File tsdbFile) throws IOException {
+    List<Entry> entries = new ArrayList<>();
+    File indexFile = getIndexFile(tsdbFile);
+    try (DataInputStream dis = new DataInputStream(new BufferedInputStream(
+            Files.newInputStream(indexFile.toPath()), 8192))) {
+      if (!isValidType(dis)) {
+        LOG.warn("Ignoring corrupt block index {}, {} will be fully scanned", indexFile, tsdbFile);
+        return null;
+      }
+      while (true) {
+        Entry entry;
+        try {
+          entry = Entry.read(dis);
+        } catch (EOFException ex) {
+          // end of index, or a partially written entry, which will be ignored.
+          break;
+        }
+        if (entry == null) {
+          LOG.warn("Corrupt block index entry in {} after {} entries, the rest of {} will be scanned",
+                  indexFile, entries.size(), tsdbFile);
+          break;
+        }
+        entries.add(entry);
+      }
+    } catch (NoSuchFileException ex) {
+      return null;
+    }
+    return new BlockIndex(entries);
+  }
+
+  /**
+   * @return true if the index header is valid, false if the header is invalid or incomplete.
+   */
+  static boolean isValidType(final InputStream dis) throws IOException {
+    byte[] readMagic = new byte[MAGIC.length];
+    try {
+      ByteStreams.readFully(dis, readMagic);
+      return Arrays.equals(MAGIC, readMagic) && new DataInputStream(dis).readInt() == VERSION;
+    } catch (EOFException ex) {
+      return false;
+    }
+  }
+
+  public List<Entry> getEntries() {
+    return Collections.unmodifiableList(entries);
+  }
+
+  /**
+   * Compute the file regions that need to be read to retrieve the data of the provided tables
+   * in the provided time range.
+   *
+   * @param dataStart the file position where the data starts. (after header)
+   * @param dataEnd the file position where the data ends. (the committed file size)
+   * @param startTimeMillis the start time.
+   * @param endTimeMillis the end time.
+   * @param tableIds the tables we are interested in, null for all tables.
+   * @return the list of regions to read, ordered by position.
+   */
+  public List<Region> plan(final long dataStart, final long dataEnd,
+          final long startTimeMillis, final long endTimeMillis, @Nullable final long[] tableIds) {
+    List<Region> result = new ArrayList<>();
+    long pos = dataStart;
+    for (Entry entry : entries) {
+      long start = entry.getStartOffset();
+      long end = entry.getEndOffset();
+      if (end > dataEnd) {
+        break;
+      }
+      if (start < pos) {
+        continue;
+      }
+      if (start > pos) {
+        // not indexed region, can contain table definitions and not indexed blocks.
+        result.add(new Region(pos, start, false));
+      }
+      if (entry.overlaps(startTimeMillis, endTimeMillis)
+              && (tableIds == null || entry.containsAny(tableIds))) {
+        result.add(new Region(start, end, true));
+      }
+      pos = end;
+    }
+    if (pos < dataEnd) {
+      result.add(new Region(pos, dataEnd, false));
+    }
+    return result;
+  }
+
+  @Override
+  public String toString() {
+    return "BlockIndex{" + "entries=" + entries.size() + '}';
+  }
+
+  /**
+   * A file region [startOffset, endOffset).
+   */
+  public static final class Region {
+
+    private final long startOffset;
+    private final long endOffset;
+    private final boolean indexedBlock;
+
+    public Region(final long startOffset, final long endOffset, final boolean indexedBlock) {
+      this.startOffset = startOffset;
+      this.endOffset = endOffset;
+      this.indexedBlock = indexedBlock;
+    }
+
+    public long getStartOffset() {
+      return startOffset;
+    }
+
+    public long getEndOffset() {
+      return endOffset;
+    }
+
+    /**
+     * @return true if this region is exactly one indexed data block, false if this is a region that is not indexed.
+     */
+    public boolean isIndexedBlock() {
+      return indexedBlock;
+    }
+
+    @Override
+    public String toString() {
+      return "Region{" + "startOffset=" + startOffset + ", endOffset=" + endOffset
+              + ", indexedBlock=" + indexedBlock + '}';
+    }
+
+  }
+
+  public static final class Entry {
+
+    private final long startOffset;
+    private final long endOffset;
+    private final long minTimestamp;
+    private final long maxTimestamp;
+    private final long[] tableIds;
+
+    public Entry(final long startOffset, final long endOffset,
+            final long minTimestamp, final long maxTimestamp, final long[] tableIds) {
+      this.startOffset = startOffset;
+      this.endOffset = endOffset;
+      this.minTimestamp = minTimestamp;
+      this.maxTimestamp = maxTimestamp;
+      this.tableIds = tableIds;
+    }
+
+    /**
+     * @return the entry, or null if the entry is invalid (corrupt index).
+     * @throws EOFException if the index ends before the end of the entry.
+     */
+    @Nullable
+    static Entry read(final DataInputStream dis) throws IOException {
+      long start = dis.readLong();
+      long end = dis.readLong();
+      long minTs = dis.readLong();
+      long maxTs = dis.readLong();
+      int nrIds = dis.readInt();
+      if (start < 0 || end <= start || minTs > maxTs || nrIds < 0 || nrIds > end - start) {
+        return null;
+      }
+      long[] ids = new long[nrIds];
+      for (int i = 0; i < nrIds; i++) {
+        ids[i] = dis.readLong();
+      }
+      return new Entry(start, end, minTs, maxTs, ids);
+    }
+
+    void write(final DataOutputStream dos) throws IOException {
+      dos.writeLong(startOffset);
+      dos.writeLong(endOffset);
+      dos.writeLong(minTimestamp);
+      dos.writeLong(maxTimestamp);
+      dos.writeInt(tableIds.length);
+      for (long id : tableIds) {
+        dos.writeLong(id);
+      }
+    }
+
+    public long getStartOffset() {
+      return startOffset;
+    }
+
+    public long getEndOffset() {
+      return endOffset;
+    }
+
+    public long getMinTimestamp() {
+      return minTimestamp;
+    }
+
+    public long getMaxTimestamp() {
+      return maxTimestamp;
+    }
+
+    public boolean overlaps(final long startTimeMillis, final long endTimeMillis) {
+      return minTimestamp <= endTimeMillis && maxTimestamp >= startTimeMillis;
+    }
+
+    public boolean containsAny(final long[] ids) {
+      for (long id : ids) {
+        for (long tid : tableIds) {
+          if (id == tid) {
+            return true;
+          }
+        }
+      }
+      return false;
+    }
+
+    @Override
+    public String toString() {
+      return "Entry{" + "startOffset=" + startOffset + ", endOffset=" + endOffset + ", minTimestamp="
+              + minTimestamp + ", maxTimestamp=" + maxTimestamp + ", tableIds=" + Arrays.toString(tableIds) + '}';
+    }
+
+  }
+
+  /**
+   * Index writer, used by the TSDBWriter.
+   */
+  static final class Writer implements Closeable, Flushable {
+
+    private final DataOutputStream dos;
+
+    @CreatesObligation
+    Writer(final File tsdbFile, final boolean append) throws IOException {
+      File indexFile = getIndexFile(tsdbFile);
+      long validLength = -1;
+      if (append && indexFile.length() > 0) {
+        try (CountingInputStream cis = new CountingInputStream(new BufferedInputStream(
+                Files.newInputStream(indexFile.toPath()), 8192));
+             DataInputStream dis = new DataInputStream(cis)) {
+          if (isValidType(dis)) {
+            validLength = cis.getCount();
+            while (true) {
+              try {
+                if (Entry.read(dis) == null) {
+                  break;
+                }
+              } catch (EOFException ex) {
+                break;
+              }
+              validLength = cis.getCount();
+            }
+          } else {
+            LOG.warn("Overwriting corrupt block index {}, the existing data of {} will be scanned",
+                    indexFile, tsdbFile);
+          }
+        }
+      }
+      if (validLength > 0) {
+        FileChannel ch = FileChannel.open(indexFile.toPath(), StandardOpenOption.WRITE);
+        try {
+          // drop a potentially partially written or corrupt last entry, and the entries after it.
+          ch.truncate(validLength);
+          ch.position(validLength);
+        } catch (IOException | RuntimeException ex) {
+          ch.close();
+          throw ex;
+        }
+        dos = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(ch)));
+      } else {
+        dos = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(indexFile.toPath())));
+        dos.write(MAGIC);
+        dos.writeInt(VERSION);
+        dos.flush();
+      }
+    }
+
+    void write(final Entry entry) throws IOException {
+      entry.write(dos);
+      dos.flush();
+    }
+
+    @Override
+    public void flush() throws IOException {
+      dos.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+      dos.close();
+    }
+
+  }
+
+}
@@ -0,0 +1,353 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.tsdb2;
+
+import com.google.common.primitives.Longs;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericRecord;
+import org.spf4j.tsdb2.avro.DataBlock;
+import org.spf4j.tsdb2.avro.DataRow;
+
+/**
+ * Columnar data block encoding (format version 2).
+ *
+ * The rows of a block are grouped by table and stored column wise in a bit stream:
+ * <ul>
+ * <li>timestamps are delta of delta encoded, with the delta of delta stored in variable size buckets.</li>
+ * <li>values are XOR-ed with the previous value in the same column, and only the meaningful bits are stored.</li>
+ * </ul>
+ * (see "Gorilla: A Fast, Scalable, In-Memory Time Series Database")
+ *
+ * Since rows are grouped by table, the write order of rows of different tables within a block is not preserved:
+ * a decoded block lists the rows table by table (in table first write order), and the rows of a table in their
+ * write order. Readers that consume the rows in file order (ex: readAll, tailing) will see a different
+ * interleaving of the tables than with the row format, per table order and time range queries are not affected.
+ *
+ * Recorder data is very regular (fixed sample interval, slowly changing values), for which this encoding is
+ * several times more compact than the row format of {@link DataBlock}.
+ *
+ * @author Zoltan Farkas
+ */
+public final class ColumnarDataBlocks {
+
+  public static final Schema SCHEMA = new Schema.Parser().parse(
+          "{\"type\":\"record\",\"name\":\"ColumnarDataBlock\",\"namespace\":\"org.spf4j.tsdb2.avro\","
+          + "\"doc\":\"data block, columnar encoded\",\"fields\":["
+          + "{\"name\":\"baseTimestamp\",\"type\":\"long\",\"doc\":\"block base timestamp\"},"
+          + "{\"name\":\"data\",\"type\":\"bytes\",\"doc\":\"delta of delta timestamps and xor-ed values\"}]}");
+
+  private ColumnarDataBlocks() {
+  }
+
+  public static boolean isColumnarBlock(final Object record) {
+    return record instanceof GenericRecord
+            && SCHEMA.getFullName().equals(((GenericRecord) record).getSchema().getFullName());
+  }
+
+  /**
+   * @param contentSchema the file content schema. (from the file header)
+   * @return true if the file content can contain columnar blocks.
+   */
+  public static boolean isColumnarContent(final Schema contentSchema) {
+    if (contentSchema.getType() != Schema.Type.UNION) {
+      return false;
+    }
+    for (Schema schema : contentSchema.getTypes()) {
+      if (SCHEMA.getFullName().equals(schema.getFullName())) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Encode a data block in the columnar format.
+   * @param block the block to encode.
+   * @return the avro record to write.
+   */
+  public static GenericRecord encode(final DataBlock block) {
+    long baseTs = block.getBaseTimestamp();
+    List<DataRow> rows = block.getValues();
+    Map<Long, List<DataRow>> tables = new LinkedHashMap<>();
+    for (DataRow row : rows) {
+      tables.computeIfAbsent(row.getTableDefId(), (k) -> new ArrayList<>()).add(row);
+    }
+    BitOutput out = new BitOutput(rows.size() * 8 + 16);
+    // groups of consecutive rows with the same column count.
+    List<List<DataRow>> groups = new ArrayList<>(tables.size());
+    for (List<DataRow> tableRows : tables.values()) {
+      int from = 0;
+      int nrRows = tableRows.size();
+      for (int i = 1; i <= nrRows; i++) {
+        if (i == nrRows || tableRows.get(i).getData().size() != tableRows.get(from).getData().size()) {
+          groups.add(tableRows.subList(from, i));
+          from = i;
+        }
+      }
+    }
+    out.writeVarLong(groups.size());
+    for (List<DataRow> group : groups) {
+      encodeGroup(baseTs, group, out);
+    }
+    GenericRecord result = new GenericData.Record(SCHEMA);
+    result.put(0, baseTs);
+    result.put(1, ByteBuffer.wrap(out.toByteArray()));
+    return result;
+  }
+
+  private static void encodeGroup(final long baseTs, final List<DataRow> group, final BitOutput out) {
+    int nrRows = group.size();
+    DataRow first = group.get(0);
+    int nrColumns = first.getData().size();
+    out.writeVarLong(first.getTableDefId());
+    out.writeVarLong(nrRows);
+    out.writeVarLong(nrColumns);
+    // timestamps
+    long prevTs = baseTs + first.getRelTimeStamp();
+    out.writeZigZagVarLong(prevTs - baseTs);
+    long prevDelta = 0;
+    for (int i = 1; i < nrRows; i++) {
+      long ts = baseTs + group.get(i).getRelTimeStamp();
+      long delta = ts - prevTs;
+      if (i == 1) {
+        out.writeZigZagVarLong(delta);
+      } else {
+        writeDeltaOfDelta(delta - prevDelta, out);
+      }
+      prevDelta = delta;
+      prevTs = ts;
+    }
+    // values
+    for (int c = 0; c < nrColumns; c++) {
+      long prev = first.getData().get(c);
+      out.writeBits(prev, 64);
+      int prevLeading = -1;
+      int prevTrailing = 0;
+      for (int i = 1; i < nrRows; i++) {
+        long value = group.get(i).getData().get(c);
+        long xor = value ^ prev;
+        prev = value;
+        if (xor == 0) {
+          out.writeBit(false);
+          continue;
+        }
+        out.writeBit(true);
+        int leading = Long.numberOfLeadingZeros(xor);
+        int trailing = Long.numberOfTrailingZeros(xor);
+        if (prevLeading >= 0 && leading >= prevLeading && trailing >= prevTrailing) {
+          out.writeBit(false);
+          out.writeBits(xor >>> prevTrailing, 64 - prevLeading - prevTrailing);
+        } else {
+          out.writeBit(true);
+          int meaningful = 64 - leading - trailing;
+          out.writeBits(leading, 6);
+          out.writeBits(meaningful - 1, 6);
+          out.writeBits(xor >>> trailing, meaningful);
+          prevLeading = leading;
+          prevTrailing = trailing;
+        }
+      }
+    }
+  }
+
+  private static void writeDeltaOfDelta(final long dod, final BitOutput out) {
+    if (dod == 0) {
+      out.writeBit(false);
+      return;
+    }
+    long zz = (dod << 1) ^ (dod >> 63);
+    if (zz < (1L << 7)) {
+      out.writeBits(0b10, 2);
+      out.writeBits(zz, 7);
+    } else if (zz < (1L << 9)) {
+      out.writeBits(0b110, 3);
+      out.writeBits(zz, 9);
+    } else if (zz < (1L << 12)) {
+      out.writeBits(0b1110, 4);
+      out.writeBits(zz, 12);
+    } else {
+      out.writeBits(0b1111, 4);
+      out.writeBits(dod, 64);
+    }
+  }
+
+  private static long readDeltaOfDelta(final BitInput in) {
+    if (!in.readBit()) {
+      return 0;
+    }
+    int nrBits;
+    if (!in.readBit()) {
+      nrBits = 7;
+    } else if (!in.readBit()) {
+      nrBits = 9;
+    } else if (!in.readBit()) {
+      nrBits = 12;
+    } else {
+      return in.readBits(64);
+    }
+    long zz = in.readBits(nrBits);
+    return (zz >>> 1) ^ -(zz & 1);
+  }
+
+  /**
+   * Decode a columnar block to a DataBlock.
+   * @param record the columnar block.
+   * @return the data block.
+   */
+  public static DataBlock decode(final GenericRecord record) {
+    long baseTs = (Long) record.get(0);
+    List<DataRow> rows = new ArrayList<>();
+    decode(baseTs, ((ByteBuffer) record.get(1)).duplicate(), new Decoder(),
+            (tableId, ts, data) -> rows.add(new DataRow((int) (ts - baseTs), tableId, Longs.asList(data.clone()))));
+    return new DataBlock(baseTs, rows);
+  }
+
+  /**
+   * Decode the columnar data, without materializing row objects.
+   * @param baseTs the block base timestamp.
+   * @param data the encoded data, the bytes between position and limit will be consumed.
+   * @param decoder decoding state that can be reused between calls.
+   * @param consumer the row consumer.
+   */
+  static void decode(final long baseTs, final ByteBuffer data, final Decoder decoder,
+          final DataRowConsumer consumer) {
+    BitInput in = new BitInput(data);
+    int nrGroups = (int) in.readVarLong();
+    for (int g = 0; g < nrGroups; g++) {
+      long tableId = in.readVarLong();
+      int nrRows = (int) in.readVarLong();
+      int nrColumns = (int) in.readVarLong();
+      long[] timestamps = decoder.getTimestamps(nrRows);
+      decodeTimestamps(baseTs, nrRows, in, timestamps);
+      long[][] columns = decoder.getColumns(nrColumns, nrRows);
+      for (int c = 0; c < nrColumns; c++) {
+        decodeColumn(nrRows, in, columns[c]);
+      }
+      long[] row = decoder.getRow(nrColumns);
+      for (int i = 0; i < nrRows; i++) {
+        for (int c = 0; c < nrColumns; c++) {
+          row[c] = columns[c][i];
+        }
+        consumer.accept(tableId, timestamps[i], row);
+      }
+    }
+  }
+
+  /**
+   * Reusable decoding buffers.
+   */
+  static final class Decoder {
+
+    private long[] timestamps = new long[0];
+
+    private long[][] columns = new long[0][];
+
+    private long[][] rows = new long[0][];
+
+    long[] getTimestamps(final int nrRows) {
+      if (timestamps.length < nrRows) {
+        timestamps = new long[nrRows];
+      }
+      return timestamps;
+    }
+
+    long[][] getColumns(final int nrColumns, final int nrRows) {
+      if (columns.length < nrColumns) {
+        columns = Arrays.copyOf(columns, nrColumns);
+      }
+      for (int c = 0; c < nrColumns; c++) {
+        long[] column = columns[c];
+        if (column == null || column.length < nrRows) {
+          columns[c] = new long[nrRows];
+        }
+      }
+      return columns;
+    }
+
+    /**
+     * @return a reusable row array of exactly nrColumns length.
+     */
+    long[] getRow(final int nrColumns) {
+      if (rows.length <= nrColumns) {
+        rows = Arrays.copyOf(rows, nrColumns + 1);
+      }
+      long[] row = rows[nrColumns];
+      if (row == null) {
+        row = new long[nrColumns];
+        rows[nrColumns] = row;
+      }
+      return row;
+    }
+
+  }
+
+  static void decodeTimestamps(final long baseTs, final int nrRows, final BitInput in, final long[] timestamps) {
+    long ts = baseTs + in.readZigZagVarLong();
+    timestamps[0] = ts;
+    long delta = 0;
+    for (int i = 1; i < nrRows; i++) {
+      if (i == 1) {
+        delta = in.readZigZagVarLong();
+      } else {
+        delta += readDeltaOfDelta(in);
+      }
+      ts += delta;
+      timestamps[i] = ts;
+    }
+  }
+
+  static void decodeColumn(final int nrRows, final BitInput in, final long[] column) {
+    long value = in.readBits(64);
+    column[0] = value;
+    int leading = 0;
+    int trailing = 0;
+    for (int i = 1; i < nrRows; i++) {
+      if (in.readBit()) {
+        if (in.readBit()) {
+          leading = (int) in.readBits(6);
+          int meaningful = (int) in.readBits(6) + 1;
+          trailing = 64 - leading - meaningful;
+        }
+        value ^= in.readBits(64 - leading - trailing) << trailing;
+      }
+      column[i] = value;
+    }
+  }
+
+}
@@ -0,0 +1,715 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.tsdb2;
+
+import com.sun.nio.file.SensitivityWatchEventModifier;
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import javax.annotation.Nullable;
+import org.apache.avro.Schema;
+import org.apache.avro.SchemaNormalization;
+import org.apache.avro.io.BinaryDecoder;
+import org.apache.avro.io.DecoderFactory;
+import org.apache.avro.specific.SpecificDatumReader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.spf4j.base.TimeSource;
+import org.spf4j.concurrent.DefaultExecutor;
+import org.spf4j.io.BufferedInputStream;
+import org.spf4j.io.CountingInputStream;
+import org.spf4j.tsdb2.avro.DataBlock;
+import org.spf4j.tsdb2.avro.Header;
+import org.spf4j.tsdb2.avro.TableDef;
+
+/**
+ * Memory mapped tsdb2 file reader.
+ *
+ * Data blocks are decoded straight from the mapped file, and the rows are handed to a {@link DataRowConsumer}
+ * with a reusable value array, without creating DataBlock/DataRow objects.
+ * The file is mapped in windows (max 2GB per mapping), that are moved as the reading progresses,
+ * and remapped as the file grows when tailing.
+ * A replaced window and the window in use at close are unmapped right away (with the JDK buffer cleaner),
+ * so that the file is not kept locked (windows) and the address space is released without waiting for GC.
+ * If the cleaner is not accessible in the running JVM, the mappings are released only when garbage collected.
+ *
+ * @author Zoltan Farkas
+ */
+@SuppressFBWarnings("IICU_INCORRECT_INTERNAL_CLASS_USE")
+public final class MappedTSDBReader implements Closeable {
+
+  private static final Logger LOG = LoggerFactory.getLogger(MappedTSDBReader.class);
+
+  private static final DataRowConsumer NO_ROWS = (tableId, ts, data) -> { };
+
+  private static final Consumer<MappedByteBuffer> UNMAPPER = unmapper();
+
+  private static final int DEFAULT_WINDOW_SIZE =
+          Integer.getInteger("spf4j.tsdb2.mappedWindowSize", 256 * 1024 * 1024);
+
+  private final File file;
+  private final FileChannel channel;
+  private final Header header;
+  private final long dataStart;
+  private final int tableDefIdx;
+  private final int dataBlockIdx;
+  private final int columnarBlockIdx;
+  private final SpecificDatumReader<TableDef> tableDefReader;
+  private final ColumnarDataBlocks.Decoder columnarDecoder;
+  private final int windowSize;
+  private final ByteBuffer sizeBuffer;
+  private BinaryDecoder decoder;
+  /** the values of all the rows of the last decoded data block. */
+  private long[] values;
+  private long[] rowTableIds;
+  private long[] rowTimestamps;
+  /** the end offset of every row in values. */
+  private int[] rowEnds;
+  private long size;
+  private long position;
+  private MappedByteBuffer window;
+  private long windowStart;
+  private volatile boolean watch;
+
+  public MappedTSDBReader(final File file) throws IOException {
+    this(file, DEFAULT_WINDOW_SIZE);
+  }
+
+  /**
+   * @param file the tsdb2 file.
+   * @param windowSize the max size of a file mapping, it needs to be larger than the largest record in the file.
+   * @throws IOException
+   */
+  public MappedTSDBReader(final File file, final int windowSize) throws IOException {
+    this.file = file;
+    this.windowSize = windowSize;
+    this.columnarDecoder = new ColumnarDataBlocks.Decoder();
+    this.values = new long[16];
+    this.rowTableIds = new long[16];
+    this.rowTimestamps = new long[16];
+    this.rowEnds = new int[16];
+    this.sizeBuffer = ByteBuffer.allocate(Long.BYTES);
+    try (CountingInputStream cis = new CountingInputStream(new BufferedInputStream(
+            Files.newInputStream(file.toPath()), 8192))) {
+      DataInputStream dis = new DataInputStream(cis);
+      TSDBWriter.validateType(dis);
+      size = dis.readLong();
+      decoder = DecoderFactory.get().directBinaryDecoder(dis, null);
+      header = new SpecificDatumReader<Header>(Header.getClassSchema()).read(null, decoder);
+      dataStart = cis.getCount();
+    }
+    Schema contentSchema = new Schema.Parser().parse(header.getContentSchema());
+    if (!supports(contentSchema)) {
+      throw new IOException("Unsupported content schema " + contentSchema + " for " + file + ", use TSDBReader");
+    }
+    List<Schema> types = contentSchema.getTypes();
+    int tdIdx = -1;
+    int dbIdx = -1;
+    int cbIdx = -1;
+    Schema tableDefSchema = null;
+    for (int i = 0, l = types.size(); i < l; i++) {
+      Schema schema = types.get(i);
+      String name = schema.getFullName();
+      if (TableDef.SCHEMA$.getFullName().equals(name)) {
+        tdIdx = i;
+        tableDefSchema = schema;
+      } else if (DataBlock.SCHEMA$.getFullName().equals(name)) {
+        dbIdx = i;
+      } else if (ColumnarDataBlocks.SCHEMA.getFullName().equals(name)) {
+        cbIdx = i;
+      }
+    }
+    this.tableDefIdx = tdIdx;
+    this.dataBlockIdx = dbIdx;
+    this.columnarBlockIdx = cbIdx;
+    this.tableDefReader = new SpecificDatumReader<>(tableDefSchema, TableDef.SCHEMA$);
+    this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+    this.position = dataStart;
+  }
+
+  /**
+   * @param file the tsdb2 file.
+   * @return true if the file can be read with a MappedTSDBReader, false if the file content is written with
+   * a different (older or newer) block schema, in which case the file needs to be read with a {@link TSDBReader},
+   * which resolves the schema differences.
+   * @throws IOException
+   */
+  public static boolean supports(final File file) throws IOException {
+    Header header;
+    try (DataInputStream dis = new DataInputStream(new BufferedInputStream(
+            Files.newInputStream(file.toPath()), 8192))) {
+      TSDBWriter.validateType(dis);
+      dis.readLong();
+      header = new SpecificDatumReader<Header>(Header.getClassSchema())
+              .read(null, DecoderFactory.get().directBinaryDecoder(dis, null));
+    }
+    return supports(new Schema.Parser().parse(header.getContentSchema()));
+  }
+
+  static boolean supports(final Schema contentSchema) {
+    if (contentSchema.getType() != Schema.Type.UNION) {
+      return false;
+    }
+    boolean hasTableDefs = false;
+    for (Schema schema : contentSchema.getTypes()) {
+      String name = schema.getFullName();
+      if (TableDef.SCHEMA$.getFullName().equals(name)) {
+        hasTableDefs = true;
+      } else if (DataBlock.SCHEMA$.getFullName().equals(name)) {
+        if (!sameSchema(DataBlock.SCHEMA$, schema)) {
+          return false;
+        }
+      } else if (ColumnarDataBlocks.SCHEMA.getFullName().equals(name)
+              && !sameSchema(ColumnarDataBlocks.SCHEMA, schema)) {
+        return false;
+      }
+    }
+    return hasTableDefs;
+  }
+
+  private static boolean sameSchema(final Schema expected, final Schema actual) {
+    return SchemaNormalization.parsingFingerprint64(expected) == SchemaNormalization.parsingFingerprint64(actual);
+  }
+
+  public Header getHeader() {
+    return header;
+  }
+
+  public long getDataStartPosition() {
+    return dataStart;
+  }
+
+  public synchronized long getSize() {
+    return size;
+  }
+
+  public synchronized long getPosition() {
+    return position;
+  }
+
+  /**
+   * Position the reader at a record boundary.
+   * @param pos the file position. (a table def id, or a block start from the block index)
+   */
+  public synchronized void seek(final long pos) {
+    if (pos < dataStart || pos > size) {
+      throw new IllegalArgumentException("Invalid position " + pos + " for " + this);
+    }
+    this.position = pos;
+  }
+
+  /**
+   * method useful when implementing tailing.
+   *
+   * @return true if size changed.
+   * @throws IOException
+   */
+  public synchronized boolean reReadSize() throws IOException {
+    sizeBuffer.clear();
+    while (sizeBuffer.hasRemaining()) {
+      if (channel.read(sizeBuffer, TSDBWriter.MAGIC.length + sizeBuffer.position()) < 0) {
+        throw new EOFException("Cannot read size from " + file);
+      }
+    }
+    long old = size;
+    size = sizeBuffer.getLong(0);
+    return size != old;
+  }
+
+  private void map(final long start, final long length) throws IOException {
+    unmapWindow();
+    window = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(size - start, length));
+    windowStart = start;
+  }
+
+  /**
+   * Read the next record.
+   * @param tableDefHandler table definition handler, null if not interested in table definitions.
+   * @param rowHandler data row handler.
+   * @return false if there are no more records to read.
+   * @throws IOException
+   */
+  public synchronized boolean read(@Nullable final Consumer<TableDef> tableDefHandler,
+          final DataRowConsumer rowHandler) throws IOException {
+    return read(tableDefHandler, rowHandler, -1L);
+  }
+
+  /**
+   * @param expectedEnd the expected end position of the record (indexed block), -1 if not known.
+   * if the record does not end there, an IOException is thrown and no data is handed to the handlers.
+   */
+  private boolean read(@Nullable final Consumer<TableDef> tableDefHandler,
+          final DataRowConsumer rowHandler, final long expectedEnd) throws IOException {
+    if (position >= size) {
+      return false;
+    }
+    long mapLength = windowSize;
+    if (window == null || position < windowStart || position >= windowStart + window.limit()) {
+      map(position, mapLength);
+    }
+    while (true) {
+      ByteBuffer buf = window.duplicate();
+      buf.position((int) (position - windowStart));
+      try {
+        readRecord(buf, tableDefHandler, rowHandler, expectedEnd);
+        position = windowStart + buf.position();
+        return true;
+      } catch (BufferUnderflowException | EOFException ex) {
+        // record does not fit in the window, no data has been handed to the handlers.
+        if (windowStart + window.limit() >= size) {
+          throw new IOException("Truncated record at " + position + ", " + this, ex);
+        }
+        if (windowStart == position) {
+          if (mapLength >= Integer.MAX_VALUE) {
+            throw new IOException("Record too large at " + position + ", " + this, ex);
+          }
+          mapLength = Math.min(Integer.MAX_VALUE, mapLength * 2);
+        }
+        map(position, mapLength);
+      }
+    }
+  }
+
+  private void readRecord(final ByteBuffer buf, @Nullable final Consumer<TableDef> tableDefHandler,
+          final DataRowConsumer rowHandler, final long expectedEnd) throws IOException {
+    final long recordStart = windowStart + buf.position();
+    int idx = (int) readLong(buf);
+    if (idx == tableDefIdx) {
+      if (expectedEnd >= 0) {
+        throw new IOException("Expected data block, not table definition at " + recordStart + ", " + this);
+      }
+      decoder = DecoderFactory.get().directBinaryDecoder(new ByteBufferInputStream(buf), decoder);
+      TableDef td = tableDefReader.read(null, decoder);
+      if (td.getId() != recordStart) {
+        throw new IOException("Table Id should be equal with file position " + recordStart + ", " + td.getId());
+      }
+      if (tableDefHandler != null) {
+        tableDefHandler.accept(td);
+      }
+    } else if (idx == dataBlockIdx) {
+      // the block is fully decoded before handing out data, so that a block that is not fully mapped
+      // results in no rows being handed out.
+      int nrRows = readDataBlock(buf);
+      checkEnd(recordStart, windowStart + buf.position(), expectedEnd);
+      int from = 0;
+      for (int r = 0; r < nrRows; r++) {
+        int to = rowEnds[r];
+        long[] row = columnarDecoder.getRow(to - from);
+        System.arraycopy(values, from, row, 0, to - from);
+        rowHandler.accept(rowTableIds[r], rowTimestamps[r], row);
+        from = to;
+      }
+    } else if (idx == columnarBlockIdx) {
+      long baseTs = readLong(buf);
+      int length = (int) readLong(buf);
+      if (length > buf.remaining()) {
+        throw new BufferUnderflowException();
+      }
+      checkEnd(recordStart, windowStart + buf.position() + length, expectedEnd);
+      ByteBuffer data = buf.slice();
+      data.limit(length);
+      buf.position(buf.position() + length);
+      ColumnarDataBlocks.decode(baseTs, data, columnarDecoder, rowHandler);
+    } else {
+      throw new IOException("Invalid record type " + idx + " at " + recordStart + ", " + this);
+    }
+  }
+
+  private void checkEnd(final long recordStart, final long recordEnd, final long expectedEnd) throws IOException {
+    if (expectedEnd >= 0 && recordEnd != expectedEnd) {
+      throw new IOException("Block at " + recordStart + " ends at " + recordEnd + " instead of " + expectedEnd
+              + ", " + this);
+    }
+  }
+
+  /**
+   * decode a DataBlock in avro binary format into values, rowTableIds, rowTimestamps and rowEnds.
+   * @return the number of rows in the block.
+   */
+  private int readDataBlock(final ByteBuffer buf) throws IOException {
+    long baseTs = readLong(buf);
+    int nrRows = 0;
+    int nrValues = 0;
+    long count;
+    while ((count = readLong(buf)) != 0) {
+      if (count < 0) {
+        count = -count;
+        readLong(buf); // block size in bytes
+      }
+      if (nrRows + count > rowEnds.length) {
+        int newLength = (int) Math.max(rowEnds.length * 2, nrRows + count);
+        rowTableIds = Arrays.copyOf(rowTableIds, newLength);
+        rowTimestamps = Arrays.copyOf(rowTimestamps, newLength);
+        rowEnds = Arrays.copyOf(rowEnds, newLength);
+      }
+      for (long i = 0; i < count; i++) {
+        rowTimestamps[nrRows] = baseTs + (int) readLong(buf);
+        rowTableIds[nrRows] = readLong(buf);
+        long nr;
+        while ((nr = readLong(buf)) != 0) {
+          if (nr < 0) {
+            nr = -nr;
+            readLong(buf);
+          }
+          if (nrValues + nr > values.length) {
+            values = Arrays.copyOf(values, (int) Math.max(values.length * 2, nrValues + nr));
+          }
+          for (long j = 0; j < nr; j++) {
+            values[nrValues++] = readLong(buf);
+          }
+        }
+        rowEnds[nrRows++] = nrValues;
+      }
+    }
+    return nrRows;
+  }
+
+  /**
+   * read a zig-zag encoded variable length long (avro int and long encoding).
+   */
+  static long readLong(final ByteBuffer buf) throws IOException {
+    long value = 0;
+    int shift = 0;
+    int b;
+    do {
+      if (shift > 63) {
+        throw new IOException("Invalid long encoding at " + buf.position());
+      }
+      b = buf.get();
+      value |= (long) (b & 0x7F) << shift;
+      shift += 7;
+    } while ((b & 0x80) != 0);
+    return (value >>> 1) ^ -(value & 1);
+  }
+
+  public synchronized void readAll(@Nullable final Consumer<TableDef> tableDefHandler,
+          final DataRowConsumer rowHandler) throws IOException {
+    while (read(tableDefHandler, rowHandler)) {
+      // read all
+    }
+  }
+
+  /**
+   * Read all data rows of the provided tables in the provided time range,
+   * using the block index if available (see {@link BlockIndex}).
+   *
+   * @param startTimeMillis start time.
+   * @param endTimeMillis end time.
+   * @param tableIds the tables to read, null for all tables.
+   * @param rowHandler the row handler.
+   * @throws IOException
+   */
+  public synchronized void scan(final long startTimeMillis, final long endTimeMillis,
+          @Nullable final long[] tableIds, final DataRowConsumer rowHandler) throws IOException {
+    DataRowConsumer filter = (tableId, ts, data) -> {
+      if (ts >= startTimeMillis && ts <= endTimeMillis && (tableIds == null || contains(tableIds, tableId))) {
+        rowHandler.accept(tableId, ts, data);
+      }
+    };
+    BlockIndex index = BlockIndex.load(file);
+    if (index == null) {
+      position = dataStart;
+      readAll(null, filter);
+      return;
+    }
+    scan(index.plan(dataStart, size, startTimeMillis, endTimeMillis, tableIds), filter);
+  }
+
+  /**
+   * Read all data rows from the provided file regions. Regions must start at record boundaries,
+   * (as planned by {@link BlockIndex#plan(long, long, long, long, long[])}), this allows a file to be
+   * scanned in parallel by multiple readers, each reader scanning a subset of the regions.
+   *
+   * If an indexed region is inconsistent with the data (stale index), the index is dropped for the rest of the scan,
+   * and the remaining range (up to the end of the last region) is scanned from the last known record boundary,
+   * handing out only the rows of the records that start after the last region that was read.
+   *
+   * @param regions the regions to scan.
+   * @param rowHandler the row handler.
+   * @throws IOException
+   */
+  public synchronized void scan(final Iterable<BlockIndex.Region> regions,
+          final DataRowConsumer rowHandler) throws IOException {
+    Iterator<BlockIndex.Region> it = regions.iterator();
+    long verified = dataStart;
+    long emitFrom = -1L;
+    while (it.hasNext()) {
+      BlockIndex.Region region = it.next();
+      long end = region.getEndOffset();
+      if (emitFrom < 0) {
+        emitFrom = region.getStartOffset();
+      }
+      position = region.getStartOffset();
+      if (region.isIndexedBlock()) {
+        try {
+          read(null, rowHandler, end);
+        } catch (IOException | RuntimeException ex) {
+          long scanEnd = end;
+          while (it.hasNext()) {
+            scanEnd = it.next().getEndOffset();
+          }
+          LOG.warn("Block index {} is inconsistent with data at {}, scanning {} from {} to {}",
+                  BlockIndex.getIndexFile(file), region, file, verified, scanEnd, ex);
+          rescan(verified, emitFrom, scanEnd, rowHandler);
+          return;
+        }
+      } else {
+        while (position < end && read(null, rowHandler)) {
+          // read region
+        }
+      }
+      verified = position;
+      emitFrom = position;
+    }
+  }
+
+  private void rescan(final long from, final long emitFrom, final long to, final DataRowConsumer rowHandler)
+          throws IOException {
+    position = from;
+    while (position < to && read(null, position >= emitFrom ? rowHandler : NO_ROWS)) {
+      // read region
+    }
+  }
+
+  private static boolean contains(final long[] ids, final long id) {
+    for (long l : ids) {
+      if (l == id) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  public void stopWatching() {
+    watch = false;
+  }
+
+  public Future<Void> bgWatch(@Nullable final Consumer<TableDef> tableDefHandler,
+          final DataRowConsumer rowHandler, final TSDBReader.EventSensitivity es, final long deadlineNanos) {
+    return DefaultExecutor.INSTANCE.submit(() -> {
+      watch(tableDefHandler, rowHandler, es, deadlineNanos);
+      return null;
+    });
+  }
+
+  public void watch(@Nullable final Consumer<TableDef> tableDefHandler,
+          final DataRowConsumer rowHandler, final TSDBReader.EventSensitivity es, final long timeout,
+          final TimeUnit unit) throws IOException, InterruptedException {
+    watch(tableDefHandler, rowHandler, es, TimeSource.nanoTime() + unit.toNanos(timeout));
+  }
+
+  /**
+   * Read all records, and continue reading records as they are appended to the file,
+   * until the deadline or stopWatching is invoked.
+   */
+  @SuppressFBWarnings("NOS_NON_OWNED_SYNCHRONIZATION")
+  public void watch(@Nullable final Consumer<TableDef> tableDefHandler,
+          final DataRowConsumer rowHandler, final TSDBReader.EventSensitivity es, final long deadlineNanos)
+          throws IOException, InterruptedException {
+    synchronized (this) {
+      if (watch) {
+        throw new IllegalStateException("File is already watched " + file);
+      }
+      watch = true;
+    }
+    SensitivityWatchEventModifier sensitivity;
+    switch (es) {
+      case LOW:
+        sensitivity = SensitivityWatchEventModifier.LOW;
+        break;
+      case MEDIUM:
+        sensitivity = SensitivityWatchEventModifier.MEDIUM;
+        break;
+      case HIGH:
+        sensitivity = SensitivityWatchEventModifier.HIGH;
+        break;
+      default:
+        throw new UnsupportedOperationException("Unsupported sensitivity " + es);
+    }
+    final Path path = file.getParentFile().toPath();
+    try (WatchService watchService = path.getFileSystem().newWatchService()) {
+      path.register(watchService, new WatchEvent.Kind[]{StandardWatchEventKinds.ENTRY_MODIFY,
+        StandardWatchEventKinds.OVERFLOW
+      }, sensitivity);
+      reReadSize();
+      readAll(tableDefHandler, rowHandler);
+      do {
+        if (deadlineNanos - TimeSource.nanoTime() <= 0) {
+          break;
+        }
+        WatchKey key = watchService.poll(1, TimeUnit.SECONDS);
+        if (key == null) {
+          if (reReadSize()) {
+            readAll(tableDefHandler, rowHandler);
+          }
+          continue;
+        }
+        if (!key.isValid()) {
+          key.cancel();
+          break;
+        }
+        if (!key.pollEvents().isEmpty() && reReadSize()) {
+          readAll(tableDefHandler, rowHandler);
+        }
+        if (!key.reset()) {
+          key.cancel();
+          break;
+        }
+      } while (watch);
+    } finally {
+      watch = false;
+    }
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    unmapWindow();
+    channel.close();
+  }
+
+  /**
+   * Unmap the current window, the window buffer is only used while holding this reader's monitor,
+   * so there is no access to the released memory after this.
+   */
+  private void unmapWindow() {
+    MappedByteBuffer w = window;
+    if (w != null) {
+      window = null;
+      UNMAPPER.accept(w);
+    }
+  }
+
+  /**
+   * @return the function that releases a mapping: sun.misc.Unsafe.invokeCleaner on JDK 9+,
+   * DirectBuffer.cleaner().clean() on JDK 8, or a no-op when neither is accessible.
+   */
+  @SuppressFBWarnings("REFLF_REFLECTION_MAY_INCREASE_ACCESSIBILITY_OF_FIELD")
+  private static Consumer<MappedByteBuffer> unmapper() {
+    try {
+      Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+      Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+      Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+      theUnsafe.setAccessible(true);
+      Object unsafe = theUnsafe.get(null);
+      return (buffer) -> {
+        try {
+          invokeCleaner.invoke(unsafe, buffer);
+        } catch (IllegalAccessException | InvocationTargetException ex) {
+          LOG.debug("Cannot unmap {}", buffer, ex);
+        }
+      };
+    } catch (ClassNotFoundException | NoSuchMethodException | NoSuchFieldException | IllegalAccessException
+            | RuntimeException ex) {
+      LOG.debug("Unsafe.invokeCleaner not available", ex);
+    }
+    try {
+      Method cleanerMethod = Class.forName("sun.nio.ch.DirectBuffer").getMethod("cleaner");
+      Method cleanMethod = Class.forName("sun.misc.Cleaner").getMethod("clean");
+      return (buffer) -> {
+        try {
+          Object cleaner = cleanerMethod.invoke(buffer);
+          if (cleaner != null) {
+            cleanMethod.invoke(cleaner);
+          }
+        } catch (IllegalAccessException | InvocationTargetException ex) {
+          LOG.debug("Cannot unmap {}", buffer, ex);
+        }
+      };
+    } catch (ClassNotFoundException | NoSuchMethodException | RuntimeException ex) {
+      LOG.info("Mapped buffers will be released by GC, cleaner not available", ex);
+      return (buffer) -> { };
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "MappedTSDBReader{" + "file=" + file + ", size=" + size + ", position=" + position
+            + ", windowStart=" + windowStart + '}';
+  }
+
+  /**
+   * Input stream over a byte buffer, used to decode the (infrequent) table definitions with avro.
+   */
+  private static final class ByteBufferInputStream extends InputStream {
+
+    private final ByteBuffer buf;
+
+    ByteBufferInputStream(final ByteBuffer buf) {
+      this.buf = buf;
+    }
+
+    @Override
+    public int read() {
+      return buf.hasRemaining() ? buf.get() & 0xFF : -1;
+    }
+
+    @Override
+    public int read(final byte[] b, final int off, final int len) {
+      if (len == 0) {
+        return 0;
+      }
+      int remaining = buf.remaining();
+      if (remaining <= 0) {
+        return -1;
+      }
+      int n = Math.min(len, remaining);
+      buf.get(b, off, n);
+      return n;
+    }
+
+  }
+
+}
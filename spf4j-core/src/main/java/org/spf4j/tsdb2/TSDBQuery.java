@@ -170,6 +170,41 @@ public final class TSDBQuery {
 
   @SuppressFBWarnings("RV_RETURN_VALUE_IGNORED")
   public static ListMultimap<String, TableDefEx> getAllTablesWithDataRanges(final File tsdbFile) throws IOException {
+    if (!MappedTSDBReader.supports(tsdbFile)) {
+      return getAllTablesWithDataRangesResolved(tsdbFile);
+    }
+    ListMultimap<String, TableDefEx> result = ArrayListMultimap.create();
+    TLongObjectMap<TableDefEx> id2Def = new TLongObjectHashMap<>();
+    try (MappedTSDBReader reader = new MappedTSDBReader(tsdbFile)) {
+      reader.readAll((left) -> {
+          final TableDefEx tableDefEx = new TableDefEx(left, Long.MAX_VALUE, 0L);
+          id2Def.put(left.getId(), tableDefEx);
+          result.put(tableDefEx.getTableDef().getName(), tableDefEx);
+        }, (tableId, ts, data) -> {
+          TableDefEx tdex = id2Def.get(tableId);
+          if (tdex == null) {
+            throw new UncheckedIOException(new IOException("Potentially corupted file data row with no tableDef "
+                    + tableId + ", ts = " + ts));
+          }
+          if (ts < tdex.getStartTime()) {
+            tdex.setStartTime(ts);
+          }
+          if (ts > tdex.getEndTime()) {
+            tdex.setEndTime(ts);
+          }
+        });
+    } catch (UncheckedIOException ex) {
+      throw ex.getCause();
+    }
+    return result;
+  }
+
+  /**
+   * getAllTablesWithDataRanges for files that are not supported by the MappedTSDBReader,
+   * the data blocks are read with schema resolution.
+   */
+  private static ListMultimap<String, TableDefEx> getAllTablesWithDataRangesResolved(final File tsdbFile)
+          throws IOException {
     ListMultimap<String, TableDefEx> result = ArrayListMultimap.create();
     TLongObjectMap<TableDefEx> id2Def = new TLongObjectHashMap<>();
     try (TSDBReader reader = new TSDBReader(tsdbFile, 8192)) {
@@ -233,29 +268,54 @@ public final class TSDBQuery {
   public static void getTimeSeries(final File tsdbFile, final long[] tableIds,
           final long startTimeMillis, final long endTimeMillis, final BiConsumer<Long, long[]> consumer)
           throws IOException {
+    getTimeSeries(tsdbFile, tableIds, startTimeMillis, endTimeMillis,
+            (tableId, ts, data) -> consumer.accept(ts, data.clone()));
+  }
+
+  /**
+   * Read the data rows of the provided tables, the file is memory mapped and rows are handed out
+   * without intermediary objects. (see {@link MappedTSDBReader})
+   * The file is unmapped when this method returns (where the JVM allows it, otherwise at GC).
+   * Files written with a block schema that the MappedTSDBReader does not support are read with a TSDBReader.
+   */
+  public static void getTimeSeries(final File tsdbFile, final long[] tableIds,
+          final long startTimeMillis, final long endTimeMillis, final DataRowConsumer consumer)
+          throws IOException {
+    if (!MappedTSDBReader.supports(tsdbFile)) {
+      getTimeSeriesResolved(tsdbFile, tableIds, startTimeMillis, endTimeMillis, consumer);
+      return;
+    }
+    try (MappedTSDBReader reader = new MappedTSDBReader(tsdbFile)) {
+      reader.scan(startTimeMillis, endTimeMillis, tableIds, consumer);
+    }
+  }
+
+  private static void getTimeSeriesResolved(final File tsdbFile, final long[] tableIds,
+          final long startTimeMillis, final long endTimeMillis, final DataRowConsumer consumer)
+          throws IOException {
     try (TSDBReader reader = new TSDBReader(tsdbFile, 8192)) {
-      Either<TableDef, DataBlock> read;
-      while ((read = reader.read()) != null) {
-        if (read.isRight()) {
-          DataBlock data = read.getRight();
-          long baseTs = data.getBaseTimestamp();
-          for (DataRow row : data.getValues()) {
-            for (long tableId : tableIds) {
-              if (tableId == row.getTableDefId()) {
-                final long ts = baseTs + row.getRelTimeStamp();
-                if (ts >= startTimeMillis && ts <= endTimeMillis) {
-                  consumer.accept(ts, Longs.toArray(row.getData()));
-                }
+      Iterator<DataBlock> blocks = reader.getDataBlocks(startTimeMillis, endTimeMillis, tableIds);
+      while (blocks.hasNext()) {
+        DataBlock data = blocks.next();
+        long baseTs = data.getBaseTimestamp();
+        for (DataRow row : data.getValues()) {
+          long tableId = row.getTableDefId();
+          for (long id : tableIds) {
+            if (id == tableId) {
+              final long ts = baseTs + row.getRelTimeStamp();
+              if (ts >= startTimeMillis && ts <= endTimeMillis) {
+                consumer.accept(tableId, ts, Longs.toArray(row.getData()));
               }
+              break;
             }
           }
         }
       }
+    } catch (UncheckedIOException ex) {
+      throw ex.getCause();
     }
   }
 
-
-
   /**
    *
    * @param tsdbFile
@@ -284,7 +344,7 @@ public final class TSDBQuery {
           final long endTimeMillis, final Collection<Long> ids, final Schema rSchema) throws IOException {
     TSDBReader reader = new TSDBReader(tsdbFile, 8192);
     try {
-      DataScan dataScan = new DataScan(reader);
+      DataScan dataScan = new DataScan(reader.getDataBlocks(startTimeMillis, endTimeMillis, Longs.toArray(ids)));
       Iterable<Observation> filtered = Iterables.filter(dataScan,
               (x) -> {
                 long ts = x.getRelTimeStamp();
@@ -302,7 +362,7 @@ public final class TSDBQuery {
   public static AvroCloseableIterable<Observation> getTimeSeriesData(final File tsdbFile) throws IOException {
     TSDBReader reader = new TSDBReader(tsdbFile, 8192);
     try {
-      Iterable<Observation> dataScan = new DataScan(reader);
+      Iterable<Observation> dataScan = new DataScan(reader.getDataBlocks(Long.MIN_VALUE, Long.MAX_VALUE, null));
       return AvroCloseableIterable.from(dataScan, reader, Observation.getClassSchema());
     } catch (RuntimeException | IOException ex) {
       reader.close();
@@ -335,10 +395,10 @@ public final class TSDBQuery {
 
   private static class DataScan implements Iterable<Observation> {
 
-    private final TSDBReader reader;
+    private final Iterator<DataBlock> blocks;
 
-    DataScan(final TSDBReader tsdb) throws IOException {
-      reader = tsdb;
+    DataScan(final Iterator<DataBlock> blocks) {
+      this.blocks = blocks;
     }
 
     @Override
@@ -353,20 +413,13 @@ public final class TSDBQuery {
         }
 
         private void nextBlock() {
-          Either<TableDef, DataBlock> read;
-          try {
-            while ((read = reader.read()) != null) {
-              if (read.isRight()) {
-                DataBlock block = read.getRight();
-                baseTs = block.getBaseTimestamp();
-                dataBlock = block.getValues().iterator();
-                return;
-              }
-            }
-          } catch (IOException ex) {
-            throw new UncheckedIOException(ex);
+          if (blocks.hasNext()) {
+            DataBlock block = blocks.next();
+            baseTs = block.getBaseTimestamp();
+            dataBlock = block.getValues().iterator();
+          } else {
+            dataBlock = null;
           }
-          dataBlock = null;
         }
 
         @Override
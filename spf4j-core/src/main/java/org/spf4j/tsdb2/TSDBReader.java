@@ -41,6 +41,7 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
 import java.nio.channels.Channels;
 import java.nio.channels.SeekableByteChannel;
 import java.nio.file.Files;
@@ -50,15 +51,22 @@ import java.nio.file.WatchEvent;
 import java.nio.file.WatchKey;
 import java.nio.file.WatchService;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
 import java.util.concurrent.Callable;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 import javax.annotation.Nullable;
 import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericRecord;
 import org.apache.avro.io.BinaryDecoder;
 import org.apache.avro.io.DecoderFactory;
 import org.apache.avro.specific.SpecificDatumReader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.spf4j.base.Either;
 import org.spf4j.base.ExecutionContexts;
 import org.spf4j.base.Handler;
@@ -76,9 +84,12 @@ import org.spf4j.tsdb2.avro.TableDef;
 @SuppressFBWarnings("IICU_INCORRECT_INTERNAL_CLASS_USE")
 public final class TSDBReader implements Closeable {
 
+  private static final Logger LOG = LoggerFactory.getLogger(TSDBReader.class);
+
   private static final boolean CORUPTION_LENIENT = Boolean.getBoolean("spf4j.tsdb2.lenientRead");
 
-  private static final Schema R_SCHEMA = Schema.createUnion(Arrays.asList(TableDef.SCHEMA$, DataBlock.SCHEMA$));
+  private static final Schema R_SCHEMA = Schema.createUnion(Arrays.asList(TableDef.SCHEMA$, DataBlock.SCHEMA$,
+          ColumnarDataBlocks.SCHEMA));
 
   private CountingInputStream bis;
   private final Header header;
@@ -91,6 +102,7 @@ public final class TSDBReader implements Closeable {
   private volatile boolean watch;
   private final int bufferSize;
   private final SeekableByteChannel byteChannel;
+  private final long dataStart;
 
   public TSDBReader(final File file, final int bufferSize) throws IOException {
     this(file, bufferSize, 0L);
@@ -109,6 +121,7 @@ public final class TSDBReader implements Closeable {
     ByteStreams.readFully(bis, buff);
     size = Longs.fromByteArray(buff);
     header = reader.read(null, decoder);
+    dataStart = bis.getCount();
     recordReader = new SpecificDatumReader<>(
             new Schema.Parser().parse(header.getContentSchema()), R_SCHEMA);
     if (from > 0L) {
@@ -144,6 +157,165 @@ public final class TSDBReader implements Closeable {
     }
   }
 
+  /**
+   * @return the file position of the next record to be read.
+   */
+  public synchronized long getPosition() {
+    return bis.getCount();
+  }
+
+  /**
+   * @return the file position where the first record (after the header) is.
+   */
+  public long getDataStartPosition() {
+    return dataStart;
+  }
+
+  /**
+   * Position the reader at a record boundary. (a table def id, or a block start from the block index)
+   * @param position the file position.
+   * @throws IOException
+   */
+  public synchronized void seek(final long position) throws IOException {
+    if (position < dataStart || position > size) {
+      throw new IllegalArgumentException("Invalid position " + position + " for " + this);
+    }
+    if (position != bis.getCount()) {
+      resetStream(position);
+    }
+  }
+
+  /**
+   * Iterate through all data blocks that can contain data of the provided tables in the provided time range.
+   * If a block index is available (see {@link BlockIndex}), only the relevant blocks and not indexed regions are read,
+   * otherwise all the file will be scanned.
+   * If the index turns out to be inconsistent with the data (stale index), the index is dropped and the rest of the
+   * file is scanned.
+   * The returned blocks need to be further filtered by table id and timestamp.
+   *
+   * @param startTimeMillis the start time.
+   * @param endTimeMillis the end time.
+   * @param tableIds the table ids, null for all tables.
+   * @return iterator of data blocks, the iterator will throw UncheckedIOException in case of IO errors.
+   * @throws IOException
+   */
+  public synchronized Iterator<DataBlock> getDataBlocks(final long startTimeMillis, final long endTimeMillis,
+          @Nullable final long[] tableIds) throws IOException {
+    BlockIndex index = BlockIndex.load(file);
+    List<BlockIndex.Region> regions;
+    if (index == null) {
+      regions = Collections.singletonList(new BlockIndex.Region(dataStart, size, false));
+    } else {
+      regions = index.plan(dataStart, size, startTimeMillis, endTimeMillis, tableIds);
+    }
+    return new DataBlockIterator(regions.iterator(), size);
+  }
+
+  private final class DataBlockIterator implements Iterator<DataBlock> {
+
+    private final long dataEnd;
+
+    private Iterator<BlockIndex.Region> regions;
+
+    private BlockIndex.Region current;
+
+    private DataBlock next;
+
+    /** a known record boundary, where a scan can be restarted from. */
+    private long verified;
+
+    /** blocks that start before this position have been handed out, or were skipped by the plan. */
+    private long emitFrom;
+
+    DataBlockIterator(final Iterator<BlockIndex.Region> regions, final long dataEnd) {
+      this.regions = regions;
+      this.dataEnd = dataEnd;
+      this.verified = dataStart;
+      this.emitFrom = dataStart;
+    }
+
+    @Nullable
+    private DataBlock advance() throws IOException {
+      synchronized (TSDBReader.this) {
+        while (true) {
+          if (current == null) {
+            if (!regions.hasNext()) {
+              return null;
+            }
+            current = regions.next();
+            seek(current.getStartOffset());
+          }
+          long position = bis.getCount();
+          if (position >= current.getEndOffset()) {
+            verified = position;
+            emitFrom = position;
+            current = null;
+            continue;
+          }
+          if (current.isIndexedBlock()) {
+            Either<TableDef, DataBlock> read;
+            try {
+              read = read();
+            } catch (IOException | RuntimeException ex) {
+              dropIndex(ex);
+              continue;
+            }
+            if (read == null || !read.isRight() || bis.getCount() != current.getEndOffset()) {
+              dropIndex(null);
+              continue;
+            }
+            verified = current.getEndOffset();
+            emitFrom = verified;
+            current = null;
+            return read.getRight();
+          }
+          Either<TableDef, DataBlock> read = read();
+          if (read == null) {
+            return null;
+          }
+          if (read.isRight() && position >= emitFrom) {
+            return read.getRight();
+          }
+        }
+      }
+    }
+
+    /**
+     * The index is inconsistent with the data (stale index file), continue without the index,
+     * scanning from the last known record boundary, and skipping the blocks that have already been handed out.
+     */
+    private void dropIndex(@Nullable final Exception ex) throws IOException {
+      LOG.warn("Block index {} is inconsistent with data at {}, scanning {} from {}",
+              BlockIndex.getIndexFile(file), current, file, verified, ex);
+      regions = Collections.emptyIterator();
+      current = new BlockIndex.Region(verified, dataEnd, false);
+      seek(verified);
+    }
+
+    @Override
+    public boolean hasNext() {
+      if (next == null) {
+        try {
+          next = advance();
+        } catch (IOException ex) {
+          throw new UncheckedIOException(ex);
+        }
+      }
+      return next != null;
+    }
+
+    @Override
+    public DataBlock next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      DataBlock result = next;
+      next = null;
+      return result;
+    }
+
+  }
+
   @Nullable
   public synchronized Either<TableDef, DataBlock> read() throws IOException {
     final long position = bis.getCount();
@@ -167,8 +339,12 @@ public final class TSDBReader implements Closeable {
         throw new IOException("Table Id should be equal with file position " + position + ", " + tdId);
       }
       return Either.left(td);
-    } else {
+    } else if (result instanceof DataBlock) {
       return Either.right((DataBlock) result);
+    } else if (ColumnarDataBlocks.isColumnarBlock(result)) {
+      return Either.right(ColumnarDataBlocks.decode((GenericRecord) result));
+    } else {
+      throw new IOException("Unexpected record at " + position + ", " + result + ", this= " + this);
     }
   }
 
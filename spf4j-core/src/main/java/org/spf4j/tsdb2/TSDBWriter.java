@@ -34,6 +34,7 @@ package org.spf4j.tsdb2;
 import com.google.common.io.ByteStreams;
 import com.google.common.primitives.Longs;
 import edu.umd.cs.findbugs.annotations.CreatesObligation;
+import gnu.trove.set.hash.TLongHashSet;
 import java.io.Closeable;
 import java.io.DataInputStream;
 import java.io.File;
@@ -67,6 +68,9 @@ import org.spf4j.tsdb2.avro.TableDef;
  * Second generation Time-Series database format. The linked list structure from first generation is dropped to reduce
  * write overhead.
  *
+ * Every written data block is also recorded in a sidecar block index (see {@link BlockIndex}), to allow queries
+ * to read only the blocks that are relevant for a time range and set of tables.
+ *
  *
  * @author zoly
  */
@@ -75,65 +79,126 @@ public final class TSDBWriter implements Closeable, Flushable {
   public static final Schema FILE_RECORD_SCHEMA
           = Schema.createUnion(Arrays.asList(TableDef.SCHEMA$, DataBlock.SCHEMA$));
 
+  /**
+   * file content schema for files with columnar data blocks. (see {@link ColumnarDataBlocks})
+   */
+  public static final Schema FILE_RECORD_SCHEMA_V2
+          = Schema.createUnion(Arrays.asList(TableDef.SCHEMA$, DataBlock.SCHEMA$, ColumnarDataBlocks.SCHEMA));
+
+  /**
+   * Write new files with columnar data blocks (spf4j.tsdb2.columnarBlocks, default false).
+   * Columnar files are written with the FILE_RECORD_SCHEMA_V2 content schema, which cannot be read
+   * by readers older than this version, as such the columnar format is opt-in. Files written in the row format
+   * can be read by all versions, appending to an existing file will always continue in the file's format.
+   * Columnar blocks do not preserve the row order across tables within a block. (see {@link ColumnarDataBlocks})
+   */
+  private static final boolean COLUMNAR_BLOCKS = Boolean.getBoolean("spf4j.tsdb2.columnarBlocks");
+
   static final byte[] MAGIC = Strings.toUtf8("TSDB2");
 
   private final File file;
   private final FileChannel channel;
   private final BinaryEncoder encoder;
   private final Header header;
-  private final SpecificDatumWriter<Object> recordWriter = new SpecificDatumWriter<>(FILE_RECORD_SCHEMA);
+  private final SpecificDatumWriter<Object> recordWriter;
+  private final boolean columnar;
   private final DataBlock writeBlock;
   private final int maxRowsPerBlock;
   private final RandomAccessFile raf;
 
   private final ByteArrayBuilder bab;
 
+  private final BlockIndex.Writer indexWriter;
+
+  private final TLongHashSet blockTableIds;
+
+  private long blockMinTs;
+
+  private long blockMaxTs;
+
   @CreatesObligation
   public TSDBWriter(final File file, final int maxRowsPerBlock,
           final String description, final boolean append) throws IOException {
+    this(file, maxRowsPerBlock, description, append, COLUMNAR_BLOCKS);
+  }
+
+  /**
+   * Create a tsdb2 writer.
+   * @param file the file to write to.
+   * @param maxRowsPerBlock max rows in a data block.
+   * @param description file description, must be null when appending to a existing file.
+   * @param append append to existing file or overwrite.
+   * @param columnarBlocks write data blocks in the columnar format, ignored when appending to a existing file,
+   * in which case the format from the existing file header is used.
+   */
+  @CreatesObligation
+  public TSDBWriter(final File file, final int maxRowsPerBlock,
+          final String description, final boolean append, final boolean columnarBlocks) throws IOException {
     this.file = file;
     this.maxRowsPerBlock = maxRowsPerBlock;
     this.writeBlock = new DataBlock(System.currentTimeMillis(), new ArrayList<DataRow>(maxRowsPerBlock));
     raf = new RandomAccessFile(file, "rw");
-    bab = new ByteArrayBuilder(32768, ArraySuppliers.Bytes.JAVA_NEW);
-    encoder = EncoderFactory.get().directBinaryEncoder(bab, null);
-    channel = raf.getChannel();
-    channel.lock();
-    if (!append) {
-      raf.setLength(0);
-      channel.force(true);
-    }
-    if (raf.length() <= 0) {
-      // new file or overwite, will write header;
-      bab.write(MAGIC);
-      toOutputStream(0, bab);
-      header = Header.newBuilder()
-              .setContentSchema(FILE_RECORD_SCHEMA.toString())
-              .setDescription(description)
-              .build();
-      SpecificDatumWriter<Header> headerWriter = new SpecificDatumWriter<>(Header.SCHEMA$);
-      headerWriter.write(header, encoder);
-      encoder.flush();
-      byte[] buffer = bab.getBuffer();
-      final int size = bab.size();
-      toByteArray(size, buffer, MAGIC.length);
-      raf.write(buffer, 0, size);
-      channel.force(true);
-    } else {
-      if (description != null) {
-        throw new IllegalArgumentException("Providing description when appending is not allowed for " + file);
+    try {
+      bab = new ByteArrayBuilder(32768, ArraySuppliers.Bytes.JAVA_NEW);
+      encoder = EncoderFactory.get().directBinaryEncoder(bab, null);
+      channel = raf.getChannel();
+      channel.lock();
+      if (!append) {
+        raf.setLength(0);
+        channel.force(true);
       }
+      this.blockTableIds = new TLongHashSet();
+      resetBlockStats();
+      if (raf.length() <= 0) {
+        // new file or overwite, will write header;
+        bab.write(MAGIC);
+        toOutputStream(0, bab);
+        columnar = columnarBlocks;
+        header = Header.newBuilder()
+                .setContentSchema((columnar ? FILE_RECORD_SCHEMA_V2 : FILE_RECORD_SCHEMA).toString())
+                .setDescription(description)
+                .build();
+        SpecificDatumWriter<Header> headerWriter = new SpecificDatumWriter<>(Header.SCHEMA$);
+        headerWriter.write(header, encoder);
+        encoder.flush();
+        byte[] buffer = bab.getBuffer();
+        final int size = bab.size();
+        toByteArray(size, buffer, MAGIC.length);
+        raf.write(buffer, 0, size);
+        channel.force(true);
+        indexWriter = new BlockIndex.Writer(file, false);
+      } else {
+        if (description != null) {
+          throw new IllegalArgumentException("Providing description when appending is not allowed for " + file);
+        }
 
-      try (BufferedInputStream bis = new BufferedInputStream(Files.newInputStream(file.toPath()));
-              DataInputStream dis = new DataInputStream(bis)) {
-        validateType(dis);
-        long size = dis.readLong();
-        SpecificDatumReader<Header> reader = new SpecificDatumReader<>(Header.getClassSchema());
-        BinaryDecoder directBinaryDecoder = DecoderFactory.get().directBinaryDecoder(dis, null);
-        header = reader.read(null, directBinaryDecoder);
-        raf.seek(size);
+        try (BufferedInputStream bis = new BufferedInputStream(Files.newInputStream(file.toPath()));
+                DataInputStream dis = new DataInputStream(bis)) {
+          validateType(dis);
+          long size = dis.readLong();
+          SpecificDatumReader<Header> reader = new SpecificDatumReader<>(Header.getClassSchema());
+          BinaryDecoder directBinaryDecoder = DecoderFactory.get().directBinaryDecoder(dis, null);
+          header = reader.read(null, directBinaryDecoder);
+          raf.seek(size);
+        }
+        columnar = ColumnarDataBlocks.isColumnarContent(new Schema.Parser().parse(header.getContentSchema()));
+        indexWriter = new BlockIndex.Writer(file, true);
+      }
+    } catch (IOException | RuntimeException ex) {
+      try {
+        raf.close();
+      } catch (IOException ex2) {
+        ex.addSuppressed(ex2);
       }
+      throw ex;
     }
+    recordWriter = new SpecificDatumWriter<>(columnar ? FILE_RECORD_SCHEMA_V2 : FILE_RECORD_SCHEMA);
+  }
+
+  private void resetBlockStats() {
+    blockTableIds.clear();
+    blockMinTs = Long.MAX_VALUE;
+    blockMaxTs = Long.MIN_VALUE;
   }
 
   static void validateType(final InputStream dis) throws IOException {
@@ -163,11 +228,18 @@ public final class TSDBWriter implements Closeable, Flushable {
     long baseTs = writeBlock.getBaseTimestamp();
     DataRow row = new DataRow((int) (timestamp - baseTs), tableId, Longs.asList(data));
     blockValues.add(row);
+    blockTableIds.add(tableId);
+    if (timestamp < blockMinTs) {
+      blockMinTs = timestamp;
+    }
+    if (timestamp > blockMaxTs) {
+      blockMaxTs = timestamp;
+    }
   }
 
   @Override
   public synchronized void close() throws IOException {
-    try (RandomAccessFile f = raf) {
+    try (RandomAccessFile f = raf; BlockIndex.Writer iw = indexWriter) {
       flush();
     }
   }
@@ -201,13 +273,17 @@ public final class TSDBWriter implements Closeable, Flushable {
   public synchronized void flush() throws IOException {
     List<DataRow> blockValues = writeBlock.getValues();
     if (!blockValues.isEmpty()) {
+      final long blockStart = raf.getFilePointer();
       bab.reset();
-      this.recordWriter.write(writeBlock, this.encoder);
+      this.recordWriter.write(columnar ? ColumnarDataBlocks.encode(writeBlock) : writeBlock, this.encoder);
       encoder.flush();
       raf.write(bab.getBuffer(), 0, bab.size());
       channel.force(true);
       updateEOFPtrPointer();
+      indexWriter.write(new BlockIndex.Entry(blockStart, raf.getFilePointer(),
+              blockMinTs, blockMaxTs, blockTableIds.toArray()));
       blockValues.clear();
+      resetBlockStats();
     }
     channel.force(true);
   }
@@ -0,0 +1,173 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.concurrent;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.junit.Assert;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.spf4j.base.TimeSource;
+import org.spf4j.failsafe.LimitingExecutor;
+import org.spf4j.failsafe.RetryPolicy;
+
+/**
+ * @author Zoltan Farkas
+ */
+public final class AdaptiveSemaphoreTest {
+
+  private static final Logger LOG = LoggerFactory.getLogger(AdaptiveSemaphoreTest.class);
+
+  private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+  /**
+   * a semaphore that updates the limit on every sample.
+   */
+  private static AdaptiveSemaphore semaphore(final ConcurrencyLimitAlgorithm algo, final int limit) {
+    return new AdaptiveSemaphore(algo, limit, 1, 100, 1, 1);
+  }
+
+  /**
+   * use all permits, and release them with the provided latency.
+   */
+  private static void load(final AdaptiveSemaphore sem, final long rttNanos, final boolean dropped)
+          throws InterruptedException {
+    int limit = sem.getLimit();
+    Assert.assertTrue(sem.tryAcquire(limit, 0, TimeUnit.NANOSECONDS));
+    for (int i = 0; i < limit; i++) {
+      sem.release(1, rttNanos, dropped);
+    }
+  }
+
+  @Test
+  public void testAimd() throws InterruptedException {
+    AdaptiveSemaphore sem = semaphore(new AimdLimitAlgorithm(0.5, 100 * MS), 10);
+    load(sem, MS, false);
+    // the limit grows while it is utilized, (at least half of the permits in use)
+    int limit = sem.getLimit();
+    Assert.assertTrue(limit > 10 && limit <= 20);
+    load(sem, MS, true);
+    LOG.debug("After drops {}", sem);
+    Assert.assertEquals(1, sem.getLimit());
+    Assert.assertEquals(1, sem.getAvailablePermits());
+    load(sem, 200 * MS, false);
+    Assert.assertEquals(1, sem.getLimit());
+  }
+
+  @Test
+  public void testVegas() throws InterruptedException {
+    AdaptiveSemaphore sem = semaphore(new VegasLimitAlgorithm(), 10);
+    load(sem, MS, false);
+    int limit = sem.getLimit();
+    Assert.assertTrue(limit > 10);
+    // latency doubles, the estimated queue is half the limit.
+    load(sem, 2 * MS, false);
+    LOG.debug("After latency increase {}", sem);
+    Assert.assertTrue(sem.getLimit() < limit);
+    Assert.assertEquals(MS, sem.getMinRttNanos());
+  }
+
+  @Test
+  public void testMinRttRecovers() throws InterruptedException {
+    AdaptiveSemaphore sem = new AdaptiveSemaphore(new VegasLimitAlgorithm(), 10, 1, 100, 1, 1, 3);
+    load(sem, MS, false);
+    Assert.assertEquals(MS, sem.getMinRttNanos());
+    // the latency increases permanently, the min rtt is updated after 3 windows.
+    for (int i = 0; i < 3; i++) {
+      sem.release(0, 5 * MS, false);
+    }
+    Assert.assertEquals(5 * MS, sem.getMinRttNanos());
+  }
+
+  @Test
+  public void testGradient() throws InterruptedException {
+    AdaptiveSemaphore sem = semaphore(new GradientLimitAlgorithm(1.5, 0.5, 100), 10);
+    load(sem, MS, false);
+    int limit = sem.getLimit();
+    Assert.assertTrue(limit > 10);
+    for (int i = 0; i < 5; i++) {
+      load(sem, 10 * MS, false);
+    }
+    LOG.debug("After latency increase {}", sem);
+    Assert.assertTrue(sem.getLimit() < limit);
+  }
+
+  @Test
+  public void testLimitingExecutor() throws Exception {
+    AdaptiveSemaphore sem = semaphore(new AimdLimitAlgorithm(), 10);
+    LimitingExecutor<Object, Callable<Object>> executor = new LimitingExecutor<>(sem);
+    try {
+      executor.execute(() -> {
+        throw new TimeoutException();
+      });
+      Assert.fail();
+    } catch (TimeoutException ex) {
+      // expected
+    }
+    Assert.assertEquals(9, sem.getLimit());
+    try {
+      executor.execute(() -> {
+        throw new IllegalArgumentException();
+      });
+      Assert.fail();
+    } catch (IllegalArgumentException ex) {
+      // expected, not a drop.
+    }
+    Assert.assertEquals(9, sem.getLimit());
+    Assert.assertEquals("ok", executor.execute(() -> "ok"));
+    Assert.assertEquals(9, sem.getAvailablePermits());
+  }
+
+  @Test
+  public void testRetryPolicy() throws Exception {
+    AdaptiveSemaphore sem = semaphore(new AimdLimitAlgorithm(), 10);
+    RetryPolicy<Object, Callable<?>> policy = RetryPolicy.newBuilder()
+            .withRetryOnException(TimeoutException.class, 2)
+            .withConcurrencyLimiter(sem)
+            .build();
+    int[] attempts = new int[1];
+    Object result = policy.call(() -> {
+      if (attempts[0]++ < 2) {
+        throw new TimeoutException();
+      }
+      return "ok";
+    }, TimeoutException.class, TimeSource.nanoTime() + TimeUnit.SECONDS.toNanos(10));
+    Assert.assertEquals("ok", result);
+    Assert.assertEquals(3, attempts[0]);
+    // 2 drops reduce the limit to 8.
+    Assert.assertEquals(8, sem.getLimit());
+    Assert.assertEquals(8, sem.getAvailablePermits());
+  }
+
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.concurrent;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Assert;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * @author Zoltan Farkas
+ */
+public final class HashedWheelTimerTest {
+
+  private static final Logger LOG = LoggerFactory.getLogger(HashedWheelTimerTest.class);
+
+  @Test
+  public void testScheduleFromMultipleThreads() throws Exception {
+    // small wheel, so that timeouts are placed in, and cascaded from, multiple levels.
+    try (HashedWheelTimer timer = new HashedWheelTimer("test", 1, TimeUnit.MILLISECONDS, 4)) {
+      int nrThreads = 4;
+      int nrTasks = 500;
+      CountDownLatch latch = new CountDownLatch(nrThreads * nrTasks);
+      ConcurrentLinkedQueue<String> errors = new ConcurrentLinkedQueue<>();
+      Future<?>[] futures = new Future[nrThreads];
+      for (int t = 0; t < nrThreads; t++) {
+        futures[t] = DefaultExecutor.INSTANCE.submit(() -> {
+          ThreadLocalRandom rnd = ThreadLocalRandom.current();
+          for (int i = 0; i < nrTasks; i++) {
+            long delayMillis = rnd.nextInt(300);
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMillis);
+            timer.schedule(() -> {
+              long early = deadline - System.nanoTime();
+              if (early > 0) {
+                errors.add("Executed " + early + " ns before deadline, delay = " + delayMillis);
+              }
+              latch.countDown();
+            }, delayMillis, TimeUnit.MILLISECONDS);
+          }
+        });
+      }
+      for (Future<?> future : futures) {
+        future.get();
+      }
+      Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+      Assert.assertTrue(errors.toString(), errors.isEmpty());
+    }
+  }
+
+  @Test
+  public void testCancel() throws InterruptedException {
+    try (HashedWheelTimer timer = new HashedWheelTimer("test", 1, TimeUnit.MILLISECONDS, 8)) {
+      AtomicInteger executed = new AtomicInteger();
+      CountDownLatch latch = new CountDownLatch(50);
+      HashedWheelTimer.Timeout[] timeouts = new HashedWheelTimer.Timeout[100];
+      for (int i = 0; i < timeouts.length; i++) {
+        timeouts[i] = timer.schedule(() -> {
+          executed.incrementAndGet();
+          latch.countDown();
+        }, 50 + i, TimeUnit.MILLISECONDS);
+      }
+      for (int i = 0; i < timeouts.length; i += 2) {
+        Assert.assertTrue(timeouts[i].cancel());
+        Assert.assertFalse(timeouts[i].cancel());
+      }
+      Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+      Thread.sleep(50);
+      Assert.assertEquals(50, executed.get());
+      for (int i = 0; i < timeouts.length; i++) {
+        HashedWheelTimer.Timeout timeout = timeouts[i];
+        Assert.assertEquals(i % 2 == 0, timeout.isCancelled());
+        Assert.assertEquals(i % 2 != 0, timeout.isExpired());
+        Assert.assertFalse(timeout.cancel());
+      }
+    }
+  }
+
+  @Test
+  public void testClose() throws InterruptedException {
+    HashedWheelTimer timer = new HashedWheelTimer("test", 1, TimeUnit.MILLISECONDS, 512);
+    CountDownLatch latch = new CountDownLatch(1);
+    timer.schedule(latch::countDown, 0, TimeUnit.MILLISECONDS);
+    Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+    HashedWheelTimer.Timeout timeout = timer.schedule(() -> {
+      throw new IllegalStateException();
+    }, 1, TimeUnit.HOURS);
+    LOG.debug("Scheduled {} with {}", timeout, timer);
+    timer.close();
+    Assert.assertTrue(timeout.isCancelled());
+    try {
+      timer.schedule(() -> { }, 1, TimeUnit.MILLISECONDS);
+      Assert.fail();
+    } catch (RejectedExecutionException ex) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testExpireIf() throws InterruptedException {
+    try (HashedWheelTimer timer = new HashedWheelTimer("test", 1, TimeUnit.MILLISECONDS, 8)) {
+      CountDownLatch latch = new CountDownLatch(1);
+      Runnable expire = latch::countDown;
+      HashedWheelTimer.Timeout expired = timer.schedule(expire, 1, TimeUnit.HOURS);
+      HashedWheelTimer.Timeout other = timer.schedule(() -> { }, 1, TimeUnit.HOURS);
+      timer.expireIf((task) -> task == expire);
+      Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+      Assert.assertTrue(expired.isExpired());
+      Assert.assertFalse(other.isExpired());
+      Assert.assertTrue(other.cancel());
+    }
+  }
+
+}
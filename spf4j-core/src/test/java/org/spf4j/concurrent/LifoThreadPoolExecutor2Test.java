@@ -96,8 +96,8 @@ public class LifoThreadPoolExecutor2Test {
   public static void assertPoolThreadDynamics(final ExecutorService executor)
           throws InterruptedException, IOException, ExecutionException {
     testMaxParallel(executor, 4, 4, TimeUnit.SECONDS);
-    if (executor instanceof LifoThreadPoolExecutorSQP) {
-      LifoThreadPoolExecutorSQP le = (LifoThreadPoolExecutorSQP) executor;
+    if (executor instanceof LifoThreadPool) {
+      LifoThreadPool le = (LifoThreadPool) executor;
       Assert.assertEquals(4, le.getThreadCount());
       testMaxParallel(executor, 2, 4, TimeUnit.SECONDS);
       Assert.assertEquals(2, le.getThreadCount());
@@ -0,0 +1,197 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.concurrent;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author Zoltan Farkas
+ */
+@SuppressFBWarnings({"HES_LOCAL_EXECUTOR_SERVICE", "MDM_THREAD_YIELD"})
+public class LifoThreadPoolExecutorWSPTest {
+
+  @Test(timeout = 60000)
+  public void testPoolBehavior() throws InterruptedException, IOException {
+    LifoThreadPoolExecutorWSP executor
+            = new LifoThreadPoolExecutorWSP("test", 8, 8, 60000, 1024);
+    LifoThreadPoolExecutorTest.assertPoolBehavior(executor);
+  }
+
+  @Test(timeout = 60000)
+  public void testPoolBehaviorZeroQueue() throws InterruptedException, IOException {
+    LifoThreadPool executor = LifoThreadPoolBuilder.newBuilder().withCoreSize(0).withMaxSize(16)
+            .withQueueSizeLimit(0).workStealing().build();
+    Assert.assertTrue(executor instanceof LifoThreadPoolExecutorWSP);
+    LifoThreadPoolExecutorTest.assertPoolBehavior(executor);
+  }
+
+  /**
+   * With no core threads and no idle time, the last worker retires while tasks are being queued,
+   * no task should be stranded in the queue without a thread to run it.
+   */
+  @Test(timeout = 60000)
+  public void testNoStrandedTasksWithZeroCoreThreads() throws InterruptedException {
+    LifoThreadPoolExecutorWSP executor
+            = new LifoThreadPoolExecutorWSP("test", 0, 1, 0, 100000);
+    int nrSubmitters = 2;
+    int nrTasks = 50000;
+    LongAdder executed = new LongAdder();
+    Thread[] submitters = new Thread[nrSubmitters];
+    for (int t = 0; t < nrSubmitters; t++) {
+      submitters[t] = new Thread(() -> {
+        for (int i = 0; i < nrTasks; i++) {
+          executor.execute(executed::increment);
+          // give the worker the chance to go idle and retire.
+          long spinUntil = System.nanoTime() + (i % 13) * 1000L;
+          while (System.nanoTime() < spinUntil) {
+            Thread.yield();
+          }
+        }
+      }, "submitter" + t);
+      submitters[t].start();
+    }
+    for (Thread submitter : submitters) {
+      submitter.join();
+    }
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+    while (executed.sum() < (long) nrSubmitters * nrTasks && System.nanoTime() < deadline) {
+      Thread.sleep(10);
+    }
+    Assert.assertEquals("Stranded tasks " + executor, (long) nrSubmitters * nrTasks, executed.sum());
+    executor.shutdown();
+    Assert.assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+  }
+
+  @Test(timeout = 60000)
+  public void testPoolThreadDynamics() throws InterruptedException, IOException, ExecutionException {
+    LifoThreadPoolExecutorWSP executor
+            = new LifoThreadPoolExecutorWSP("test", 2, 8, 1000, 0);
+    LifoThreadPoolExecutor2Test.assertPoolThreadDynamics(executor);
+  }
+
+  @Test(timeout = 60000)
+  public void testMutablePoolThreadDynamics() throws InterruptedException {
+    MutableLifoThreadPool executor = LifoThreadPoolBuilder.newBuilder().withCoreSize(2).withMaxSize(8)
+            .withMaxIdleTimeMillis(60000).withQueueSizeLimit(1024).workStealing().buildMutable();
+    MutableThreadPoolExecutor2Test.assertTestPoolThreadDynamics(executor);
+  }
+
+  @Test(timeout = 60000)
+  public void testNestedSubmissions() throws InterruptedException {
+    LifoThreadPoolExecutorWSP executor
+            = new LifoThreadPoolExecutorWSP("test", 4, 4, 60000, 100000);
+    LongAdder adder = new LongAdder();
+    CountDownLatch latch = new CountDownLatch(4 * 10000);
+    for (int i = 0; i < 4; i++) {
+      executor.execute(() -> {
+        // queued in the worker's own deque, and stolen by the other workers.
+        for (int j = 0; j < 10000; j++) {
+          executor.execute(() -> {
+            adder.increment();
+            latch.countDown();
+          });
+        }
+      });
+    }
+    Assert.assertTrue(latch.await(30, TimeUnit.SECONDS));
+    Assert.assertEquals(4 * 10000, adder.sum());
+    Assert.assertEquals(0, executor.getNrQueuedTasks());
+    executor.shutdown();
+    Assert.assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+    Assert.assertTrue(executor.isTerminated());
+  }
+
+  @Test(timeout = 60000)
+  public void testQueueLimitAndCancel() throws InterruptedException {
+    LifoThreadPoolExecutorWSP executor
+            = new LifoThreadPoolExecutorWSP("test", 0, 1, 60000, 1);
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch interrupted = new CountDownLatch(1);
+    Future<?> running = executor.submit(() -> {
+      started.countDown();
+      try {
+        Thread.sleep(Long.MAX_VALUE);
+      } catch (InterruptedException ex) {
+        interrupted.countDown();
+      }
+    });
+    Assert.assertTrue(started.await(10, TimeUnit.SECONDS));
+    executor.execute(() -> { });
+    Assert.assertEquals(1, executor.getNrQueuedTasks());
+    try {
+      executor.execute(() -> { });
+      Assert.fail();
+    } catch (RejectedExecutionException ex) {
+      // expected, the queue is full.
+    }
+    running.cancel(true);
+    Assert.assertTrue(interrupted.await(10, TimeUnit.SECONDS));
+    executor.setQueueSizeLimit(0);
+    executor.shutdown();
+    Assert.assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+    Assert.assertEquals(0, executor.getNrQueuedTasks());
+  }
+
+  @Test(timeout = 60000)
+  public void testShutdownNow() throws InterruptedException {
+    LifoThreadPoolExecutorWSP executor
+            = new LifoThreadPoolExecutorWSP("test", 1, 1, 60000, 10);
+    CountDownLatch started = new CountDownLatch(1);
+    executor.execute(() -> {
+      started.countDown();
+      try {
+        Thread.sleep(Long.MAX_VALUE);
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+      }
+    });
+    Assert.assertTrue(started.await(10, TimeUnit.SECONDS));
+    executor.execute(() -> { });
+    executor.execute(() -> { });
+    executor.shutdown();
+    Assert.assertFalse(executor.awaitTermination(10, TimeUnit.MILLISECONDS));
+    List<Runnable> queued = executor.shutdownNow();
+    Assert.assertEquals(2, queued.size());
+    Assert.assertTrue(executor.awaitTermination(1000, TimeUnit.MILLISECONDS));
+  }
+
+}
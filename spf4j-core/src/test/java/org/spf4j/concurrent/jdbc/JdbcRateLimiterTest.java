@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.concurrent.jdbc;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.Assert;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.spf4j.base.TimeSource;
+import org.spf4j.concurrent.DefaultExecutor;
+import org.spf4j.concurrent.DefaultScheduler;
+
+/**
+ * @author Zoltan Farkas
+ */
+@SuppressFBWarnings({"HARD_CODE_PASSWORD", "SQL_INJECTION_JDBC"})
+public class JdbcRateLimiterTest {
+
+  private static final Logger LOG = LoggerFactory.getLogger(JdbcRateLimiterTest.class);
+
+  private static JdbcRateLimiter createLimiter(final JdbcDataSource ds) throws SQLException, InterruptedException {
+    return new JdbcRateLimiter(ds, SemaphoreTablesDesc.DEFAULT, "testRate", 100, Duration.ofSeconds(1), 100,
+            10, 10, TimeUnit.MILLISECONDS, DefaultScheduler.INSTANCE);
+  }
+
+  private static long getAvailablePermits(final Connection conn) throws SQLException {
+    try (Statement stmt = conn.createStatement();
+            ResultSet rs = stmt.executeQuery(
+                    "select AVAILABLE_PERMITS from SEMAPHORES where SEMAPHORE_NAME = 'testRate'")) {
+      Assert.assertTrue(rs.next());
+      return rs.getLong(1);
+    }
+  }
+
+  @Test
+  public void testClusterRate() throws Exception {
+    JdbcDataSource ds = new JdbcDataSource();
+    ds.setURL("jdbc:h2:mem:rateTest");
+    ds.setUser("sa");
+    ds.setPassword("sa");
+    try (Connection conn = ds.getConnection()) { // only to keep the schema arround in this section
+      JdbcSemaphoreTest.createSchemaObjects(ds);
+      long startNanos = TimeSource.nanoTime();
+      long deadlineNanos = startNanos + TimeUnit.MILLISECONDS.toNanos(1500);
+      long total = 0;
+      // 2 processes sharing the same bucket.
+      try (JdbcRateLimiter limiter1 = createLimiter(ds);
+              JdbcRateLimiter limiter2 = createLimiter(ds)) {
+        List<Future<Integer>> futures = new ArrayList<>(4);
+        for (JdbcRateLimiter limiter : new JdbcRateLimiter[] {limiter1, limiter2, limiter1, limiter2}) {
+          futures.add(DefaultExecutor.INSTANCE.submit(() -> {
+            int count = 0;
+            while (limiter.tryAcquire(1, deadlineNanos)) {
+              count++;
+            }
+            return count;
+          }));
+        }
+        for (Future<Integer> future : futures) {
+          total += future.get();
+        }
+        LOG.debug("Acquired {} permits, limiters: {}, {}", total, limiter1, limiter2);
+      }
+      double elapsedSeconds = (TimeSource.nanoTime() - startNanos) / 1e9;
+      // burst + rate * time, + local leases that can be ahead of the shared bucket.
+      Assert.assertTrue("acquired " + total, total <= 100 + 100 * elapsedSeconds + 10);
+      Assert.assertTrue("acquired " + total, total >= 200);
+      // unused local permits are returned on close.
+      long available = getAvailablePermits(conn);
+      LOG.debug("Available permits after close {}", available);
+      Assert.assertTrue(available >= 0 && available <= 100);
+    }
+  }
+
+  @Test
+  public void testLocalAcquisition() throws Exception {
+    JdbcDataSource ds = new JdbcDataSource();
+    ds.setURL("jdbc:h2:mem:rateTest2");
+    ds.setUser("sa");
+    ds.setPassword("sa");
+    try (Connection conn = ds.getConnection()) { // only to keep the schema arround in this section
+      JdbcSemaphoreTest.createSchemaObjects(ds);
+      try (JdbcRateLimiter limiter = createLimiter(ds)) {
+        Assert.assertTrue(limiter.tryAcquire(5, 1, TimeUnit.SECONDS));
+        // the local bucket gets leased in the background, and permits are available without a DB round trip.
+        Thread.sleep(100);
+        Assert.assertTrue(limiter.getLocalPermits() > 0);
+        Assert.assertTrue(limiter.tryAcquire(1));
+        Assert.assertTrue(getAvailablePermits(conn) < 100);
+      }
+      Assert.assertTrue(getAvailablePermits(conn) > 90);
+    }
+  }
+
+}
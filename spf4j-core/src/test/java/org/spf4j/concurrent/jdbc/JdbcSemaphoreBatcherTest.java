@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.concurrent.jdbc;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import java.sql.BatchUpdateException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLIntegrityConstraintViolationException;
+import java.sql.SQLTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.Assert;
+import org.junit.Test;
+import org.spf4j.concurrent.DefaultExecutor;
+
+/**
+ * @author Zoltan Farkas
+ */
+@SuppressFBWarnings("HARD_CODE_PASSWORD")
+public class JdbcSemaphoreBatcherTest {
+
+  @Test
+  public void testBatchedSemaphores() throws Exception {
+    JdbcDataSource ds = new JdbcDataSource();
+    ds.setURL("jdbc:h2:mem:batchTest");
+    ds.setUser("sa");
+    ds.setPassword("sa");
+    try (Connection conn = ds.getConnection()) { // only to keep the schema arround in this section
+      JdbcSemaphoreTest.createSchemaObjects(ds);
+      JdbcSemaphore[] semaphores = new JdbcSemaphore[4];
+      for (int i = 0; i < semaphores.length; i++) {
+        semaphores[i] = new JdbcSemaphore(ds, SemaphoreTablesDesc.DEFAULT, "batchSem" + i, 2, 10, true, 10, true);
+      }
+      try {
+        List<Future<Integer>> futures = new ArrayList<>(16);
+        for (int i = 0; i < 16; i++) {
+          JdbcSemaphore semaphore = semaphores[i % semaphores.length];
+          futures.add(DefaultExecutor.INSTANCE.submit(() -> {
+            int count = 0;
+            for (int j = 0; j < 20; j++) {
+              if (semaphore.tryAcquire(1, 5, TimeUnit.SECONDS)) {
+                count++;
+                Assert.assertTrue(semaphore.permitsOwned() <= 2);
+                semaphore.release();
+              }
+            }
+            return count;
+          }));
+        }
+        int total = 0;
+        for (Future<Integer> future : futures) {
+          total += future.get();
+        }
+        // an acquisition can give up before its deadline when the dead owner cleanup does not finish in time.
+        Assert.assertTrue("acquired " + total, total > 16 * 10);
+        for (JdbcSemaphore semaphore : semaphores) {
+          Assert.assertEquals(0, semaphore.permitsOwned());
+          Assert.assertEquals(2, semaphore.availablePermits());
+        }
+        Assert.assertTrue(semaphores[0].tryAcquire(2, 1, TimeUnit.SECONDS));
+        Assert.assertFalse(semaphores[0].tryAcquire(1, 10, TimeUnit.MILLISECONDS));
+        Assert.assertTrue(semaphores[1].tryAcquire(1, 1, TimeUnit.SECONDS));
+        semaphores[0].release(2);
+        semaphores[1].release();
+        Assert.assertEquals(2, semaphores[0].availablePermits());
+      } finally {
+        for (JdbcSemaphore semaphore : semaphores) {
+          semaphore.close();
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testDataErrorClassification() {
+    Assert.assertTrue(JdbcSemaphoreBatcher.isDataError(new SQLIntegrityConstraintViolationException("dup")));
+    Assert.assertTrue(JdbcSemaphoreBatcher.isDataError(new IllegalStateException("Invalid update count")));
+    BatchUpdateException batchEx = new BatchUpdateException("batch", new int[0]);
+    batchEx.setNextException(new SQLException("check", "23513"));
+    Assert.assertTrue(JdbcSemaphoreBatcher.isDataError(batchEx));
+    Assert.assertFalse(JdbcSemaphoreBatcher.isDataError(new SQLTimeoutException("timeout")));
+    Assert.assertFalse(JdbcSemaphoreBatcher.isDataError(new SQLException("connection lost", "08006")));
+    Assert.assertFalse(JdbcSemaphoreBatcher.isDataError(new SQLException("other")));
+    BatchUpdateException timedOutBatch = new BatchUpdateException("batch", new int[0]);
+    timedOutBatch.setNextException(new SQLTimeoutException("timeout"));
+    Assert.assertFalse(JdbcSemaphoreBatcher.isDataError(timedOutBatch));
+  }
+
+}
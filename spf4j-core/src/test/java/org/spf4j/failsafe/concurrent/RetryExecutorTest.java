@@ -32,6 +32,9 @@
 package org.spf4j.failsafe.concurrent;
 
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
@@ -42,6 +45,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.spf4j.base.TimeSource;
 import org.spf4j.concurrent.DefaultExecutor;
+import org.spf4j.failsafe.RetryDecision;
 import org.spf4j.failsafe.RetryPolicy;
 import org.spf4j.failsafe.RetryPredicate;
 import org.spf4j.log.Level;
@@ -107,5 +111,38 @@ public class RetryExecutorTest {
     }
   }
 
+  @Test(timeout = 10000)
+  public void testCloseCancelsScheduledRetries() throws InterruptedException, ExecutionException {
+    AtomicInteger nrExecutions = new AtomicInteger();
+    Future<String> fut;
+    try (FailSafeExecutorImpl exec = new FailSafeExecutorImpl(DefaultExecutor.INSTANCE)) {
+      fut = exec.submit(() -> {
+        nrExecutions.incrementAndGet();
+        throw new IOException("failed");
+      }, new RetryPredicate<String, Callable<? extends String>>() {
+        @Override
+        public RetryDecision<String, Callable<? extends String>> getDecision(final String value,
+                final Callable<? extends String> what) {
+          return RetryDecision.abort();
+        }
+
+        @Override
+        public RetryDecision<String, Callable<? extends String>> getExceptionDecision(final Throwable value,
+                final Callable<? extends String> what) {
+          return RetryDecision.retry(1, TimeUnit.HOURS, what);
+        }
+      });
+      while (nrExecutions.get() == 0) {
+        Thread.sleep(1);
+      }
+    }
+    try {
+      fut.get();
+      Assert.fail();
+    } catch (CancellationException ex) {
+      LOG.debug("Expected, retry cancelled on close", ex);
+    }
+    Assert.assertEquals(1, nrExecutions.get());
+  }
 
 }
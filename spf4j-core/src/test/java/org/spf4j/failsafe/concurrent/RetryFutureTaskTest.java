@@ -0,0 +1,191 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.failsafe.concurrent;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Assert;
+import org.junit.Test;
+import org.spf4j.concurrent.HashedWheelTimer;
+import org.spf4j.failsafe.RetryDecision;
+import org.spf4j.failsafe.RetryPredicate;
+
+/**
+ * @author Zoltan Farkas
+ */
+public class RetryFutureTaskTest {
+
+  private static final RetryPredicate<String, Callable<? extends String>> RETRY_ALL
+          = new RetryPredicate<String, Callable<? extends String>>() {
+    @Override
+    public RetryDecision<String, Callable<? extends String>> getDecision(final String value,
+            final Callable<? extends String> what) {
+      return RetryDecision.retry(0, what);
+    }
+
+    @Override
+    public RetryDecision<String, Callable<? extends String>> getExceptionDecision(final Throwable value,
+            final Callable<? extends String> what) {
+      return RetryDecision.retry(0, what);
+    }
+  };
+
+  @Test(timeout = 10000)
+  public void testHedgeScheduleDoesNotOverwriteRetry() throws InterruptedException {
+    TestTimeout hedgeTimeout = new TestTimeout();
+    TestTimeout retryTimeout = new TestTimeout();
+    AtomicInteger nrSchedules = new AtomicInteger();
+    Thread[] executor = new Thread[1];
+    RetryFutureTask<String> task = new RetryFutureTask<>(() -> "A", RETRY_ALL, (t, delayNanos) -> {
+      if (nrSchedules.getAndIncrement() > 0) {
+        return retryTimeout;
+      }
+      // the hedge executes and is rescheduled for retry before its scheduling returns.
+      executor[0] = new Thread(t, "hedge");
+      executor[0].start();
+      long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+      while (executor[0].getState() != Thread.State.BLOCKED && System.nanoTime() < deadline) {
+        Thread.yield();
+      }
+      return hedgeTimeout;
+    });
+    task.schedule(0);
+    executor[0].join();
+    Assert.assertEquals(2, nrSchedules.get());
+    Assert.assertTrue(task.cancel(false));
+    Assert.assertTrue(retryTimeout.isCancelled());
+  }
+
+  @Test
+  public void testRetryWithClosedTimerFailsWithLastFailure() throws InterruptedException {
+    RetryFutureTask<String> task = new RetryFutureTask<>(() -> {
+      throw new IOException("failed");
+    }, RETRY_ALL, (t, delayNanos) -> {
+      throw new RejectedExecutionException("Timer closed");
+    });
+    task.run();
+    Assert.assertTrue(task.isDone());
+    try {
+      task.get();
+      Assert.fail();
+    } catch (ExecutionException ex) {
+      Throwable cause = ex.getCause();
+      Assert.assertEquals(IOException.class, cause.getClass());
+      Assert.assertEquals(RejectedExecutionException.class, cause.getSuppressed()[0].getClass());
+    }
+  }
+
+  @Test
+  public void testValueRetryWithClosedTimerFails() throws InterruptedException {
+    RetryFutureTask<String> task = new RetryFutureTask<>(() -> "A", RETRY_ALL, (t, delayNanos) -> {
+      throw new RejectedExecutionException("Timer closed");
+    });
+    task.run();
+    try {
+      task.get();
+      Assert.fail();
+    } catch (ExecutionException ex) {
+      Assert.assertEquals(RejectedExecutionException.class, ex.getCause().getClass());
+    }
+  }
+
+  @Test(timeout = 10000)
+  public void testZeroDelayRetryExecutedWithoutTimer() throws InterruptedException, ExecutionException {
+    AtomicInteger nrCalls = new AtomicInteger();
+    AtomicInteger nrSchedules = new AtomicInteger();
+    AtomicInteger nrExecutes = new AtomicInteger();
+    RetryFutureTask<String> task = new RetryFutureTask<>(() -> {
+      if (nrCalls.incrementAndGet() < 3) {
+        throw new IOException("failed");
+      }
+      return "A";
+    }, new RetryPredicate<String, Callable<? extends String>>() {
+      @Override
+      public RetryDecision<String, Callable<? extends String>> getDecision(final String value,
+              final Callable<? extends String> what) {
+        return RetryDecision.abort();
+      }
+
+      @Override
+      public RetryDecision<String, Callable<? extends String>> getExceptionDecision(final Throwable value,
+              final Callable<? extends String> what) {
+        return RetryDecision.retry(0, what);
+      }
+    }, new RetryScheduler() {
+      @Override
+      public HashedWheelTimer.Timeout schedule(final RetryFutureTask<?> t, final long delayNanos) {
+        nrSchedules.incrementAndGet();
+        throw new RejectedExecutionException("no timer");
+      }
+
+      @Override
+      public HashedWheelTimer.Timeout execute(final RetryFutureTask<?> t) {
+        nrExecutes.incrementAndGet();
+        // the retry must be executable right away, the previous execution is finished.
+        new Thread(t).start();
+        return null;
+      }
+    });
+    task.run();
+    Assert.assertEquals("A", task.get());
+    Assert.assertEquals(3, nrCalls.get());
+    Assert.assertEquals(2, nrExecutes.get());
+    Assert.assertEquals(0, nrSchedules.get());
+  }
+
+  private static final class TestTimeout implements HashedWheelTimer.Timeout {
+
+    private volatile boolean cancelled;
+
+    @Override
+    public boolean cancel() {
+      boolean result = !cancelled;
+      cancelled = true;
+      return result;
+    }
+
+    @Override
+    public boolean isCancelled() {
+      return cancelled;
+    }
+
+    @Override
+    public boolean isExpired() {
+      return false;
+    }
+  }
+
+}
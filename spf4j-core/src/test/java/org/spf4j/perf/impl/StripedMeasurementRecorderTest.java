@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.perf.impl;
+
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import org.junit.Assert;
+import org.junit.Test;
+import org.spf4j.perf.MeasurementAccumulator;
+import org.spf4j.perf.MeasurementRecorder;
+import org.spf4j.perf.impl.acc.AddAndCountAccumulator;
+import org.spf4j.perf.impl.acc.MinMaxAvgAccumulator;
+
+/**
+ * @author Zoltan Farkas
+ */
+public class StripedMeasurementRecorderTest {
+
+  private static final int NR_THREADS = 200;
+
+  private static void recordFromShortLivedThreads(final MeasurementRecorder recorder) throws InterruptedException {
+    Thread[] threads = new Thread[NR_THREADS];
+    for (int t = 0; t < NR_THREADS; t++) {
+      threads[t] = new Thread(() -> {
+        for (int i = 1; i <= 100; i++) {
+          recorder.record(i);
+        }
+      });
+      threads[t].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+  }
+
+  @Test
+  public void testRecorder() throws InterruptedException {
+    try (StripedMeasurementRecorder recorder = new StripedMeasurementRecorder(
+            new MinMaxAvgAccumulator("test", "", "ms"), 4, 1000, new NopMeasurementStore(), false)) {
+      recordFromShortLivedThreads(recorder);
+      int nrCells = recorder.getNrCells();
+      Assert.assertTrue("cells " + nrCells, nrCells >= 1 && nrCells <= 4);
+      long[] result = recorder.getThenReset();
+      Assert.assertArrayEquals(new long[] {NR_THREADS * 100, NR_THREADS * 5050L, 1, 100}, result);
+      Assert.assertNull(recorder.getThenReset());
+      recordFromShortLivedThreads(recorder);
+      Assert.assertEquals(NR_THREADS * 5050L, recorder.get()[1]);
+    }
+  }
+
+  @Test
+  public void testRecorderSource() throws InterruptedException {
+    try (StripedMeasurementRecorderSource source = new StripedMeasurementRecorderSource(
+            new AddAndCountAccumulator("test", "", "ms"), 8, 1000, new NopMeasurementStore(), false)) {
+      recordFromShortLivedThreads(source.getRecorder("A"));
+      recordFromShortLivedThreads(source.getRecorder("B"));
+      Assert.assertSame(source.getRecorder("A"), source.getRecorder("A"));
+      Map<Object, MeasurementAccumulator> measurements = source.getEntitiesMeasurementsAndReset();
+      Assert.assertEquals(2, measurements.size());
+      Assert.assertArrayEquals(new long[] {NR_THREADS * 100, NR_THREADS * 5050L},
+              measurements.get("A").get());
+      Assert.assertArrayEquals(new long[] {NR_THREADS * 100, NR_THREADS * 5050L},
+              measurements.get("B").get());
+      Assert.assertTrue(source.getEntitiesMeasurementsAndReset().isEmpty());
+    }
+  }
+
+  @Test
+  public void testContendedCellsAreProbed() throws InterruptedException {
+    AccumulatorCells cells = new AccumulatorCells(new AddAndCountAccumulator("test", "", "ms"), 4);
+    Assert.assertEquals(1, cells.getNrCells());
+    cells.record(1);
+    Assert.assertEquals(1, cells.getNrCells());
+    CountDownLatch locked = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    Thread holder = new Thread(() -> {
+      cells.getCellLock(0).lock();
+      try {
+        locked.countDown();
+        release.await();
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+      } finally {
+        cells.getCellLock(0).unlock();
+      }
+    });
+    holder.start();
+    locked.await();
+    try {
+      // the only cell is contended, a new cell is added.
+      cells.record(5);
+      cells.recordAt(0, 7);
+      Assert.assertEquals(2, cells.getNrCells());
+    } finally {
+      release.countDown();
+    }
+    holder.join();
+    Assert.assertArrayEquals(new long[] {3, 13}, cells.reset().get());
+    Assert.assertNull(cells.reset());
+  }
+
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.perf.impl.acc;
+
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author Zoltan Farkas
+ */
+public class LogLinearHistogramAccumulatorTest {
+
+  @Test
+  public void testBuckets() {
+    int bits = LogLinearHistogramAccumulator.subBucketBits(2);
+    Assert.assertEquals(8, bits);
+    int prevIdx = -1;
+    for (long v = 0; v < 1000000; v++) {
+      int idx = LogLinearHistogramAccumulator.bucketIdx(v, bits);
+      Assert.assertTrue(idx == prevIdx || idx == prevIdx + 1);
+      long high = LogLinearHistogramAccumulator.bucketHighestValue(idx, bits);
+      Assert.assertTrue(v + " -> " + high, high >= v);
+      Assert.assertTrue(v + " -> " + high, (high - v) * 100 <= v);
+      prevIdx = idx;
+    }
+    Assert.assertEquals(LogLinearHistogramAccumulator.bucketIdx(Long.MAX_VALUE, bits),
+            LogLinearHistogramAccumulator.nrBuckets(Long.MAX_VALUE, bits) - 1);
+  }
+
+  @Test
+  public void testPercentiles() {
+    LogLinearHistogramAccumulator acc = new LogLinearHistogramAccumulator("test", "", "ms", 3600000, 2);
+    Assert.assertNull(acc.get());
+    Random random = new Random(7);
+    long[] values = new long[100000];
+    for (int i = 0; i < values.length; i++) {
+      values[i] = (long) (Math.exp(random.nextGaussian() * 2) * 100);
+      acc.record(values[i]);
+    }
+    Arrays.sort(values);
+    long[] result = acc.get();
+    Assert.assertEquals(values.length, result[0]);
+    Assert.assertEquals(values[0], result[2]);
+    Assert.assertEquals(values[values.length - 1], result[3]);
+    double[] percentiles = {0.5, 0.9, 0.99, 0.999};
+    for (int i = 0; i < percentiles.length; i++) {
+      long expected = values[(int) Math.ceil(percentiles[i] * values.length) - 1];
+      long actual = result[i + 4];
+      Assert.assertTrue(expected + " vs " + actual, actual >= expected && (actual - expected) * 100 <= expected);
+      Assert.assertEquals(actual, acc.getPercentile(percentiles[i]));
+    }
+  }
+
+  @Test
+  public void testAggregate() {
+    LogLinearHistogramAccumulator acc1 = new LogLinearHistogramAccumulator("test", "", "ms", 10000, 3);
+    LogLinearHistogramAccumulator acc2 = (LogLinearHistogramAccumulator) acc1.createLike("test");
+    LogLinearHistogramAccumulator all = (LogLinearHistogramAccumulator) acc1.createLike("test");
+    for (int i = -10; i < 20000; i++) {
+      if (i % 3 == 0) {
+        acc1.record(i);
+      } else {
+        acc2.record(i);
+      }
+      all.record(i);
+    }
+    Assert.assertArrayEquals(all.get(), acc1.aggregate(acc2).get());
+    Assert.assertArrayEquals(all.get(), acc1.createClone().aggregate(acc2).get());
+    long[] vals = all.getThenReset();
+    Assert.assertEquals(20010, vals[0]);
+    Assert.assertEquals(-10, vals[2]);
+    Assert.assertEquals(19999, vals[3]);
+    // values over the highest trackable value are all in the last bucket, percentile clamped to max.
+    Assert.assertEquals(19999, vals[7]);
+    Assert.assertNull(all.get());
+    Assert.assertNull(all.reset());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testAggregateDifferentLayout() {
+    new LogLinearHistogramAccumulator("test", "", "ms", 10000, 3)
+            .aggregate(new LogLinearHistogramAccumulator("test", "", "ms", 10000, 2));
+  }
+
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.perf.impl.acc;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.Assert;
+import org.junit.Test;
+import org.spf4j.perf.MeasurementAccumulator;
+
+/**
+ * @author Zoltan Farkas
+ */
+public class StripedQuantizedAccumulatorTest {
+
+  @Test
+  public void testSameAsQuantized() {
+    QuantizedAccumulator expected = new QuantizedAccumulator("test", "", "ms", 10, -1, 3, 10);
+    StripedQuantizedAccumulator instance = new StripedQuantizedAccumulator("test", "", "ms", 10, -1, 3, 10, 3);
+    Assert.assertEquals(4, instance.getNrStripes());
+    Assert.assertEquals(expected.getInfo(), instance.getInfo());
+    Assert.assertNull(instance.get());
+    for (long m : new long[] {-100, -1, 0, 0, 1, 2, 2, 10, 11, 250, 250, 15000}) {
+      expected.record(m);
+      instance.record(m);
+    }
+    Assert.assertArrayEquals(expected.get(), instance.get());
+    MeasurementAccumulator clone = instance.createClone();
+    Assert.assertArrayEquals(expected.get(), clone.get());
+    Assert.assertArrayEquals(expected.aggregate(expected).get(), instance.aggregate(clone).get());
+    Assert.assertArrayEquals(expected.getThenReset(), instance.getThenReset());
+    Assert.assertNull(instance.get());
+    Assert.assertNull(instance.reset());
+    instance.record(5);
+    expected.record(5);
+    Assert.assertArrayEquals(expected.reset().get(), instance.reset().get());
+  }
+
+  @Test
+  public void testConcurrentRecordAndReset() throws InterruptedException, ExecutionException {
+    StripedQuantizedAccumulator instance = new StripedQuantizedAccumulator("test", "", "ms", 10, 0, 3, 10, 4);
+    int nrThreads = 8;
+    int nrRecords = 100000;
+    ExecutorService executor = Executors.newFixedThreadPool(nrThreads);
+    AtomicBoolean done = new AtomicBoolean();
+    // total, count, nr of inconsistent snapshots
+    long[] totals = new long[3];
+    Thread resetter = new Thread(() -> {
+      while (!done.get()) {
+        long[] vals = instance.getThenReset();
+        if (vals != null) {
+          totals[0] += vals[0];
+          totals[1] += vals[1];
+          if (vals[1] != sumBuckets(vals)) {
+            totals[2]++;
+          }
+        }
+      }
+    });
+    resetter.start();
+    try {
+      List<Future<?>> futures = new ArrayList<>(nrThreads);
+      for (int t = 0; t < nrThreads; t++) {
+        futures.add(executor.submit(() -> {
+          for (int i = 0; i < nrRecords; i++) {
+            instance.record(i % 2000);
+          }
+        }));
+      }
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    } finally {
+      done.set(true);
+      executor.shutdown();
+    }
+    resetter.join();
+    long[] vals = instance.getThenReset();
+    if (vals != null) {
+      totals[0] += vals[0];
+      totals[1] += vals[1];
+    }
+    long expectedTotal = 0;
+    for (int i = 0; i < nrRecords; i++) {
+      expectedTotal += i % 2000;
+    }
+    Assert.assertEquals(0L, totals[2]);
+    Assert.assertEquals((long) nrThreads * nrRecords, totals[1]);
+    Assert.assertEquals(nrThreads * expectedTotal, totals[0]);
+  }
+
+  private static long sumBuckets(final long[] vals) {
+    long result = 0;
+    for (int i = 4; i < vals.length; i++) {
+      result += vals[i];
+    }
+    return result;
+  }
+
+}
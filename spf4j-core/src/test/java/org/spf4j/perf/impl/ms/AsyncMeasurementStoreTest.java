@@ -0,0 +1,262 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.perf.impl.ms;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.junit.Assert;
+import org.junit.Test;
+import org.spf4j.perf.MeasurementStore;
+import org.spf4j.perf.MeasurementStoreQuery;
+import org.spf4j.perf.MeasurementsInfo;
+
+/**
+ * @author Zoltan Farkas
+ */
+public class AsyncMeasurementStoreTest {
+
+  @Test
+  public void testWriteFlushClose() throws IOException {
+    CollectingStore store = new CollectingStore(null);
+    AsyncMeasurementStore async = new AsyncMeasurementStore(store, 16, 4, AsyncMeasurementStore.OverflowPolicy.BLOCK);
+    long tableId = async.alocateMeasurements(null, 1000);
+    for (int i = 0; i < 100; i++) {
+      async.saveMeasurements(tableId, i, i, i * 2);
+    }
+    async.flush();
+    Assert.assertEquals(100, store.getSaved().size());
+    Assert.assertEquals(1, store.getNrFlushes());
+    for (int i = 0; i < 100; i++) {
+      Assert.assertEquals((long) i, store.getSaved().get(i)[0]);
+      Assert.assertEquals((long) i * 2, store.getSaved().get(i)[2]);
+    }
+    async.saveMeasurements(tableId, 100, 100, 200);
+    async.close();
+    Assert.assertEquals(101, store.getSaved().size());
+    Assert.assertTrue(store.isClosed());
+    Assert.assertEquals(0, async.getDroppedCount());
+    Assert.assertEquals(101, async.getQueuedCount());
+  }
+
+  @Test
+  public void testDrop() throws IOException, InterruptedException {
+    CountDownLatch latch = new CountDownLatch(1);
+    CollectingStore store = new CollectingStore(latch);
+    AsyncMeasurementStore async = new AsyncMeasurementStore(store, 4, 2, AsyncMeasurementStore.OverflowPolicy.DROP);
+    long tableId = async.alocateMeasurements(null, 1000);
+    async.saveMeasurements(tableId, 0, 0);
+    // wait for the writer to block in the store.
+    long deadline = System.currentTimeMillis() + 5000;
+    while (async.getQueueDepth() > 0 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(1);
+    }
+    for (int i = 1; i < 10; i++) {
+      async.saveMeasurements(tableId, i, i);
+    }
+    Assert.assertEquals(4, async.getQueueDepth());
+    Assert.assertEquals(5, async.getDroppedCount());
+    latch.countDown();
+    async.flush();
+    Assert.assertEquals(5, store.getSaved().size());
+    async.close();
+  }
+
+  @Test
+  public void testBatchedWrites() throws IOException {
+    CollectingStore store = new CollectingStore(null);
+    AsyncMeasurementStore async = new AsyncMeasurementStore(store, 16, 4, AsyncMeasurementStore.OverflowPolicy.BLOCK);
+    long tableId = async.alocateMeasurements(null, 1000);
+    for (int i = 0; i < 100; i++) {
+      async.saveMeasurements(tableId, i, i);
+    }
+    async.flush();
+    Assert.assertEquals(100, store.getSaved().size());
+    Assert.assertTrue(store.getMaxBatchSize() <= 4);
+    Assert.assertTrue(store.getNrBatches() >= 25);
+    async.close();
+  }
+
+  @Test(timeout = 30000)
+  public void testCloseWithDeadWriter() throws IOException, InterruptedException {
+    CountDownLatch latch = new CountDownLatch(1);
+    CollectingStore store = new CollectingStore(latch);
+    AsyncMeasurementStore async = new AsyncMeasurementStore(store, 1, 1, AsyncMeasurementStore.OverflowPolicy.DROP);
+    long tableId = async.alocateMeasurements(null, 1000);
+    async.saveMeasurements(tableId, 0, 0);
+    long deadline = System.currentTimeMillis() + 5000;
+    while (async.getQueueDepth() > 0 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(1);
+    }
+    // the writer is blocked in the store, and the queue is full.
+    async.saveMeasurements(tableId, 1, 1);
+    Thread closer = new Thread(() -> {
+      try {
+        async.close();
+      } catch (IOException ex) {
+        throw new RuntimeException(ex);
+      }
+    });
+    closer.start();
+    Thread.sleep(100);
+    latch.countDown();
+    closer.join();
+    Assert.assertTrue(store.isClosed());
+    Assert.assertEquals(2, store.getSaved().size());
+  }
+
+  @Test
+  public void testParallelMultiStore() throws IOException, InterruptedException {
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      CollectingStore store1 = new CollectingStore(null);
+      CollectingStore store2 = new CollectingStore(null);
+      CollectingStore store3 = new CollectingStore(null);
+      MultiStore multi = new MultiStore(executor, store1, store2, store3);
+      long tableId = multi.alocateMeasurements(null, 1000);
+      for (int i = 0; i < 10; i++) {
+        multi.saveMeasurements(tableId, i, i);
+      }
+      multi.flush();
+      for (CollectingStore store : new CollectingStore[] {store1, store2, store3}) {
+        Assert.assertEquals(10, store.getSaved().size());
+        Assert.assertEquals(1, store.getNrFlushes());
+      }
+      store2.setFail(true);
+      try {
+        multi.saveMeasurements(tableId, 11, 11);
+        Assert.fail();
+      } catch (IOException ex) {
+        Assert.assertEquals("test failure", ex.getMessage());
+      }
+      Assert.assertEquals(11, store1.getSaved().size());
+      Assert.assertEquals(11, store3.getSaved().size());
+      multi.close();
+    } finally {
+      executor.shutdown();
+      executor.awaitTermination(10, TimeUnit.SECONDS);
+    }
+  }
+
+  private static final class CollectingStore implements MeasurementStore {
+
+    private final List<long[]> saved = Collections.synchronizedList(new ArrayList<>());
+    private final CountDownLatch latch;
+    private volatile int nrFlushes;
+    private volatile boolean closed;
+    private volatile boolean fail;
+    private volatile int nrBatches;
+    private volatile int maxBatchSize;
+
+    CollectingStore(final CountDownLatch latch) {
+      this.latch = latch;
+    }
+
+    @Override
+    public long alocateMeasurements(final MeasurementsInfo measurementInfo, final int sampleTimeMillis) {
+      return 1;
+    }
+
+    @Override
+    public void saveMeasurements(final long tableId, final long timeStampMillis, final long... measurements)
+            throws IOException {
+      if (fail) {
+        throw new IOException("test failure");
+      }
+      if (latch != null) {
+        try {
+          latch.await();
+        } catch (InterruptedException ex) {
+          throw new IOException(ex);
+        }
+      }
+      long[] row = new long[measurements.length + 1];
+      row[0] = timeStampMillis;
+      System.arraycopy(measurements, 0, row, 1, measurements.length);
+      saved.add(row);
+    }
+
+    @Override
+    public void saveMeasurements(final long[] tableIds, final long[] timeStampsMillis, final long[][] measurements,
+            final int length) throws IOException {
+      nrBatches++;
+      maxBatchSize = Math.max(maxBatchSize, length);
+      MeasurementStore.super.saveMeasurements(tableIds, timeStampsMillis, measurements, length);
+    }
+
+    @Override
+    public void flush() {
+      nrFlushes++;
+    }
+
+    @Override
+    public MeasurementStoreQuery query() {
+      return null;
+    }
+
+    @Override
+    public void close() {
+      closed = true;
+    }
+
+    List<long[]> getSaved() {
+      return saved;
+    }
+
+    int getNrFlushes() {
+      return nrFlushes;
+    }
+
+    int getNrBatches() {
+      return nrBatches;
+    }
+
+    int getMaxBatchSize() {
+      return maxBatchSize;
+    }
+
+    boolean isClosed() {
+      return closed;
+    }
+
+    void setFail(final boolean fail) {
+      this.fail = fail;
+    }
+
+  }
+
+}
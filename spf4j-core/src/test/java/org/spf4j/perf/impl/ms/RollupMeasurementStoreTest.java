@@ -0,0 +1,205 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.perf.impl.ms;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.apache.avro.Schema;
+import org.junit.Assert;
+import org.junit.Test;
+import org.spf4j.base.avro.AvroCloseableIterable;
+import org.spf4j.perf.MeasurementStore;
+import org.spf4j.perf.MeasurementStoreQuery;
+import org.spf4j.perf.impl.MeasurementsInfoImpl;
+import org.spf4j.perf.impl.ms.tsdb.AvroMeasurementStore;
+import org.spf4j.perf.impl.ms.tsdb.TSDBMeasurementStore;
+import org.spf4j.tsdb2.avro.Aggregation;
+import org.spf4j.tsdb2.avro.MeasurementType;
+import org.spf4j.tsdb2.avro.Observation;
+
+/**
+ * @author Zoltan Farkas
+ */
+public class RollupMeasurementStoreTest {
+
+  private static final long[] TIERS = {1000, 10000};
+
+  @Test
+  public void testTSDBRollups() throws IOException {
+    File file = File.createTempFile("rollupTest", ".tsdb2");
+    TSDBMeasurementStore raw = new TSDBMeasurementStore(file);
+    testRollups(raw);
+  }
+
+  @Test
+  public void testAvroRollups() throws IOException {
+    AvroMeasurementStore raw = new AvroMeasurementStore(org.spf4j.base.Runtime.TMP_FOLDER_PATH,
+            "rollupTest" + System.nanoTime(), false);
+    testRollups(raw);
+  }
+
+  @Test
+  public void testWatermarksPersisted() throws IOException {
+    String name = "rollupRecoveryTest" + System.nanoTime();
+    long base = (System.currentTimeMillis() - 600000L) / 60000 * 60000;
+    AvroMeasurementStore raw = new AvroMeasurementStore(org.spf4j.base.Runtime.TMP_FOLDER_PATH, name, false);
+    Path watermarksFile = RollupMeasurementStore.getWatermarksFile(raw);
+    MeasurementsInfoImpl info = new MeasurementsInfoImpl("rtest", "test",
+              new String[] {"count", "max"}, new String[] {"c", "ms"},
+              new Aggregation[] {Aggregation.SUM, Aggregation.MAX}, MeasurementType.GAUGE);
+    try (RollupMeasurementStore store = new RollupMeasurementStore(raw, TIERS, createTierStores(raw),
+            watermarksFile)) {
+      Assert.assertArrayEquals(new long[] {Long.MIN_VALUE, Long.MIN_VALUE}, store.getWatermarks("rtest"));
+      long mid = store.alocateMeasurements(info, 100);
+      for (int i = 0; i < 2000; i++) {
+        store.saveMeasurements(mid, base + i * 100, 1, i);
+      }
+      // nothing is flushed yet.
+      Assert.assertArrayEquals(new long[] {Long.MIN_VALUE, Long.MIN_VALUE}, store.getWatermarks("rtest"));
+    }
+    raw = new AvroMeasurementStore(org.spf4j.base.Runtime.TMP_FOLDER_PATH, name, false);
+    try (RollupMeasurementStore store = new RollupMeasurementStore(raw, TIERS, createTierStores(raw),
+            watermarksFile)) {
+      // the last measurement is at base + 199900, all its intervals are complete and written on close.
+      Assert.assertArrayEquals(new long[] {base + 200000, base + 200000}, store.getWatermarks("rtest"));
+      long mid = store.alocateMeasurements(info, 100);
+      store.saveMeasurements(mid, base + 1000, 1, 1);
+      Assert.assertEquals(1, store.getNrLateMeasurements());
+      MeasurementStoreQuery query = store.query();
+      Schema measurement = query.getMeasurements((x) -> "rtest".equals(x)).iterator().next();
+      // the late measurement was not rolled up, the tiers are used after the re-open.
+      List<Observation> fromTier = aggregate(query, measurement, base + 20000, 20, TimeUnit.SECONDS);
+      Assert.assertEquals(9, fromTier.size());
+      assertSameData(aggregate(raw.query(), measurement, base + 20000, 20, TimeUnit.SECONDS), fromTier);
+      Assert.assertEquals(base + 30000, fromTier.get(0).getRelTimeStamp());
+    }
+    Files.delete(watermarksFile);
+  }
+
+  private static MeasurementStore[] createTierStores(final MeasurementStore raw) throws IOException {
+    MeasurementStore[] tierStores = new MeasurementStore[TIERS.length];
+    for (int i = 0; i < TIERS.length; i++) {
+      tierStores[i] = RollupMeasurementStore.createTierStore(raw, TIERS[i]);
+    }
+    return tierStores;
+  }
+
+  private static void testRollups(final MeasurementStore raw) throws IOException {
+    MeasurementStore[] tierStores = createTierStores(raw);
+    long base = (System.currentTimeMillis() - 600000L) / 60000 * 60000;
+    try (RollupMeasurementStore store = new RollupMeasurementStore(raw, TIERS, tierStores)) {
+      long mid = store.alocateMeasurements(new MeasurementsInfoImpl("rtest", "test",
+              new String[] {"count", "min", "max", "first", "last"},
+              new String[] {"c", "ms", "ms", "ms", "ms"},
+              new Aggregation[] {Aggregation.SUM, Aggregation.MIN, Aggregation.MAX, Aggregation.FIRST,
+                Aggregation.LAST},
+              MeasurementType.GAUGE), 100);
+      for (int i = 0; i < 2000; i++) {
+        store.saveMeasurements(mid, base + i * 100, 1, i % 50, i % 50, i, i);
+      }
+      // data not rolled up yet, will be served from the raw store.
+      raw.flush();
+      MeasurementStoreQuery query = store.query();
+      Schema measurement = query.getMeasurements((x) -> "rtest".equals(x)).iterator().next();
+      List<Observation> beforeFlush = aggregate(query, measurement, base, 20, TimeUnit.SECONDS);
+      store.flush();
+      // all data is rolled up now
+      MeasurementStoreQuery tierQuery = tierStores[1].query();
+      Schema tierMeasurement = tierQuery.getMeasurements((x) -> "rtest".equals(x)).iterator().next();
+      Assert.assertEquals(20, aggregate(tierQuery, tierMeasurement, base, 10, TimeUnit.SECONDS).size());
+      List<Observation> fromTier = aggregate(query, measurement, base, 20, TimeUnit.SECONDS);
+      List<Observation> fromRaw = aggregate(raw.query(), measurement, base, 20, TimeUnit.SECONDS);
+      Assert.assertEquals(10, fromRaw.size());
+      assertSame(fromRaw, beforeFlush);
+      assertSameData(fromRaw, fromTier);
+      Observation obs = fromTier.get(0);
+      // the tier rows are stamped with the interval start.
+      Assert.assertEquals(base + 10000, obs.getRelTimeStamp());
+      Assert.assertEquals(200L, (long) obs.getData().get(0));
+      Assert.assertEquals(0L, (long) obs.getData().get(1));
+      Assert.assertEquals(49L, (long) obs.getData().get(2));
+      Assert.assertEquals(0L, (long) obs.getData().get(3));
+      Assert.assertEquals(199L, (long) obs.getData().get(4));
+      // 5 seconds, served from the 1 second tier.
+      assertSameData(aggregate(raw.query(), measurement, base, 5, TimeUnit.SECONDS),
+              aggregate(query, measurement, base, 5, TimeUnit.SECONDS));
+      // base is aligned to the aggregation interval, the parallel aggregation buckets are the same.
+      assertSameData(fromRaw, parallelAggregate(query, measurement, base, 20, TimeUnit.SECONDS));
+    }
+  }
+
+  private static void assertSame(final List<Observation> expected, final List<Observation> actual) {
+    Assert.assertEquals(expected.size(), actual.size());
+    for (int i = 0; i < expected.size(); i++) {
+      Assert.assertEquals(expected.get(i).getRelTimeStamp(), actual.get(i).getRelTimeStamp());
+      Assert.assertEquals(expected.get(i).getData(), actual.get(i).getData());
+    }
+  }
+
+  private static void assertSameData(final List<Observation> expected, final List<Observation> actual) {
+    Assert.assertEquals(expected.size(), actual.size());
+    for (int i = 0; i < expected.size(); i++) {
+      Assert.assertEquals(expected.get(i).getData(), actual.get(i).getData());
+    }
+  }
+
+  private static List<Observation> aggregate(final MeasurementStoreQuery query, final Schema measurement,
+          final long from, final int aggFreq, final TimeUnit tu) throws IOException {
+    List<Observation> result = new ArrayList<>();
+    try (AvroCloseableIterable<Observation> obs = query.getAggregatedObservations(measurement,
+            Instant.ofEpochMilli(from), Instant.now(), aggFreq, tu)) {
+      for (Observation o : obs) {
+        result.add(o);
+      }
+    }
+    return result;
+  }
+
+  private static List<Observation> parallelAggregate(final MeasurementStoreQuery query, final Schema measurement,
+          final long from, final int aggFreq, final TimeUnit tu) throws IOException {
+    List<Observation> result = new ArrayList<>();
+    try (AvroCloseableIterable<Observation> obs = query.getParallelAggregatedObservations(measurement,
+            Instant.ofEpochMilli(from), Instant.now(), aggFreq, tu)) {
+      for (Observation o : obs) {
+        result.add(o);
+      }
+    }
+    return result;
+  }
+
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.perf.impl.ms.tsdb;
+
+import com.google.common.collect.Lists;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import org.apache.avro.Schema;
+import org.junit.Assert;
+import org.junit.Test;
+import org.spf4j.base.avro.AvroCloseableIterable;
+import org.spf4j.perf.MeasurementStore;
+import org.spf4j.perf.impl.MeasurementsInfoImpl;
+import org.spf4j.tsdb2.BlockIndex;
+import org.spf4j.tsdb2.avro.Aggregation;
+import org.spf4j.tsdb2.avro.MeasurementType;
+import org.spf4j.tsdb2.avro.Observation;
+
+/**
+ * @author Zoltan Farkas
+ */
+public class ParallelQueryEngineTest {
+
+  private static final int NR_ROWS = 2000;
+
+  private static final long ROW_INTERVAL = 100;
+
+  private static final long AGG_INTERVAL = 1000;
+
+  @Test
+  public void testTSDBStoreQuery() throws IOException {
+    File file = File.createTempFile("test", ".tsdb2");
+    long base = System.currentTimeMillis() / AGG_INTERVAL * AGG_INTERVAL;
+    TSDBMeasurementStore store = new TSDBMeasurementStore(file);
+    Schema measurement;
+    try {
+      measurement = writeData(store, base);
+    } finally {
+      store.close();
+    }
+    ParallelQueryEngine engine = new ParallelQueryEngine(new ForkJoinPool(4), 3, 1024);
+    List<ParallelQueryEngine.Split> splits = engine.tsdbSplits(file, base, Long.MAX_VALUE,
+            ParallelQueryEngine.tableIds(measurement));
+    Assert.assertTrue(splits.size() > 10);
+    assertAggregates(base, engine.aggregate(measurement, splits, base, Long.MAX_VALUE, AGG_INTERVAL));
+    ParallelQueryEngine serial = new ParallelQueryEngine(new ForkJoinPool(1), Integer.MAX_VALUE, Long.MAX_VALUE);
+    List<ParallelQueryEngine.Split> oneSplit = serial.tsdbSplits(file, base, Long.MAX_VALUE,
+            ParallelQueryEngine.tableIds(measurement));
+    // the not indexed region with the table definition + all indexed blocks.
+    Assert.assertEquals(2, oneSplit.size());
+    assertAggregates(base, serial.aggregate(measurement, oneSplit, base, Long.MAX_VALUE, AGG_INTERVAL));
+    try (AvroCloseableIterable<Observation> obs = new TSDBMeasurementStoreReader(file)
+            .getParallelAggregatedObservations(measurement, Instant.ofEpochMilli(base), null,
+                    (int) AGG_INTERVAL, TimeUnit.MILLISECONDS)) {
+      assertAggregates(base, Lists.newArrayList(obs));
+    }
+    Files.delete(file.toPath());
+    Files.delete(BlockIndex.getIndexFile(file).toPath());
+  }
+
+  @Test
+  public void testAvroStoreQuery() throws IOException {
+    long base = System.currentTimeMillis() / AGG_INTERVAL * AGG_INTERVAL;
+    AvroMeasurementStore store = new AvroMeasurementStore(org.spf4j.base.Runtime.TMP_FOLDER_PATH,
+          "testParallelMetrics", false);
+    Schema measurement;
+    try {
+      measurement = writeData(store, base);
+    } finally {
+      store.close();
+    }
+    ParallelQueryEngine engine = new ParallelQueryEngine(new ForkJoinPool(4), 3, 256);
+    List<ParallelQueryEngine.Split> splits = engine.avroSplits(store.getDataFile());
+    Assert.assertTrue(splits.size() > 10);
+    assertAggregates(base, engine.aggregate(measurement, splits, base, Long.MAX_VALUE, AGG_INTERVAL));
+    ParallelQueryEngine serial = new ParallelQueryEngine(new ForkJoinPool(1), Integer.MAX_VALUE, Long.MAX_VALUE);
+    assertAggregates(base, serial.aggregate(measurement, serial.avroSplits(store.getDataFile()),
+            base, Long.MAX_VALUE, AGG_INTERVAL));
+    try (AvroCloseableIterable<Observation> obs = new AvroMeasurementStoreReader(store.getInfoFile(),
+            store.getDataFile()).getParallelAggregatedObservations(measurement, null, null,
+                    (int) AGG_INTERVAL, TimeUnit.MILLISECONDS)) {
+      assertAggregates(base, Lists.newArrayList(obs));
+    }
+    Files.delete(store.getInfoFile());
+    Files.delete(store.getDataFile());
+  }
+
+  private static Schema writeData(final MeasurementStore store, final long base) throws IOException {
+    long mid = store.alocateMeasurements(new MeasurementsInfoImpl("ptest", "test",
+            new String[] {"count", "min", "max", "first", "last"},
+            new String[] {"c", "ms", "ms", "ms", "ms"},
+            new Aggregation[] {Aggregation.SUM, Aggregation.MIN, Aggregation.MAX, Aggregation.FIRST,
+              Aggregation.LAST},
+            MeasurementType.GAUGE), (int) ROW_INTERVAL);
+    for (int i = 0; i < NR_ROWS; i++) {
+      store.saveMeasurements(mid, base + i * ROW_INTERVAL, 1, i, i, i, i);
+      if (i % 7 == 0) {
+        store.flush();
+      }
+    }
+    store.flush();
+    return store.query().getMeasurements((x) -> "ptest".equals(x)).iterator().next();
+  }
+
+  private static void assertAggregates(final long base, final List<Observation> result) {
+    int rowsPerBucket = (int) (AGG_INTERVAL / ROW_INTERVAL);
+    Assert.assertEquals(NR_ROWS / rowsPerBucket, result.size());
+    for (int i = 0; i < result.size(); i++) {
+      Observation obs = result.get(i);
+      long first = i * rowsPerBucket;
+      long last = first + rowsPerBucket - 1;
+      Assert.assertEquals(base + last * ROW_INTERVAL, obs.getRelTimeStamp());
+      Assert.assertEquals(Arrays.asList((long) rowsPerBucket, first, last, first, last), obs.getData());
+    }
+  }
+
+}
@@ -34,6 +34,7 @@ package org.spf4j.ssdump2;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -45,6 +46,7 @@ import org.slf4j.LoggerFactory;
 import org.spf4j.base.Methods;
 import org.spf4j.base.avro.Converters;
 import org.spf4j.base.avro.StackSampleElement;
+import org.spf4j.stackmonitor.CompactSampleTree;
 import org.spf4j.stackmonitor.SampleNode;
 
 /**
@@ -91,6 +93,9 @@ public class ConverterTest {
       Converter.saveLabeledDumps(test, dumps);
       Map<String, SampleNode> loadLabeledDumps = Converter.loadLabeledDumps(test);
       Assert.assertEquals(testSample, loadLabeledDumps.get("something"));
+      Map<String, CompactSampleTree> compact = Converter.loadLabeledDumpsCompact(test);
+      Assert.assertEquals(Collections.singleton("something"), compact.keySet());
+      Assert.assertEquals(testSample, compact.get("something").toSampleNode());
     }
 
      @Test
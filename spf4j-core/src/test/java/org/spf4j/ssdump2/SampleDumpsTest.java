@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.ssdump2;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import org.junit.Assert;
+import org.junit.Test;
+import org.spf4j.stackmonitor.SampleNode;
+
+/**
+ * @author Zoltan Farkas
+ */
+public class SampleDumpsTest {
+
+  private static SampleNode sample(final String method) {
+    return SampleNode.createSampleNode(new StackTraceElement("C1", method, "C1.java", 10),
+            new StackTraceElement("C1", "run", "C1.java", 11));
+  }
+
+  @Test
+  public void testMerge() throws IOException {
+    File folder = Files.createTempDirectory("ssdumps").toFile();
+    List<File> files = new ArrayList<>();
+    SampleNode expected = new SampleNode(0);
+    for (int i = 0; i < 20; i++) {
+      SampleNode s = sample("m" + (i % 3));
+      expected.add(s);
+      File file = new File(folder, Converter.createLabeledSsdump2FileName("dump" + i, "ALL"));
+      Converter.save(file, s);
+      files.add(file);
+    }
+    File labeled = new File(folder, "labeled.ssdump3");
+    Converter.saveLabeledDumps(labeled, Collections.singletonMap("ALL", sample("m1")));
+    expected.add(sample("m1"));
+    files.add(labeled);
+    Map<String, SampleNode> merged = SampleDumps.merge(files);
+    Assert.assertEquals(Collections.singleton("ALL"), merged.keySet());
+    Assert.assertEquals(21, merged.get("ALL").getSampleCount());
+    Assert.assertEquals(expected, merged.get("ALL"));
+  }
+
+  @Test(expected = IOException.class)
+  public void testMergeMissing() throws IOException {
+    List<File> files = new ArrayList<>();
+    for (int i = 0; i < 4; i++) {
+      files.add(new File("/nonexistent/" + i + "_ALL.ssdump2"));
+    }
+    SampleDumps.merge(files);
+  }
+
+}
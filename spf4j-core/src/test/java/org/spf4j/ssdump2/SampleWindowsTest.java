@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.ssdump2;
+
+import java.io.File;
+import java.io.IOException;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Assert;
+import org.junit.Test;
+import org.spf4j.stackmonitor.CompactSampleTree;
+import org.spf4j.stackmonitor.SampleNode;
+
+/**
+ * @author Zoltan Farkas
+ */
+public class SampleWindowsTest {
+
+  private static SampleNode sample(final String method) {
+    return SampleNode.createSampleNode(new StackTraceElement("C1", method, "C1.java", 10),
+            new StackTraceElement("C1", "run", "C1.java", 11));
+  }
+
+  private static Map<String, SampleNode> window(final String label, final String method) {
+    Map<String, SampleNode> result = new HashMap<>(4);
+    result.put(label, sample(method));
+    result.put("empty", null);
+    return result;
+  }
+
+  @Test
+  public void testWriteLoadWindows() throws IOException {
+    File file = File.createTempFile("test", SampleWindows.FILE_EXTENSION);
+    file.delete();
+    try (SampleWindowWriter writer = new SampleWindowWriter(file)) {
+      writer.write(Instant.ofEpochMilli(1000), Instant.ofEpochMilli(2000), window("main", "m1"));
+      writer.write(Instant.ofEpochMilli(2000), Instant.ofEpochMilli(3000), window("main", "m2"));
+      writer.write(Instant.ofEpochMilli(3000), Instant.ofEpochMilli(4000), Collections.emptyMap());
+    }
+    // reopen and append.
+    try (SampleWindowWriter writer = new SampleWindowWriter(file)) {
+      writer.write(Instant.ofEpochMilli(4000), Instant.ofEpochMilli(5000), window("other", "m3"));
+    }
+    List<SampleWindows.IndexEntry> index = SampleWindows.readIndex(file);
+    Assert.assertEquals(3, index.size());
+    Assert.assertEquals(4000, index.get(2).getStartMillis());
+    Instant[] range = SampleWindows.getTimeRange(file);
+    Assert.assertEquals(Instant.ofEpochMilli(1000), range[0]);
+    Assert.assertEquals(Instant.ofEpochMilli(5000), range[1]);
+
+    Map<String, SampleNode> all = SampleWindows.load(file, Instant.ofEpochMilli(0), Instant.ofEpochMilli(10000));
+    Assert.assertEquals(2, all.size());
+    Assert.assertEquals(2, all.get("main").getSampleCount());
+    Assert.assertEquals(1, all.get("other").getSampleCount());
+
+    Map<String, SampleNode> second = SampleWindows.load(file, Instant.ofEpochMilli(2500),
+            Instant.ofEpochMilli(3500));
+    Assert.assertEquals(1, second.size());
+    Assert.assertEquals(sample("m2"), second.get("main"));
+
+    Map<String, SampleNode> last = SampleWindows.load(file, Instant.ofEpochMilli(4500),
+            Instant.ofEpochMilli(10000));
+    Assert.assertEquals(Collections.singleton("other"), last.keySet());
+    Assert.assertTrue(SampleWindows.load(file, Instant.ofEpochMilli(6000), Instant.ofEpochMilli(7000)).isEmpty());
+
+    Map<String, CompactSampleTree> compact = SampleWindows.loadCompact(file, Instant.ofEpochMilli(0),
+            Instant.ofEpochMilli(10000));
+    Assert.assertEquals(all.keySet(), compact.keySet());
+    Assert.assertEquals(all.get("main"), compact.get("main").toSampleNode());
+    Assert.assertEquals(all.get("other"), compact.get("other").toSampleNode());
+  }
+
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.stackmonitor;
+
+import java.util.concurrent.TimeUnit;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author Zoltan Farkas
+ */
+public class AdaptiveSamplingControllerTest {
+
+  private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+  @Test
+  public void testController() {
+    AdaptiveSamplingController controller = new AdaptiveSamplingController(10 * MS, 1000 * MS, 0.01);
+    Assert.assertEquals(10 * MS, controller.getIntervalNanos());
+    Assert.assertEquals(1, controller.getSampleWeight(), 0.0001);
+    // cheap samples, 10 threads 10 micros, we can afford 10000 threads at the max interval.
+    controller.update(MS / 100, 10);
+    Assert.assertEquals(10 * MS, controller.getIntervalNanos());
+    Assert.assertEquals(10000, controller.getMaxNrThreads());
+    // 1 ms samples -> 100ms interval to stay at 1%.
+    AdaptiveSamplingController controller2 = new AdaptiveSamplingController(10 * MS, 1000 * MS, 0.01);
+    controller2.update(MS, 10);
+    Assert.assertEquals(100 * MS, controller2.getIntervalNanos());
+    Assert.assertEquals(10, controller2.getSampleWeight(), 0.0001);
+    Assert.assertEquals(100, controller2.getMaxNrThreads());
+    Assert.assertEquals(0.01, controller2.getEstimatedOverhead(), 0.0001);
+    // 10 ms per thread, we can afford only one thread at the max interval.
+    AdaptiveSamplingController controller3 = new AdaptiveSamplingController(10 * MS, 1000 * MS, 0.01);
+    controller3.update(1000 * MS, 100);
+    Assert.assertEquals(1000 * MS, controller3.getIntervalNanos());
+    Assert.assertEquals(1, controller3.getMaxNrThreads());
+    // unknown number of threads, only the interval is adjusted.
+    AdaptiveSamplingController controller4 = new AdaptiveSamplingController(10 * MS, 1000 * MS, 0.01);
+    controller4.update(MS, -1);
+    Assert.assertEquals(100 * MS, controller4.getIntervalNanos());
+    Assert.assertEquals(Integer.MAX_VALUE, controller4.getMaxNrThreads());
+  }
+
+  @Test
+  public void testAdaptiveSampler() throws InterruptedException {
+    Sampler sampler = new Sampler(1, 3600000, (t) -> new FastStackCollector(false, true, new Thread[]{t}));
+    sampler.setCpuBudget(0.001);
+    Assert.assertEquals(-1, sampler.getAdaptiveSampleTimeMicros());
+    sampler.start();
+    Thread.sleep(300);
+    sampler.stop();
+    Assert.assertTrue(sampler.getAdaptiveSampleTimeMicros() >= 1000);
+    Assert.assertTrue(sampler.getAdaptiveCostPerThreadNanos() > 0);
+    Assert.assertFalse(sampler.getStackCollectionsAndReset().isEmpty());
+  }
+
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.stackmonitor;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+import org.spf4j.base.Methods;
+import org.spf4j.base.avro.Method;
+import org.spf4j.ssdump2.Converter;
+
+/**
+ * @author Zoltan Farkas
+ */
+public class CompactSampleTreeTest {
+
+  private static SampleNode randomSamples() {
+    SampleNode result = new SampleNode(0);
+    Random random = new Random(5);
+    for (int i = 0; i < 2000; i++) {
+      StackTraceElement[] st = new StackTraceElement[1 + random.nextInt(15)];
+      for (int j = 0; j < st.length; j++) {
+        int cls = random.nextInt(4);
+        st[j] = new StackTraceElement("C" + cls, "m" + random.nextInt(4), "C" + cls + ".java", j);
+      }
+      SampleNode.addToSampleNode(result, st);
+    }
+    return result;
+  }
+
+  private static List<String> invocations(final CompactSampleTree tree, final boolean breadthFirst) {
+    List<String> result = new ArrayList<>();
+    tree.traverse((from, to, nr) -> result.add(from + "->" + to + ':' + nr), breadthFirst);
+    Collections.sort(result);
+    return result;
+  }
+
+  private static List<String> invocations(final SampleNode node) {
+    List<String> result = new ArrayList<>();
+    SampleNode.traverse(Methods.ROOT, node, (from, to, nr) -> result.add(from + "->" + to + ':' + nr));
+    Collections.sort(result);
+    return result;
+  }
+
+  @Test
+  public void testCompactTree() throws IOException {
+    SampleNode samples = randomSamples();
+    CompactSampleTree tree = CompactSampleTree.from(samples);
+    Assert.assertEquals(samples.getNrNodes(), tree.getNrNodes());
+    Assert.assertEquals(samples.getSampleCount(), tree.getSampleCount());
+    Assert.assertEquals(17, tree.getNrMethods());
+    Assert.assertEquals(samples, tree.toSampleNode());
+    Assert.assertEquals(samples, SampleNode.parse(new StringReader(tree.getRoot().toString())).getSecond());
+    List<String> expected = invocations(samples);
+    Assert.assertEquals(expected, invocations(tree, true));
+    Assert.assertEquals(expected, invocations(tree, false));
+    Method m = Methods.getMethod("C1", "m1");
+    CompactSampleTree.Node child = tree.getRoot().getChild(m);
+    Assert.assertEquals(samples.get(m).getSampleCount(), child.getSampleCount());
+    Assert.assertEquals(samples.get(m).size(), child.getSubNodes().size());
+    Assert.assertEquals(samples.get(m).size(), child.getNrChildren());
+  }
+
+  @Test
+  public void testFilter() {
+    SampleNode samples = randomSamples();
+    CompactSampleTree tree = CompactSampleTree.from(samples);
+    SampleNode expected = samples.filteredBy((m) -> "m1".equals(m.getName()));
+    CompactSampleTree filtered = tree.filteredBy((m) -> "m1".equals(m.getName()));
+    Assert.assertEquals(expected, filtered.toSampleNode());
+    Assert.assertNull(tree.filteredBy((m) -> m.getName().startsWith("m")));
+  }
+
+  @Test
+  public void testLoadCompact() throws IOException {
+    SampleNode samples = randomSamples();
+    File file = File.createTempFile("test", ".ssdump2");
+    Converter.save(file, samples);
+    CompactSampleTree tree = Converter.loadCompact(file);
+    Assert.assertEquals(samples, tree.toSampleNode());
+    Assert.assertEquals(Methods.ROOT, tree.getRootMethod());
+  }
+
+  @Test
+  public void testAddTo() {
+    SampleNode samples = randomSamples();
+    SampleNode other = SampleNode.createSampleNode(new StackTraceElement("C1", "m1", "C1.java", 0),
+            new StackTraceElement("X", "x", "X.java", 1));
+    SampleNode expected = SampleNode.aggregate(samples, other);
+    CompactSampleTree.from(samples).addTo(other);
+    Assert.assertEquals(expected, other);
+  }
+
+  @Test
+  public void testMerge() {
+    SampleNode samples = randomSamples();
+    SampleNode other = SampleNode.createSampleNode(new StackTraceElement("C1", "m1", "C1.java", 0),
+            new StackTraceElement("X", "x", "X.java", 1));
+    SampleNode expected = SampleNode.aggregate(samples, other);
+    CompactSampleTree merged = CompactSampleTree.merge(CompactSampleTree.from(samples), CompactSampleTree.from(other));
+    Assert.assertEquals(expected, merged.toSampleNode());
+    List<CompactSampleTree> trees = new ArrayList<>();
+    SampleNode expected3 = SampleNode.aggregate(expected, other);
+    trees.add(CompactSampleTree.from(samples));
+    trees.add(CompactSampleTree.from(other));
+    trees.add(CompactSampleTree.from(other));
+    Assert.assertEquals(expected3, CompactSampleTree.merge(trees).toSampleNode());
+    Assert.assertNull(CompactSampleTree.merge(Collections.emptyList()));
+  }
+
+  @Test
+  public void testSubTree() {
+    SampleNode samples = randomSamples();
+    CompactSampleTree tree = CompactSampleTree.from(samples);
+    Assert.assertEquals(samples.height(), tree.getRoot().height());
+    Method m = Methods.getMethod("C1", "m1");
+    CompactSampleTree.Node child = tree.getRoot().getChild(m);
+    SampleNode expected = samples.get(m);
+    Assert.assertEquals(expected, child.toSampleNode());
+    Assert.assertEquals(expected.height(), child.height());
+    Assert.assertEquals(m, child.subTree().getRootMethod());
+    Assert.assertEquals(expected.filteredBy((x) -> "m2".equals(x.getName())),
+            child.filteredBy((x) -> "m2".equals(x.getName())).toSampleNode());
+  }
+
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.stackmonitor;
+
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author Zoltan Farkas
+ */
+public final class CompactStackCollectorTest {
+
+  @Test
+  public void testSameAsMethodMapCollector() {
+    CompactStackCollector compact = new CompactStackCollector();
+    StackCollectorImpl expected = new StackCollectorImpl();
+    Assert.assertNull(compact.get());
+    Assert.assertNull(compact.getAndReset());
+    Random random = new Random(3);
+    for (int i = 0; i < 5000; i++) {
+      StackTraceElement[] st = new StackTraceElement[1 + random.nextInt(20)];
+      for (int j = 0; j < st.length; j++) {
+        int cls = random.nextInt(5);
+        st[j] = new StackTraceElement("C" + cls, "m" + random.nextInt(4), "C" + cls + ".java", j);
+      }
+      compact.collect(st);
+      expected.collect(st);
+    }
+    SampleNode result = compact.get();
+    Assert.assertEquals(expected.get(), result);
+    Assert.assertEquals(result.getNrNodes(), compact.getNrNodes());
+    Assert.assertEquals(expected.getAndReset(), compact.getAndReset());
+    Assert.assertNull(compact.get());
+    StackTraceElement[] st = {new StackTraceElement("C1", "m1", "C1.java", 10),
+      new StackTraceElement("C1", "m1", "C1.java", 10)};
+    compact.collect(st);
+    expected.collect(st);
+    Assert.assertEquals(expected.get(), compact.get());
+    Assert.assertEquals(3, compact.getNrNodes());
+  }
+
+  @Test
+  public void testSmallInitialCapacity() {
+    CompactStackCollector compact = new CompactStackCollector(1);
+    StackCollectorImpl expected = new StackCollectorImpl();
+    Random random = new Random(5);
+    for (int i = 0; i < 500; i++) {
+      StackTraceElement[] st = new StackTraceElement[1 + random.nextInt(10)];
+      for (int j = 0; j < st.length; j++) {
+        st[j] = new StackTraceElement("C" + random.nextInt(3), "m" + random.nextInt(3), "C.java", j);
+      }
+      compact.collect(st);
+      expected.collect(st);
+    }
+    Assert.assertEquals(expected.getAndReset(), compact.getAndReset());
+    Assert.assertNull(compact.get());
+  }
+
+  @Test
+  public void testWeightedCollect() {
+    CompactStackCollector compact = new CompactStackCollector();
+    StackCollectorImpl expected = new StackCollectorImpl();
+    StackTraceElement[] st1 = {new StackTraceElement("C1", "m2", "C1.java", 11),
+      new StackTraceElement("C1", "m1", "C1.java", 10)};
+    StackTraceElement[] st2 = {new StackTraceElement("C1", "m3", "C1.java", 12),
+      new StackTraceElement("C1", "m1", "C1.java", 10)};
+    compact.collect(st1, 3);
+    expected.collect(st1, 3);
+    compact.collect(st2, 2);
+    expected.collect(st2, 1);
+    expected.collect(st2);
+    SampleNode result = compact.getAndReset();
+    Assert.assertEquals(expected.getAndReset(), result);
+    Assert.assertEquals(5, result.getSampleCount());
+  }
+
+  @Test
+  public void testMethodIds() {
+    int id = MethodIds.getId(new StackTraceElement("CX", "mx", "CX.java", 10));
+    Assert.assertEquals(id, MethodIds.getId("CX", "mx"));
+    Assert.assertNotEquals(id, MethodIds.getId("CX", "my"));
+    Assert.assertSame(org.spf4j.base.Methods.getMethod("CX", "mx"), MethodIds.getMethod(id));
+  }
+
+}
@@ -32,6 +32,9 @@
 package org.spf4j.stackmonitor;
 
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import org.hamcrest.Matchers;
 import org.junit.Assert;
 import org.junit.Test;
 import org.spf4j.base.Threads;
@@ -52,4 +55,88 @@ public class FastStackCollectorTest {
     Assert.assertNotSame(threads[0], threads[1]);
   }
 
+  private static volatile boolean running;
+
+  private static volatile double result;
+
+  private static final Object LOCK = new Object();
+
+  private static void spin() {
+    double r = 0;
+    while (running) {
+      for (int i = 0; i < 10000; i++) {
+        r += Math.sqrt(i);
+      }
+      result = r;
+    }
+  }
+
+  private static void lock() {
+    synchronized (LOCK) {
+      result++;
+    }
+  }
+
+  private static void await(final CountDownLatch latch) {
+    try {
+      latch.await();
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  @Test
+  public void testStateAttribution() throws InterruptedException {
+    CountDownLatch latch = new CountDownLatch(1);
+    running = true;
+    Thread spinner = new Thread(FastStackCollectorTest::spin, "spinner");
+    Thread blocked = new Thread(FastStackCollectorTest::lock, "blocked");
+    Thread waiting = new Thread(() -> await(latch), "waiting");
+    FastStackCollector collector = new FastStackCollector((t) -> t != spinner && t != blocked && t != waiting,
+            16, true);
+    synchronized (LOCK) {
+      spinner.start();
+      blocked.start();
+      waiting.start();
+      try {
+        for (int i = 0; i < 20; i++) {
+          Thread.sleep(10);
+          collector.sample();
+        }
+      } finally {
+        running = false;
+        latch.countDown();
+      }
+    }
+    spinner.join();
+    blocked.join();
+    waiting.join();
+    Map<String, SampleNode> collections = collector.getCollectionsAndReset();
+    Assert.assertThat(collections.get(FastStackCollector.ON_CPU).toString(),
+            Matchers.containsString("spin@org.spf4j.stackmonitor.FastStackCollectorTest"));
+    Assert.assertThat(collections.get(FastStackCollector.BLOCKED).toString(),
+            Matchers.containsString("lock@org.spf4j.stackmonitor.FastStackCollectorTest"));
+    Assert.assertThat(collections.get(FastStackCollector.WAITING).toString(),
+            Matchers.containsString("await@org.spf4j.stackmonitor.FastStackCollectorTest"));
+    Assert.assertFalse(collections.get(FastStackCollector.ON_CPU).toString().contains("await@"));
+    Assert.assertTrue(collector.getCollectionsAndReset().isEmpty());
+  }
+
+  private static int nrSamples(final Map<String, SampleNode> collections) {
+    int result = 0;
+    for (SampleNode node : collections.values()) {
+      result += node.getSampleCount();
+    }
+    return result;
+  }
+
+  @Test
+  public void testThreadScalingOnlyForWeightedSample() {
+    FastStackCollector collector = new FastStackCollector((t) -> false, 1, false);
+    collector.sample();
+    Assert.assertEquals(1, nrSamples(collector.getCollectionsAndReset()));
+    Assert.assertEquals(1, collector.sample(1, 1));
+    Assert.assertThat(nrSamples(collector.getCollectionsAndReset()), Matchers.greaterThan(1));
+  }
+
 }
@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.stackmonitor;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.junit.Assert;
+import org.junit.Test;
+import org.spf4j.base.ExecutionContext;
+import org.spf4j.base.TimeSource;
+
+/**
+ * @author Zoltan Farkas
+ */
+public class OutlierProfiledExecutionContextTest {
+
+  private static final StackTraceElement[] ST1 = {new StackTraceElement("C1", "m2", "C1.java", 11),
+      new StackTraceElement("C1", "m1", "C1.java", 10)};
+
+  private static final StackTraceElement[] ST2 = {new StackTraceElement("C2", "m2", "C2.java", 11),
+      new StackTraceElement("C1", "m1", "C1.java", 10)};
+
+  @Test
+  public void testOnlySlowContextsRetained() {
+    SlowContextSamples slow = new SlowContextSamples(2);
+    OutlierProfiledExecutionContextFactory factory = new OutlierProfiledExecutionContextFactory(
+            TimeUnit.SECONDS.toNanos(1), 10, slow);
+    long now = TimeSource.nanoTime();
+    long deadline = now + TimeUnit.HOURS.toNanos(1);
+    // fast context, samples dropped.
+    OutlierProfiledExecutionContext fast = factory.start("fast", "1", null, ExecutionContext.Relation.CHILD_OF,
+            now, deadline);
+    fast.add(ST1);
+    fast.close();
+    Assert.assertTrue(slow.getCollections().isEmpty());
+    Assert.assertNull(fast.getStackSamples());
+    // slow context, samples retained.
+    OutlierProfiledExecutionContext slowCtx = factory.start("slow", "2", null, ExecutionContext.Relation.CHILD_OF,
+            now - TimeUnit.SECONDS.toNanos(2), deadline);
+    OutlierProfiledExecutionContext child = factory.start("child", "2/1", slowCtx,
+            ExecutionContext.Relation.CHILD_OF, now, deadline);
+    child.add(ST2);
+    child.close();
+    for (int i = 0; i < 100; i++) {
+      slowCtx.add(ST1);
+    }
+    Assert.assertEquals(100, slowCtx.getNrSamples());
+    slowCtx.close();
+    // over deadline context, samples retained.
+    OutlierProfiledExecutionContext overDeadline = factory.start("slow", "3", null,
+            ExecutionContext.Relation.CHILD_OF, now, now - 1);
+    overDeadline.add(ST2);
+    overDeadline.close();
+
+    List<SlowContextSamples.SlowContext> recent = slow.getRecent();
+    Assert.assertEquals(2, recent.size());
+    Assert.assertEquals("2", recent.get(0).getId());
+    // 10 samples from the bounded buffer scaled to the 100 samples taken + 1 from the child
+    Assert.assertEquals(101, recent.get(0).getSamples().getSampleCount());
+    Assert.assertEquals("3", recent.get(1).getId());
+    // merging more samples must not change the retained recent contexts.
+    OutlierProfiledExecutionContext another = factory.start("slow", "4", null,
+            ExecutionContext.Relation.CHILD_OF, now, now - 1);
+    another.add(ST2);
+    another.close();
+    recent = slow.getRecent();
+    Assert.assertEquals("3", recent.get(0).getId());
+    Assert.assertEquals(1, recent.get(0).getSamples().getSampleCount());
+    Map<String, SampleNode> collections = slow.getCollectionsAndReset();
+    Assert.assertEquals(1, collections.size());
+    Assert.assertEquals(103, collections.get("slow").getSampleCount());
+    Assert.assertTrue(slow.getCollections().isEmpty());
+    Assert.assertTrue(slow.getRecent().isEmpty());
+  }
+
+  @Test
+  public void testMaxNames() {
+    SlowContextSamples slow = new SlowContextSamples(0, 1);
+    OutlierProfiledExecutionContextFactory factory = new OutlierProfiledExecutionContextFactory(0, 10, slow);
+    long now = TimeSource.nanoTime();
+    for (String name : new String[] {"a", "b", "a"}) {
+      OutlierProfiledExecutionContext ctx = factory.start(name, name, null, ExecutionContext.Relation.CHILD_OF,
+              now, now + TimeUnit.HOURS.toNanos(1));
+      ctx.add(ST1);
+      ctx.close();
+    }
+    Assert.assertEquals(1, slow.getNrDropped());
+    Map<String, SampleNode> collections = slow.getCollectionsAndReset();
+    Assert.assertEquals(1, collections.size());
+    Assert.assertEquals(2, collections.get("a").getSampleCount());
+    Assert.assertEquals(0, slow.getNrDropped());
+  }
+
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.stackmonitor;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import java.io.IOException;
+import java.util.Map;
+import org.junit.Assert;
+import org.junit.Test;
+import org.spf4j.base.Json;
+import org.spf4j.base.Methods;
+
+/**
+ * @author Zoltan Farkas
+ */
+public class SampleNodeDiffTest {
+
+  private static final StackTraceElement RUN = new StackTraceElement("C1", "run", "C1.java", 11);
+
+  private static final StackTraceElement FAST = new StackTraceElement("C1", "fast", "C1.java", 12);
+
+  private static final StackTraceElement SLOW = new StackTraceElement("C1", "slow", "C1.java", 13);
+
+  private static SampleNode samples(final int nrFast, final int nrSlow) {
+    SampleNode result = new SampleNode(0);
+    SampleNode.addToSampleNode(result, nrFast, FAST, RUN);
+    SampleNode.addToSampleNode(result, nrSlow, SLOW, RUN);
+    return result;
+  }
+
+  @Test
+  public void testDiff() throws IOException {
+    // 20 before samples 50% slow, 40 after samples 75% slow
+    SampleNodeDiff diff = SampleNodeDiff.diff(samples(10, 10), samples(10, 30));
+    Assert.assertEquals(0, diff.getDelta(), 0.00001);
+    SampleNodeDiff run = diff.getChildren().get(Methods.getMethod(RUN));
+    Assert.assertEquals(0, run.getDelta(), 0.00001);
+    SampleNodeDiff slow = run.getChildren().get(Methods.getMethod(SLOW));
+    Assert.assertEquals(0.25, slow.getDelta(), 0.00001);
+    Assert.assertEquals(10, slow.getBefore());
+    Assert.assertEquals(30, slow.getAfter());
+    Assert.assertEquals(-0.25, run.getChildren().get(Methods.getMethod(FAST)).getDelta(), 0.00001);
+
+    Map<String, SampleNode> nodes = diff.toSampleNodes(100);
+    SampleNode regressions = nodes.get(SampleNodeDiff.REGRESSIONS);
+    Assert.assertEquals(25, regressions.getSampleCount());
+    Assert.assertEquals(25, regressions.get(Methods.getMethod(RUN)).get(Methods.getMethod(SLOW)).getSampleCount());
+    Assert.assertNull(regressions.get(Methods.getMethod(RUN)).get(Methods.getMethod(FAST)));
+    SampleNode improvements = nodes.get(SampleNodeDiff.IMPROVEMENTS);
+    Assert.assertEquals(25, improvements.get(Methods.getMethod(RUN)).get(Methods.getMethod(FAST)).getSampleCount());
+
+    StringBuilder sb = new StringBuilder();
+    diff.writeD3JsonTo(sb, 100);
+    Assert.assertTrue(sb.toString(), sb.toString().contains("\"delta\":25.0"));
+    JsonNode json = Json.MAPPER.readTree(sb.toString());
+    Assert.assertEquals("ROOT@JVM", json.get("name").asText());
+    Assert.assertEquals(100, json.get("value").asDouble(), 0.00001);
+  }
+
+  @Test
+  public void testDiffNew() {
+    SampleNodeDiff diff = SampleNodeDiff.diff(null, samples(1, 1));
+    Assert.assertEquals(1, diff.getDelta(), 0.00001);
+    Assert.assertEquals(0, diff.getBefore());
+    Assert.assertNull(diff.toSampleNodes(10).get(SampleNodeDiff.IMPROVEMENTS));
+  }
+
+  @Test
+  public void testDeepDiff() throws IOException {
+    StackTraceElement[] deep = new StackTraceElement[50000];
+    for (int i = 0; i < deep.length; i++) {
+      deep[i] = new StackTraceElement("C1", "m" + i, "C1.java", i);
+    }
+    SampleNode after = new SampleNode(0);
+    SampleNode.addToSampleNode(after, 1, deep);
+    SampleNodeDiff diff = SampleNodeDiff.diff(new SampleNode(0), after);
+    SampleNode regressions = diff.toSampleNodes(100).get(SampleNodeDiff.REGRESSIONS);
+    Assert.assertEquals(100, regressions.getSampleCount());
+    StringBuilder sb = new StringBuilder();
+    diff.writeD3JsonTo(sb, 100);
+    Assert.assertTrue(sb.toString().endsWith("]}]}"));
+  }
+
+}
@@ -34,6 +34,10 @@ package org.spf4j.stackmonitor;
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
 import org.hamcrest.Matchers;
 import org.junit.Assert;
@@ -41,6 +45,7 @@ import org.junit.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.spf4j.log.Level;
+import org.spf4j.ssdump2.SampleWindows;
 import org.spf4j.test.log.LogAssert;
 import org.spf4j.test.matchers.LogMatchers;
 import org.spf4j.test.log.TestLoggers;
@@ -90,5 +95,34 @@ public class SamplerTest {
     sampler.stop();
   }
 
+  @Test
+  public void testContinuousSampling() throws InterruptedException, IOException {
+    File folder = Files.createTempDirectory("continuous").toFile();
+    Sampler sampler = Sampler.getSampler(5, 3600000, folder, "cont");
+    sampler.setContinuousWindowMillis(100);
+    sampler.start();
+    Thread.sleep(500);
+    sampler.stop();
+    File[] files = folder.listFiles((dir, name) -> name.endsWith(SampleWindows.FILE_EXTENSION));
+    Assert.assertEquals(1, files.length);
+    File file = files[0];
+    Assert.assertTrue(SampleWindows.getIndexFile(file).exists());
+    List<SampleWindows.IndexEntry> index = SampleWindows.readIndex(file);
+    Assert.assertFalse(index.isEmpty());
+    Instant[] range = SampleWindows.getTimeRange(file);
+    Assert.assertNotNull(range);
+    Assert.assertEquals(index.get(0).getStartMillis(), range[0].toEpochMilli());
+    Map<String, SampleNode> samples = SampleWindows.load(file, range[0], range[1]);
+    Assert.assertFalse(samples.isEmpty());
+    LOG.debug("Loaded {} windows, labels {}", index.size(), samples.keySet());
+    // loading a sub range, returns only the overlapping windows.
+    SampleWindows.IndexEntry last = index.get(index.size() - 1);
+    Map<String, SampleNode> lastSamples = SampleWindows.load(file, Instant.ofEpochMilli(last.getStartMillis()),
+            range[1]);
+    Assert.assertFalse(lastSamples.isEmpty());
+    Assert.assertTrue(lastSamples.values().iterator().next().getSampleCount()
+            <= samples.values().iterator().next().getSampleCount());
+  }
+
 
 }
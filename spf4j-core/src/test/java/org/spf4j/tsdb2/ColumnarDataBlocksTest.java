@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.tsdb2;
+
+import com.google.common.primitives.Longs;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import org.apache.avro.generic.GenericRecord;
+import org.junit.Assert;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.spf4j.base.Either;
+import org.spf4j.tsdb2.avro.ColumnDef;
+import org.spf4j.tsdb2.avro.DataBlock;
+import org.spf4j.tsdb2.avro.DataRow;
+import org.spf4j.tsdb2.avro.TableDef;
+
+/**
+ * @author Zoltan Farkas
+ */
+public class ColumnarDataBlocksTest {
+
+  private static final Logger LOG = LoggerFactory.getLogger(ColumnarDataBlocksTest.class);
+
+  @Test
+  public void testEncodeDecode() {
+    Random rnd = new Random(7);
+    long baseTs = System.currentTimeMillis();
+    List<DataRow> rows = new ArrayList<>();
+    long ts = baseTs;
+    for (int i = 0; i < 1000; i++) {
+      ts += 1000 + (i % 10 == 0 ? rnd.nextInt(5000) - 2500 : 0);
+      rows.add(new DataRow((int) (ts - baseTs), 100L, Longs.asList(i, i / 10, rnd.nextLong(),
+              Double.doubleToLongBits(1.5 + i * 0.01), Long.MIN_VALUE, -i)));
+      rows.add(new DataRow((int) (ts - baseTs), 200L, Longs.asList(3)));
+      if (i % 100 == 0) {
+        rows.add(new DataRow((int) (ts - baseTs) - 100000, 100L, Longs.asList(1, 2)));
+      }
+    }
+    DataBlock block = new DataBlock(baseTs, rows);
+    GenericRecord encoded = ColumnarDataBlocks.encode(block);
+    Assert.assertTrue(ColumnarDataBlocks.isColumnarBlock(encoded));
+    DataBlock decoded = ColumnarDataBlocks.decode(encoded);
+    Assert.assertEquals(baseTs, decoded.getBaseTimestamp());
+    Assert.assertEquals(rows.size(), decoded.getValues().size());
+    for (long tableId : new long[] {100L, 200L}) {
+      Assert.assertEquals(filter(rows, tableId), filter(decoded.getValues(), tableId));
+    }
+  }
+
+  @Test
+  public void testColumnarFileSize() throws IOException {
+    TableDef tableDef = TableDef.newBuilder()
+          .setName("test")
+          .setDescription("test")
+          .setSampleTime(0)
+          .setColumns(Arrays.asList(
+                  ColumnDef.newBuilder().setName("a").setDescription("atest").setUnitOfMeasurement("ms").build(),
+                  ColumnDef.newBuilder().setName("b").setDescription("btest").setUnitOfMeasurement("ms").build()))
+          .build();
+    File rowFile = File.createTempFile("test", ".tsdb2");
+    File colFile = File.createTempFile("test", ".tsdb2");
+    long now = System.currentTimeMillis();
+    long tableId;
+    long colTableId;
+    try (TSDBWriter rowWriter = new TSDBWriter(rowFile, 1000, "test", false, false);
+            TSDBWriter colWriter = new TSDBWriter(colFile, 1000, "test", false, true)) {
+      tableId = rowWriter.writeTableDef(tableDef);
+      colTableId = colWriter.writeTableDef(tableDef);
+      for (int i = 0; i < 10000; i++) {
+        rowWriter.writeDataRow(tableId, now + i * 10, 100 + i % 7, 1000000 + i);
+        colWriter.writeDataRow(colTableId, now + i * 10, 100 + i % 7, 1000000 + i);
+      }
+    }
+    LOG.debug("row format size = {}, columnar format size = {}", rowFile.length(), colFile.length());
+    Assert.assertTrue(colFile.length() * 3 < rowFile.length());
+    TimeSeries rowTs = TSDBQuery.getTimeSeries(rowFile, new long[] {tableId}, now + 500, now + 5000);
+    TimeSeries colTs = TSDBQuery.getTimeSeries(colFile, new long[] {colTableId}, now + 500, now + 5000);
+    Assert.assertArrayEquals(rowTs.getTimeStamps(), colTs.getTimeStamps());
+    Assert.assertArrayEquals(rowTs.getValues(), colTs.getValues());
+    // append to a columnar file will continue in the columnar format.
+    try (TSDBWriter colWriter = new TSDBWriter(colFile, 1000, null, true, false)) {
+      colWriter.writeDataRow(colTableId, now + 100000, 1, 1);
+    }
+    try (TSDBReader reader = new TSDBReader(colFile, 8192)) {
+      Assert.assertTrue(ColumnarDataBlocks.isColumnarContent(
+              new org.apache.avro.Schema.Parser().parse(reader.getHeader().getContentSchema())));
+      int nrRows = 0;
+      Either<TableDef, DataBlock> read;
+      while ((read = reader.read()) != null) {
+        if (read.isRight()) {
+          nrRows += read.getRight().getValues().size();
+        }
+      }
+      Assert.assertEquals(10001, nrRows);
+    }
+  }
+
+  private static List<DataRow> filter(final List<DataRow> rows, final long tableId) {
+    List<DataRow> result = new ArrayList<>();
+    for (DataRow row : rows) {
+      if (row.getTableDefId() == tableId) {
+        result.add(row);
+      }
+    }
+    return result;
+  }
+
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.tsdb2;
+
+import gnu.trove.list.array.TLongArrayList;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.junit.Assert;
+import org.junit.Test;
+import org.spf4j.base.TimeSource;
+import org.spf4j.tsdb2.avro.ColumnDef;
+import org.spf4j.tsdb2.avro.TableDef;
+
+/**
+ * @author Zoltan Farkas
+ */
+public class MappedTSDBReaderTest {
+
+  private final TableDef tableDef = TableDef.newBuilder()
+          .setName("test")
+          .setDescription("test")
+          .setSampleTime(0)
+          .setColumns(Arrays.asList(
+                  ColumnDef.newBuilder().setName("a").setDescription("atest").setUnitOfMeasurement("ms").build(),
+                  ColumnDef.newBuilder().setName("b").setDescription("btest").setUnitOfMeasurement("ms").build()))
+          .build();
+
+  @Test
+  public void testMappedReadRowFormat() throws IOException {
+    testMappedRead(false);
+  }
+
+  @Test
+  public void testMappedReadColumnarFormat() throws IOException {
+    testMappedRead(true);
+  }
+
+  private void testMappedRead(final boolean columnar) throws IOException {
+    File testFile = File.createTempFile("test", ".tsdb2");
+    long now = System.currentTimeMillis();
+    long tableId;
+    try (TSDBWriter writer = new TSDBWriter(testFile, 10, "test", false, columnar)) {
+      tableId = writer.writeTableDef(tableDef);
+      for (int i = 0; i < 1000; i++) {
+        writer.writeDataRow(tableId, now + i, i, -i);
+      }
+    }
+    TSDBReader reader = new TSDBReader(testFile, 8192);
+    TLongArrayList expected = new TLongArrayList();
+    try {
+      reader.readAll((read) -> {
+        if (read.isRight()) {
+          read.getRight().getValues().forEach((row) -> {
+            expected.add(read.getRight().getBaseTimestamp() + row.getRelTimeStamp());
+            expected.add(row.getData().get(0));
+          });
+        }
+      });
+    } finally {
+      reader.close();
+    }
+    // small window to force remapping.
+    try (MappedTSDBReader mreader = new MappedTSDBReader(testFile, 256)) {
+      List<TableDef> tables = new ArrayList<>();
+      TLongArrayList actual = new TLongArrayList();
+      mreader.readAll(tables::add, (tid, ts, data) -> {
+        Assert.assertEquals(tableId, tid);
+        Assert.assertEquals(2, data.length);
+        Assert.assertEquals(data[0], -data[1]);
+        actual.add(ts);
+        actual.add(data[0]);
+      });
+      Assert.assertEquals(Arrays.asList(tableDef), tables);
+      Assert.assertEquals(expected, actual);
+      TLongArrayList range = new TLongArrayList();
+      mreader.scan(now + 100, now + 199, new long[] {tableId}, (tid, ts, data) -> range.add(ts));
+      Assert.assertEquals(100, range.size());
+      Assert.assertEquals(now + 100, range.get(0));
+    }
+  }
+
+  @Test(timeout = 10000)
+  public void testTailing() throws IOException, InterruptedException, ExecutionException, TimeoutException {
+    File testFile = File.createTempFile("test", ".tsdb2");
+    try (TSDBWriter writer = new TSDBWriter(testFile, 4, "test", false);
+            MappedTSDBReader reader = new MappedTSDBReader(testFile)) {
+      final BlockingQueue<Long> queue = new ArrayBlockingQueue<>(100);
+      Future<Void> bgWatch = reader.bgWatch(null, (tid, ts, data) -> queue.add(data[0]),
+              TSDBReader.EventSensitivity.HIGH, TimeSource.nanoTime() + TimeUnit.SECONDS.toNanos(10));
+      long tableId = writer.writeTableDef(tableDef);
+      final long time = System.currentTimeMillis();
+      writer.writeDataRow(tableId, time, 0, 1);
+      writer.writeDataRow(tableId, time + 10, 1, 1);
+      writer.flush();
+      Assert.assertEquals(0L, queue.take().longValue());
+      Assert.assertEquals(1L, queue.take().longValue());
+      for (int i = 2; i < 100; i++) {
+        writer.writeDataRow(tableId, time + i * 10, i, 1);
+      }
+      writer.flush();
+      for (int i = 2; i < 100; i++) {
+        Assert.assertEquals(i, queue.take().longValue());
+      }
+      reader.stopWatching();
+      bgWatch.get(10000, TimeUnit.MILLISECONDS);
+    }
+  }
+
+}
@@ -31,16 +31,33 @@
  */
 package org.spf4j.tsdb2;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.EncoderFactory;
+import org.apache.avro.specific.SpecificDatumWriter;
 import org.junit.Assert;
 import org.junit.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.spf4j.base.CloseableIterable;
+import org.spf4j.base.Either;
+import org.spf4j.tsdb2.avro.DataBlock;
 import org.spf4j.perf.TimeSeriesRecord;
 import org.spf4j.tsdb2.avro.ColumnDef;
+import org.spf4j.tsdb2.avro.DataRow;
+import org.spf4j.tsdb2.avro.Header;
 import org.spf4j.tsdb2.avro.TableDef;
 
 /**
@@ -90,4 +107,180 @@ public class TSDBQueryTest {
 
   }
 
+  @Test
+  public void testIndexedTimeSeries() throws IOException {
+    File testFile = File.createTempFile("test", ".tsdb2");
+    long tableId1, tableId2;
+    long now = System.currentTimeMillis();
+    try (TSDBWriter writer = new TSDBWriter(testFile, 2, "test", false)) {
+      tableId1 = writer.writeTableDef(tableDef);
+      tableId2 = writer.writeTableDef(tableDef);
+      for (int i = 0; i < 10; i++) {
+        writer.writeDataRow(tableId1, now + 1000L * i, i, 1, 2);
+        writer.writeDataRow(tableId1, now + 1000L * i + 1, i, 1, 2);
+      }
+      writer.flush();
+      for (int i = 10; i < 20; i++) {
+        writer.writeDataRow(tableId2, now + 1000L * i, i, 1, 2);
+      }
+    }
+    BlockIndex index = BlockIndex.load(testFile);
+    Assert.assertNotNull(index);
+    Assert.assertEquals(15, index.getEntries().size());
+    try (TSDBReader reader = new TSDBReader(testFile, 8192)) {
+      int nrBlocks = 0;
+      Iterator<DataBlock> blocks = reader.getDataBlocks(now + 3000, now + 5000, new long[] {tableId1});
+      while (blocks.hasNext()) {
+        blocks.next();
+        nrBlocks++;
+      }
+      Assert.assertEquals(3, nrBlocks);
+    }
+    TimeSeries ts1 = TSDBQuery.getTimeSeries(testFile, new long[] {tableId1}, now + 3000, now + 5000);
+    Assert.assertArrayEquals(new long[] {now + 3000, now + 3001, now + 4000, now + 4001, now + 5000},
+            ts1.getTimeStamps());
+    TimeSeries ts2 = TSDBQuery.getTimeSeries(testFile, new long[] {tableId2}, now + 3000, now + 12000);
+    Assert.assertArrayEquals(new long[] {now + 10000, now + 11000, now + 12000}, ts2.getTimeStamps());
+    // no index, full scan.
+    Assert.assertTrue(BlockIndex.getIndexFile(testFile).delete());
+    TimeSeries ts1NoIdx = TSDBQuery.getTimeSeries(testFile, new long[] {tableId1}, now + 3000, now + 5000);
+    Assert.assertArrayEquals(ts1.getTimeStamps(), ts1NoIdx.getTimeStamps());
+    // append to a file with no index, the new blocks will be indexed, the old ones scanned.
+    try (TSDBWriter writer = new TSDBWriter(testFile, 2, null, true)) {
+      writer.writeDataRow(tableId1, now + 4500, 1, 1, 2);
+    }
+    TimeSeries ts1Appended = TSDBQuery.getTimeSeries(testFile, new long[] {tableId1}, now + 3000, now + 5000);
+    Assert.assertEquals(6, ts1Appended.getTimeStamps().length);
+    int nrRecords = 0;
+    try (TSDBReader reader = new TSDBReader(testFile, 8192)) {
+      Either<TableDef, DataBlock> read;
+      while ((read = reader.read()) != null) {
+        if (read.isRight()) {
+          nrRecords += read.getRight().getValues().size();
+        }
+      }
+    }
+    Assert.assertEquals(31, nrRecords);
+  }
+
+  @Test
+  public void testCorruptIndex() throws IOException {
+    File testFile = File.createTempFile("test", ".tsdb2");
+    long tableId;
+    long now = System.currentTimeMillis();
+    try (TSDBWriter writer = new TSDBWriter(testFile, 2, "test", false)) {
+      tableId = writer.writeTableDef(tableDef);
+      for (int i = 0; i < 10; i++) {
+        writer.writeDataRow(tableId, now + 1000L * i, i, 1, 2);
+      }
+    }
+    File indexFile = BlockIndex.getIndexFile(testFile);
+    byte[] index = Files.readAllBytes(indexFile.toPath());
+    // corrupt the end offset of the 3rd entry.
+    int entry3 = BlockIndex.MAGIC.length + Integer.BYTES + 2 * (4 * Long.BYTES + Integer.BYTES + Long.BYTES);
+    Arrays.fill(index, entry3 + Long.BYTES, entry3 + 2 * Long.BYTES, (byte) 0);
+    Files.write(indexFile.toPath(), index);
+    Assert.assertEquals(2, BlockIndex.load(testFile).getEntries().size());
+    TimeSeries ts = TSDBQuery.getTimeSeries(testFile, new long[] {tableId}, now + 3000, now + 8000);
+    Assert.assertEquals(6, ts.getTimeStamps().length);
+    // corrupt header, the index is ignored.
+    index[0] = 0;
+    Files.write(indexFile.toPath(), index);
+    Assert.assertNull(BlockIndex.load(testFile));
+    Assert.assertArrayEquals(ts.getTimeStamps(),
+            TSDBQuery.getTimeSeries(testFile, new long[] {tableId}, now + 3000, now + 8000).getTimeStamps());
+    // a failed open must not leave the file open/locked.
+    try (TSDBWriter writer = new TSDBWriter(testFile, 2, "description not allowed", true)) {
+      Assert.fail("Expected IllegalArgumentException " + writer);
+    } catch (IllegalArgumentException ex) {
+      // expected
+    }
+    // append overwrites the corrupt index.
+    try (TSDBWriter writer = new TSDBWriter(testFile, 2, null, true)) {
+      writer.writeDataRow(tableId, now + 5500, 1, 1, 2);
+    }
+    Assert.assertEquals(1, BlockIndex.load(testFile).getEntries().size());
+    Assert.assertEquals(7,
+            TSDBQuery.getTimeSeries(testFile, new long[] {tableId}, now + 3000, now + 8000).getTimeStamps().length);
+  }
+
+  @Test
+  public void testStaleIndex() throws IOException {
+    File testFile = File.createTempFile("test", ".tsdb2");
+    File otherFile = File.createTempFile("test", ".tsdb2");
+    long tableId;
+    long now = System.currentTimeMillis();
+    try (TSDBWriter writer = new TSDBWriter(testFile, 2, "test", false);
+         TSDBWriter otherWriter = new TSDBWriter(otherFile, 3, "test", false)) {
+      tableId = writer.writeTableDef(tableDef);
+      Assert.assertEquals(tableId, otherWriter.writeTableDef(tableDef));
+      for (int i = 0; i < 10; i++) {
+        writer.writeDataRow(tableId, now + 1000L * i, i, 1, 2);
+        otherWriter.writeDataRow(tableId, now + 1000L * i, i, 1, 2);
+      }
+    }
+    // a structurally valid index, that does not belong to the data file. (file regenerated or copied without index)
+    Files.copy(BlockIndex.getIndexFile(otherFile).toPath(), BlockIndex.getIndexFile(testFile).toPath(),
+            StandardCopyOption.REPLACE_EXISTING);
+    try (TSDBWriter writer = new TSDBWriter(testFile, 2, null, true)) {
+      writer.writeDataRow(tableId, now + 5500, 1, 1, 2);
+    }
+    Assert.assertNotNull(BlockIndex.load(testFile));
+    TimeSeries ts = TSDBQuery.getTimeSeries(testFile, new long[] {tableId}, now + 3000, now + 8000);
+    Assert.assertArrayEquals(new long[] {now + 3000, now + 4000, now + 5000, now + 6000, now + 7000, now + 8000,
+      now + 5500}, ts.getTimeStamps());
+    try (CloseableIterable<TimeSeriesRecord> res = TSDBQuery.getTimeSeriesData(testFile, "test", now, now + 10000)) {
+      int i = 0;
+      for (TimeSeriesRecord rec : res) {
+        LOG.debug("measurement", rec);
+        i++;
+      }
+      Assert.assertEquals(11, i);
+    }
+  }
+
+  @Test
+  public void testDifferentBlockSchema() throws IOException {
+    // a data block schema with an extra field, the MappedTSDBReader cannot read it, TSDBReader resolves it.
+    List<Schema.Field> fields = new ArrayList<>();
+    for (Schema.Field field : DataBlock.SCHEMA$.getFields()) {
+      fields.add(new Schema.Field(field.name(), field.schema(), field.doc(), field.defaultVal()));
+    }
+    fields.add(new Schema.Field("source", Schema.create(Schema.Type.STRING), "block source", "unknown"));
+    Schema blockSchema = Schema.createRecord(DataBlock.SCHEMA$.getName(), DataBlock.SCHEMA$.getDoc(),
+            DataBlock.SCHEMA$.getNamespace(), false, fields);
+    Schema contentSchema = Schema.createUnion(Arrays.asList(TableDef.SCHEMA$, blockSchema));
+    long now = System.currentTimeMillis();
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    bos.write(TSDBWriter.MAGIC);
+    bos.write(new byte[Long.BYTES]); // file size, written at the end.
+    BinaryEncoder encoder = EncoderFactory.get().directBinaryEncoder(bos, null);
+    new SpecificDatumWriter<Header>(Header.SCHEMA$).write(Header.newBuilder()
+            .setContentSchema(contentSchema.toString()).setDescription("test").build(), encoder);
+    long tableId = bos.size();
+    SpecificDatumWriter<Object> recordWriter = new SpecificDatumWriter<>(contentSchema);
+    recordWriter.write(TableDef.newBuilder(tableDef).setId(tableId).build(), encoder);
+    GenericRecord block = new GenericData.Record(blockSchema);
+    block.put("baseTimestamp", now);
+    block.put("values", Arrays.asList(
+            DataRow.newBuilder().setRelTimeStamp(0).setTableDefId(tableId).setData(Arrays.asList(1L, 2L, 3L)).build(),
+            DataRow.newBuilder().setRelTimeStamp(1000).setTableDefId(tableId).setData(Arrays.asList(4L, 5L, 6L))
+                    .build()));
+    block.put("source", "test");
+    recordWriter.write(block, encoder);
+    encoder.flush();
+    byte[] data = bos.toByteArray();
+    ByteBuffer.wrap(data).putLong(TSDBWriter.MAGIC.length, data.length);
+    File testFile = File.createTempFile("test", ".tsdb2");
+    Files.write(testFile.toPath(), data);
+
+    Assert.assertFalse(MappedTSDBReader.supports(testFile));
+    TSDBQuery.TableDefEx tdex = TSDBQuery.getAllTablesWithDataRanges(testFile).get("test").get(0);
+    Assert.assertEquals(now, tdex.getStartTime());
+    Assert.assertEquals(now + 1000, tdex.getEndTime());
+    TimeSeries ts = TSDBQuery.getTimeSeries(testFile, new long[] {tableId}, now, now + 1000);
+    Assert.assertArrayEquals(new long[] {now, now + 1000}, ts.getTimeStamps());
+    Assert.assertArrayEquals(new long[] {4L, 5L, 6L}, ts.getValues()[1]);
+  }
+
 }
@@ -0,0 +1,300 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.stackmonitor.jfr;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import gnu.trove.set.hash.THashSet;
+import gnu.trove.set.hash.TLongHashSet;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import javax.annotation.concurrent.NotThreadSafe;
+import jdk.jfr.EventType;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordedFrame;
+import jdk.jfr.consumer.RecordedMethod;
+import jdk.jfr.consumer.RecordedStackTrace;
+import jdk.jfr.consumer.RecordedThread;
+import jdk.jfr.consumer.RecordingFile;
+import org.spf4j.base.TimeSource;
+import org.spf4j.stackmonitor.ISampler;
+
+/**
+ * Base for the samplers that aggregate java flight recorder events.
+ *
+ * JFR events are collected in a JFR recording that is drained every drain interval,
+ * or when the collected samples are requested (see {@link #drain()}). A drain starts a new recording before
+ * stopping the current one, so that there is no time interval without a running recording, the events from
+ * the overlap are attributed to only one of the recordings by their start time.
+ *
+ * @author Zoltan Farkas
+ */
+@ParametersAreNonnullByDefault
+@NotThreadSafe
+abstract class JfrCollector implements ISampler {
+
+  private final String name;
+
+  private final long drainIntervalNanos;
+
+  private final TLongHashSet ignoredThreadIds;
+
+  private final Set<String> ignoredThreadNames;
+
+  @Nullable
+  private Recording recording;
+
+  @Nullable
+  private Path recordingFile;
+
+  /** the events of the current recording that start before this instant have been read from the previous one. */
+  @Nullable
+  private Instant recordingFrom;
+
+  private long lastDrainNanos;
+
+  JfrCollector(final String name, final long drainIntervalMillis,
+          final Thread[] ignored, final String... xtraIgnoredThreads) {
+    this.name = name;
+    this.drainIntervalNanos = TimeUnit.MILLISECONDS.toNanos(drainIntervalMillis);
+    this.ignoredThreadIds = new TLongHashSet(ignored.length + 1);
+    for (Thread th : ignored) {
+      ignoredThreadIds.add(th.getId());
+    }
+    this.ignoredThreadNames = new THashSet<>(Arrays.asList(xtraIgnoredThreads));
+    this.recording = null;
+    this.recordingFile = null;
+    this.recordingFrom = null;
+  }
+
+  /**
+   * @return true if JFR is available in this JVM.
+   */
+  static boolean isJfrAvailable() {
+    try {
+      Class.forName("jdk.jfr.FlightRecorder");
+      return FlightRecorder.isAvailable();
+    } catch (ClassNotFoundException | LinkageError ex) {
+      return false;
+    }
+  }
+
+  static boolean hasEventType(final String name) {
+    for (EventType type : FlightRecorder.getFlightRecorder().getEventTypes()) {
+      if (name.equals(type.getName())) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Enable the events this collector aggregates.
+   * @param rec the recording to configure.
+   */
+  abstract void enableEvents(Recording rec);
+
+  /**
+   * Aggregate a recorded event.
+   * @param event the event.
+   */
+  abstract void collect(RecordedEvent event);
+
+  /**
+   * Invoked periodically by the sampling thread, starts the JFR recording if not started
+   * and drains it if the drain interval elapsed. The samples are collected by the JVM.
+   */
+  @Override
+  public final void sample() {
+    long nanoTime = TimeSource.nanoTime();
+    if (recording == null) {
+      startRecording();
+      recordingFrom = null;
+      lastDrainNanos = nanoTime;
+    } else if (nanoTime - lastDrainNanos >= drainIntervalNanos) {
+      drain();
+      lastDrainNanos = nanoTime;
+    }
+  }
+
+  /**
+   * Stops the JFR recording, the recorded events are aggregated and available via getCollections.
+   */
+  @Override
+  public final void stop() {
+    Recording rec = recording;
+    if (rec == null) {
+      return;
+    }
+    Path file = recordingFile;
+    Instant from = recordingFrom;
+    recording = null;
+    recordingFile = null;
+    recordingFrom = null;
+    collect(rec, file, from, null);
+  }
+
+  private void startRecording() {
+    Recording rec = new Recording();
+    try {
+      Path file = Files.createTempFile(name, ".jfr");
+      rec.setName(name);
+      enableEvents(rec);
+      rec.setToDisk(true);
+      rec.setDestination(file);
+      // bound the disk usage when this sampler is abandoned without a drain.
+      rec.setMaxAge(Duration.ofNanos(drainIntervalNanos * 10));
+      rec.start();
+      recordingFile = file;
+      recording = rec;
+    } catch (IOException ex) {
+      rec.close();
+      throw new UncheckedIOException(ex);
+    } catch (RuntimeException ex) {
+      rec.close();
+      throw ex;
+    }
+  }
+
+  /**
+   * Aggregate the events recorded so far. A new recording is started before the current one is stopped,
+   * the current recording is read after the new one is running.
+   */
+  final void drain() {
+    Recording rec = recording;
+    if (rec == null) {
+      return;
+    }
+    Path file = recordingFile;
+    Instant from = recordingFrom;
+    startRecording();
+    Instant handoff = recording.getStartTime();
+    recordingFrom = handoff;
+    collect(rec, file, from, handoff);
+  }
+
+  /**
+   * Stop a recording and aggregate its events that start in the [from, to) interval.
+   */
+  @SuppressFBWarnings("EXS_EXCEPTION_SOFTENING_NO_CHECKED")
+  private void collect(final Recording rec, final Path file,
+          @Nullable final Instant from, @Nullable final Instant to) {
+    try {
+      rec.stop();
+      try (RecordingFile rf = new RecordingFile(file)) {
+        while (rf.hasMoreEvents()) {
+          RecordedEvent event = rf.readEvent();
+          Instant startTime = event.getStartTime();
+          if ((from == null || !startTime.isBefore(from)) && (to == null || startTime.isBefore(to))) {
+            collect(event);
+          }
+        }
+      }
+    } catch (IOException ex) {
+      throw new UncheckedIOException(ex);
+    } finally {
+      rec.close();
+      try {
+        Files.deleteIfExists(file);
+      } catch (IOException ex) {
+        throw new UncheckedIOException(ex);
+      }
+    }
+  }
+
+  final boolean isIgnored(@Nullable final RecordedThread thread) {
+    return thread != null && (ignoredThreadIds.contains(thread.getJavaThreadId())
+            || ignoredThreadNames.contains(thread.getJavaName()));
+  }
+
+  final long getDrainIntervalNanos() {
+    return drainIntervalNanos;
+  }
+
+  @Nullable
+  final Recording getRecording() {
+    return recording;
+  }
+
+  static int randomRound(final double value) {
+    int result = (int) Math.min(value, Integer.MAX_VALUE);
+    if (ThreadLocalRandom.current().nextDouble() < value - result) {
+      result++;
+    }
+    return result;
+  }
+
+  /**
+   * Convert a JFR stack trace to a java stack trace, non java frames are skipped.
+   * @param stackTrace the JFR stack trace.
+   * @param leaf an optional pseudo frame to add at the top of the stack.
+   * @return the stack trace or null if there are no java frames.
+   */
+  @Nullable
+  static StackTraceElement[] toStackTrace(@Nullable final RecordedStackTrace stackTrace,
+          @Nullable final StackTraceElement leaf) {
+    if (stackTrace == null) {
+      return null;
+    }
+    List<RecordedFrame> frames = stackTrace.getFrames();
+    StackTraceElement[] stack = new StackTraceElement[frames.size() + 1];
+    int j = 0;
+    if (leaf != null) {
+      stack[j++] = leaf;
+    }
+    for (RecordedFrame frame : frames) {
+      if (!frame.isJavaFrame()) {
+        continue;
+      }
+      RecordedMethod method = frame.getMethod();
+      stack[j++] = new StackTraceElement(method.getType().getName(), method.getName(), null,
+              frame.getLineNumber());
+    }
+    if (j == 0 || (leaf != null && j == 1)) {
+      return null;
+    }
+    return j == stack.length ? stack : Arrays.copyOf(stack, j);
+  }
+
+}
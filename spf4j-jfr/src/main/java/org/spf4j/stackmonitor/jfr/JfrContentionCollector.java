@@ -0,0 +1,223 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.stackmonitor.jfr;
+
+import com.google.common.collect.ImmutableMap;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import javax.annotation.concurrent.NotThreadSafe;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedClass;
+import jdk.jfr.consumer.RecordedEvent;
+import org.spf4j.stackmonitor.SampleNode;
+import org.spf4j.stackmonitor.StackCollector;
+
+/**
+ * Lock contention sampler based on the java flight recorder jdk.JavaMonitorEnter, jdk.ThreadPark
+ * and jdk.JavaMonitorWait events.
+ *
+ * Only the blocking events that last longer than a threshold (spf4j.jfrContentionCollector.thresholdMillis,
+ * default 10 ms) are recorded by the JVM. The events are aggregated into stack sample trees weighted by the blocked
+ * time (a sample count represents spf4j.jfrContentionCollector.microsPerSample microseconds, default 1000),
+ * under a label for each event kind: "MONITOR_ENTER", "PARK" and "MONITOR_WAIT". The leaf frame of every stack trace
+ * is a pseudo frame for the lock class (lock@[monitor class], park@[blocker class], wait@[monitor class]),
+ * that allows grouping the blocked time by lock class.
+ *
+ * Can be used with a Sampler (see Sampler.getContentionSampler) to dump the contention profiles periodically,
+ * and via JMX. The Sampler period is only the drain check period, the events are recorded by the JVM.
+ *
+ * Requires a JVM with JFR support (openjdk 8u262+, 11+).
+ *
+ * @author Zoltan Farkas
+ */
+@ParametersAreNonnullByDefault
+@NotThreadSafe
+public final class JfrContentionCollector extends JfrCollector {
+
+  public static final String MONITOR_ENTER_LABEL = "MONITOR_ENTER";
+
+  public static final String PARK_LABEL = "PARK";
+
+  public static final String MONITOR_WAIT_LABEL = "MONITOR_WAIT";
+
+  private static final long DEFAULT_DRAIN_INTERVAL_MILLIS
+          = Long.getLong("spf4j.jfrContentionCollector.drainIntervalMillis", 5000);
+
+  private static final long DEFAULT_THRESHOLD_MILLIS
+          = Long.getLong("spf4j.jfrContentionCollector.thresholdMillis", 10);
+
+  private static final int DEFAULT_MICROS_PER_SAMPLE
+          = Integer.getInteger("spf4j.jfrContentionCollector.microsPerSample", 1000);
+
+  private static final String MONITOR_ENTER = "jdk.JavaMonitorEnter";
+
+  private static final String THREAD_PARK = "jdk.ThreadPark";
+
+  private static final String MONITOR_WAIT = "jdk.JavaMonitorWait";
+
+  private final Duration threshold;
+
+  private final long nanosPerSample;
+
+  private final boolean collectParks;
+
+  private final boolean collectWaits;
+
+  private final StackCollector monitorEnterCollector;
+
+  private final StackCollector parkCollector;
+
+  private final StackCollector monitorWaitCollector;
+
+  public JfrContentionCollector(final Thread... ignored) {
+    this(DEFAULT_THRESHOLD_MILLIS, DEFAULT_MICROS_PER_SAMPLE, true, true, DEFAULT_DRAIN_INTERVAL_MILLIS, ignored);
+  }
+
+  /**
+   * @param thresholdMillis the minimum blocked time of a recorded event.
+   * @param microsPerSample the blocked time a sample count represents.
+   * @param collectParks collect jdk.ThreadPark events (java.util.concurrent locks and conditions).
+   * @param collectWaits collect jdk.JavaMonitorWait events (Object.wait).
+   * @param drainIntervalMillis the interval the JFR recording is drained at.
+   * @param ignored threads to not collect events for.
+   * @param xtraIgnoredThreads names of threads to not collect events for.
+   */
+  public JfrContentionCollector(final long thresholdMillis, final int microsPerSample,
+          final boolean collectParks, final boolean collectWaits,
+          final long drainIntervalMillis, final Thread[] ignored, final String... xtraIgnoredThreads) {
+    super("spf4j-contention-samples", drainIntervalMillis, ignored, xtraIgnoredThreads);
+    if (thresholdMillis < 0) {
+      throw new IllegalArgumentException("Invalid threshold " + thresholdMillis);
+    }
+    if (microsPerSample < 1) {
+      throw new IllegalArgumentException("Invalid micros per sample " + microsPerSample);
+    }
+    this.threshold = Duration.ofMillis(thresholdMillis);
+    this.nanosPerSample = TimeUnit.MICROSECONDS.toNanos(microsPerSample);
+    this.collectParks = collectParks;
+    this.collectWaits = collectWaits;
+    this.monitorEnterCollector = StackCollector.create();
+    this.parkCollector = StackCollector.create();
+    this.monitorWaitCollector = StackCollector.create();
+  }
+
+  /**
+   * @return true if JFR is available in this JVM.
+   */
+  public static boolean isAvailable() {
+    return isJfrAvailable();
+  }
+
+  @Override
+  void enableEvents(final Recording rec) {
+    rec.enable(MONITOR_ENTER).withThreshold(threshold).withStackTrace();
+    if (collectParks) {
+      rec.enable(THREAD_PARK).withThreshold(threshold).withStackTrace();
+    }
+    if (collectWaits) {
+      rec.enable(MONITOR_WAIT).withThreshold(threshold).withStackTrace();
+    }
+  }
+
+  @Override
+  void collect(final RecordedEvent event) {
+    String eventName = event.getEventType().getName();
+    switch (eventName) {
+      case MONITOR_ENTER:
+        collect(event, event.getClass("monitorClass"), "lock", monitorEnterCollector);
+        break;
+      case THREAD_PARK:
+        collect(event, event.getClass("parkedClass"), "park", parkCollector);
+        break;
+      case MONITOR_WAIT:
+        collect(event, event.getClass("monitorClass"), "wait", monitorWaitCollector);
+        break;
+      default:
+        // ignore
+    }
+  }
+
+  private void collect(final RecordedEvent event, @Nullable final RecordedClass lockClass,
+          final String operation, final StackCollector collector) {
+    if (isIgnored(event.getThread("eventThread"))) {
+      return;
+    }
+    int count = randomRound((double) event.getDuration().toNanos() / nanosPerSample);
+    if (count <= 0) {
+      return;
+    }
+    StackTraceElement lock = new StackTraceElement(lockClass == null ? "unknown" : lockClass.getName(),
+            operation, null, -1);
+    StackTraceElement[] stack = toStackTrace(event.getStackTrace(), lock);
+    if (stack != null) {
+      collector.collect(stack, count);
+    }
+  }
+
+  private static void put(final ImmutableMap.Builder<String, SampleNode> builder,
+          final String label, @Nullable final SampleNode nodes) {
+    if (nodes != null) {
+      builder.put(label, nodes);
+    }
+  }
+
+  @Override
+  public Map<String, SampleNode> getCollectionsAndReset() {
+    drain();
+    ImmutableMap.Builder<String, SampleNode> builder = ImmutableMap.builder();
+    put(builder, MONITOR_ENTER_LABEL, monitorEnterCollector.getAndReset());
+    put(builder, PARK_LABEL, parkCollector.getAndReset());
+    put(builder, MONITOR_WAIT_LABEL, monitorWaitCollector.getAndReset());
+    return builder.build();
+  }
+
+  @Override
+  public Map<String, SampleNode> getCollections() {
+    drain();
+    ImmutableMap.Builder<String, SampleNode> builder = ImmutableMap.builder();
+    put(builder, MONITOR_ENTER_LABEL, monitorEnterCollector.get());
+    put(builder, PARK_LABEL, parkCollector.get());
+    put(builder, MONITOR_WAIT_LABEL, monitorWaitCollector.get());
+    return builder.build();
+  }
+
+  @Override
+  public String toString() {
+    return "JfrContentionCollector{" + "threshold=" + threshold + ", nanosPerSample=" + nanosPerSample
+            + ", collectParks=" + collectParks + ", collectWaits=" + collectWaits
+            + ", drainIntervalNanos=" + getDrainIntervalNanos() + ", recording=" + getRecording() + '}';
+  }
+
+}
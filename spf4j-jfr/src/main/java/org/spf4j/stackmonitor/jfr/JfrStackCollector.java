@@ -0,0 +1,265 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.stackmonitor.jfr;
+
+import com.google.common.collect.ImmutableMap;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.Map;
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import javax.annotation.concurrent.NotThreadSafe;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedClass;
+import jdk.jfr.consumer.RecordedEvent;
+import org.spf4j.stackmonitor.SampleNode;
+import org.spf4j.stackmonitor.StackCollector;
+
+/**
+ * Stack sampler based on the java flight recorder jdk.ExecutionSample and jdk.NativeMethodSample events.
+ *
+ * Unlike the FastStackCollector, the stack traces are not captured with Thread.getStackTrace,
+ * which brings the sampled threads to a safepoint, as such the profile does not have a safepoint bias.
+ * The JFR samples only threads that are running java or native code, so the blocked and waiting threads
+ * will not show up in the profile.
+ *
+ * JFR events are collected in a JFR recording that is drained (replaced by a new recording and read)
+ * every drain interval, or when the collected samples are requested. The samples are aggregated in a StackCollector
+ * and are available under the same label as for the FastStackCollector ("ALL").
+ *
+ * Optionally (spf4j.jfrStackCollector.allocations=true) allocations can be profiled as well, the allocation samples
+ * are aggregated under the "ALLOCATIONS" label, weighted by the allocated bytes (a sample count represents
+ * spf4j.jfrStackCollector.allocationBytesPerSample bytes, default 1024), the leaf frame of every allocation stack trace
+ * being the allocated class. On JVMs that support it, the throttled jdk.ObjectAllocationSample event is used,
+ * otherwise the jdk.ObjectAllocationInNewTLAB and jdk.ObjectAllocationOutsideTLAB events are used.
+ * With multiple labels, the Sampler dumps will be written as ssdump3 files.
+ *
+ * Requires a JVM with JFR support (openjdk 8u262+, 11+). This class is part of the optional spf4j-jfr module,
+ * the Sampler will use it when spf4j.sampler.jfr=true and the module is in the classpath.
+ *
+ * @author Zoltan Farkas
+ */
+@ParametersAreNonnullByDefault
+@NotThreadSafe
+public final class JfrStackCollector extends JfrCollector {
+
+  private static final long DEFAULT_DRAIN_INTERVAL_MILLIS
+          = Long.getLong("spf4j.jfrStackCollector.drainIntervalMillis", 5000);
+
+  private static final String EXECUTION_SAMPLE = "jdk.ExecutionSample";
+
+  private static final String NATIVE_METHOD_SAMPLE = "jdk.NativeMethodSample";
+
+  private static final String ALLOCATION_SAMPLE = "jdk.ObjectAllocationSample";
+
+  private static final String ALLOCATION_IN_NEW_TLAB = "jdk.ObjectAllocationInNewTLAB";
+
+  private static final String ALLOCATION_OUTSIDE_TLAB = "jdk.ObjectAllocationOutsideTLAB";
+
+  /**
+   * The label the allocation samples are available under.
+   */
+  public static final String ALLOCATIONS_LABEL = "ALLOCATIONS";
+
+  /**
+   * The method name of the leaf pseudo frame that holds the allocated class.
+   */
+  public static final String ALLOCATION_METHOD_NAME = "new";
+
+  private static final boolean DEFAULT_COLLECT_ALLOCATIONS = Boolean.getBoolean("spf4j.jfrStackCollector.allocations");
+
+  private static final int DEFAULT_ALLOCATION_BYTES_PER_SAMPLE
+          = Integer.getInteger("spf4j.jfrStackCollector.allocationBytesPerSample", 1024);
+
+  private static final String ALLOCATION_SAMPLE_THROTTLE
+          = System.getProperty("spf4j.jfrStackCollector.allocationSampleThrottle", "300/s");
+
+  private final Duration samplePeriod;
+
+  private final boolean collectNative;
+
+  private final StackCollector collector;
+
+  private final boolean collectAllocations;
+
+  private final int allocationBytesPerSample;
+
+  private final StackCollector allocationCollector;
+
+  @Nullable
+  private Boolean useAllocationSample;
+
+  public JfrStackCollector(final int samplePeriodMillis, final Thread... ignored) {
+    this(samplePeriodMillis, true, DEFAULT_DRAIN_INTERVAL_MILLIS, ignored);
+  }
+
+  public JfrStackCollector(final int samplePeriodMillis, final boolean collectNative,
+          final long drainIntervalMillis, final Thread[] ignored, final String... xtraIgnoredThreads) {
+    this(samplePeriodMillis, collectNative, DEFAULT_COLLECT_ALLOCATIONS, DEFAULT_ALLOCATION_BYTES_PER_SAMPLE,
+            drainIntervalMillis, ignored, xtraIgnoredThreads);
+  }
+
+  /**
+   * @param samplePeriodMillis the JFR sampling period.
+   * @param collectNative collect jdk.NativeMethodSample events in addition to jdk.ExecutionSample.
+   * @param collectAllocations collect allocation samples under the "ALLOCATIONS" label.
+   * @param allocationBytesPerSample the number of allocated bytes an allocation sample count represents.
+   * @param drainIntervalMillis the interval the JFR recording is drained at.
+   * @param ignored threads to not collect samples for.
+   * @param xtraIgnoredThreads names of threads to not collect samples for.
+   */
+  public JfrStackCollector(final int samplePeriodMillis, final boolean collectNative,
+          final boolean collectAllocations, final int allocationBytesPerSample,
+          final long drainIntervalMillis, final Thread[] ignored, final String... xtraIgnoredThreads) {
+    super("spf4j-stack-samples", drainIntervalMillis, ignored, xtraIgnoredThreads);
+    if (samplePeriodMillis < 1) {
+      throw new IllegalArgumentException("Invalid sample period " + samplePeriodMillis);
+    }
+    if (allocationBytesPerSample < 1) {
+      throw new IllegalArgumentException("Invalid allocation bytes per sample " + allocationBytesPerSample);
+    }
+    this.samplePeriod = Duration.ofMillis(samplePeriodMillis);
+    this.collectNative = collectNative;
+    this.collector = StackCollector.create();
+    this.collectAllocations = collectAllocations;
+    this.allocationBytesPerSample = allocationBytesPerSample;
+    this.allocationCollector = StackCollector.create();
+    this.useAllocationSample = null;
+  }
+
+  /**
+   * @return true if JFR is available in this JVM.
+   */
+  public static boolean isAvailable() {
+    return isJfrAvailable();
+  }
+
+  @Override
+  void enableEvents(final Recording rec) {
+    rec.enable(EXECUTION_SAMPLE).withPeriod(samplePeriod).withStackTrace();
+    if (collectNative) {
+      rec.enable(NATIVE_METHOD_SAMPLE).withPeriod(samplePeriod).withStackTrace();
+    }
+    if (collectAllocations) {
+      if (useAllocationSample == null) {
+        useAllocationSample = hasEventType(ALLOCATION_SAMPLE);
+      }
+      if (useAllocationSample) {
+        rec.enable(ALLOCATION_SAMPLE).with("throttle", ALLOCATION_SAMPLE_THROTTLE).withStackTrace();
+      } else {
+        rec.enable(ALLOCATION_IN_NEW_TLAB).withStackTrace();
+        rec.enable(ALLOCATION_OUTSIDE_TLAB).withStackTrace();
+      }
+    }
+  }
+
+  @Override
+  void collect(final RecordedEvent event) {
+    String eventName = event.getEventType().getName();
+    switch (eventName) {
+      case EXECUTION_SAMPLE:
+      case NATIVE_METHOD_SAMPLE:
+        collectExecution(event);
+        break;
+      case ALLOCATION_SAMPLE:
+        collectAllocation(event, event.getLong("weight"));
+        break;
+      case ALLOCATION_IN_NEW_TLAB:
+        // a sample is taken at every TLAB refill, and stands for the allocations that will fill the new TLAB.
+        collectAllocation(event, event.getLong("tlabSize"));
+        break;
+      case ALLOCATION_OUTSIDE_TLAB:
+        collectAllocation(event, event.getLong("allocationSize"));
+        break;
+      default:
+        // ignore
+    }
+  }
+
+  private void collectExecution(final RecordedEvent event) {
+    if (isIgnored(event.getThread("sampledThread"))) {
+      return;
+    }
+    StackTraceElement[] stack = toStackTrace(event.getStackTrace(), null);
+    if (stack != null) {
+      collector.collect(stack);
+    }
+  }
+
+  private void collectAllocation(final RecordedEvent event, final long bytes) {
+    if (bytes <= 0 || isIgnored(event.getThread("eventThread"))) {
+      return;
+    }
+    int count = randomRound((double) bytes / allocationBytesPerSample);
+    if (count <= 0) {
+      return;
+    }
+    RecordedClass objectClass = event.getClass("objectClass");
+    StackTraceElement allocated = new StackTraceElement(objectClass == null ? "unknown" : objectClass.getName(),
+            ALLOCATION_METHOD_NAME, null, -1);
+    StackTraceElement[] stack = toStackTrace(event.getStackTrace(), allocated);
+    if (stack != null) {
+      allocationCollector.collect(stack, count);
+    }
+  }
+
+  private static Map<String, SampleNode> toCollections(@Nullable final SampleNode nodes,
+          @Nullable final SampleNode allocations) {
+    if (allocations == null) {
+      return nodes == null ? Collections.EMPTY_MAP : ImmutableMap.of("ALL", nodes);
+    }
+    if (nodes == null) {
+      return ImmutableMap.of(ALLOCATIONS_LABEL, allocations);
+    }
+    return ImmutableMap.of("ALL", nodes, ALLOCATIONS_LABEL, allocations);
+  }
+
+  @Override
+  public Map<String, SampleNode> getCollectionsAndReset() {
+    drain();
+    return toCollections(collector.getAndReset(), allocationCollector.getAndReset());
+  }
+
+  @Override
+  public Map<String, SampleNode> getCollections() {
+    drain();
+    return toCollections(collector.get(), allocationCollector.get());
+  }
+
+  @Override
+  public String toString() {
+    return "JfrStackCollector{" + "samplePeriod=" + samplePeriod + ", collectNative=" + collectNative
+            + ", collectAllocations=" + collectAllocations + ", allocationBytesPerSample=" + allocationBytesPerSample
+            + ", drainIntervalNanos=" + getDrainIntervalNanos() + ", recording=" + getRecording() + '}';
+  }
+
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.stackmonitor.jfr;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.spf4j.ssdump2.Converter;
+import org.spf4j.stackmonitor.SampleNode;
+import org.spf4j.stackmonitor.Sampler;
+
+/**
+ * @author Zoltan Farkas
+ */
+public class JfrAllocationSamplingTest {
+
+  private static final Logger LOG = LoggerFactory.getLogger(JfrAllocationSamplingTest.class);
+
+  private static final String ALLOCATE_FRAME = "allocate@" + JfrAllocationSamplingTest.class.getName();
+
+  private static volatile boolean running;
+
+  private static volatile Object allocated;
+
+  private static volatile double result;
+
+  private static void allocate() {
+    while (running) {
+      for (int i = 0; i < 1000; i++) {
+        allocated = new byte[1024 + i];
+      }
+    }
+  }
+
+  private static void spin() {
+    double r = 0;
+    while (running) {
+      for (int i = 0; i < 10000; i++) {
+        r += Integer.toString(i).hashCode();
+      }
+      result = r;
+    }
+  }
+
+  private static boolean hasSamples(final Map<String, SampleNode> collections) {
+    SampleNode allocations = collections.get(JfrStackCollector.ALLOCATIONS_LABEL);
+    return collections.containsKey("ALL")
+            && allocations != null && allocations.toString().contains(ALLOCATE_FRAME);
+  }
+
+  @Test
+  public void testJfrAllocationSampling() throws InterruptedException, IOException {
+    Assume.assumeTrue(JfrStackCollector.isAvailable());
+    running = true;
+    Thread allocator = new Thread(JfrAllocationSamplingTest::allocate, "allocator");
+    allocator.start();
+    Thread spinner = new Thread(JfrAllocationSamplingTest::spin, "spinner");
+    spinner.start();
+    JfrStackCollector collector = new JfrStackCollector(10, true, true, 1024, 200,
+            new Thread[] {Thread.currentThread()});
+    Sampler sampler = new Sampler(10, 3600000, (t) -> collector);
+    sampler.setCompressDumps(false);
+    try {
+      sampler.start();
+      // the JFR events are throttled, wait for them to show up instead of sleeping a fixed amount of time.
+      long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+      do {
+        Thread.sleep(250);
+      } while (!hasSamples(sampler.getStackCollections()) && System.nanoTime() < deadline);
+      sampler.stop();
+    } finally {
+      running = false;
+      allocator.join();
+      spinner.join();
+    }
+    File folder = Files.createTempDirectory("jfrAlloc").toFile();
+    File dump = sampler.dumpToFile(folder, "allocations");
+    LOG.debug("Dumped to {}", dump);
+    Assert.assertNotNull(dump);
+    Assert.assertTrue(dump.getName(), dump.getName().endsWith(".ssdump3"));
+    Map<String, SampleNode> collections = Converter.loadLabeledDumps(dump);
+    SampleNode allocations = collections.get(JfrStackCollector.ALLOCATIONS_LABEL);
+    Assert.assertNotNull(allocations);
+    String allocStr = allocations.toString();
+    Assert.assertTrue(allocStr, allocStr.contains(ALLOCATE_FRAME));
+    Assert.assertTrue(allocStr, allocStr.contains(JfrStackCollector.ALLOCATION_METHOD_NAME + "@"));
+    Assert.assertTrue(collections.containsKey("ALL"));
+    Files.delete(dump.toPath());
+    Files.delete(folder.toPath());
+  }
+
+}
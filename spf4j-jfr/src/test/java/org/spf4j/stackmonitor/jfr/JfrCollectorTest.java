@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.stackmonitor.jfr;
+
+import gnu.trove.list.array.TLongArrayList;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import jdk.jfr.Event;
+import jdk.jfr.Name;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.spf4j.stackmonitor.SampleNode;
+
+/**
+ * @author Zoltan Farkas
+ */
+public class JfrCollectorTest {
+
+  private static final Logger LOG = LoggerFactory.getLogger(JfrCollectorTest.class);
+
+  private static volatile boolean running;
+
+  @Name("org.spf4j.test.Tick")
+  private static final class TickEvent extends Event {
+    private long sequence;
+  }
+
+  private static void tick() {
+    long sequence = 0;
+    while (running) {
+      TickEvent event = new TickEvent();
+      event.sequence = sequence++;
+      event.commit();
+      if ((sequence & 0xFF) == 0) {
+        Thread.yield();
+      }
+    }
+  }
+
+  /**
+   * Collects the sequence numbers of the tick events.
+   */
+  private static final class TickCollector extends JfrCollector {
+
+    private final TLongArrayList sequences;
+
+    TickCollector(final long drainIntervalMillis) {
+      super("test-ticks", drainIntervalMillis, new Thread[0]);
+      this.sequences = new TLongArrayList();
+    }
+
+    @Override
+    void enableEvents(final Recording rec) {
+      rec.enable(TickEvent.class);
+    }
+
+    @Override
+    void collect(final RecordedEvent event) {
+      if ("org.spf4j.test.Tick".equals(event.getEventType().getName())) {
+        sequences.add(event.getLong("sequence"));
+      }
+    }
+
+    @Override
+    public Map<String, SampleNode> getCollectionsAndReset() {
+      return Collections.emptyMap();
+    }
+
+    @Override
+    public Map<String, SampleNode> getCollections() {
+      return Collections.emptyMap();
+    }
+
+  }
+
+  @Test
+  public void testNoGapAcrossDrains() throws InterruptedException {
+    Assume.assumeTrue(JfrCollector.isJfrAvailable());
+    TickCollector collector = new TickCollector(200);
+    collector.sample();
+    running = true;
+    Thread ticker = new Thread(JfrCollectorTest::tick, "ticker");
+    ticker.start();
+    try {
+      long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(2);
+      while (System.nanoTime() < deadline) {
+        // a sampler sleep as long as the drain interval, a drain that stops the recording until
+        // the next sample invocation would drop all the events in between.
+        Thread.sleep(200);
+        collector.sample();
+      }
+    } finally {
+      running = false;
+      ticker.join();
+    }
+    collector.stop();
+    TLongArrayList sequences = collector.sequences;
+    sequences.sort();
+    LOG.debug("Collected {} tick events", sequences.size());
+    Assert.assertTrue(sequences.size() > 0);
+    Assert.assertEquals(0, sequences.get(0));
+    for (int i = 1, l = sequences.size(); i < l; i++) {
+      long prev = sequences.get(i - 1);
+      long current = sequences.get(i);
+      Assert.assertNotEquals("duplicate event from overlapping recordings " + current, prev, current);
+      Assert.assertEquals("events missing between " + prev + " and " + current, prev + 1, current);
+    }
+  }
+
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.stackmonitor.jfr;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.spf4j.ssdump2.Converter;
+import org.spf4j.stackmonitor.SampleNode;
+import org.spf4j.stackmonitor.Sampler;
+
+/**
+ * @author Zoltan Farkas
+ */
+public class JfrContentionCollectorTest {
+
+  private static final Logger LOG = LoggerFactory.getLogger(JfrContentionCollectorTest.class);
+
+  private static final class Monitor {
+  }
+
+  private static final Monitor MONITOR = new Monitor();
+
+  private static final ReentrantLock LOCK = new ReentrantLock();
+
+  private static void holdMonitor(final long millis) {
+    synchronized (MONITOR) {
+      sleep(millis);
+    }
+  }
+
+  private static void holdLock(final long millis) {
+    LOCK.lock();
+    try {
+      sleep(millis);
+    } finally {
+      LOCK.unlock();
+    }
+  }
+
+  private static void sleep(final long millis) {
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private static void contend(final long durationMillis) throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(durationMillis);
+    Runnable monitorContender = () -> {
+      while (System.nanoTime() < deadline) {
+        holdMonitor(30);
+      }
+    };
+    Runnable lockContender = () -> {
+      while (System.nanoTime() < deadline) {
+        holdLock(30);
+      }
+    };
+    Thread[] threads = new Thread[] {
+      new Thread(monitorContender, "monitorContender1"), new Thread(monitorContender, "monitorContender2"),
+      new Thread(lockContender, "lockContender1"), new Thread(lockContender, "lockContender2")
+    };
+    for (Thread t : threads) {
+      t.start();
+    }
+    for (Thread t : threads) {
+      t.join();
+    }
+  }
+
+  @Test
+  public void testContentionCollection() throws InterruptedException {
+    Assume.assumeTrue(JfrContentionCollector.isAvailable());
+    JfrContentionCollector collector = new JfrContentionCollector(5, 1000, true, false, 200,
+            new Thread[] {Thread.currentThread()});
+    collector.sample();
+    contend(1000);
+    Map<String, SampleNode> collections = collector.getCollectionsAndReset();
+    LOG.debug("Collected {}", collections);
+    SampleNode monitorEnter = collections.get(JfrContentionCollector.MONITOR_ENTER_LABEL);
+    Assert.assertNotNull(monitorEnter);
+    String meStr = monitorEnter.toString();
+    Assert.assertTrue(meStr, meStr.contains("holdMonitor@org.spf4j.stackmonitor.jfr.JfrContentionCollectorTest"));
+    Assert.assertTrue(meStr, meStr.contains("lock@" + Monitor.class.getName()));
+    // blocked about 30 ms every time, 1 count / ms.
+    Assert.assertTrue(meStr, monitorEnter.getSampleCount() >= 20);
+    SampleNode park = collections.get(JfrContentionCollector.PARK_LABEL);
+    Assert.assertNotNull(park);
+    String parkStr = park.toString();
+    Assert.assertTrue(parkStr, parkStr.contains("holdLock@org.spf4j.stackmonitor.jfr.JfrContentionCollectorTest"));
+    Assert.assertFalse(collections.containsKey(JfrContentionCollector.MONITOR_WAIT_LABEL));
+    Assert.assertTrue(collector.getCollectionsAndReset().isEmpty());
+  }
+
+  @Test
+  public void testContentionSampler() throws Exception {
+    Assume.assumeTrue(JfrContentionCollector.isAvailable());
+    File folder = Files.createTempDirectory("contention").toFile();
+    Sampler sampler = Sampler.getContentionSampler(3600000, folder, "contention");
+    try {
+      sampler.setCompressDumps(false);
+      sampler.start();
+      // the first drain check happens after a sample period (1s).
+      contend(2500);
+      File dump = sampler.dumpToFile();
+      LOG.debug("Dumped to {}", dump);
+      Assert.assertNotNull(dump);
+      Map<String, SampleNode> collections = Converter.loadLabeledDumps(dump);
+      Assert.assertTrue(collections.toString(),
+              collections.containsKey(JfrContentionCollector.MONITOR_ENTER_LABEL));
+    } finally {
+      sampler.dispose();
+      for (File file : folder.listFiles()) {
+        Files.delete(file.toPath());
+      }
+      Files.delete(folder.toPath());
+    }
+  }
+
+}
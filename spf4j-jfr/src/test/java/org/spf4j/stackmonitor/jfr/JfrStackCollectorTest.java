@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.stackmonitor.jfr;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.spf4j.stackmonitor.SampleNode;
+import org.spf4j.stackmonitor.Sampler;
+
+/**
+ * @author Zoltan Farkas
+ */
+public class JfrStackCollectorTest {
+
+  private static final Logger LOG = LoggerFactory.getLogger(JfrStackCollectorTest.class);
+
+  private static volatile boolean running;
+
+  private static volatile double result;
+
+  private static void spin() {
+    double r = 0;
+    while (running) {
+      // no tight intrinsic loop, JDK 8 JFR fails to walk the stacks of those.
+      for (int i = 0; i < 10000; i++) {
+        r += Integer.toString(i).hashCode();
+      }
+      result = r;
+    }
+  }
+
+  @Test
+  public void testJfrSampling() throws InterruptedException {
+    Assume.assumeTrue(JfrStackCollector.isAvailable());
+    running = true;
+    Thread spinner = new Thread(JfrStackCollectorTest::spin, "spinner");
+    spinner.start();
+    JfrStackCollector collector = new JfrStackCollector(10, true, 200, new Thread[] {Thread.currentThread()});
+    try {
+      long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(2);
+      while (System.nanoTime() < deadline) {
+        collector.sample();
+        Thread.sleep(10);
+      }
+    } finally {
+      running = false;
+      spinner.join();
+    }
+    Map<String, SampleNode> collections = collector.getCollectionsAndReset();
+    LOG.debug("Collected {}", collections);
+    Assert.assertEquals(1, collections.size());
+    Assert.assertTrue(collections.get("ALL").toString()
+            .contains("spin@org.spf4j.stackmonitor.jfr.JfrStackCollectorTest"));
+    Assert.assertTrue(collector.getCollectionsAndReset().isEmpty());
+  }
+
+  @Test
+  public void testSamplerWithJfr() throws InterruptedException {
+    Assume.assumeTrue(JfrStackCollector.isAvailable());
+    Sampler sampler = new Sampler(10, 3600000, (t) -> new JfrStackCollector(10, t));
+    running = true;
+    Thread spinner = new Thread(JfrStackCollectorTest::spin, "spinner");
+    spinner.start();
+    try {
+      sampler.start();
+      Thread.sleep(2000);
+      sampler.stop();
+    } finally {
+      running = false;
+      spinner.join();
+    }
+    Map<String, SampleNode> collections = sampler.getStackCollectionsAndReset();
+    Assert.assertTrue(collections.get("ALL").toString()
+            .contains("spin@org.spf4j.stackmonitor.jfr.JfrStackCollectorTest"));
+  }
+
+}
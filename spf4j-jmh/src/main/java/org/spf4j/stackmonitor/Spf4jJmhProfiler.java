@@ -71,7 +71,7 @@ public final class Spf4jJmhProfiler implements InternalProfiler {
   private static final String DUMP_FOLDER = System.getProperty("jmh.stack.profiles", org.spf4j.base.Runtime.USER_DIR);
 
   private static final Sampler SAMPLER = new Sampler(SAMPLE_PERIOD_MSEC, Integer.MAX_VALUE,
-          (t) -> new FastStackCollector(false, true, new Thread[] {t}));
+          Sampler.defaultSamplerSupplier(SAMPLE_PERIOD_MSEC));
 
   private static final AtomicInteger MEASUREMENT_ITERATION_COUNTER = new AtomicInteger(1);
 
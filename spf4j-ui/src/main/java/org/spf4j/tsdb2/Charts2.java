@@ -59,6 +59,12 @@ import org.spf4j.tsdb2.avro.Observation;
  */
 public final class Charts2 {
 
+  /**
+   * if true, the aggregated chart data is read with
+   * {@link MeasurementStoreQuery#getParallelAggregatedObservations(Schema, Instant, Instant, int, TimeUnit)}.
+   */
+  private static final boolean PARALLEL_AGGREGATION = Boolean.getBoolean("spf4j.ui.parallelAggregation");
+
   private Charts2() {
   }
 
@@ -116,6 +122,9 @@ public final class Charts2 {
     try (AvroCloseableIterable<Observation> data
             = aggTimeMillis <= 0
             ? query.getObservations(table, Instant.ofEpochMilli(startTime), Instant.ofEpochMilli(endTime))
+            : PARALLEL_AGGREGATION
+            ? query.getParallelAggregatedObservations(table, Instant.ofEpochMilli(startTime),
+                    Instant.ofEpochMilli(endTime), aggTimeMillis, TimeUnit.MILLISECONDS)
             : query.getAggregatedObservations(table, Instant.ofEpochMilli(startTime), Instant.ofEpochMilli(endTime),
                     aggTimeMillis, TimeUnit.MILLISECONDS)) {
       for (Observation rec : data) {
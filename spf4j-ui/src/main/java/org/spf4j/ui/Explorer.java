@@ -43,7 +43,9 @@ import java.io.InputStream;
 import java.io.UncheckedIOException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.time.Instant;
 import java.util.Map;
+import javax.annotation.Nullable;
 import javax.swing.JDialog;
 import javax.swing.JFileChooser;
 import javax.swing.JInternalFrame;
@@ -54,7 +56,10 @@ import javax.swing.JOptionPane;
 import javax.swing.text.DefaultEditorKit;
 import org.spf4j.base.AbstractRunnable;
 import org.spf4j.base.Pair;
+import org.spf4j.base.StackSamples;
 import org.spf4j.base.avro.Method;
+import org.spf4j.ssdump2.SampleWindows;
+import org.spf4j.stackmonitor.CompactSampleTree;
 import org.spf4j.stackmonitor.SampleNode;
 import org.spf4j.stackmonitor.Sampler;
 import org.spf4j.stackmonitor.proto.Converter;
@@ -239,6 +244,7 @@ public class Explorer extends javax.swing.JFrame {
       chooser.addChoosableFileFilter(Spf4jFileFilter.SSDUMP);
       chooser.addChoosableFileFilter(Spf4jFileFilter.SSDUMP2);
       chooser.addChoosableFileFilter(Spf4jFileFilter.SSDUMP3);
+      chooser.addChoosableFileFilter(Spf4jFileFilter.SSDUMP4);
       chooser.addChoosableFileFilter(Spf4jFileFilter.SSDUMP2_GZ);
       chooser.addChoosableFileFilter(Spf4jFileFilter.SSDUMP3_GZ);
       chooser.addChoosableFileFilter(Spf4jFileFilter.TSDB);
@@ -359,12 +365,21 @@ public class Explorer extends javax.swing.JFrame {
       SampleNode samples = loadLegacyFormat(file);
       setFrames(samples, fileName);
     } else if (Spf4jFileFilter.SSDUMP2.accept(file) || Spf4jFileFilter.SSDUMP2_GZ.accept(file)) {
-      SampleNode samples = org.spf4j.ssdump2.Converter.load(file);
-      setFrames(samples, fileName);
+      CompactSampleTree samples = org.spf4j.ssdump2.Converter.loadCompact(file);
+      setFrames(samples == null ? null : samples.getRoot(), fileName);
     } else if (Spf4jFileFilter.SSDUMP3.accept(file) || Spf4jFileFilter.SSDUMP3_GZ.accept(file)) {
-      Map<String, SampleNode> loadLabeledDumps = org.spf4j.ssdump2.Converter.loadLabeledDumps(file);
-      for (Map.Entry<String, SampleNode> entry : loadLabeledDumps.entrySet()) {
-        setFrames(entry.getValue(), fileName + ':' + entry.getKey());
+      Map<String, CompactSampleTree> loadLabeledDumps = org.spf4j.ssdump2.Converter.loadLabeledDumpsCompact(file);
+      for (Map.Entry<String, CompactSampleTree> entry : loadLabeledDumps.entrySet()) {
+        setFrames(entry.getValue().getRoot(), fileName + ':' + entry.getKey());
+      }
+    } else if (Spf4jFileFilter.SSDUMP4.accept(file)) {
+      // continuous profiling windows, all the windows of the file are merged by label.
+      Instant[] range = SampleWindows.getTimeRange(file);
+      if (range != null) {
+        Map<String, CompactSampleTree> windows = SampleWindows.loadCompact(file, range[0], range[1]);
+        for (Map.Entry<String, CompactSampleTree> entry : windows.entrySet()) {
+          setFrames(entry.getValue().getRoot(), fileName + ':' + entry.getKey());
+        }
       }
     } else if (Spf4jFileFilter.D3_JSON.accept(file)) {
       try (BufferedReader br = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
@@ -395,7 +410,7 @@ public class Explorer extends javax.swing.JFrame {
     }
   }
 
-  private void setFrames(SampleNode samples, String fileName) throws IOException {
+  private void setFrames(@Nullable StackSamples samples, String fileName) throws IOException {
     JInternalFrame frame = new StackDumpJInternalFrame(samples, fileName, false);
     frame.setVisible(true);
     desktopPane.add(frame, javax.swing.JLayeredPane.DEFAULT_LAYER);
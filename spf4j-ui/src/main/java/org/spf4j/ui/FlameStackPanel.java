@@ -32,6 +32,7 @@
 package org.spf4j.ui;
 
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import gnu.trove.map.TMap;
 import java.awt.Color;
 import java.awt.Graphics2D;
 import java.awt.Point;
@@ -42,20 +43,20 @@ import javax.annotation.Nullable;
 import org.spf4j.base.EqualsPredicate;
 import org.spf4j.base.Methods;
 import org.spf4j.base.Pair;
+import org.spf4j.base.StackSamples;
 import org.spf4j.base.avro.Method;
-import org.spf4j.stackmonitor.SampleNode;
 
 /**
  * An inverted implementation of Brendan Gregg's flame charts.
  *
  * @author zoly
  */
-public final class FlameStackPanel extends StackPanelBase<Pair<Method, SampleNode>> {
+public final class FlameStackPanel extends StackPanelBase<Pair<Method, StackSamples>> {
 
   private static final long serialVersionUID = 1L;
 
   public FlameStackPanel(final Method method,
-          final SampleNode samples, final LinkedList<Pair<Method, SampleNode>> history) {
+          final StackSamples samples, final LinkedList<Pair<Method, StackSamples>> history) {
     super(method, samples, history);
   }
 
@@ -66,7 +67,7 @@ public final class FlameStackPanel extends StackPanelBase<Pair<Method, SampleNod
   }
 
   @SuppressFBWarnings("ISB_TOSTRING_APPENDING")
-  private int paintNode(final Method method, final SampleNode node,
+  private int paintNode(final Method method, @Nullable final StackSamples node,
           final Graphics2D g2, final int x, final int py, final int width, final int height, final int depth) {
     if (node == null) {
       return 0;
@@ -84,13 +85,14 @@ public final class FlameStackPanel extends StackPanelBase<Pair<Method, SampleNod
     g2.setPaint(LINK_COLOR);
     g2.drawRect(x, y, width, height);
     int result = height;
-    if (!node.isEmpty()) {
+    TMap<Method, ? extends StackSamples> children = node.getSubNodes();
+    if (!children.isEmpty()) {
       y += height;
       int relX = x;
       double scale = (double) width / sampleCount;
       int maxY = 0;
-      for (Map.Entry<Method, SampleNode> entry : node.entrySet()) {
-        SampleNode cnode = entry.getValue();
+      for (Map.Entry<Method, ? extends StackSamples> entry : children.entrySet()) {
+        StackSamples cnode = entry.getValue();
         // sampleCount -> width
         // childSampleCount -> childWidth
         int childWidth = (int) (scale * cnode.getSampleCount());
@@ -108,9 +110,9 @@ public final class FlameStackPanel extends StackPanelBase<Pair<Method, SampleNod
   @SuppressFBWarnings("ISB_TOSTRING_APPENDING")
   @Nullable
   public String getDetail(final Point location) {
-    List<Pair<Method, SampleNode>> tips = search(location.x, location.y, 0, 0);
+    List<Pair<Method, StackSamples>> tips = search(location.x, location.y, 0, 0);
     if (tips.size() >= 1) {
-      final Pair<Method, SampleNode> m = tips.get(0);
+      final Pair<Method, StackSamples> m = tips.get(0);
       return Methods.toString(m.getFirst()) + '-' + m.getSecond().getSampleCount();
     } else {
       return null;
@@ -119,19 +121,19 @@ public final class FlameStackPanel extends StackPanelBase<Pair<Method, SampleNod
 
   @Override
   public void filter() {
-    List<Pair<Method, SampleNode>> tips = search(xx, yy, 0, 0);
+    List<Pair<Method, StackSamples>> tips = search(xx, yy, 0, 0);
     if (tips.size() >= 1) {
       final Method value = tips.get(0).getFirst();
-      updateSamples(getMethod(), getSamples().filteredBy(new EqualsPredicate<Method>(value)));
+      updateSamples(getMethod(), filteredBy(getSamples(), new EqualsPredicate<Method>(value)));
       repaint();
     }
   }
 
   @Override
   public void drill() {
-    List<Pair<Method, SampleNode>> tips = search(xx, yy, 0, 0);
+    List<Pair<Method, StackSamples>> tips = search(xx, yy, 0, 0);
     if (tips.size() >= 1) {
-      Pair<Method, SampleNode> sample = tips.get(0);
+      Pair<Method, StackSamples> sample = tips.get(0);
       updateSamples(sample.getFirst(), sample.getSecond());
       repaint();
     }
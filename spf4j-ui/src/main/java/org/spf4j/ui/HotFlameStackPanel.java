@@ -52,6 +52,7 @@ import javax.annotation.Nullable;
 import org.spf4j.base.EqualsPredicate;
 import org.spf4j.base.Methods;
 import org.spf4j.base.Pair;
+import org.spf4j.base.StackSamples;
 import org.spf4j.base.avro.Method;
 import org.spf4j.stackmonitor.SampleGraph;
 import org.spf4j.stackmonitor.SampleGraph.AggSample;
@@ -73,10 +74,12 @@ public final class HotFlameStackPanel extends StackPanelBase<SampleKey> {
   private SampleGraph completeGraph;
   private Map<SampleKey, Rectangle2D> methodLocations;
   private double totalHeight = 0;
+  /** the viewed samples as a SampleNode tree, converted on first paint. */
+  private SampleNode viewedSamples;
 
 
   public HotFlameStackPanel(final Method method,
-          final SampleNode samples, final LinkedList<Pair<Method, SampleNode>> history) {
+          final StackSamples samples, final LinkedList<Pair<Method, StackSamples>> history) {
     super(method, samples, history);
   }
 
@@ -90,11 +93,14 @@ public final class HotFlameStackPanel extends StackPanelBase<SampleKey> {
 
   private void paintGraph(
           final Graphics2D g2, final double areaWidth, final double rowHeight) {
-    SampleNode samples = getSamples();
+    StackSamples samples = getSamples();
     if (samples == null) {
       return;
     }
-    final SampleGraph graph = new SampleGraph(getMethod(), samples);
+    if (viewedSamples == null) {
+      viewedSamples = toSampleNode(samples);
+    }
+    final SampleGraph graph = new SampleGraph(getMethod(), viewedSamples);
     this.completeGraph = graph;
     AggSample aggRoot = graph.getAggRootVertex();
     int rootSamples = aggRoot.getNrSamples();
@@ -318,7 +324,7 @@ public final class HotFlameStackPanel extends StackPanelBase<SampleKey> {
     List<SampleKey> tips = search(xx, yy, 0, 0);
     if (tips.size() >= 1) {
       final SampleKey value = tips.get(0);
-      updateSamples(getMethod(), getSamples().filteredBy(new EqualsPredicate<>(value.getMethod())));
+      updateSamples(getMethod(), filteredBy(getSamples(), new EqualsPredicate<>(value.getMethod())));
       repaint();
     }
   }
@@ -339,6 +345,12 @@ public final class HotFlameStackPanel extends StackPanelBase<SampleKey> {
     }
   }
 
+  @Override
+  public void updateSamples(final Method m, @Nullable final StackSamples n) {
+    super.updateSamples(m, n);
+    viewedSamples = null;
+  }
+
   private static void appendEdgeInfo(final Set<AggSample> incomming,
           final StringBuilder sb) {
     for (AggSample entry : incomming) {
@@ -44,6 +44,7 @@ import java.util.LinkedList;
 import javax.swing.JFileChooser;
 import javax.swing.filechooser.FileFilter;
 import org.spf4j.base.Methods;
+import org.spf4j.base.StackSamples;
 import org.spf4j.ssdump2.Converter;
 import org.spf4j.stackmonitor.SampleNode;
 
@@ -59,12 +60,12 @@ import org.spf4j.stackmonitor.SampleNode;
 @SuppressFBWarnings({"FCBL_FIELD_COULD_BE_LOCAL", "SE_BAD_FIELD"})
 public class StackDumpJInternalFrame extends javax.swing.JInternalFrame {
 
-  private SampleNode samples;
+  private StackSamples samples;
 
   /**
    * Creates new form StackDumpJInternalFrame
    */
-  public StackDumpJInternalFrame(final SampleNode samples,
+  public StackDumpJInternalFrame(final StackSamples samples,
           final String title, final boolean isgraph) {
     super(title);
     setName(title);
@@ -193,7 +194,7 @@ public class StackDumpJInternalFrame extends javax.swing.JInternalFrame {
       }
       if (Spf4jFileFilter.D3_JSON.accept(selectedFile)) { // D3 format.
         try (BufferedWriter wr = Files.newBufferedWriter(selectedFile.toPath(), StandardCharsets.UTF_8)) {
-          samples.writeD3JsonTo(wr);
+          StackPanelBase.toSampleNode(samples).writeD3JsonTo(wr);
         } catch (IOException ex) {
           throw new UncheckedIOException(ex);
         }
@@ -205,7 +206,7 @@ public class StackDumpJInternalFrame extends javax.swing.JInternalFrame {
         }
       } else if (Spf4jFileFilter.SSDUMP2.accept(selectedFile) || Spf4jFileFilter.SSDUMP2_GZ.accept(selectedFile)) {
         try {
-          Converter.save(selectedFile, samples);
+          Converter.save(selectedFile, StackPanelBase.toSampleNode(samples));
         } catch (IOException ex) {
           throw new UncheckedIOException(ex);
         }
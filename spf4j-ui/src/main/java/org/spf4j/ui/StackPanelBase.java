@@ -53,17 +53,24 @@ import java.awt.geom.Rectangle2D;
 import java.awt.image.BufferedImage;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.function.Predicate;
 import javax.annotation.Nullable;
 import javax.swing.JMenuItem;
 import javax.swing.JPanel;
 import javax.swing.JPopupMenu;
 import javax.swing.ToolTipManager;
+import org.spf4j.base.Methods;
 import org.spf4j.base.Pair;
+import org.spf4j.base.StackSamples;
 import org.spf4j.base.avro.Method;
 import org.spf4j.ds.RTree;
+import org.spf4j.stackmonitor.CompactSampleTree;
 import org.spf4j.stackmonitor.SampleNode;
 
 /**
+ * Base class of the stack sample panels, the samples can be a SampleNode tree or a node of a compact sample tree,
+ * in which case only the viewed sub-tree is converted to a SampleNode tree when a view needs one.
+ *
  * @author zoly
  */
 public abstract class StackPanelBase<T> extends JPanel
@@ -71,25 +78,25 @@ public abstract class StackPanelBase<T> extends JPanel
 
   private static final long serialVersionUID = 1L;
   //CHECKSTYLE:OFF
-  private SampleNode samples;
+  private StackSamples samples;
   private Method method;
   private RTree<T> samplesRTree = new RTree<>();
   protected int xx;
   protected int yy;
   //CHECKSTYLE:ON
   private final JPopupMenu menu;
-  private final LinkedList<Pair<Method, SampleNode>> history;
+  private final LinkedList<Pair<Method, StackSamples>> history;
   private volatile BufferedImage img;
   private volatile int imgWidth;
 
   public static final Color LINK_COLOR = new Color(128, 128, 128, 128);
 
   public StackPanelBase(final Method method,
-          final SampleNode samples, final LinkedList<Pair<Method, SampleNode>> history) {
+          final StackSamples samples, final LinkedList<Pair<Method, StackSamples>> history) {
     this.samples = samples;
     this.method = method;
     this.history = history;
-    setPreferredSize(new Dimension(400, 20 * samples.height() + 10));
+    setPreferredSize(new Dimension(400, 20 * height(samples) + 10));
     final ToolTipManager sharedInstance = ToolTipManager.sharedInstance();
     sharedInstance.registerComponent(this);
     sharedInstance.setDismissDelay(30000);
@@ -206,7 +213,7 @@ public abstract class StackPanelBase<T> extends JPanel
         drill();
         break;
       case "BACK":
-        Pair<Method, SampleNode> prev = history.pollLast();
+        Pair<Method, StackSamples> prev = history.pollLast();
         if (prev != null) {
           updateSamples(prev.getFirst(), prev.getSecond());
           repaint();
@@ -288,14 +295,15 @@ public abstract class StackPanelBase<T> extends JPanel
   }
 
   //CHECKSTYLE:OFF
-  public void updateSamples(final Method m, final SampleNode n) {
+  public void updateSamples(final Method m, @Nullable final StackSamples n) {
     //CHECKSTYLE:ON
     this.samples = n;
     this.method = m;
     this.img = null;
   }
 
-  public final SampleNode getSamples() {
+  @Nullable
+  public final StackSamples getSamples() {
     return samples;
   }
 
@@ -303,7 +311,7 @@ public abstract class StackPanelBase<T> extends JPanel
     return method;
   }
 
-  public final LinkedList<Pair<Method, SampleNode>> getHistory() {
+  public final LinkedList<Pair<Method, StackSamples>> getHistory() {
     return history;
   }
 
@@ -314,4 +322,34 @@ public abstract class StackPanelBase<T> extends JPanel
 
   public abstract void drill();
 
+  static int height(final StackSamples samples) {
+    if (samples instanceof CompactSampleTree.Node) {
+      return ((CompactSampleTree.Node) samples).height();
+    } else {
+      return toSampleNode(samples).height();
+    }
+  }
+
+  @Nullable
+  static StackSamples filteredBy(final StackSamples samples, final Predicate<Method> predicate) {
+    if (samples instanceof CompactSampleTree.Node) {
+      return ((CompactSampleTree.Node) samples).filteredBy(predicate);
+    } else {
+      return toSampleNode(samples).filteredBy(predicate);
+    }
+  }
+
+  /**
+   * @return the samples as a SampleNode tree, compact trees are converted, only the provided sub-tree.
+   */
+  static SampleNode toSampleNode(final StackSamples samples) {
+    if (samples instanceof SampleNode) {
+      return (SampleNode) samples;
+    } else if (samples instanceof CompactSampleTree.Node) {
+      return ((CompactSampleTree.Node) samples).toSampleNode();
+    } else {
+      return CompactSampleTree.from(Methods.ROOT, samples).toSampleNode();
+    }
+  }
+
 }
@@ -34,6 +34,7 @@ import org.spf4j.base.Methods;
 import org.spf4j.base.Pair;
 import org.spf4j.base.avro.Method;
 import org.spf4j.ssdump2.Converter;
+import org.spf4j.stackmonitor.CompactSampleTree;
 import org.spf4j.stackmonitor.SampleGraph;
 import org.spf4j.stackmonitor.SampleNode;
 import org.spf4j.test.log.TestUtils;
@@ -108,6 +109,13 @@ public class FlameStackPanelTest {
     testPanel(panel);
   }
 
+  @Test
+  public void testLoadingCompactStackPanels() throws IOException, InterruptedException {
+    CompactSampleTree.Node root = CompactSampleTree.from(NODES).getRoot();
+    testPanel(new FlameStackPanel(Methods.ROOT, root, new LinkedList<>()));
+    testPanel(new HotFlameStackPanel(Methods.ROOT, root, new LinkedList<>()));
+  }
+
   public final void testPanel(final JPanel panel) throws InterruptedException {
     CountDownLatch latch = new CountDownLatch(1);
     CountDownLatch closeLatch = new CountDownLatch(1);